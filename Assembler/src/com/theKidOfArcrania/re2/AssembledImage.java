@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2;
+
+import com.theKidOfArcrania.re2.assembly.ObjectFile;
+import com.theKidOfArcrania.re2.parsing.Diagnostics;
+
+/**
+ * The result of an {@link Assembler}: the assembled image or relocatable
+ * object, along with every diagnostic that was reported. If there were any
+ * errors, there is neither an image nor an object.
+ */
+public class AssembledImage
+{
+    private final Image image;
+    private final ObjectFile object;
+    private final Diagnostics diagnostics;
+
+    public AssembledImage(Image image, ObjectFile object, Diagnostics
+            diagnostics)
+    {
+        this.image = image;
+        this.object = object;
+        this.diagnostics = diagnostics;
+    }
+
+    public boolean isSuccessful()
+    {
+        return diagnostics.getErrors() == 0;
+    }
+
+    /**
+     * @return the image, or null if there were errors or if a relocatable
+     *         object was assembled instead.
+     */
+    public Image getImage()
+    {
+        return image;
+    }
+
+    /**
+     * @return the relocatable object, or null if there were errors or if a
+     *         full program was assembled instead.
+     */
+    public ObjectFile getObject()
+    {
+        return object;
+    }
+
+    public Diagnostics getDiagnostics()
+    {
+        return diagnostics;
+    }
+
+    public int getErrors()
+    {
+        return diagnostics.getErrors();
+    }
+
+    public int getWarnings()
+    {
+        return diagnostics.getWarnings();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2;
+
+import com.theKidOfArcrania.re2.assembly.CodeLayout;
+import com.theKidOfArcrania.re2.assembly.Optimizer;
+import com.theKidOfArcrania.re2.assembly.SectionCache;
+import com.theKidOfArcrania.re2.parsing.Diagnostics;
+import com.theKidOfArcrania.re2.parsing.TokenReader;
+
+import static com.theKidOfArcrania.re2.RESquared.ISA_REVISION;
+
+/**
+ * Assembles RE^2 assembly held in memory, such as the output of a code
+ * generator, without writing any files. An assembler only holds its options,
+ * and every call to {@link #assemble(CharSequence)} keeps its state to
+ * itself, so one assembler may be used from any number of threads at once.
+ *
+ * {@link RESquaredAssembler} is the command line front end, which reads the
+ * source from a file and writes the result next to it.
+ */
+public class Assembler
+{
+    public static final String DEFAULT_NAME = "<memory>";
+
+    private final int revision;
+    private final boolean optimize;
+    private final boolean relocatable;
+    private final SectionCache cache;
+    private final int maxErrors;
+    private final boolean debug;
+    private final Profile profile;
+    private final boolean writeXorExecute;
+
+    /**
+     * Creates an assembler of full programs for the current ISA revision.
+     */
+    public Assembler()
+    {
+        this(new Builder());
+    }
+
+    private Assembler(Builder options)
+    {
+        this.revision = options.revision;
+        this.optimize = options.optimize;
+        this.relocatable = options.relocatable;
+        this.cache = options.optimize ? null : options.cache;
+        this.maxErrors = options.maxErrors;
+        this.debug = options.debug;
+        this.profile = options.profile;
+        this.writeXorExecute = options.writeXorExecute;
+    }
+
+    /**
+     * Collects the options of an assembler. Every option starts out as it is
+     * for {@link #Assembler()}, and {@link #build()} checks that they fit
+     * together.
+     */
+    public static class Builder
+    {
+        private int revision = ISA_REVISION;
+        private boolean optimize;
+        private boolean relocatable;
+        private SectionCache cache;
+        private int maxErrors;
+        private boolean debug;
+        private Profile profile;
+        private boolean writeXorExecute;
+
+        /**
+         * @param revision the ISA revision to target. Instructions that are
+         *                 newer than this are errors, and <code>ENTER</code>
+         *                 and <code>LEAVE</code> are expanded for revision 1.
+         */
+        public Builder revision(int revision)
+        {
+            this.revision = revision;
+            return this;
+        }
+
+        /**
+         * @param optimize whether to run the {@link Optimizer} before
+         *                 encoding.
+         */
+        public Builder optimize(boolean optimize)
+        {
+            this.optimize = optimize;
+            return this;
+        }
+
+        /**
+         * @param relocatable whether to assemble a relocatable object instead
+         *                    of a full program.
+         */
+        public Builder relocatable(boolean relocatable)
+        {
+            this.relocatable = relocatable;
+            return this;
+        }
+
+        /**
+         * @param cache the cache to reuse unchanged sections from, or null.
+         *              This is not used when optimizing, since the optimizer
+         *              works across sections.
+         */
+        public Builder cache(SectionCache cache)
+        {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * @param maxErrors the number of errors after which no more
+         *                  diagnostics are recorded, or 0 for no limit.
+         */
+        public Builder maxErrors(int maxErrors)
+        {
+            this.maxErrors = maxErrors;
+            return this;
+        }
+
+        /**
+         * @param debug whether to write the line and symbol tables into the
+         *              image, as {@link DebugInfo}. Only v2 images (revision
+         *              2 and up) can hold them, and relocatable objects never
+         *              do.
+         */
+        public Builder debug(boolean debug)
+        {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * @param profile the profile to lay out the code by, with
+         *                {@link CodeLayout}, or null. It is only used if it
+         *                was recorded from the program as it would be
+         *                assembled without it; otherwise a warning is
+         *                reported.
+         */
+        public Builder profile(Profile profile)
+        {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * @param writeXorExecute whether to make a W^X image, in which
+         *                        sections with instructions are executable
+         *                        and the rest writable (unless they say
+         *                        otherwise with <code>.protect</code>). Only
+         *                        v2 images can be protected.
+         */
+        public Builder writeXorExecute(boolean writeXorExecute)
+        {
+            this.writeXorExecute = writeXorExecute;
+            return this;
+        }
+
+        /**
+         * @return an assembler with these options.
+         * @throws IllegalArgumentException if the options do not fit together.
+         */
+        public Assembler build()
+        {
+            if (revision < 1 || revision > ISA_REVISION)
+                throw new IllegalArgumentException("Unsupported ISA " +
+                        "revision: " + revision);
+            if (optimize && relocatable)
+                throw new IllegalArgumentException("Relocatable objects " +
+                        "cannot be optimized.");
+            if (debug && (relocatable || revision < 2))
+                throw new IllegalArgumentException("Debug information needs " +
+                        "a revision 2 program.");
+            if (profile != null && relocatable)
+                throw new IllegalArgumentException("Relocatable objects " +
+                        "cannot be laid out by a profile.");
+            if (writeXorExecute && (relocatable || revision < 2))
+                throw new IllegalArgumentException("W^X needs a revision 2 " +
+                        "program.");
+            return new Assembler(this);
+        }
+    }
+
+    public int getRevision()
+    {
+        return revision;
+    }
+
+    public boolean isOptimizing()
+    {
+        return optimize;
+    }
+
+    public boolean isRelocatable()
+    {
+        return relocatable;
+    }
+
+    public SectionCache getCache()
+    {
+        return cache;
+    }
+
+    public int getMaxErrors()
+    {
+        return maxErrors;
+    }
+
+    public boolean isDebugging()
+    {
+        return debug;
+    }
+
+    public Profile getProfile()
+    {
+        return profile;
+    }
+
+    public boolean isWriteXorExecute()
+    {
+        return writeXorExecute;
+    }
+
+    /**
+     * Assembles the source text.
+     *
+     * @param source the assembly source.
+     * @return the assembled image (or object) and the diagnostics, which are
+     *         reported under the name {@link #DEFAULT_NAME}.
+     */
+    public AssembledImage assemble(CharSequence source)
+    {
+        return assemble(DEFAULT_NAME, source);
+    }
+
+    /**
+     * Assembles the source text.
+     *
+     * @param name the name to report diagnostics under.
+     * @param source the assembly source.
+     * @return the assembled image (or object) and the diagnostics.
+     */
+    public AssembledImage assemble(String name, CharSequence source)
+    {
+        return assemble(new TokenReader(name, source, new Diagnostics
+                (maxErrors, true)));
+    }
+
+    /**
+     * Assembles the source of the reader, reporting to its diagnostics. The
+     * reader should not have read any line yet.
+     *
+     * @return the assembled image (or object) and the diagnostics.
+     */
+    public AssembledImage assemble(TokenReader in)
+    {
+        return RESquaredAssembler.assemble(in, this);
+    }
+}
@@ -22,122 +22,261 @@
 
 package com.theKidOfArcrania.re2;
 
+import com.theKidOfArcrania.re2.assembly.*;
 import com.theKidOfArcrania.re2.parsing.*;
 
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
 
+import static com.theKidOfArcrania.re2.RESquared.ISA_REVISION;
 import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+import static com.theKidOfArcrania.re2.RESquared.SP;
 
 @SuppressWarnings("JavaDoc")
 public class RESquaredAssembler
 {
     public static class Section {
-        public static final int INIT_SIZE = 128;
+        private final TokenReader reader;
+        private final ArrayList<Item> items = new ArrayList<>();
+        private final SymbolTable symbols = new SymbolTable();
+        private int[] fixups = new int[FIXUP_SIZE * 16];
+        private int fixupCount;
 
-        private HashMap<String, ArrayList<Integer>> links = new HashMap<>();
+        private final int revision;
 
         private int base = -1;
-        private byte[] data;
         private int size;
 
-        public Section()
+        //The Image.PERM_* flags given by .protect, or -1 for the default.
+        private int permissions = -1;
+
+        /**
+         * @param reader the reader that this section is parsed from. Errors
+         *               in this section are reported to it.
+         */
+        public Section(TokenReader reader)
         {
-            this.data = new byte[INIT_SIZE];
-            this.size = 0;
+            this(reader, ISA_REVISION);
         }
 
-        public boolean ensureCapacity(int size)
+        /**
+         * @param reader the reader that this section is parsed from.
+         * @param revision the ISA revision that the section may use
+         *                 instructions from.
+         */
+        public Section(TokenReader reader, int revision)
         {
-            if (data.length >= size)
-                return true;
+            this.reader = reader;
+            this.revision = revision;
+        }
+
+        public int getBase()
+        {
+            return base;
+        }
+
+        /**
+         * @return the {@link Image#PERM_WRITE} and {@link Image#PERM_EXECUTE}
+         *         flags given by a <code>.protect</code> directive, or -1 if
+         *         there is none.
+         */
+        public int getPermissions()
+        {
+            return permissions;
+        }
+
+        /**
+         * @return the items of this section, in order. This list may be
+         *         modified, as long as the section is laid out again before it
+         *         is written.
+         */
+        public List<Item> getItems()
+        {
+            return items;
+        }
 
+        public boolean ensureCapacity(int size)
+        {
             if (size > MAX_SIZE || size + base > MAX_ADDR)
             {
                 reader.error("out of memory.");
                 return false;
             }
-
-            int newSize = data.length + data.length / 2;
-            if (newSize < size)
-                newSize = size;
-
-            if (newSize > MAX_SIZE)
-                newSize = MAX_SIZE;
-
-            data = Arrays.copyOf(data, newSize);
             return true;
         }
 
-        public void write(byte b)
+        public void add(Item item)
         {
-            if (!ensureCapacity(size + 1))
+            if (item instanceof Instruction && Opcodes.revision(((Instruction)
+                    item).getOpcode()) > revision)
+            {
+                int[] token = TokenReader.firstToken(reader.currentLine());
+                reader.error("instruction needs ISA revision " + Opcodes
+                        .revision(((Instruction)item).getOpcode()) + ".");
+                reader.traceCode(token == null ? 0 : token[0]);
                 return;
-            data[size++] = b;
+            }
+            if (!ensureCapacity(size + item.size()))
+                return;
+            if (item.getLine() == 0)
+                item.setLine(reader.getLineNum());
+            items.add(item);
+            size += item.size();
         }
 
-        public void write(byte[] buff)
+        public void writeSymbol(int opcode, String label)
         {
-            write(buff, 0, buff.length);
+            writeSymbol(opcode, new byte[0], label);
         }
-        public void write(byte[] buff, int offset, int length)
+
+        public void writeSymbol(int opcode, byte[] prefix, String label)
         {
-            if (!ensureCapacity(size + length))
-                return;
-            System.arraycopy(buff, offset, data, size, length);
-            size += length;
+            int id = symbols.intern(label);
+            writeSymbol(new Instruction(opcode, prefix, symbols.getName(id)),
+                    id);
         }
 
-        public void writeShort(short s)
+        /**
+         * Adds an instruction that refers to a label. It is only bound to
+         * that label once all sections are parsed.
+         */
+        private void writeSymbol(Instruction inst, int id)
         {
-            if (!ensureCapacity(size + 2))
-                return;
-            data[size++] = (byte)s;
-            data[size++] = (byte)(s >> 8);
+            int count = items.size();
+            add(inst);
+            addFixup(items.size() > count ? count : -1, id << 1);
         }
 
-        public void writeSection(DataOutputStream dos) throws IOException
+        public void defineLabel(Label label)
         {
-            putShort(dos, (short)base);
-            putShort(dos, (short)size);
-            dos.write(data, 0, size);
+            addFixup(items.size(), symbols.intern(label.getName()) << 1 | 1);
+            add(label);
         }
 
-        public void writeSymbol(String label)
+        /**
+         * Records a label definition or reference, as a pair of the item
+         * index (or -1 if the item did not fit) and the symbol number in
+         * this section, shifted left by one, with the lowest bit set for a
+         * definition.
+         */
+        private void addFixup(int index, int symbol)
         {
-            if (labels.containsKey(label))
+            if (fixupCount == fixups.length)
+                fixups = Arrays.copyOf(fixups, fixups.length * 2);
+            fixups[fixupCount++] = index;
+            fixups[fixupCount++] = symbol;
+        }
+
+        /**
+         * Adds items read back from the {@link SectionCache}, binding labels
+         * the same way as if they had just been parsed.
+         */
+        private void replay(List<Item> cached)
+        {
+            for (Item item : cached)
             {
-                writeShort(labels.get(label));
-                return;
+                if (item instanceof Label)
+                    defineLabel((Label)item);
+                else if (item instanceof Instruction && ((Instruction)item)
+                        .isSymbolic())
+                    writeSymbol((Instruction)item, symbols.intern((
+                            (Instruction)item).getSymbol()));
+                else
+                    add(item);
             }
-            else if (!links.containsKey(label))
-                links.put(label, new ArrayList<>());
-
-            links.get(label).add(size);
-            writeShort((short)-1);
         }
 
-        public void resolveSymbol(String label, short address)
+        /**
+         * Assigns an address to every item in this section.
+         *
+         * @return the size of this section in bytes.
+         */
+        public int layout()
         {
-            if (links.containsKey(label))
+            int addr = base;
+            for (Item item : items)
             {
-                for (int addr : links.get(label))
-                {
-                    data[addr] = (byte)address;
-                    data[addr + 1] = (byte)(address >> 8);
-                }
-                links.remove(label);
+                item.setAddress(addr);
+                addr += item.size();
             }
+            size = addr - base;
+            return size;
+        }
+
+        /**
+         * Encodes this section. It must be laid out, and all its labels
+         * bound, beforehand.
+         *
+         * @return the contents of this section.
+         */
+        public byte[] encode()
+        {
+            byte[] data = new byte[size];
+            for (Item item : items)
+                item.encode(data, item.getAddress() - base);
+            return data;
+        }
+
+    }
+
+    /**
+     * The state of a single assembly. It is shared by the parsers of all the
+     * parts of the file, and by nothing else, so any number of files can be
+     * assembled at once.
+     */
+    private static class Assembly
+    {
+        private final int revision;
+        private final boolean relocatable;
+        private final boolean writeXorExecute;
+        private final SectionCache cache;
+
+        private final SymbolTable symbols = new SymbolTable();
+        private Label[] definitions = new Label[0];
+
+        private int entryPoint = -1;
+        private String entryPointLabel = null;
+
+        private Assembly(Assembler options)
+        {
+            revision = options.getRevision();
+            relocatable = options.isRelocatable();
+            writeXorExecute = options.isWriteXorExecute();
+            cache = options.getCache();
+        }
+
+        /**
+         * @return the last definition of the label, or null if it is not
+         *         defined.
+         */
+        private Label lookup(String name)
+        {
+            int id = symbols.find(name);
+            return id == -1 ? null : definitions[id];
         }
     }
 
     public static final int MAX_SIZE = 0x7FFF;
+    public static final int FIXUP_SIZE = 2;
+    public static final int DEFERRED_SIZE = 3;
+    public static final int WATCH_SETTLE_MILLIS = 50;
     public static final int HEX_RADIX = 16;
 
-    public static final byte[] SIGNATURE = {0x52, 0x45, 0x5e, 0x32, 0x00, 0x00, 0x00, 0x01}; //RE^2
+    //Revision 1 images have no ENTER/LEAVE instructions, so these are
+    //expanded instead.
 
     //PUSH %BP
     //PUSH %SP
@@ -149,136 +288,841 @@ public class RESquaredAssembler
     //POP %BP
     public static final byte[] CODE_LEAVE = {0x4B, 0x7E, 0x4F, 0x2D, 0x4F, 0x4E};
 
-    private static HashMap<String, Integer> opcodes = new HashMap<>();
-    private static HashMap<String, int[]> subopcodes = new HashMap<>();
+    private static final int[] NO_OPCODES = {-1, -1, -1, -1, -1, -1, -1};
+
+    //The opcode tables are filled in once and never modified afterwards, so
+    //they are shared by every assembly.
+    private static final Map<String, Integer> opcodes;
+    private static final Map<String, int[]> subopcodes;
+    private static final Map<String, int[]> regopcodes;
+    private static final KeywordTable<String> mnemonics = new KeywordTable<>();
+    private static final KeywordTable<String> directives = new
+            KeywordTable<>();
 
-    private static int entryPoint = -1;
-    private static String entryPointLabel = null;
+    private final Assembly assembly;
+    private final TokenReader reader;
+    private final int firstLine;
+    private final boolean hasEntry;
+    private Section section;
 
-    private static HashMap<String, Short> labels = new HashMap<>();
+    static
+    {
+        HashMap<String, Integer> ops = new HashMap<>();
+        HashMap<String, int[]> subs = new HashMap<>();
+        HashMap<String, int[]> regs = new HashMap<>();
+        initOpcodeMappings(ops, subs, regs);
+        opcodes = Collections.unmodifiableMap(ops);
+        subopcodes = Collections.unmodifiableMap(subs);
+        regopcodes = Collections.unmodifiableMap(regs);
+    }
 
-    private static TokenReader reader;
+    /**
+     * Creates the parser for one part of the file: either everything before
+     * the first section, or one whole section.
+     *
+     * @param assembly the assembly that this part belongs to.
+     * @param in the reader of the whole file.
+     * @param hasEntry whether this part contains an <code>.entry</code>
+     *                 directive.
+     */
+    private RESquaredAssembler(Assembly assembly, TokenReader in, int
+            firstLine, int lastLine, boolean hasEntry)
+    {
+        this.assembly = assembly;
+        this.reader = in.subReader(firstLine, lastLine);
+        this.firstLine = firstLine;
+        this.hasEntry = hasEntry;
+    }
 
     public static void main(String[] args) throws Exception
     {
-        System.out.println("RE^2 Assembler v1.1");
-        System.out.println("Copyright (c) 2017 theKidOfArcrania\n");
+        printBanner(System.out);
+
+        boolean optimize = false;
+        boolean object = false;
+        boolean watch = false;
+        boolean debug = false;
+        boolean writeXorExecute = false;
+        String profileFile = null;
+        int revision = ISA_REVISION;
+        Diagnostics.Format format = Diagnostics.Format.TEXT;
+        int errorLimit = 0;
+        String cacheDir = null;
+        String file = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-O"))
+                optimize = true;
+            else if (args[i].equals("-r"))
+                object = true;
+            else if (args[i].equals("-w"))
+                watch = true;
+            else if (args[i].equals("-g"))
+                debug = true;
+            else if (args[i].equals("-x"))
+                writeXorExecute = true;
+            else if (args[i].equals("-p") && i + 1 < args.length)
+                profileFile = args[++i];
+            else if (args[i].equals("-c") && i + 1 < args.length)
+                cacheDir = args[++i];
+            else if (args[i].equals("-t") && i + 1 < args.length)
+                revision = parseRevision(args[++i]);
+            else if (args[i].equals("-f") && i + 1 < args.length)
+                format = parseFormat(args[++i]);
+            else if (args[i].equals("-e") && i + 1 < args.length)
+                errorLimit = parseErrorLimit(args[++i]);
+            else if (file == null && !args[i].startsWith("-"))
+                file = args[i];
+            else
+                file = null;
+        }
 
-        if (args.length == 0)
+        if (file == null || optimize && object || revision == -1 || format ==
+                null || errorLimit == -1 || debug && (object || revision < 2)
+                || profileFile != null && object || writeXorExecute &&
+                (object || revision < 2))
         {
             File path = new File(RESquaredAssembler.class.getProtectionDomain()
                     .getCodeSource().getLocation().toURI().getPath());
+            String options = " [-O | -r] [-t <revision>] [-g] [-x] [-p " +
+                    "<profile>] " +
+                    "[-c <cache dir>] [-w] [-f text|json|none] [-e <max " +
+                    "errors>] <file>";
             if (path.isDirectory())
-                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquaredAssembler <File>");
+                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquaredAssembler" + options);
             else
                 System.out.println("Usage: java -jar " + path.getName() +
-                        " <file>");
+                        options);
 
             System.exit(2);
         }
 
-        ArrayList<Section> sections = null;
-        initOpcodeMappings();
+        File source = new File(file);
+        SectionCache sections = null;
+        if (cacheDir != null || watch)
+        {
+            Path dir = cacheDir != null ? Paths.get(cacheDir) : source
+                    .getAbsoluteFile().toPath().resolveSibling(".re2-cache");
+            sections = new SectionCache(dir);
+        }
 
-        String file = args[0];
+        Profile profile = null;
+        if (profileFile != null)
+        {
+            try (InputStream is = new BufferedInputStream(new FileInputStream
+                    (profileFile)))
+            {
+                profile = Profile.read(is);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error: unable to read profile: " +
+                        profileFile);
+                System.exit(1);
+            }
+        }
+
+        Assembler assembler = new Assembler.Builder().revision(revision)
+                .optimize(optimize).relocatable(object).cache(sections)
+                .maxErrors(errorLimit).debug(debug).profile(profile)
+                .writeXorExecute(writeXorExecute).build();
+        if (watch)
+            watch(source, assembler, format, System.out, System.err);
+        else
+            System.exit(assemble(source, assembler, format, System.out,
+                    System.err));
+    }
+
+    /**
+     * @return the diagnostic format, or null if there is no such format.
+     */
+    private static Diagnostics.Format parseFormat(String arg)
+    {
+        try
+        {
+            return Diagnostics.Format.valueOf(arg.toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the maximum number of errors, or -1 if it is not valid.
+     */
+    private static int parseErrorLimit(String arg)
+    {
+        try
+        {
+            return Math.max(Integer.parseInt(arg), -1);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the ISA revision, or -1 if it is not a supported revision.
+     */
+    private static int parseRevision(String arg)
+    {
+        try
+        {
+            int revision = Integer.parseInt(arg);
+            return revision >= 1 && revision <= ISA_REVISION ? revision : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    public static void printBanner(PrintStream out)
+    {
+        out.println("RE^2 Assembler v1.1");
+        out.println("Copyright (c) 2017 theKidOfArcrania\n");
+    }
+
+    /**
+     * Assembles the source file into a sibling <code>.re</code> binary, or a
+     * <code>.reo</code> object if the assembler is relocatable.
+     *
+     * @param file the assembly source file.
+     * @param assembler the assembler to use.
+     * @param format the format to write diagnostics in. With
+     *               {@link Diagnostics.Format#NONE}, diagnostics are only
+     *               counted and never formatted.
+     * @param out the stream to write the summary to.
+     * @param err the stream to write diagnostics to.
+     * @return the exit status: 0 on success, 1 if there were any errors.
+     */
+    public static int assemble(File file, Assembler assembler, Diagnostics
+            .Format format, PrintStream out, PrintStream err)
+    {
+        SectionCache cache = assembler.getCache();
+        if (cache != null)
+            cache.resetCounts();
+
+        AssembledImage result = null;
         int errors = 0;
-        int warnings = 0;
-        try (TokenReader in = new TokenReader(new File(file)))
+        Diagnostics diagnostics = new Diagnostics(assembler.getMaxErrors(),
+                format != Diagnostics.Format.NONE);
+        try (TokenReader in = new TokenReader(file, diagnostics))
         {
-            sections = parseFile(in);
-            errors = in.getErrors();
-            warnings = in.getWarnings();
+            result = assembler.assemble(in);
         }
         catch (IOException e)
         {
-            System.err.println("Error: file not found: " + file);
+            err.println("Error: file not found: " + file);
             errors++;
         }
+        finally
+        {
+            diagnostics.render(err, format);
+        }
 
-        if (errors == 0 && sections != null)
+        errors += diagnostics.getErrors();
+        if (result != null && result.getObject() != null)
+            errors += writeObject(file, result.getObject(), err);
+        else if (result != null && result.getImage() != null)
+            errors += writeImage(file, result.getImage(), err);
+
+        out.println();
+        if (cache != null)
+            out.println(cache.getHits() + " of " + (cache.getHits() + cache
+                    .getMisses()) + " section(s) reused from cache.");
+        out.println(errors + " error(s).");
+        out.println(diagnostics.getWarnings() + " warning(s).");
+        return errors > 0 ? 1 : 0;
+    }
+
+    /**
+     * Assembles the source of the reader, reporting to its diagnostics.
+     * Nothing is written anywhere.
+     *
+     * @see Assembler#assemble(TokenReader)
+     */
+    static AssembledImage assemble(TokenReader in, Assembler options)
+    {
+        Assembly assembly = new Assembly(options);
+        ArrayList<Section> sections = parseFile(in, assembly);
+        if (in.getErrors() > 0)
+            return new AssembledImage(null, null, in.getDiagnostics());
+        if (assembly.relocatable)
+            return new AssembledImage(null, toObject(sections, assembly), in
+                    .getDiagnostics());
+
+        if (options.isOptimizing())
+            Optimizer.optimize(sections, assembly.revision);
+        sections.parallelStream().forEach(Section::layout);
+        List<Image.Section> split = encode(sections, assembly);
+
+        Profile profile = options.getProfile();
+        if (profile != null && Profile.checksum(split) != profile
+                .getChecksum())
+            in.log(new ErrorReporting(ErrorLevel.WARNING, "profile was not " +
+                    "recorded from this program, ignoring it."));
+        else if (profile != null)
+        {
+            CodeLayout.reorder(sections, profile);
+            if (options.isOptimizing())
+                Optimizer.shorten(sections, assembly.revision);
+            sections.parallelStream().forEach(Section::layout);
+            split = encode(sections, assembly);
+        }
+
+        short entry = (short)(assembly.entryPoint == -2 ? assembly.lookup
+                (assembly.entryPointLabel).getAddress() : assembly.entryPoint);
+        if (!isContainer(assembly.revision))
+            return new AssembledImage(new Image(assembly.revision, entry,
+                    split), null, in.getDiagnostics());
+
+        ControlFlow flow = new ControlFlow(split, entry, ControlFlow.labels
+                (sections));
+        DebugInfo debug = options.isDebugging() ? debugInfo(sections, in
+                .getFileName()) : null;
+        try
+        {
+            return new AssembledImage(new Image(assembly.revision, entry,
+                    split, flow.getBlocks(), flow.getHotEntries(), debug,
+                    protection(sections, assembly)), null, in
+                    .getDiagnostics());
+        }
+        catch (IllegalArgumentException e)
         {
-            File output = new File(file.substring(0, file.lastIndexOf('.')) +
-                    ".re");
-            try (DataOutputStream dos = new DataOutputStream(new
-                    FileOutputStream(output)))
+            in.log(new ErrorReporting(ErrorLevel.ERROR, "cannot make a W^X " +
+                    "image: " + e.getMessage() + " Keep code and writable " +
+                    "data on separate " + Image.PAGE_SIZE + "-byte pages."));
+            return new AssembledImage(null, null, in.getDiagnostics());
+        }
+    }
+
+    /**
+     * @return the protection level of the image: W^X if asked for, or else
+     *         whether any section has a <code>.protect</code> directive.
+     */
+    private static int protection(List<Section> sections, Assembly assembly)
+    {
+        if (assembly.writeXorExecute)
+            return Image.PROTECTION_W_XOR_X;
+        for (Section s : sections)
+            if (s.permissions != -1)
+                return Image.PROTECTION_SECTIONS;
+        return Image.PROTECTION_NONE;
+    }
+
+    /**
+     * @return the permissions of every section: as given by its
+     *         <code>.protect</code> directive, or for a W^X image, executable
+     *         if it holds any instructions and writable otherwise. The rest
+     *         are -1, for the default.
+     */
+    private static int[] permissions(List<Section> sections, boolean
+            writeXorExecute)
+    {
+        int[] permissions = new int[sections.size()];
+        for (int i = 0; i < permissions.length; i++)
+        {
+            Section s = sections.get(i);
+            permissions[i] = s.permissions;
+            if (permissions[i] != -1 || !writeXorExecute)
+                continue;
+            permissions[i] = Image.PERM_WRITE;
+            for (Item item : s.items)
             {
-                dos.write(SIGNATURE);
-                putShort(dos, (short)entryPoint);
-                dos.write(sections.size());
-                for (Section s : sections)
-                    s.writeSection(dos);
+                if (item instanceof Instruction)
+                {
+                    permissions[i] = Image.PERM_EXECUTE;
+                    break;
+                }
             }
-            catch (IOException e)
+        }
+        return permissions;
+    }
+
+    /**
+     * Encodes the laid out sections: whole for a v1 image, or split into
+     * their runs of code and data for a v2 image.
+     */
+    private static List<Image.Section> encode(List<Section> sections,
+                                              Assembly assembly)
+    {
+        List<byte[]> encoded = sections.parallelStream().map
+                (Section::encode).collect(Collectors.toList());
+        if (isContainer(assembly.revision))
+            return ControlFlow.split(sections, encoded, permissions(sections,
+                    assembly.writeXorExecute));
+
+        ArrayList<Image.Section> raw = new ArrayList<>();
+        for (int i = 0; i < sections.size(); i++)
+            raw.add(new Image.Section(sections.get(i).base, encoded.get(i)));
+        return raw;
+    }
+
+    /**
+     * Builds the line and symbol tables of the laid out sections. Every
+     * section ends with a row of line 0, so that the gaps between sections
+     * have no line.
+     */
+    private static DebugInfo debugInfo(List<Section> sections, String file)
+    {
+        ArrayList<int[]> rows = new ArrayList<>();
+        ArrayList<Label> labels = new ArrayList<>();
+        for (Section s : sections)
+        {
+            int line = 0;
+            int end = s.base;
+            for (Item item : s.items)
             {
-                System.err.println("Error: unable to write to file: " + output);
-                errors++;
+                if (item instanceof Label)
+                    labels.add((Label)item);
+                else if (item.size() > 0 && item.getLine() != line)
+                {
+                    line = item.getLine();
+                    rows.add(new int[] {item.getAddress(), line});
+                }
+                end = item.getAddress() + item.size();
             }
+            if (line != 0)
+                rows.add(new int[] {end, 0});
+        }
+
+        //An end row sorts before a row that starts at the same address.
+        rows.sort(Comparator.<int[]>comparingInt(r -> r[0]).thenComparingInt
+                (r -> r[1] == 0 ? 0 : 1));
+        labels.sort(Comparator.comparingInt(Item::getAddress));
+
+        int[] addresses = new int[rows.size()];
+        int[] lines = new int[rows.size()];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            addresses[i] = rows.get(i)[0];
+            lines[i] = rows.get(i)[1];
         }
+        int[] symbolAddresses = new int[labels.size()];
+        String[] symbolNames = new String[labels.size()];
+        for (int i = 0; i < symbolAddresses.length; i++)
+        {
+            symbolAddresses[i] = labels.get(i).getAddress();
+            symbolNames[i] = labels.get(i).getName();
+        }
+        return new DebugInfo(new String[] {file}, addresses, new
+                int[addresses.length], lines, symbolAddresses, symbolNames);
+    }
 
-        System.out.println();
-        System.out.println(errors + " error(s).");
-        System.out.println(warnings + " warning(s).");
-        if (errors > 0)
-            System.exit(1);
+    /**
+     * @return true if images for this ISA revision are written in the v2
+     *         container format. Revision 1 images are meant for older
+     *         interpreters, so they keep the v1 format.
+     */
+    private static boolean isContainer(int revision)
+    {
+        return revision >= 2;
     }
 
+    /**
+     * Assembles the source file, and then again every time it changes, until
+     * the process is killed. Only the sections that changed are parsed again.
+     */
+    public static void watch(File file, Assembler assembler, Diagnostics
+            .Format format, PrintStream out, PrintStream err) throws
+            IOException, InterruptedException
+    {
+        Path path = file.getAbsoluteFile().toPath();
+        try (WatchService watcher = path.getFileSystem().newWatchService())
+        {
+            path.getParent().register(watcher, StandardWatchEventKinds
+                    .ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true)
+            {
+                long start = System.nanoTime();
+                assemble(file, assembler, format, out, err);
+                out.println("Assembled in " + (System.nanoTime() - start) /
+                        1000000 + " ms. Watching " + file + " for changes...");
+                out.flush();
+
+                boolean changed = false;
+                while (!changed)
+                {
+                    WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents())
+                        if (path.getFileName().equals(event.context()))
+                            changed = true;
+                    key.reset();
+                }
 
+                //Let the editor finish writing before reading the file.
+                Thread.sleep(WATCH_SETTLE_MILLIS);
+                WatchKey key;
+                while ((key = watcher.poll()) != null)
+                {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
 
-    private static ArrayList<Section> parseFile(TokenReader reader)
+    /**
+     * Parses the file. Everything before the first section is parsed first,
+     * and then every section is parsed in parallel with its own reader. The
+     * diagnostics of each section are kept until all sections are parsed,
+     * and then included in source order. Lastly, all the label references
+     * are bound by {@link #link(List, TokenReader, Assembly)}.
+     *
+     * Sections with an <code>.entry</code> directive are parsed one after
+     * the other on this thread instead, since that directive sets the entry
+     * point of the whole assembly.
+     */
+    private static ArrayList<Section> parseFile(TokenReader in, Assembly
+            assembly)
     {
-        RESquaredAssembler.reader = reader;
+        ArrayList<RESquaredAssembler> parts = split(in, assembly);
+        try
+        {
+            parts.get(0).parse();
+        }
+        finally
+        {
+            //Keep what was reported so far if parsing fails.
+            in.includeDiagnostics(parts.get(0).reader);
+        }
+
+        List<RESquaredAssembler> sectionParts = parts.subList(1, parts.size());
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (RESquaredAssembler part : sectionParts)
+            if (!part.hasEntry)
+                tasks.add(ForkJoinPool.commonPool().submit(part::parse));
+        for (RESquaredAssembler part : sectionParts)
+            if (part.hasEntry)
+                part.parse();
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
 
         ArrayList<Section> sections = new ArrayList<>();
+        for (int i = 0; i < sectionParts.size(); i++)
+        {
+            RESquaredAssembler part = sectionParts.get(i);
+            boolean missingBase = part.section.base == -1 && !assembly
+                    .relocatable &&
+                    i + 1 < sectionParts.size();
+            if (missingBase)
+            {
+                part.reader.visitLine(part.firstLine);
+                part.reader.error("expected: section address base.");
+                part.reader.traceCode(0);
+            }
+
+            in.includeDiagnostics(part.reader);
+            sections.add(part.section);
+            if (missingBase)
+                return sections;
+        }
+
+        link(sections, in, assembly);
+        return sections;
+    }
+
+    /**
+     * Splits the file into its sections, starting a new part at every
+     * <code>.section</code> line.
+     *
+     * @return the parts of the file. The first part holds the lines before
+     *         the first section (if any).
+     */
+    private static ArrayList<RESquaredAssembler> split(TokenReader in,
+                                                       Assembly assembly)
+    {
+        ArrayList<RESquaredAssembler> parts = new ArrayList<>();
+        int lines = in.getLineCount();
+        int start = 1;
+        boolean entry = false;
+        for (int i = 1; i <= lines; i++)
+        {
+            String directive = lineDirective(in.peekLine(i));
+            if ("SECTION".equals(directive))
+            {
+                parts.add(new RESquaredAssembler(assembly, in, start, i - 1,
+                        entry));
+                start = i;
+                entry = false;
+            }
+            else if ("ENTRY".equals(directive))
+                entry = true;
+        }
+        parts.add(new RESquaredAssembler(assembly, in, start, lines,
+                entry));
+        return parts;
+    }
+
+    /**
+     * Binds every label reference, and reports any labels that are never
+     * defined. A reference binds to the last definition of its label before
+     * it, or else to the first one after it (which is the first one overall).
+     * The labels of all sections are numbered in one {@link SymbolTable} for
+     * the whole assembly, after which this is a single pass over the fixups
+     * of every section, in source order.
+     */
+    private static void link(List<Section> sections, TokenReader in,
+                             Assembly assembly)
+    {
+        SymbolTable symbols = assembly.symbols;
+        int[][] globalIds = new int[sections.size()][];
+        for (int i = 0; i < sections.size(); i++)
+        {
+            SymbolTable local = sections.get(i).symbols;
+            globalIds[i] = new int[local.size()];
+            for (int id = 0; id < local.size(); id++)
+                globalIds[i][id] = symbols.intern(local.getName(id));
+        }
+
+        //References to labels that are only defined later, as triples of
+        //section, item index and symbol number.
+        int[] deferred = new int[DEFERRED_SIZE * 16];
+        int deferredCount = 0;
 
-        int prevSectionLineNum = 0;
+        Label[] first = new Label[symbols.size()];
+        Label[] definitions = new Label[symbols.size()];
+        assembly.definitions = definitions;
+        for (int i = 0; i < sections.size(); i++)
+        {
+            Section s = sections.get(i);
+            for (int f = 0; f < s.fixupCount; f += FIXUP_SIZE)
+            {
+                int index = s.fixups[f];
+                int id = globalIds[i][s.fixups[f + 1] >> 1];
+                if ((s.fixups[f + 1] & 1) != 0)
+                {
+                    Label label = (Label)s.items.get(index);
+                    if (first[id] == null)
+                        first[id] = label;
+                    definitions[id] = label;
+                }
+                else if (definitions[id] == null)
+                {
+                    if (deferredCount == deferred.length)
+                        deferred = Arrays.copyOf(deferred, deferred.length *
+                                2);
+                    deferred[deferredCount++] = i;
+                    deferred[deferredCount++] = index;
+                    deferred[deferredCount++] = id;
+                }
+                else if (index != -1)
+                    ((Instruction)s.items.get(index)).bind(definitions[id]);
+            }
+        }
+
+        LinkedHashSet<String> unresolved = new LinkedHashSet<>();
+        if (assembly.entryPoint == -2 && assembly.lookup(assembly
+                .entryPointLabel) == null)
+            unresolved.add(assembly.entryPointLabel);
+        for (int d = 0; d < deferredCount; d += DEFERRED_SIZE)
+        {
+            int index = deferred[d + 1];
+            int id = deferred[d + 2];
+            if (first[id] == null)
+                unresolved.add(symbols.getName(id));
+            else if (index != -1)
+                ((Instruction)sections.get(deferred[d]).items.get(index))
+                        .bind(first[id]);
+        }
+
+        if (assembly.relocatable)
+            return;
+        if (assembly.entryPoint == -1)
+            in.error("no entry point specified.");
+        if (!isContainer(assembly.revision) && sections.size() > Image
+                .MAX_V1_SECTIONS)
+            in.error("too many sections, a revision 1 image holds at most " +
+                    Image.MAX_V1_SECTIONS + ".");
+        for (String label : unresolved)
+            in.error("Unresolved label `" + label + "`");
+    }
+
+    /**
+     * Converts the parsed sections into an object file. Each label becomes
+     * a symbol (only its last definition, if it is defined more than once).
+     * Each label reference becomes a relocation: into its section if the
+     * label is defined in this file, or otherwise to the symbol.
+     */
+    private static ObjectFile toObject(List<Section> sections, Assembly
+            assembly)
+    {
+        IdentityHashMap<Label, Integer> owners = new IdentityHashMap<>();
+        for (int i = 0; i < sections.size(); i++)
+        {
+            sections.get(i).layout();
+            for (Item item : sections.get(i).items)
+                if (item instanceof Label)
+                    owners.put((Label)item, i);
+        }
 
-        Section current = null;
+        ArrayList<ObjectFile.Section> converted = new ArrayList<>();
+        for (Section s : sections)
+        {
+            byte[] data = new byte[s.size];
+            ArrayList<ObjectFile.Symbol> symbols = new ArrayList<>();
+            ArrayList<ObjectFile.Relocation> relocs = new ArrayList<>();
+            for (Item item : s.items)
+            {
+                int off = item.getAddress() - s.base;
+                if (item instanceof Label)
+                {
+                    Label label = (Label)item;
+                    if (assembly.lookup(label.getName()) == label)
+                        symbols.add(new ObjectFile.Symbol(label.getName(),
+                                off));
+                }
+                else if (item instanceof Instruction && ((Instruction)item)
+                        .isSymbolic())
+                {
+                    Instruction inst = (Instruction)item;
+                    Label target = inst.getTarget();
+                    byte[] prefix = inst.getOperands();
+                    data[off] = (byte)inst.getOpcode();
+                    System.arraycopy(prefix, 0, data, off + 1, prefix.length);
+
+                    int at = off + 1 + prefix.length;
+                    int width = inst.size() - 1 - prefix.length;
+                    if (target == null)
+                        relocs.add(new ObjectFile.Relocation(at, width, inst
+                                .getSymbol()));
+                    else
+                    {
+                        int owner = owners.get(target);
+                        relocs.add(new ObjectFile.Relocation(at, width, owner,
+                                target.getAddress() - sections.get(owner)
+                                        .base));
+                    }
+                }
+                else
+                    item.encode(data, off);
+            }
+            converted.add(new ObjectFile.Section(s.base, data, symbols,
+                    relocs));
+        }
+        return new ObjectFile(assembly.revision, assembly.entryPoint == -2 ?
+                assembly.entryPointLabel : null, converted);
+    }
+
+    /**
+     * @return the number of errors (0 or 1).
+     */
+    private static int writeObject(File file, ObjectFile object, PrintStream
+            err)
+    {
+        String name = file.getPath();
+        File output = new File(name.substring(0, name.lastIndexOf('.')) +
+                ".reo");
+        try (FileOutputStream fos = new FileOutputStream(output))
+        {
+            object.write(new BufferedOutputStream(fos));
+            return 0;
+        }
+        catch (IOException e)
+        {
+            err.println("Error: unable to write to file: " + output);
+            return 1;
+        }
+    }
+
+    /**
+     * @return the number of errors (0 or 1).
+     */
+    private static int writeImage(File file, Image image, PrintStream err)
+    {
+        String name = file.getPath();
+        File output = new File(name.substring(0, name.lastIndexOf('.')) +
+                ".re");
+        try (FileOutputStream fos = new FileOutputStream(output))
+        {
+            image.write(new BufferedOutputStream(fos));
+            return 0;
+        }
+        catch (IOException e)
+        {
+            err.println("Error: unable to write to file: " + output);
+            return 1;
+        }
+    }
+
+    /**
+     * @return the directive that the line starts with, or null if it does
+     *         not start with a known directive.
+     */
+    private static String lineDirective(String line)
+    {
+        int[] token = TokenReader.firstToken(line);
+        if (token == null || line.charAt(token[0]) != '.')
+            return null;
+        return directives.get(line, token[0] + 1, token[1]);
+    }
+
+    /**
+     * Parses this part of the file. If the section is found in the
+     * {@link SectionCache}, it is read from there instead.
+     */
+    private void parse()
+    {
+        String recordHash = null;
         while (reader.hasNextLine())
         {
-            if (reader.getLineNum() > 0)
-                reader.checkEndLine();
+            reader.checkEndLine();
             reader.nextLine();
 
             if (!reader.hasNextToken())
                 continue;
 
-            String first = reader.nextToken();
-            if (first.startsWith("."))
+            reader.readToken();
+            if (reader.tokenCharAt(0) == '.')
             {
-                first = first.substring(1).toUpperCase();
-                if (first.equals("SECTION"))
+                String directive = reader.lookupToken(directives, 1);
+                if ("SECTION".equals(directive))
                 {
-                    if (current != null && current.base == -1)
+                    section = new Section(reader, assembly.revision);
+                    SectionCache cache = assembly.cache;
+                    if (cache == null)
+                        continue;
+
+                    ArrayList<String> text = new ArrayList<>();
+                    String line;
+                    for (int i = firstLine; (line = reader.peekLine(i)) !=
+                            null; i++)
+                        text.add(line);
+
+                    String hash = SectionCache.hash(text, assembly.revision,
+                            assembly.relocatable);
+                    SectionCache.Entry entry = cache.get(hash, firstLine);
+                    if (entry != null)
                     {
-                        reader.visitLine(prevSectionLineNum);
-                        reader.error("expected: section address base.");
-                        reader.traceCode(0);
-                        return sections;
+                        section.base = entry.getBase();
+                        section.permissions = entry.getPermissions();
+                        section.replay(entry.getItems());
+                        reader.skipTo(firstLine + text.size() - 1);
                     }
-
-                    prevSectionLineNum = reader.getLineNum();
-                    current = new Section();
-                    sections.add(current);
+                    else if (!hasEntry)
+                        recordHash = hash;
                 }
                 else
                 {
                     reader.saveErrorReporting();
-                    parseDirective(current, first);
+                    parseDirective(section, directive);
                     reader.restoreErrorReporting();
                 }
                 continue;
             }
 
-            if (current == null)
+            if (section == null)
             {
                 reader.error("expected: section header.");
                 reader.traceCode(0);
                 continue;
             }
 
-            if (first.endsWith(":"))
+            if (reader.tokenCharAt(reader.tokenLength() - 1) == ':')
             {
-                first = first.substring(0, first.length() - 1);
                 if (reader.tokenType() != TokenType.LABEL)
                 {
                     reader.error("expected: label containing only letters and underscore.");
@@ -286,48 +1130,48 @@ public class RESquaredAssembler
                     continue;
                 }
 
-                if (current.base == -1)
+                if (section.base == -1 && !assembly.relocatable)
                 {
                     reader.error("expected: section base address must be defined before labels.");
                     reader.traceCodeToken(0);
                     continue;
                 }
 
-                labels.put(first, (short)(current.base + current.size));
-                for (Section s : sections)
-                    s.resolveSymbol(first, (short)(current.base + current.size));
+                String name = reader.currentToken();
+                section.defineLabel(new Label(name.substring(0, name.length() -
+                        1)));
             }
             else
             {
                 reader.saveErrorReporting();
-                parseInstruction(current, first);
+                parseInstruction(section, reader.lookupToken(mnemonics, 0));
                 reader.restoreErrorReporting();
             }
         }
         reader.checkEndLine();
 
-        if (entryPoint == -1)
-            reader.error("no entry point specified.");
-
-        HashSet<String> unresolved = new HashSet<>();
-        if (entryPoint == -2)
+        //The cache only keeps the items, so a section that has warnings is
+        //parsed again every time, to report them again.
+        if (recordHash != null && reader.getErrors() == 0 && reader
+                .getWarnings() == 0 && section.base != -1)
         {
-            if (labels.containsKey(entryPointLabel))
-                entryPoint = labels.get(entryPointLabel);
-            else
-                unresolved.add(entryPointLabel);
+            try
+            {
+                assembly.cache.put(recordHash, section.base, section
+                        .permissions, firstLine, section.items);
+            }
+            catch (IOException e)
+            {
+                reader.error("unable to write to section cache: " + e
+                        .getMessage());
+            }
         }
-
-        for (Section section : sections)
-            unresolved.addAll(section.links.keySet());
-        for (String label : unresolved)
-            reader.error("Unresolved label `" + label + "`");
-
-        return sections;
     }
 
     @SuppressWarnings("MagicNumber")
-    private static void initOpcodeMappings()
+    private static void initOpcodeMappings(Map<String, Integer> opcodes,
+                                           Map<String, int[]> subopcodes,
+                                           Map<String, int[]> regopcodes)
     {
         opcodes.put("AND", 0x21);
         opcodes.put("DUP", 0x22);
@@ -346,6 +1190,13 @@ public class RESquaredAssembler
         opcodes.put("RET", 0x7e);
         opcodes.put("OUTPUTNUM", 0xdb);
         opcodes.put("INPUT", 0xdf);
+        opcodes.put("MEMCPY", 0xe6);
+        opcodes.put("MEMSET", 0xe7);
+        opcodes.put("STRLEN", 0xe8);
+        opcodes.put("IN", 0xec);
+        opcodes.put("OUT", 0xed);
+        opcodes.put("READ", 0xee);
+        opcodes.put("WRITE", 0xef);
 
         //Psuedo instructions
         opcodes.put("ENTER", -1);
@@ -367,15 +1218,56 @@ public class RESquaredAssembler
         subopcodes.put("JP", new int[] {-1, 0xff, -1, -1, 0xff, -1, -1});
         subopcodes.put("OUTPUTSTR", new int[] {-1, 0xda, -1, -1, 0xda, 0x6b, 0x65});
 
+        //register forms, after a first register operand
+        //{REGISTER, NUMBER 16-bit, INDIRECT w/ optional offset, REGISTER and branch target}
+        regopcodes.put("MOV", new int[] {0x80, 0x81, -1, -1});
+        regopcodes.put("ADD", new int[] {0x82, -1, -1, -1});
+        regopcodes.put("SUB", new int[] {0x83, -1, -1, -1});
+        regopcodes.put("AND", new int[] {0x84, -1, -1, -1});
+        regopcodes.put("OR", new int[] {0x85, -1, -1, -1});
+        regopcodes.put("XOR", new int[] {0x86, -1, -1, -1});
+        regopcodes.put("SHL", new int[] {0x87, -1, -1, -1});
+        regopcodes.put("SHR", new int[] {0x88, -1, -1, -1});
+        regopcodes.put("SAR", new int[] {0x89, -1, -1, -1});
+        regopcodes.put("JEQ", new int[] {-1, -1, -1, 0x8a});
+        regopcodes.put("JNE", new int[] {-1, -1, -1, 0x8b});
+        regopcodes.put("JLT", new int[] {-1, -1, -1, 0x8c});
+        regopcodes.put("JGE", new int[] {-1, -1, -1, 0x8d});
+        regopcodes.put("LOADW", new int[] {-1, -1, 0x90, -1});
+        regopcodes.put("LOADB", new int[] {-1, -1, 0x91, -1});
+        regopcodes.put("STOREW", new int[] {-1, -1, 0x92, -1});
+        regopcodes.put("STOREB", new int[] {-1, -1, 0x93, -1});
+
         for (String instruct : subopcodes.keySet())
             opcodes.put(instruct, -1);
+        for (String instruct : regopcodes.keySet())
+            opcodes.putIfAbsent(instruct, -1);
+
+        for (String instruct : opcodes.keySet())
+            mnemonics.put(instruct, instruct);
+        for (String directive : new String[] {"BASE", "ENTRY", "STR", "DB",
+                "PROTECT", "SECTION"})
+            directives.put(directive, directive);
     }
 
-    private static boolean parseDirective(Section section, String directive)
+    private boolean parseDirective(Section section, String directive)
     {
+        if (directive == null)
+        {
+            reader.error("invalid directive.");
+            reader.traceCodeToken(0);
+            return false;
+        }
+
         switch (directive)
         {
             case "BASE":
+                if (section == null)
+                {
+                    reader.error("expected: section header.");
+                    reader.traceCode(0);
+                    return false;
+                }
                 if (section.base != -1)
                 {
                     reader.error("duplicate .BASE directives.");
@@ -385,7 +1277,7 @@ public class RESquaredAssembler
 
                 reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
                         "expected: 16-bit integer address."));
-                if (reader.nextToken() == null)
+                if (!reader.readToken())
                     return false;
 
                 if (reader.tokenType() != TokenType.ADDRESS)
@@ -401,7 +1293,7 @@ public class RESquaredAssembler
                 section.base = addr;
                 break;
             case "ENTRY":
-                if (entryPoint != -1)
+                if (assembly.entryPoint != -1)
                 {
                     reader.error("duplicate .ENTRY directives.");
                     reader.traceCodeToken(0);
@@ -410,7 +1302,7 @@ public class RESquaredAssembler
 
                 reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
                         "expected: 16-bit address or label to entry point."));
-                if (reader.nextToken() == null || reader.tokenType() == TokenType.INVALID)
+                if (!reader.readToken() || reader.tokenType() == TokenType.INVALID)
                     return false;
 
                 switch (reader.tokenType())
@@ -418,8 +1310,8 @@ public class RESquaredAssembler
                     case ADDRESS:
                         break;
                     case SYMBOL:
-                        entryPoint = -2;
-                        entryPointLabel = reader.currentToken();
+                        assembly.entryPoint = -2;
+                        assembly.entryPointLabel = reader.currentToken();
                         break;
                     default:
                         reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
@@ -453,8 +1345,8 @@ public class RESquaredAssembler
                 String parsed = decodeString(line.trim(), offset);
                 if (parsed == null)
                     return false;
-                section.write(parsed.getBytes());
-                section.write((byte)0);
+                byte[] str = parsed.getBytes();
+                section.add(new Data(Arrays.copyOf(str, str.length + 1)));
                 break;
             case "DB":
                 if (section == null)
@@ -465,23 +1357,88 @@ public class RESquaredAssembler
                 }
 
                 String hex = reader.remaining();
-                Scanner parsing = new Scanner(hex);
-                if (!parsing.hasNext())
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int end = 0;
+                while (true)
                 {
-                    reader.error("expected: data bytes in hex values.");
-                    reader.traceCodeToken(0);
-                }
+                    int start = end;
+                    while (start < hex.length() && Character.isWhitespace(hex
+                            .charAt(start)))
+                        start++;
+                    if (start == hex.length())
+                        break;
 
-                while (parsing.hasNext())
-                {
-                    String num = parsing.next();
-                    if (!num.matches("[A-Fa-f0-9]{1,2}"))
+                    int val = 0;
+                    end = start;
+                    while (end < hex.length() && !Character.isWhitespace(hex
+                            .charAt(end)))
+                    {
+                        int digit = Character.digit(hex.charAt(end), HEX_RADIX);
+                        if (hex.charAt(end) > 'f' || digit == -1 || end - start
+                                == 2)
+                            val = -1;
+                        else if (val != -1)
+                            val = val * HEX_RADIX + digit;
+                        end++;
+                    }
+
+                    if (val == -1)
                     {
                         reader.error("expected: hex number from 00 to FF");
-                        reader.traceCodeToken(parsing.match().start());
+                        reader.traceCodeToken(start);
                         return false;
                     }
-                    section.write((byte)Integer.parseInt(num, HEX_RADIX));
+                    bytes.write(val);
+                }
+
+                if (bytes.size() == 0)
+                {
+                    reader.error("expected: data bytes in hex values.");
+                    reader.traceCodeToken(0);
+                }
+                if (bytes.size() > 0)
+                    section.add(new Data(bytes.toByteArray()));
+                break;
+            case "PROTECT":
+                if (section == null)
+                {
+                    reader.error("expected: section header.");
+                    reader.traceCode(0);
+                    return false;
+                }
+                if (section.permissions != -1)
+                {
+                    reader.error("duplicate .PROTECT directives.");
+                    reader.traceCodeToken(0);
+                    return false;
+                }
+
+                reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
+                        "expected: r, rw, rx or rwx."));
+                if (!reader.readToken())
+                    return false;
+
+                int permissions = parsePermissions(reader.currentToken());
+                if (permissions == -1)
+                {
+                    reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
+                    reader.traceCodeToken(0);
+                    return false;
+                }
+                section.permissions = permissions;
+                if (assembly.relocatable)
+                {
+                    reader.log(new ErrorReporting(ErrorLevel.WARNING,
+                            "relocatable objects cannot carry permissions, " +
+                                    "ignoring them."));
+                    reader.traceCodeToken(0);
+                }
+                else if (!isContainer(assembly.revision))
+                {
+                    reader.log(new ErrorReporting(ErrorLevel.WARNING,
+                            "permissions need a revision 2 program, " +
+                                    "ignoring them."));
+                    reader.traceCodeToken(0);
                 }
                 break;
             case "SECTION":
@@ -495,7 +1452,7 @@ public class RESquaredAssembler
         return reader.checkEndLine();
     }
 
-    private static String decodeString(String str, int strOffset)
+    private String decodeString(String str, int strOffset)
     {
         if (!str.startsWith("\""))
         {
@@ -575,11 +1532,9 @@ public class RESquaredAssembler
         return ret.toString();
     }
 
-    private static boolean parseInstruction(Section section, String instruction)
+    private boolean parseInstruction(Section section, String instruction)
     {
-        instruction = instruction.toUpperCase();
-
-        if (!opcodes.containsKey(instruction))
+        if (instruction == null)
         {
             reader.error("invalid instruction.");
             reader.traceCodeToken(0);
@@ -587,23 +1542,21 @@ public class RESquaredAssembler
         }
 
         int opcode = opcodes.get(instruction);
-        if (opcode != -1)
-            section.write((byte)opcode);
-
-        if (instruction.equalsIgnoreCase("POP") && !reader.hasNextToken())
+        if (instruction.equals("POP") && !reader.hasNextToken())
         {
-            section.write((byte)0xdc);
+            section.add(new Instruction(0xdc));
             return true;
         }
 
-        if (subopcodes.containsKey(instruction))
+        if (subopcodes.containsKey(instruction) || regopcodes.containsKey
+                (instruction) && (opcode == -1 || reader.hasNextToken()))
             return decodeOperands(section, instruction);
 
         switch (instruction) {
             case "EXIT":
                 reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
                         "expected: valid 16-bit hexadecimal or decimal immediate value."));
-                if (reader.nextToken() == null)
+                if (!reader.readToken())
                     return false;
 
                 if (reader.tokenType() != TokenType.NUMBER)
@@ -616,33 +1569,68 @@ public class RESquaredAssembler
                 Integer num = reader.tokenNumber();
                 if (num == null)
                     return false;
-                section.writeShort(num.shortValue());
+                section.add(new Instruction(opcode, (byte)num.intValue(),
+                        (byte)(num >> 8)));
                 break;
             case "ENTER":
-                section.write(CODE_ENTER);
-                break;
+                return parseEnter(section);
             case "LEAVE":
-                section.write(CODE_LEAVE);
+                if (assembly.revision >= 2)
+                    section.add(new Instruction(0xeb));
+                else
+                    writeCode(section, CODE_LEAVE);
+                break;
+            default:
+                section.add(new Instruction(opcode));
                 break;
         }
 
         return reader.checkEndLine();
     }
 
-    private static boolean decodeOperands(Section section, String instruction)
+    /**
+     * @return the {@link Image#PERM_WRITE} and {@link Image#PERM_EXECUTE}
+     *         flags of a <code>.protect</code> directive, or -1 if it is not
+     *         valid.
+     */
+    private static int parsePermissions(String arg)
     {
-        int opcodes[] = subopcodes.get(instruction);
+        switch (arg.toLowerCase())
+        {
+            case "r":
+                return 0;
+            case "rw":
+                return Image.PERM_WRITE;
+            case "rx":
+                return Image.PERM_EXECUTE;
+            case "rwx":
+                return Image.PERM_ALL;
+            default:
+                return -1;
+        }
+    }
+
+    private boolean decodeOperands(Section section, String instruction)
+    {
+        int opcodes[] = subopcodes.getOrDefault(instruction, NO_OPCODES);
+        int forms[] = regopcodes.get(instruction);
         reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
-                expectedOperands(opcodes)));
-        if (reader.nextToken() == null)
+                expectedOperands(opcodes, forms != null)));
+        if (!reader.readToken())
             return false;
 
         TokenType optype = reader.tokenType();
+        if (forms != null && optype == TokenType.REGISTER && (opcodes[0] ==
+                -1 || reader.hasNextToken()))
+            return decodeRegisterOperands(section, forms);
+
         switch (optype)
         {
             case SYMBOL:
-                section.write((byte)opcodes[TokenType.SYMBOL.ordinal()]);
-                section.writeSymbol(reader.currentToken());
+                if (opcodes[TokenType.SYMBOL.ordinal()] == -1)
+                    break;
+                section.writeSymbol(opcodes[TokenType.SYMBOL.ordinal()],
+                        reader.currentToken());
                 return true;
             case LABEL:
             case DIRECTIVE:
@@ -653,9 +1641,17 @@ public class RESquaredAssembler
                 return false;
         }
 
+        if (optype == TokenType.SYMBOL)
+        {
+            reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
+            reader.traceCodeToken(0);
+            return false;
+        }
+
         int opindex = optype.ordinal();
         byte[] operands = reader.tokenBinary();
-        if (optype == TokenType.NUMBER || optype == TokenType.INDIRECT)
+        if (operands != null && (optype == TokenType.NUMBER || optype ==
+                TokenType.INDIRECT))
             opindex += operands.length - 1;
 
         if (opcodes[opindex] == -1)
@@ -665,15 +1661,171 @@ public class RESquaredAssembler
             return false;
         }
 
-        section.write((byte)opcodes[opindex]);
-        section.write(operands);
+        if (operands == null)
+            return false;
+        section.add(new Instruction(opcodes[opindex], operands));
         return true;
     }
 
-    private static String expectedOperands(int[] allowedOpcodes)
+    /**
+     * Decodes the operands that follow a first register operand: a second
+     * register, a 16-bit immediate value or label address, an indirect
+     * address, or a second register and a branch target. Two registers are packed into one byte,
+     * the first one in the upper four bits.
+     */
+    private boolean decodeRegisterOperands(Section section, int[] forms)
+    {
+        byte[] first = reader.tokenBinary();
+        if (first == null)
+            return false;
+
+        reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
+                expectedRegisterOperands(forms)));
+        if (!reader.readToken())
+            return false;
+
+        TokenType optype = reader.tokenType();
+        int opcode;
+        switch (optype)
+        {
+            case REGISTER:
+                opcode = forms[0] != -1 ? forms[0] : forms[3];
+                break;
+            case NUMBER:
+            case SYMBOL:
+                opcode = forms[1];
+                break;
+            case INDIRECT:
+                opcode = forms[2];
+                break;
+            case INVALID:
+                return false;
+            default:
+                opcode = -1;
+                break;
+        }
+
+        if (opcode == -1)
+        {
+            reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
+            reader.traceCodeToken(0);
+            return false;
+        }
+
+        if (optype == TokenType.SYMBOL)
+        {
+            section.writeSymbol(opcode, first, reader.currentToken());
+            return true;
+        }
+
+        byte[] operands = reader.tokenBinary();
+        if (operands == null)
+            return false;
+
+        byte pair = (byte)(first[0] << 4 | operands[0]);
+        if (optype == TokenType.NUMBER)
+        {
+            int num = reader.tokenNumber();
+            section.add(new Instruction(opcode, first[0], (byte)num,
+                    (byte)(num >> 8)));
+            return true;
+        }
+        else if (optype == TokenType.INDIRECT)
+        {
+            section.add(new Instruction(opcode, pair, operands.length > 1 ?
+                    operands[1] : 0));
+            return true;
+        }
+        else if (opcode == forms[0])
+        {
+            section.add(new Instruction(opcode, pair));
+            return true;
+        }
+
+        reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
+                "expected: valid hexadecimal/decimal address or label identifier."));
+        if (!reader.readToken())
+            return false;
+
+        switch (reader.tokenType())
+        {
+            case SYMBOL:
+                section.writeSymbol(opcode, new byte[] {pair}, reader
+                        .currentToken());
+                return true;
+            case ADDRESS:
+                byte[] addr = reader.tokenBinary();
+                if (addr == null)
+                    return false;
+                section.add(new Instruction(opcode, pair, addr[0], addr[1]));
+                return true;
+            case INVALID:
+                return false;
+            default:
+                reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
+                reader.traceCodeToken(0);
+                return false;
+        }
+    }
+
+    /**
+     * Parses <code>ENTER [size]</code>, which also reserves <code>size</code>
+     * bytes of locals below the saved base pointer.
+     */
+    private boolean parseEnter(Section section)
+    {
+        int size = 0;
+        if (reader.hasNextToken())
+        {
+            reader.setDefaultReporting(ErrorSituation.ERROR_MISSING_TOKEN, new ErrorReporting(ErrorLevel.ERROR,
+                    "expected: valid hexadecimal/decimal immediate value."));
+            reader.readToken();
+            if (reader.tokenType() != TokenType.NUMBER)
+            {
+                reader.reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
+                reader.traceCodeToken(0);
+                return false;
+            }
+
+            Integer num = reader.tokenNumber(0, MAX_ADDR);
+            if (num == null)
+                return false;
+            size = num;
+        }
+
+        if (assembly.revision >= 2)
+            section.add(size == 0 ? new Instruction(0xe9) : new
+                    Instruction(0xea, (byte)size, (byte)(size >> 8)));
+        else
+        {
+            writeCode(section, CODE_ENTER);
+            if (size != 0)
+            {
+                //SP = SP - size
+                section.add(new Instruction(0x4b, (byte)SP));
+                section.add(Instruction.push(size));
+                section.add(new Instruction(0x2b));
+                section.add(new Instruction(0x4f, (byte)SP));
+            }
+        }
+        return reader.checkEndLine();
+    }
+
+    /**
+     * Writes a fixed sequence of two-byte instructions, such as
+     * {@link #CODE_ENTER}.
+     */
+    private void writeCode(Section section, byte[] code)
+    {
+        for (int i = 0; i < code.length; i += 2)
+            section.add(new Instruction(code[i], code[i + 1]));
+    }
+
+    private static String expectedOperands(int[] allowedOpcodes, boolean
+            registerForms)
     {
         ArrayList<String> allowed = new ArrayList<>();
-        if (allowedOpcodes[0] != -1)
+        if (allowedOpcodes[0] != -1 || registerForms)
             allowed.add("register identifier");
         if (allowedOpcodes[2] != -1 || allowedOpcodes[3] != -1)
             allowed.add("hexadecimal/decimal immediate value");
@@ -706,10 +1858,16 @@ public class RESquaredAssembler
         return sb.append(".").toString();
     }
 
-    private static void putShort(DataOutputStream dos, short s) throws
-            IOException
+    private static String expectedRegisterOperands(int[] forms)
     {
-        dos.writeByte((byte)s);
-        dos.writeByte((byte)(s >> 8));
+        ArrayList<String> allowed = new ArrayList<>();
+        if (forms[0] != -1 || forms[3] != -1)
+            allowed.add("register identifier");
+        if (forms[1] != -1)
+            allowed.add("hexadecimal/decimal immediate value or label " +
+                    "identifier");
+        if (forms[2] != -1)
+            allowed.add("indirect address pointer (optional offset)");
+        return "expected: valid " + String.join(" or ", allowed) + ".";
     }
 }
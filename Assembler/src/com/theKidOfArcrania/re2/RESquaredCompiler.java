@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+import com.theKidOfArcrania.re2.compiler.CodeGenerator;
+import com.theKidOfArcrania.re2.compiler.Lexer;
+import com.theKidOfArcrania.re2.compiler.Parser;
+import com.theKidOfArcrania.re2.parsing.Diagnostics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Compiles a subset of C into <code>RESquaredAssembler</code> source.
+ *
+ * The subset has <code>int</code> (16 bits) and <code>char</code> scalars,
+ * pointers, one-dimensional arrays, globals, functions, and all of the C
+ * statements and operators that do not need structs, floats or a
+ * preprocessor. <code>printf</code> and <code>scanf</code> are built in and
+ * map onto <code>outputstr</code>, <code>outputnum</code> and
+ * <code>input</code>, so they only support the conversions that those can
+ * do. See {@link CodeGenerator} for how registers are used.
+ */
+@SuppressWarnings("JavaDoc")
+public class RESquaredCompiler
+{
+    public static void main(String[] args) throws Exception
+    {
+        printBanner(System.out);
+
+        File source = null;
+        File output = null;
+        Diagnostics.Format format = Diagnostics.Format.TEXT;
+        boolean valid = true;
+        for (int i = 0; i < args.length && valid; i++)
+        {
+            if (args[i].equals("-o") && i + 1 < args.length)
+                output = new File(args[++i]);
+            else if (args[i].equals("-f") && i + 1 < args.length)
+            {
+                try
+                {
+                    format = Diagnostics.Format.valueOf(args[++i]
+                            .toUpperCase());
+                }
+                catch (IllegalArgumentException e)
+                {
+                    valid = false;
+                }
+            }
+            else if (source == null && !args[i].startsWith("-"))
+                source = new File(args[i]);
+            else
+                valid = false;
+        }
+
+        if (!valid || source == null)
+        {
+            File path = new File(RESquaredCompiler.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI().getPath());
+            String options = " [-o <output>] [-f text|json|none] <file.c>";
+            if (path.isDirectory())
+                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquaredCompiler" + options);
+            else
+                System.out.println("Usage: java -jar " + path.getName() +
+                        options);
+
+            System.exit(2);
+        }
+
+        if (output == null)
+        {
+            String name = source.getPath();
+            int ext = name.lastIndexOf('.');
+            output = new File((ext == -1 ? name : name.substring(0, ext)) +
+                    ".s");
+        }
+        System.exit(compile(source, output, format, System.out, System.err));
+    }
+
+    public static void printBanner(PrintStream out)
+    {
+        out.println("RE^2 Compiler v1.1");
+        out.println("Copyright (c) 2017 theKidOfArcrania\n");
+    }
+
+    /**
+     * Compiles the C source file into an assembly source file.
+     *
+     * @param source the C source file.
+     * @param output the assembly file to write.
+     * @param format the format to write diagnostics in.
+     * @param out the stream to write the summary to.
+     * @param err the stream to write diagnostics to.
+     * @return the exit status: 0 on success, 1 if there were any errors.
+     */
+    public static int compile(File source, File output, Diagnostics.Format
+            format, PrintStream out, PrintStream err)
+    {
+        int errors = 0;
+        Diagnostics diagnostics = new Diagnostics(0, format != Diagnostics
+                .Format.NONE);
+        try
+        {
+            String text = new String(Files.readAllBytes(source.toPath()),
+                    StandardCharsets.ISO_8859_1);
+            String assembly = compile(source.getPath(), text, diagnostics);
+            diagnostics.render(err, format);
+            if (assembly != null)
+                Files.write(output.toPath(), assembly.getBytes(StandardCharsets
+                        .ISO_8859_1));
+        }
+        catch (IOException e)
+        {
+            diagnostics.render(err, format);
+            err.println("Error: cannot access file: " + e.getMessage());
+            errors++;
+        }
+
+        errors += diagnostics.getErrors();
+        out.println();
+        out.println(errors + " error(s).");
+        out.println(diagnostics.getWarnings() + " warning(s).");
+        return errors > 0 ? 1 : 0;
+    }
+
+    /**
+     * Compiles C source, reporting to the diagnostics.
+     *
+     * @param file the name of the source, for diagnostics.
+     * @return the assembly source, or null if there were any errors.
+     */
+    public static String compile(String file, String source, Diagnostics
+            diagnostics)
+    {
+        int before = diagnostics.getErrors();
+        Parser parser = new Parser(new Lexer(file, source, diagnostics));
+        parser.parse();
+        if (diagnostics.getErrors() > before)
+            return null;
+        return new CodeGenerator().generate(parser.getGlobals(), parser
+                .getFunctions());
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+import com.theKidOfArcrania.re2.assembly.ObjectFile;
+import com.theKidOfArcrania.re2.assembly.ObjectFile.Relocation;
+import com.theKidOfArcrania.re2.assembly.ObjectFile.Symbol;
+
+import java.io.*;
+import java.util.*;
+
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * Links relocatable objects (written by <code>RESquaredAssembler -r</code>)
+ * into a single <code>.re</code> image.
+ *
+ * Sections with a <code>.base</code> stay at that address (and may overlap,
+ * just like in an assembled image). Every other section is placed, in
+ * command line order, at the lowest address from the link base upwards where
+ * it does not overlap any other section. Symbols are
+ * global across all objects, and each may only be defined once. Exactly one
+ * object must declare the entry point.
+ */
+@SuppressWarnings("JavaDoc")
+public class RESquaredLinker
+{
+    public static final int DEFAULT_BASE = 0x1000;
+
+    public static void main(String[] args) throws Exception
+    {
+        printBanner(System.out);
+
+        int base = DEFAULT_BASE;
+        File output = null;
+        ArrayList<File> objects = new ArrayList<>();
+        boolean valid = true;
+        for (int i = 0; i < args.length && valid; i++)
+        {
+            if (args[i].equals("-o") && i + 1 < args.length)
+                output = new File(args[++i]);
+            else if (args[i].equals("-b") && i + 1 < args.length)
+            {
+                try
+                {
+                    base = Integer.decode(args[++i]);
+                    valid = base >= 0 && base <= MAX_ADDR;
+                }
+                catch (NumberFormatException e)
+                {
+                    valid = false;
+                }
+            }
+            else if (args[i].startsWith("-"))
+                valid = false;
+            else
+                objects.add(new File(args[i]));
+        }
+
+        if (!valid || objects.isEmpty())
+        {
+            File path = new File(RESquaredLinker.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI().getPath());
+            String options = " [-b <base>] [-o <output>] <object>...";
+            if (path.isDirectory())
+                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquaredLinker" + options);
+            else
+                System.out.println("Usage: java -jar " + path.getName() +
+                        options);
+
+            System.exit(2);
+        }
+
+        if (output == null)
+        {
+            String name = objects.get(0).getPath();
+            int ext = name.lastIndexOf('.');
+            output = new File((ext == -1 ? name : name.substring(0, ext)) +
+                    ".re");
+        }
+        System.exit(link(objects, output, base, System.out, System.err));
+    }
+
+    public static void printBanner(PrintStream out)
+    {
+        out.println("RE^2 Linker v1.1");
+        out.println("Copyright (c) 2017 theKidOfArcrania\n");
+    }
+
+    /**
+     * Links the objects into a <code>.re</code> image.
+     *
+     * @param objects the object files, in link order.
+     * @param output the image file to write.
+     * @param base the lowest address to place relocatable sections at.
+     * @param out the stream to write the summary to.
+     * @param err the stream to write diagnostics to.
+     * @return the exit status: 0 on success, 1 if there were any errors.
+     */
+    public static int link(List<File> objects, File output, int base,
+                           PrintStream out, PrintStream err)
+    {
+        int errors = 0;
+        ArrayList<ObjectFile> loaded = new ArrayList<>();
+        for (File file : objects)
+        {
+            try (InputStream is = new BufferedInputStream(new
+                    FileInputStream(file)))
+            {
+                loaded.add(ObjectFile.read(is));
+            }
+            catch (FileNotFoundException e)
+            {
+                err.println("Error: file not found: " + file);
+                errors++;
+            }
+            catch (IOException e)
+            {
+                err.println("Error: invalid object file: " + file);
+                errors++;
+            }
+        }
+
+        if (errors == 0)
+            errors += link(objects, loaded, output, base, err);
+
+        out.println();
+        out.println(errors + " error(s).");
+        return errors > 0 ? 1 : 0;
+    }
+
+    /**
+     * @return the number of errors.
+     */
+    private static int link(List<File> files, List<ObjectFile> objects, File
+            output, int base, PrintStream err)
+    {
+        int errors = 0;
+
+        //Place the sections with a fixed base first.
+        int[][] placed = new int[objects.size()][];
+        ArrayList<int[]> used = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            List<ObjectFile.Section> sections = objects.get(i).getSections();
+            placed[i] = new int[sections.size()];
+            for (int j = 0; j < sections.size(); j++)
+            {
+                ObjectFile.Section s = sections.get(j);
+                if (s.isRelocatable())
+                    continue;
+                placed[i][j] = s.getBase();
+                if (s.getBase() + s.getSize() > MAX_ADDR + 1)
+                {
+                    err.println("Error: section " + j + " of " + files.get(i) +
+                            " does not fit in memory.");
+                    errors++;
+                }
+                used.add(new int[] {s.getBase(), s.getBase() + s.getSize()});
+            }
+        }
+
+        for (int i = 0; i < objects.size(); i++)
+        {
+            List<ObjectFile.Section> sections = objects.get(i).getSections();
+            for (int j = 0; j < sections.size(); j++)
+            {
+                ObjectFile.Section s = sections.get(j);
+                if (!s.isRelocatable())
+                    continue;
+                int addr = findSpace(used, base, s.getSize());
+                if (addr == -1)
+                {
+                    err.println("Error: out of memory placing section " + j +
+                            " of " + files.get(i) + ".");
+                    errors++;
+                    continue;
+                }
+                placed[i][j] = addr;
+                used.add(new int[] {addr, addr + s.getSize()});
+            }
+        }
+
+        HashMap<String, Integer> symbols = new HashMap<>();
+        HashMap<String, File> definedIn = new HashMap<>();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            List<ObjectFile.Section> sections = objects.get(i).getSections();
+            for (int j = 0; j < sections.size(); j++)
+            {
+                for (Symbol sym : sections.get(j).getSymbols())
+                {
+                    File prev = definedIn.putIfAbsent(sym.getName(), files
+                            .get(i));
+                    if (prev != null)
+                    {
+                        err.println("Error: duplicate symbol `" + sym
+                                .getName() + "` in " + prev + " and " + files
+                                .get(i) + ".");
+                        errors++;
+                        continue;
+                    }
+                    symbols.put(sym.getName(), placed[i][j] + sym.getOffset());
+                }
+            }
+        }
+
+        String entry = null;
+        for (int i = 0; i < objects.size(); i++)
+        {
+            String label = objects.get(i).getEntry();
+            if (label == null)
+                continue;
+            if (entry != null)
+            {
+                err.println("Error: duplicate entry point in " + files.get(i) +
+                        ".");
+                errors++;
+            }
+            else
+                entry = label;
+        }
+        if (entry == null)
+        {
+            err.println("Error: no entry point specified.");
+            errors++;
+        }
+
+        LinkedHashSet<String> unresolved = new LinkedHashSet<>();
+        if (entry != null && !symbols.containsKey(entry))
+            unresolved.add(entry);
+
+        ArrayList<Image.Section> linked = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            List<ObjectFile.Section> sections = objects.get(i).getSections();
+            for (int j = 0; j < sections.size(); j++)
+            {
+                ObjectFile.Section s = sections.get(j);
+                byte[] data = s.getData();
+                for (Relocation reloc : s.getRelocations())
+                {
+                    int addr;
+                    if (reloc.getSection() != -1)
+                        addr = placed[i][reloc.getSection()] + reloc
+                                .getTarget();
+                    else if (symbols.containsKey(reloc.getSymbol()))
+                        addr = symbols.get(reloc.getSymbol());
+                    else
+                    {
+                        unresolved.add(reloc.getSymbol());
+                        continue;
+                    }
+
+                    data[reloc.getOffset()] = (byte)addr;
+                    if (reloc.getWidth() == 2)
+                        data[reloc.getOffset() + 1] = (byte)(addr >> 8);
+                }
+                linked.add(new Image.Section(placed[i][j], data));
+            }
+        }
+
+        for (String label : unresolved)
+            err.println("Error: Unresolved label `" + label + "`");
+        errors += unresolved.size();
+        if (linked.size() > Byte.MAX_VALUE)
+        {
+            err.println("Error: too many sections.");
+            errors++;
+        }
+        if (errors > 0)
+            return errors;
+
+        //The image needs the newest revision that any object was built for.
+        int revision = 1;
+        for (ObjectFile obj : objects)
+            revision = Math.max(revision, obj.getRevision());
+
+        Image image = new Image(revision, (short)(int)symbols.get(entry),
+                linked);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream
+                (output)))
+        {
+            image.write(os);
+        }
+        catch (IOException e)
+        {
+            err.println("Error: unable to write to file: " + output);
+            errors++;
+        }
+        return errors;
+    }
+
+    /**
+     * @return the lowest address from <code>base</code> upwards where
+     *         <code>size</code> bytes are free, or -1 if there is none.
+     */
+    private static int findSpace(List<int[]> used, int base, int size)
+    {
+        int addr = base;
+        boolean moved = true;
+        while (moved && addr + size <= MAX_ADDR + 1)
+        {
+            moved = false;
+            for (int[] range : used)
+            {
+                if (range[0] < addr + size && addr < range[1])
+                {
+                    addr = range[1];
+                    moved = true;
+                }
+            }
+        }
+        return addr + size <= MAX_ADDR + 1 ? addr : -1;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import com.theKidOfArcrania.re2.Opcodes;
+import com.theKidOfArcrania.re2.Profile;
+import com.theKidOfArcrania.re2.RESquaredAssembler;
+import com.theKidOfArcrania.re2.RESquaredAssembler.Section;
+
+import java.util.*;
+
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * Reorders the code within every section by a {@link Profile}, when
+ * assembling with <code>-p</code>. The sections must still be laid out the
+ * same way as the image that the profile was recorded from.
+ *
+ * A section is cut into blocks at every label and after every branch (but
+ * not after calls, which come back to the next instruction). Blocks are then
+ * chained along their most frequent edges first, so that the common
+ * successor of a block is placed right after it, and blocks that never ran
+ * are moved to the end. The first block of a section stays first. A block
+ * that no longer falls through to the block after it gets its conditional
+ * branch inverted if the branch target follows it now, or else a
+ * <code>JMP</code>; a <code>JMP</code> to the block that now follows is
+ * dropped.
+ *
+ * As with the {@link Optimizer}, code that computes addresses into itself or
+ * modifies itself should not be reordered. Sections that hold data, or that
+ * run off their end, are left as they are, and so is any section that would
+ * grow into the next one.
+ */
+@SuppressWarnings("MagicNumber")
+public final class CodeLayout
+{
+    private static final int JMP = 0x58; //JMP [ADDR]
+    private static final int JMP_REL = 0xe0; //JMP [8-bit REL]
+    private static final int JMP_SIZE = 3;
+
+    //Conditional branches and their inverse, in the same order.
+    private static final int[] CONDITIONS = {0xfc, 0xde, 0xe2, 0xe3, 0x8a,
+            0x8b, 0x8c, 0x8d};
+    private static final int[] INVERSES = {0xde, 0xfc, 0xe3, 0xe2, 0x8b,
+            0x8a, 0x8d, 0x8c};
+
+    private static class Block
+    {
+        private final int index;
+        private final ArrayList<Item> items = new ArrayList<>();
+        private long count;
+        private boolean fallsThrough = true;
+        private Instruction branch;
+
+        private int prev = -1;
+        private int next = -1;
+
+        private Block(int index)
+        {
+            this.index = index;
+        }
+
+        private Label label()
+        {
+            return items.get(0) instanceof Label ? (Label)items.get(0) :
+                    null;
+        }
+
+        private Item last()
+        {
+            return items.get(items.size() - 1);
+        }
+    }
+
+    private CodeLayout()
+    {
+    }
+
+    /**
+     * Reorders the sections in place. Afterwards, every section has to be
+     * laid out again.
+     */
+    public static void reorder(List<Section> sections, Profile profile)
+    {
+        int[] names = {0};
+        for (Section s : sections)
+        {
+            int limit = MAX_ADDR;
+            for (Section other : sections)
+                if (other.getBase() > s.getBase())
+                    limit = Math.min(limit, other.getBase());
+            reorder(s, profile, limit, names);
+        }
+    }
+
+    /**
+     * @param limit the address that the section has to end before.
+     * @param names the number of labels made up so far.
+     */
+    private static void reorder(Section s, Profile profile, int limit, int[]
+            names)
+    {
+        List<Block> blocks = split(s.getItems());
+        if (blocks == null || blocks.size() < 2 || blocks.get(blocks.size() -
+                1).fallsThrough)
+            return;
+
+        IdentityHashMap<Label, Block> owners = new IdentityHashMap<>();
+        for (Block b : blocks)
+        {
+            for (Item item : b.items)
+                if (item instanceof Label)
+                    owners.put((Label)item, b);
+            b.count = profile.getCount(firstAddress(b));
+        }
+
+        chain(blocks, edges(blocks, owners, profile));
+        List<Block> order = order(blocks);
+        boolean moved = false;
+        for (int i = 0; i < order.size(); i++)
+            moved |= order.get(i).index != i;
+        if (!moved)
+            return;
+
+        //Plan every change before making any, to check that it fits.
+        int size = 0;
+        int relative = 0;
+        for (Item item : s.getItems())
+        {
+            size += item.size();
+            if (item instanceof Instruction && Instruction.absoluteForm((
+                    (Instruction)item).getOpcode()) != -1)
+                relative++;
+        }
+
+        HashSet<Block> inverted = new HashSet<>();
+        HashSet<Block> jumpAdded = new HashSet<>();
+        HashSet<Block> jumpDropped = new HashSet<>();
+        for (int i = 0; i < order.size(); i++)
+        {
+            Block b = order.get(i);
+            Block next = i + 1 < order.size() ? order.get(i + 1) : null;
+            Block follow = b.fallsThrough ? blocks.get(b.index + 1) : null;
+            Block target = b.branch == null ? null : owners.get(b.branch
+                    .getTarget());
+            int op = b.branch == null ? -1 : b.branch.getOpcode();
+
+            if (follow != null && follow != next)
+            {
+                if (target != null && target == next && inverse(op) != -1)
+                    inverted.add(b);
+                else
+                {
+                    jumpAdded.add(b);
+                    size += JMP_SIZE;
+                }
+            }
+            else if (follow == null && target != null && target == next &&
+                    (op == JMP || op == JMP_REL))
+            {
+                jumpDropped.add(b);
+                size -= b.branch.size();
+            }
+        }
+
+        //The optimizer may widen every relative branch again.
+        if (s.getBase() + size + relative > limit || size + relative >
+                RESquaredAssembler.MAX_SIZE)
+            return;
+
+        int[] position = new int[blocks.size()];
+        for (int i = 0; i < order.size(); i++)
+            position[order.get(i).index] = i;
+
+        ArrayList<Item> items = new ArrayList<>();
+        String owner = "L";
+        Label[] labels = new Label[blocks.size()];
+        for (Block b : blocks)
+        {
+            Label label = b.label();
+            if (label != null)
+                owner = label.getName();
+            else if (b.index > 0 && position[b.index] - 1 != position[b.index
+                    - 1])
+            {
+                //Name the moved block after the code it came from.
+                label = new Label(owner + "." + ++names[0]);
+                b.items.add(0, label);
+            }
+            labels[b.index] = label;
+        }
+
+        for (Block b : order)
+        {
+            if (inverted.contains(b))
+            {
+                b.branch.setOpcode(inverse(b.branch.getOpcode()));
+                b.branch.bind(labels[b.index + 1]);
+            }
+            if (jumpDropped.contains(b))
+                b.items.remove(b.items.size() - 1);
+            items.addAll(b.items);
+            if (jumpAdded.contains(b))
+            {
+                Label follow = labels[b.index + 1];
+                Instruction jmp = new Instruction(JMP, follow.getName());
+                jmp.bind(follow);
+                jmp.setLine(b.last().getLine());
+                items.add(jmp);
+            }
+        }
+        s.getItems().clear();
+        s.getItems().addAll(items);
+    }
+
+    /**
+     * Cuts the items into blocks.
+     *
+     * @return the blocks in order, or null if there is any data in between.
+     */
+    private static List<Block> split(List<Item> items)
+    {
+        ArrayList<Block> blocks = new ArrayList<>();
+        Block current = null;
+        for (Item item : items)
+        {
+            if (item instanceof Data)
+                return null;
+            if (current == null || item instanceof Label && !(current.last()
+                    instanceof Label))
+            {
+                current = new Block(blocks.size());
+                blocks.add(current);
+            }
+            current.items.add(item);
+
+            if (item instanceof Instruction && endsBlock((Instruction)item))
+            {
+                Instruction inst = (Instruction)item;
+                current.fallsThrough = Opcodes.fallsThrough(inst.getOpcode());
+                if (inst.isSymbolic())
+                    current.branch = inst;
+                current = null;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @return true if the instruction is a branch other than a call.
+     */
+    private static boolean endsBlock(Instruction inst)
+    {
+        byte[] code = new byte[inst.size()];
+        inst.encode(code, 0);
+        return Opcodes.isBranch(code, 0) && !Opcodes.isCall(inst
+                .getOpcode());
+    }
+
+    /**
+     * @return every edge between the blocks that was followed at least once,
+     *         as triples of the block it leaves, the block it enters and how
+     *         often it was followed, with the most frequent first.
+     */
+    private static List<long[]> edges(List<Block> blocks, Map<Label, Block>
+            owners, Profile profile)
+    {
+        ArrayList<long[]> edges = new ArrayList<>();
+        for (Block b : blocks)
+        {
+            Item last = b.last();
+            long taken = b.branch != null ? profile.getTaken(last.getAddress())
+                    : 0;
+            if (b.fallsThrough && b.index + 1 < blocks.size())
+                edges.add(new long[] {b.index, b.index + 1, profile.getCount
+                        (last.getAddress()) - taken});
+
+            Block target = b.branch == null ? null : owners.get(b.branch
+                    .getTarget());
+            if (target != null)
+                edges.add(new long[] {b.index, target.index, taken});
+        }
+        edges.removeIf(e -> e[2] <= 0 || e[0] == e[1] || e[1] == 0);
+        edges.sort(Comparator.comparingLong(e -> -e[2]));
+        return edges;
+    }
+
+    /**
+     * Links blocks into chains along the edges, as long as the edge leaves
+     * the end of one chain and enters the start of another.
+     */
+    private static void chain(List<Block> blocks, List<long[]> edges)
+    {
+        for (long[] e : edges)
+        {
+            Block from = blocks.get((int)e[0]);
+            Block to = blocks.get((int)e[1]);
+            if (from.next != -1 || to.prev != -1)
+                continue;
+
+            Block head = from;
+            while (head.prev != -1)
+                head = blocks.get(head.prev);
+            if (head == to)
+                continue;
+
+            from.next = to.index;
+            to.prev = from.index;
+        }
+    }
+
+    /**
+     * @return the blocks in their new order: the chain of the first block,
+     *         then the other chains that ran, and lastly the ones that never
+     *         ran, each in the order of their first block.
+     */
+    private static List<Block> order(List<Block> blocks)
+    {
+        ArrayList<Block> hot = new ArrayList<>();
+        ArrayList<Block> cold = new ArrayList<>();
+        for (Block head : blocks)
+        {
+            if (head.prev != -1)
+                continue;
+
+            ArrayList<Block> chain = new ArrayList<>();
+            boolean ran = head.index == 0;
+            for (Block b = head; b != null; b = b.next == -1 ? null : blocks
+                    .get(b.next))
+            {
+                chain.add(b);
+                ran |= b.count > 0;
+            }
+            (ran ? hot : cold).addAll(chain);
+        }
+        hot.addAll(cold);
+        return hot;
+    }
+
+    private static int inverse(int opcode)
+    {
+        for (int i = 0; i < CONDITIONS.length; i++)
+            if (CONDITIONS[i] == opcode)
+                return INVERSES[i];
+        return -1;
+    }
+
+    /**
+     * @return the address of the first instruction of the block.
+     */
+    private static int firstAddress(Block b)
+    {
+        for (Item item : b.items)
+            if (!(item instanceof Label))
+                return item.getAddress();
+        return b.last().getAddress();
+    }
+}
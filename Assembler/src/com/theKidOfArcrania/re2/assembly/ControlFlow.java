@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.assembly;
+
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.Opcodes;
+import com.theKidOfArcrania.re2.RESquaredAssembler.Section;
+
+import java.util.*;
+
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * Finds the basic blocks of assembled code, and the addresses that are worth
+ * compiling first, for the metadata of a v2 image.
+ *
+ * Unlike a tool that only has the binary, the assembler knows exactly which
+ * bytes are instructions and where every label is, so the blocks cover all
+ * the code and not just what is reachable from the entry point.
+ */
+public final class ControlFlow
+{
+    private final byte[] mem = new byte[MAX_ADDR + 1];
+    private final boolean[] code = new boolean[MAX_ADDR + 1];
+    private final boolean[] leaders = new boolean[MAX_ADDR + 1];
+
+    private final TreeMap<Integer, Image.Block> blocks = new TreeMap<>();
+    private final TreeSet<Integer> hot = new TreeSet<>();
+
+    /**
+     * @param sections the code and data sections of the image.
+     * @param entryPoint the entry point of the image.
+     * @param labels the addresses of every label. Those that point into code
+     *               start a block, since they may be jumped to indirectly.
+     */
+    public ControlFlow(List<Image.Section> sections, int entryPoint, int[]
+            labels)
+    {
+        ArrayList<Image.Section> codeSections = new ArrayList<>();
+        for (Image.Section s : sections)
+        {
+            int base = s.getBase();
+            if (base < 0 || base + s.getSize() > MAX_ADDR + 1)
+                continue;
+            System.arraycopy(s.getData(), 0, mem, base, s.getSize());
+            Arrays.fill(code, base, base + s.getSize(), s.isCode());
+            if (s.isCode() && s.getSize() > 0)
+                codeSections.add(s);
+        }
+
+        markLeader(entryPoint & MAX_ADDR);
+        if (code[entryPoint & MAX_ADDR])
+            hot.add(entryPoint & MAX_ADDR);
+        for (int label : labels)
+            markLeader(label & MAX_ADDR);
+        for (Image.Section s : codeSections)
+            findLeaders(s.getBase(), s.getBase() + s.getSize());
+        for (Image.Section s : codeSections)
+            findBlocks(s.getBase(), s.getBase() + s.getSize());
+    }
+
+    /**
+     * Splits every section into its runs of instructions and its runs of
+     * data. Labels take no space, so they do not end a run.
+     *
+     * @param sections the laid out sections.
+     * @param encoded the contents of each section.
+     * @param permissions the permissions of every run of each section, or
+     *                    -1 for the default of its kind.
+     * @return the code and data sections, in order.
+     */
+    public static List<Image.Section> split(List<Section> sections, List<byte[]>
+            encoded, int[] permissions)
+    {
+        ArrayList<Image.Section> split = new ArrayList<>();
+        for (int i = 0; i < sections.size(); i++)
+        {
+            Section s = sections.get(i);
+            byte[] data = encoded.get(i);
+            int start = s.getBase();
+            int end = start;
+            boolean isCode = false;
+            for (Item item : s.getItems())
+            {
+                if (item instanceof Label || item.size() == 0)
+                    continue;
+                boolean itemCode = item instanceof Instruction;
+                if (itemCode != isCode && end > start)
+                {
+                    split.add(run(start, Arrays.copyOfRange(data, start - s
+                            .getBase(), end - s.getBase()), isCode,
+                            permissions[i]));
+                    start = end;
+                }
+                isCode = itemCode;
+                end = item.getAddress() + item.size();
+            }
+            if (end > start)
+                split.add(run(start, Arrays.copyOfRange(data, start - s
+                        .getBase(), end - s.getBase()), isCode, permissions[i]));
+        }
+        return split;
+    }
+
+    private static Image.Section run(int base, byte[] data, boolean code, int
+            permissions)
+    {
+        if (permissions == -1)
+            return new Image.Section(base, data, code);
+        return new Image.Section(base, data, code, permissions);
+    }
+
+    /**
+     * @return the addresses of every label in the sections.
+     */
+    public static int[] labels(List<Section> sections)
+    {
+        ArrayList<Integer> labels = new ArrayList<>();
+        for (Section s : sections)
+            for (Item item : s.getItems())
+                if (item instanceof Label)
+                    labels.add(item.getAddress());
+
+        int[] ret = new int[labels.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = labels.get(i);
+        return ret;
+    }
+
+    /**
+     * @return the basic blocks, in address order.
+     */
+    public List<Image.Block> getBlocks()
+    {
+        return new ArrayList<>(blocks.values());
+    }
+
+    /**
+     * @return the entry point, every called function and every loop head
+     *         (the target of a branch backwards), in address order.
+     */
+    public int[] getHotEntries()
+    {
+        int[] ret = new int[hot.size()];
+        int i = 0;
+        for (int addr : hot)
+            ret[i++] = addr;
+        return ret;
+    }
+
+    private void markLeader(int addr)
+    {
+        if (code[addr])
+            leaders[addr] = true;
+    }
+
+    /**
+     * Marks the targets of every branch in the range, and the instructions
+     * right after them, as the starts of blocks.
+     */
+    private void findLeaders(int start, int end)
+    {
+        leaders[start] = true;
+        for (int addr = start; addr < end; )
+        {
+            int op = mem[addr] & 0xFF;
+            int len = Opcodes.length(op);
+            if (len == 0 || addr + len > end)
+                break;
+
+            if (Opcodes.isBranch(mem, addr))
+            {
+                int target = Opcodes.branchTarget(mem, addr);
+                if (target != -1 && code[target])
+                {
+                    leaders[target] = true;
+                    if (Opcodes.isCall(op) || target <= addr)
+                        hot.add(target);
+                }
+                if (addr + len < end)
+                    leaders[addr + len] = true;
+            }
+            addr += len;
+        }
+    }
+
+    private void findBlocks(int start, int end)
+    {
+        int blockStart = start;
+        for (int addr = start; addr < end; )
+        {
+            int op = mem[addr] & 0xFF;
+            int len = Opcodes.length(op);
+            if (len == 0 || addr + len > end)
+            {
+                //Only whole instructions are decoded.
+                if (addr > blockStart)
+                    blocks.put(blockStart, new Image.Block(blockStart, addr));
+                return;
+            }
+
+            int next = addr + len;
+            boolean branch = Opcodes.isBranch(mem, addr);
+            if (branch || next == end || leaders[next])
+            {
+                int target = branch ? Opcodes.branchTarget(mem, addr) : -1;
+                blocks.put(blockStart, target == -1 ? new Image.Block
+                        (blockStart, next) : new Image.Block(blockStart, next,
+                        target));
+                blockStart = next;
+            }
+            addr = next;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import java.util.Arrays;
+
+/**
+ * A single encoded instruction. The operand is either a fixed sequence of
+ * bytes, or a reference to a label, which is encoded as the 16-bit address of
+ * that label (or as an 8-bit value for {@link #PUSH_BYTE}, and as an 8-bit
+ * displacement from the next instruction for the relative branches). A label
+ * reference may come after some fixed bytes, such as the registers of a
+ * compare-and-branch.
+ */
+@SuppressWarnings("MagicNumber")
+public class Instruction extends Item
+{
+    public static final int PUSH_BYTE = 0x3d; //PUSH [8-bit VALUE]
+
+    //Branches and their 8-bit relative forms, in the same order.
+    private static final int[] ABSOLUTE_BRANCHES = {0x58, 0x5a, 0xfc, 0xde,
+            0xfe, 0xff};
+    private static final int[] RELATIVE_BRANCHES = {0xe0, 0xe1, 0xe2, 0xe3,
+            0xe4, 0xe5};
+
+    private static final byte[] NO_OPERANDS = new byte[0];
+
+    private int opcode;
+    private byte[] operands;
+    private final String symbol;
+    private Label target;
+
+    public Instruction(int opcode)
+    {
+        this(opcode, NO_OPERANDS);
+    }
+
+    public Instruction(int opcode, byte... operands)
+    {
+        this.opcode = opcode & 0xFF;
+        this.operands = operands.clone();
+        this.symbol = null;
+    }
+
+    /**
+     * Creates an instruction that refers to a label. The label must be bound
+     * with {@link #bind(Label)} before this can be encoded.
+     */
+    public Instruction(int opcode, String symbol)
+    {
+        this(opcode, NO_OPERANDS, symbol);
+    }
+
+    /**
+     * Creates an instruction that refers to a label, after the given fixed
+     * operand bytes.
+     */
+    public Instruction(int opcode, byte[] prefix, String symbol)
+    {
+        this.opcode = opcode & 0xFF;
+        this.operands = prefix.clone();
+        this.symbol = symbol;
+    }
+
+    /**
+     * Creates a push of the constant, using the shortest encoding.
+     */
+    public static Instruction push(int value)
+    {
+        short val = (short)value;
+        if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE)
+            return new Instruction(PUSH_BYTE, (byte)val);
+        return new Instruction(0x6f, (byte)val, (byte)(val >> 8));
+    }
+
+    /**
+     * @return the 8-bit relative form of a branch to an address, or -1 if
+     *         there is none.
+     */
+    public static int relativeForm(int opcode)
+    {
+        for (int i = 0; i < ABSOLUTE_BRANCHES.length; i++)
+            if (ABSOLUTE_BRANCHES[i] == opcode)
+                return RELATIVE_BRANCHES[i];
+        return -1;
+    }
+
+    /**
+     * @return the 16-bit address form of an 8-bit relative branch, or -1 if
+     *         this is not one.
+     */
+    public static int absoluteForm(int opcode)
+    {
+        for (int i = 0; i < RELATIVE_BRANCHES.length; i++)
+            if (RELATIVE_BRANCHES[i] == opcode)
+                return ABSOLUTE_BRANCHES[i];
+        return -1;
+    }
+
+    public int getOpcode()
+    {
+        return opcode;
+    }
+
+    public void setOpcode(int opcode)
+    {
+        this.opcode = opcode & 0xFF;
+    }
+
+    /**
+     * @return a copy of the fixed operand bytes. If this refers to a label,
+     *         these are the bytes before the label address.
+     */
+    public byte[] getOperands()
+    {
+        return operands.clone();
+    }
+
+    public boolean isSymbolic()
+    {
+        return symbol != null;
+    }
+
+    public String getSymbol()
+    {
+        return symbol;
+    }
+
+    public Label getTarget()
+    {
+        return target;
+    }
+
+    public void bind(Label target)
+    {
+        if (symbol == null)
+            throw new IllegalStateException("Not a symbolic instruction.");
+        this.target = target;
+    }
+
+    /**
+     * @return the constant this instruction pushes, or null if this is not a
+     *         push of an immediate value.
+     */
+    public Integer pushedConstant()
+    {
+        if (symbol != null)
+            return null;
+        if (opcode == PUSH_BYTE)
+            return (int)operands[0];
+        if (opcode == 0x6f)
+            return (int)(short)((operands[0] & 0xFF) | operands[1] << 8);
+        return null;
+    }
+
+    @Override
+    public int size()
+    {
+        if (symbol == null)
+            return 1 + operands.length;
+        return 1 + operands.length + (opcode == PUSH_BYTE || absoluteForm
+                (opcode) != -1 ? 1 : 2);
+    }
+
+    @Override
+    public void encode(byte[] buff, int off)
+    {
+        buff[off] = (byte)opcode;
+        System.arraycopy(operands, 0, buff, off + 1, operands.length);
+        if (symbol == null)
+            return;
+
+        int addr = target.getAddress();
+        if (absoluteForm(opcode) != -1)
+            addr -= getAddress() + 2;
+        off += 1 + operands.length;
+        buff[off] = (byte)addr;
+        if (opcode != PUSH_BYTE && absoluteForm(opcode) == -1)
+            buff[off + 1] = (byte)(addr >> 8);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%02x ", opcode) + (symbol != null ? (operands
+                .length > 0 ? Arrays.toString(operands) + " " : "") + symbol :
+                Arrays.toString(operands));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+/**
+ * One element of a section: an instruction, a label or raw data. Sections are
+ * kept as lists of items until every label address is known, so that items
+ * can still be changed after parsing.
+ */
+public abstract class Item
+{
+    private int address = -1;
+    private int line;
+
+    /**
+     * @return the address assigned to this item by the last layout, or -1 if
+     *         it has not been laid out yet.
+     */
+    public int getAddress()
+    {
+        return address;
+    }
+
+    public void setAddress(int address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * @return the source line this item was parsed from, or 0 if it is not
+     *         known.
+     */
+    public int getLine()
+    {
+        return line;
+    }
+
+    public void setLine(int line)
+    {
+        this.line = line;
+    }
+
+    /**
+     * @return the number of bytes this item encodes to.
+     */
+    public abstract int size();
+
+    /**
+     * Encodes this item into the buffer. Any label this refers to must already
+     * have been laid out.
+     */
+    public abstract void encode(byte[] buff, int off);
+}
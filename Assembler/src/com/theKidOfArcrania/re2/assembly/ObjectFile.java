@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import com.theKidOfArcrania.re2.Image.FormatException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.theKidOfArcrania.re2.RESquared.ISA_REVISION;
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * A relocatable object file (<code>.reo</code>), as written by the assembler
+ * with <code>-r</code> and combined into a <code>.re</code> image by
+ * {@link com.theKidOfArcrania.re2.RESquaredLinker}.
+ *
+ * Every section holds its encoded bytes, the labels it defines and the places
+ * that still have to be filled in with the address of a label. A section
+ * without a <code>.base</code> may be placed anywhere by the linker. A
+ * relocation either points into a section of the same object, or names a
+ * symbol that has to be defined by some object.
+ */
+public class ObjectFile
+{
+    public static final byte[] SIGNATURE = {0x52, 0x45, 0x5e, 0x32, 0x4f, 0x42, 0x4a, 0x02}; //RE^2OBJ
+
+    /**
+     * The format written before objects recorded their ISA revision. These
+     * objects are all revision 1.
+     */
+    public static final int FORMAT_V1 = 0x01;
+
+    public static class Symbol
+    {
+        private final String name;
+        private final int offset;
+
+        public Symbol(String name, int offset)
+        {
+            this.name = name;
+            this.offset = offset;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getOffset()
+        {
+            return offset;
+        }
+    }
+
+    /**
+     * A field of one or two bytes that receives the (little-endian) address
+     * of a label once the object is linked.
+     */
+    public static class Relocation
+    {
+        private final int offset;
+        private final int width;
+        private final int section;
+        private final int target;
+        private final String symbol;
+
+        /**
+         * Creates a relocation to a label in a section of the same object.
+         */
+        public Relocation(int offset, int width, int section, int target)
+        {
+            this.offset = offset;
+            this.width = width;
+            this.section = section;
+            this.target = target;
+            this.symbol = null;
+        }
+
+        /**
+         * Creates a relocation to a symbol defined by any object.
+         */
+        public Relocation(int offset, int width, String symbol)
+        {
+            this.offset = offset;
+            this.width = width;
+            this.section = -1;
+            this.target = 0;
+            this.symbol = symbol;
+        }
+
+        public int getOffset()
+        {
+            return offset;
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+
+        /**
+         * @return the index of the section in the same object that this
+         *         refers to, or -1 if this refers to a symbol.
+         */
+        public int getSection()
+        {
+            return section;
+        }
+
+        public int getTarget()
+        {
+            return target;
+        }
+
+        public String getSymbol()
+        {
+            return symbol;
+        }
+    }
+
+    public static class Section
+    {
+        private final int base;
+        private final byte[] data;
+        private final List<Symbol> symbols;
+        private final List<Relocation> relocations;
+
+        /**
+         * @param base the address of the section, or -1 if the linker may
+         *             place it anywhere.
+         */
+        public Section(int base, byte[] data, List<Symbol> symbols,
+                       List<Relocation> relocations)
+        {
+            this.base = base;
+            this.data = data.clone();
+            this.symbols = Collections.unmodifiableList(new ArrayList<>
+                    (symbols));
+            this.relocations = Collections.unmodifiableList(new ArrayList<>
+                    (relocations));
+        }
+
+        public int getBase()
+        {
+            return base;
+        }
+
+        public boolean isRelocatable()
+        {
+            return base == -1;
+        }
+
+        public int getSize()
+        {
+            return data.length;
+        }
+
+        public byte[] getData()
+        {
+            return data.clone();
+        }
+
+        public List<Symbol> getSymbols()
+        {
+            return symbols;
+        }
+
+        public List<Relocation> getRelocations()
+        {
+            return relocations;
+        }
+    }
+
+    private final int revision;
+    private final String entry;
+    private final List<Section> sections;
+
+    /**
+     * @param revision the ISA revision that the code targets.
+     * @param entry the label of the entry point, or null if this object does
+     *              not define the entry point.
+     */
+    public ObjectFile(int revision, String entry, List<Section> sections)
+    {
+        this.revision = revision;
+        this.entry = entry;
+        this.sections = Collections.unmodifiableList(new ArrayList<>
+                (sections));
+    }
+
+    public static ObjectFile read(InputStream is) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(is);
+        byte[] sig = new byte[SIGNATURE.length];
+        dis.readFully(sig);
+        int format = sig[sig.length - 1];
+        sig[sig.length - 1] = SIGNATURE[sig.length - 1];
+        if (!Arrays.equals(SIGNATURE, sig) || format != FORMAT_V1 && format !=
+                SIGNATURE[sig.length - 1])
+            throw new FormatException("Invalid signature.");
+
+        int revision = format == FORMAT_V1 ? 1 : dis.readInt();
+        if (revision < 1 || revision > ISA_REVISION)
+            throw new FormatException("Unsupported ISA revision: " +
+                    revision);
+
+        String entry = dis.readUTF();
+        int count = dis.readUnsignedShort();
+        ArrayList<Section> sections = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int base = dis.readInt();
+            int size = dis.readInt();
+            if (base < -1 || base > MAX_ADDR || size < 0 || size > MAX_ADDR +
+                    1)
+                throw new FormatException("Invalid section.");
+            byte[] data = new byte[size];
+            dis.readFully(data);
+
+            int symbolCount = dis.readInt();
+            if (symbolCount < 0)
+                throw new FormatException("Invalid symbol count.");
+            ArrayList<Symbol> symbols = new ArrayList<>();
+            for (int j = 0; j < symbolCount; j++)
+            {
+                String name = dis.readUTF();
+                int offset = dis.readInt();
+                if (offset < 0 || offset > size)
+                    throw new FormatException("Invalid symbol: " + name);
+                symbols.add(new Symbol(name, offset));
+            }
+
+            int relocCount = dis.readInt();
+            if (relocCount < 0)
+                throw new FormatException("Invalid relocation count.");
+            ArrayList<Relocation> relocations = new ArrayList<>();
+            for (int j = 0; j < relocCount; j++)
+            {
+                int offset = dis.readInt();
+                int width = dis.readUnsignedByte();
+                if (width < 1 || width > 2 || offset < 0 || offset + width >
+                        size)
+                    throw new FormatException("Invalid relocation.");
+
+                int section = dis.readInt();
+                if (section == -1)
+                    relocations.add(new Relocation(offset, width, dis
+                            .readUTF()));
+                else if (section >= 0 && section < count)
+                    relocations.add(new Relocation(offset, width, section,
+                            dis.readInt()));
+                else
+                    throw new FormatException("Invalid relocation.");
+            }
+            sections.add(new Section(base, data, symbols, relocations));
+        }
+        return new ObjectFile(revision, entry.isEmpty() ? null : entry,
+                sections);
+    }
+
+    public void write(OutputStream os) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(SIGNATURE);
+        dos.writeInt(revision);
+        dos.writeUTF(entry == null ? "" : entry);
+        dos.writeShort(sections.size());
+        for (Section s : sections)
+        {
+            dos.writeInt(s.base);
+            dos.writeInt(s.data.length);
+            dos.write(s.data);
+
+            dos.writeInt(s.symbols.size());
+            for (Symbol sym : s.symbols)
+            {
+                dos.writeUTF(sym.name);
+                dos.writeInt(sym.offset);
+            }
+
+            dos.writeInt(s.relocations.size());
+            for (Relocation reloc : s.relocations)
+            {
+                dos.writeInt(reloc.offset);
+                dos.writeByte(reloc.width);
+                dos.writeInt(reloc.section);
+                if (reloc.section == -1)
+                    dos.writeUTF(reloc.symbol);
+                else
+                    dos.writeInt(reloc.target);
+            }
+        }
+        dos.flush();
+    }
+
+    public int getRevision()
+    {
+        return revision;
+    }
+
+    public String getEntry()
+    {
+        return entry;
+    }
+
+    public List<Section> getSections()
+    {
+        return sections;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import com.theKidOfArcrania.re2.RESquaredAssembler.Section;
+
+import java.util.*;
+
+import static com.theKidOfArcrania.re2.RESquared.ISA_REVISION;
+import static com.theKidOfArcrania.re2.RESquared.SP;
+import static com.theKidOfArcrania.re2.RESquared.REGISTER_MASK;
+
+/**
+ * Peephole optimizer run over the parsed sections when assembling with
+ * <code>-O</code>.
+ *
+ * Patterns are only matched over consecutive instructions, so a label (which
+ * might be jumped to) or data in between always blocks a rewrite. Code that
+ * computes addresses into the middle of other code, or that modifies itself,
+ * should not be optimized.
+ */
+@SuppressWarnings("MagicNumber")
+public final class Optimizer
+{
+    private static final int PUSH_WORD = 0x6f; //PUSH [16-bit VALUE]
+    private static final int PUSH_REG = 0x4b; //PUSH [REG]
+    private static final int DUP = 0x22; //DUP
+    private static final int DROP = 0xdc; //POP
+    private static final int NOT = 0x26; //NOT
+    private static final int JMP = 0x58; //JMP [ADDR]
+    private static final int JMP_INDIRECT = 0x5f; //JMP ([REG])
+    private static final int CALL = 0x5a; //CALL [ADDR]
+    private static final int CALL_INDIRECT = 0x7d; //CALL ([REG])
+    private static final int RET = 0x7e; //RET
+
+    private static final Set<Integer> BRANCHES = new HashSet<>(Arrays.asList(
+            JMP, CALL, 0xde, 0xfc, 0xfe, 0xff, 0x8a, 0x8b, 0x8c, 0x8d));
+
+    private Optimizer()
+    {
+    }
+
+    /**
+     * Optimizes the sections in place. Afterwards, every section still has
+     * to be laid out again.
+     */
+    public static void optimize(List<Section> sections)
+    {
+        optimize(sections, ISA_REVISION);
+    }
+
+    /**
+     * Optimizes the sections in place, using only instructions that are in
+     * the given ISA revision.
+     */
+    public static void optimize(List<Section> sections, int revision)
+    {
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (Section s : sections)
+            {
+                List<Item> items = s.getItems();
+                changed |= foldConstants(items);
+                changed |= removeDeadPushes(items);
+                changed |= convertTailCalls(items);
+            }
+            changed |= threadJumps(sections);
+        }
+        shortenOperands(sections, revision >= 2);
+    }
+
+    /**
+     * Picks the shortest encoding of every label operand again, after the
+     * code has been moved around by {@link CodeLayout}.
+     */
+    public static void shorten(List<Section> sections, int revision)
+    {
+        shortenOperands(sections, revision >= 2);
+    }
+
+    /**
+     * Folds <code>PUSH a; PUSH b; op</code> and <code>PUSH a; NOT</code> into
+     * a single push of the result.
+     */
+    private static boolean foldConstants(List<Item> items)
+    {
+        boolean changed = false;
+        for (int i = 0; i < items.size(); i++)
+        {
+            Integer a = constant(items, i);
+            if (a == null)
+                continue;
+
+            int op = opcode(items, i + 1);
+            if (op == NOT)
+            {
+                replace(items, i, 2, Instruction.push(~a));
+                changed = true;
+                i = Math.max(i - 2, -1);
+                continue;
+            }
+
+            Integer b = constant(items, i + 1);
+            if (b == null)
+                continue;
+            Integer result = evaluate(opcode(items, i + 2), (short)(int)a,
+                    (short)(int)b);
+            if (result == null)
+                continue;
+
+            replace(items, i, 3, Instruction.push(result));
+            changed = true;
+            i = Math.max(i - 2, -1);
+        }
+        return changed;
+    }
+
+    /**
+     * Computes a binary operation the same way the interpreter does.
+     *
+     * @return the result or null if this is not a foldable operation.
+     */
+    private static Integer evaluate(int op, short a, short b)
+    {
+        switch (op)
+        {
+            case 0x21: //AND
+                return a & b;
+            case 0x25: //MULT
+                return a * b;
+            case 0x2a: //OR
+                return a | b;
+            case 0x2b: //SUB
+                return a - b;
+            case 0x2d: //MOD
+                return b == 0 ? null : a % b;
+            case 0x2f: //DIV
+                return b == 0 ? null : a / b;
+            case 0x3c: //SAR
+                return a >> b;
+            case 0x3e: //SHL
+                return a << b;
+            case 0x3f: //SHR
+                return (a & 0xFFFF) >>> b;
+            case 0x5e: //ADD
+                return a + b;
+            case 0x7c: //XOR
+                return a ^ b;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Removes a push that is immediately discarded again.
+     */
+    private static boolean removeDeadPushes(List<Item> items)
+    {
+        boolean changed = false;
+        for (int i = 0; i < items.size(); i++)
+        {
+            int op = opcode(items, i);
+            if (op != Instruction.PUSH_BYTE && op != PUSH_WORD && op !=
+                    PUSH_REG && op != DUP)
+                continue;
+            if (opcode(items, i + 1) != DROP)
+                continue;
+
+            replace(items, i, 2);
+            changed = true;
+            i = Math.max(i - 2, -1);
+        }
+        return changed;
+    }
+
+    /**
+     * Turns <code>CALL f; RET</code> into <code>JMP f</code>.
+     */
+    private static boolean convertTailCalls(List<Item> items)
+    {
+        boolean changed = false;
+        for (int i = 0; i < items.size(); i++)
+        {
+            if (opcode(items, i + 1) != RET)
+                continue;
+
+            Instruction call;
+            int op = opcode(items, i);
+            if (op == CALL)
+            {
+                call = (Instruction)items.get(i);
+                call.setOpcode(JMP);
+            }
+            else if (op == CALL_INDIRECT)
+            {
+                //The callee address is read after the return address is
+                //pushed, which a jump would not do.
+                call = (Instruction)items.get(i);
+                if ((call.getOperands()[0] & REGISTER_MASK) == SP)
+                    continue;
+                call.setOpcode(JMP_INDIRECT);
+            }
+            else
+                continue;
+
+            items.remove(i + 1);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Retargets branches to a label that is directly followed by a
+     * <code>JMP</code> to the final destination of that chain of jumps.
+     */
+    private static boolean threadJumps(List<Section> sections)
+    {
+        IdentityHashMap<Label, Item> following = new IdentityHashMap<>();
+        for (Section s : sections)
+        {
+            List<Label> waiting = new ArrayList<>();
+            for (Item item : s.getItems())
+            {
+                if (item instanceof Label)
+                {
+                    waiting.add((Label)item);
+                    continue;
+                }
+                for (Label label : waiting)
+                    following.put(label, item);
+                waiting.clear();
+            }
+        }
+
+        boolean changed = false;
+        for (Section s : sections)
+        {
+            for (Item item : s.getItems())
+            {
+                if (!(item instanceof Instruction))
+                    continue;
+                Instruction inst = (Instruction)item;
+                if (!inst.isSymbolic() || !BRANCHES.contains(inst.getOpcode()))
+                    continue;
+
+                Label target = inst.getTarget();
+                Set<Label> visited = Collections.newSetFromMap(new
+                        IdentityHashMap<>());
+                boolean loops = false;
+                while (true)
+                {
+                    if (!visited.add(target))
+                    {
+                        loops = true;
+                        break;
+                    }
+
+                    Item next = following.get(target);
+                    if (!(next instanceof Instruction))
+                        break;
+                    Instruction jmp = (Instruction)next;
+                    if (jmp.getOpcode() != JMP || !jmp.isSymbolic())
+                        break;
+                    target = jmp.getTarget();
+                }
+
+                if (!loops && target != inst.getTarget())
+                {
+                    inst.bind(target);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Uses the 8-bit push for every label address that fits in it, and the
+     * 8-bit relative branch for every branch to a label that is close enough.
+     * Shrinking an instruction moves the labels after it, so this is repeated
+     * until the layout settles. An instruction that has to grow back is never
+     * shrunk again, which guarantees that this terminates.
+     */
+    private static void shortenOperands(List<Section> sections, boolean
+            relative)
+    {
+        Set<Instruction> pinned = Collections.newSetFromMap(new
+                IdentityHashMap<>());
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (Section s : sections)
+                s.layout();
+
+            for (Section s : sections)
+            {
+                for (Item item : s.getItems())
+                {
+                    if (!(item instanceof Instruction))
+                        continue;
+                    Instruction inst = (Instruction)item;
+                    if (!inst.isSymbolic())
+                        continue;
+
+                    int op = inst.getOpcode();
+                    int shortOp;
+                    int longOp;
+                    short value = (short)inst.getTarget().getAddress();
+                    if (op == PUSH_WORD || op == Instruction.PUSH_BYTE)
+                    {
+                        shortOp = Instruction.PUSH_BYTE;
+                        longOp = PUSH_WORD;
+                    }
+                    else if (!relative)
+                        continue;
+                    else if (Instruction.relativeForm(op) != -1)
+                    {
+                        shortOp = Instruction.relativeForm(op);
+                        longOp = op;
+                    }
+                    else if (Instruction.absoluteForm(op) != -1)
+                    {
+                        shortOp = op;
+                        longOp = Instruction.absoluteForm(op);
+                    }
+                    else
+                        continue;
+
+                    //A relative branch counts from the next instruction.
+                    if (shortOp != Instruction.PUSH_BYTE)
+                        value -= inst.getAddress() + 2;
+
+                    boolean fits = value >= Byte.MIN_VALUE && value <=
+                            Byte.MAX_VALUE;
+                    if (op == shortOp && !fits)
+                    {
+                        inst.setOpcode(longOp);
+                        pinned.add(inst);
+                        changed = true;
+                    }
+                    else if (op == longOp && fits && !pinned.contains(inst))
+                    {
+                        inst.setOpcode(shortOp);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int opcode(List<Item> items, int index)
+    {
+        if (index >= items.size() || !(items.get(index) instanceof
+                Instruction))
+            return -1;
+        return ((Instruction)items.get(index)).getOpcode();
+    }
+
+    private static Integer constant(List<Item> items, int index)
+    {
+        if (index >= items.size() || !(items.get(index) instanceof
+                Instruction))
+            return null;
+        return ((Instruction)items.get(index)).pushedConstant();
+    }
+
+    private static void replace(List<Item> items, int index, int count,
+                                Item... replacement)
+    {
+        //Keep the replaced code's line for the debug line table.
+        int line = items.get(index).getLine();
+        for (Item item : replacement)
+            if (item.getLine() == 0)
+                item.setLine(line);
+        items.subList(index, index + count).clear();
+        items.addAll(index, Arrays.asList(replacement));
+    }
+}
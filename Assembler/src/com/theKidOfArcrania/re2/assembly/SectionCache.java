@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An on-disk cache of parsed sections, keyed by a hash of the section's
+ * source text.
+ *
+ * A cached section is kept as its list of items, with label references still
+ * by name. They are bound again each time the section is reused, so the
+ * cached entry does not depend on any other section, and the key only has to
+ * cover the section's own text. For the same reason, the source line of each
+ * item is kept relative to the first line of the section.
+ *
+ * Diagnostics are not kept, so only sections that parse without any
+ * warnings (or errors) should be stored.
+ *
+ * The cache may be used by several threads at once.
+ */
+@SuppressWarnings("MagicNumber")
+public class SectionCache
+{
+    private static final String VERSION = "RE^2 section cache v3";
+
+    private static final int TAG_LABEL = 0;
+    private static final int TAG_DATA = 1;
+    private static final int TAG_INSTRUCTION = 2;
+    private static final int TAG_SYMBOLIC = 3;
+    private static final int TAG_SYMBOLIC_PREFIXED = 4;
+
+    /**
+     * A section read back from the cache.
+     */
+    public static class Entry
+    {
+        private final int base;
+        private final int permissions;
+        private final List<Item> items;
+
+        public Entry(int base, int permissions, List<Item> items)
+        {
+            this.base = base;
+            this.permissions = permissions;
+            this.items = items;
+        }
+
+        public int getBase()
+        {
+            return base;
+        }
+
+        /**
+         * @return the permissions given by <code>.protect</code>, or -1.
+         */
+        public int getPermissions()
+        {
+            return permissions;
+        }
+
+        /**
+         * @return freshly created items. Their symbolic instructions are not
+         *         bound to any label yet.
+         */
+        public List<Item> getItems()
+        {
+            return items;
+        }
+    }
+
+    private final Path dir;
+    private final HashMap<String, byte[]> memory = new HashMap<>();
+
+    private int hits;
+    private int misses;
+
+    /**
+     * @param dir the directory to keep the cache files in. It is created if
+     *            it does not exist yet.
+     */
+    public SectionCache(Path dir) throws IOException
+    {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Computes the cache key of a section.
+     *
+     * @param lines the source lines of the section, starting with its
+     *              <code>.section</code> line.
+     * @param revision the ISA revision that the section is assembled for.
+     * @param relocatable whether the section is assembled into an object.
+     */
+    public static String hash(List<String> lines, int revision, boolean
+            relocatable)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            md.update((byte)revision);
+            md.update((byte)(relocatable ? 1 : 0));
+            for (String line : lines)
+            {
+                md.update((byte)'\n');
+                md.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * @param firstLine the line that the section starts at in this file.
+     * @return the cached section or null if it is not in the cache (or if
+     *         the cache file cannot be read).
+     */
+    public synchronized Entry get(String hash, int firstLine)
+    {
+        byte[] contents = memory.get(hash);
+        try
+        {
+            if (contents == null)
+            {
+                Path file = dir.resolve(hash);
+                if (!Files.isRegularFile(file))
+                {
+                    misses++;
+                    return null;
+                }
+                contents = Files.readAllBytes(file);
+                memory.put(hash, contents);
+            }
+
+            Entry entry = decode(contents, firstLine);
+            hits++;
+            return entry;
+        }
+        catch (IOException e)
+        {
+            memory.remove(hash);
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores a section that was parsed without any errors or warnings.
+     *
+     * @param permissions the permissions given by <code>.protect</code>, or
+     *                    -1.
+     * @param firstLine the line that the section starts at.
+     */
+    public synchronized void put(String hash, int base, int permissions, int
+            firstLine, List<Item> items) throws IOException
+    {
+        byte[] contents = encode(base, permissions, firstLine, items);
+        memory.put(hash, contents);
+
+        Path tmp = Files.createTempFile(dir, hash, ".tmp");
+        try
+        {
+            Files.write(tmp, contents);
+            Files.move(tmp, dir.resolve(hash), StandardCopyOption
+                    .REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized void resetCounts()
+    {
+        hits = misses = 0;
+    }
+
+    private static byte[] encode(int base, int permissions, int firstLine,
+                                 List<Item> items) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(VERSION);
+        dos.writeInt(base);
+        dos.writeByte(permissions);
+        dos.writeInt(items.size());
+        for (Item item : items)
+        {
+            dos.writeInt(item.getLine() == 0 ? -1 : item.getLine() -
+                    firstLine);
+            if (item instanceof Label)
+            {
+                dos.writeByte(TAG_LABEL);
+                dos.writeUTF(((Label)item).getName());
+            }
+            else if (item instanceof Data)
+            {
+                byte[] data = ((Data)item).getData();
+                dos.writeByte(TAG_DATA);
+                dos.writeInt(data.length);
+                dos.write(data);
+            }
+            else
+            {
+                Instruction inst = (Instruction)item;
+                byte[] operands = inst.getOperands();
+                if (inst.isSymbolic() && operands.length == 0)
+                {
+                    dos.writeByte(TAG_SYMBOLIC);
+                    dos.writeByte(inst.getOpcode());
+                    dos.writeUTF(inst.getSymbol());
+                }
+                else if (inst.isSymbolic())
+                {
+                    dos.writeByte(TAG_SYMBOLIC_PREFIXED);
+                    dos.writeByte(inst.getOpcode());
+                    dos.writeByte(operands.length);
+                    dos.write(operands);
+                    dos.writeUTF(inst.getSymbol());
+                }
+                else
+                {
+                    dos.writeByte(TAG_INSTRUCTION);
+                    dos.writeByte(inst.getOpcode());
+                    dos.writeByte(operands.length);
+                    dos.write(operands);
+                }
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private static Entry decode(byte[] contents, int firstLine) throws
+            IOException
+    {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream
+                (contents));
+        if (!dis.readUTF().equals(VERSION))
+            throw new IOException("Unknown cache version.");
+
+        int base = dis.readInt();
+        int permissions = dis.readByte();
+        int count = dis.readInt();
+        if (count < 0)
+            throw new IOException("Invalid item count.");
+
+        ArrayList<Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            int line = dis.readInt();
+            switch (dis.readByte())
+            {
+                case TAG_LABEL:
+                    items.add(new Label(dis.readUTF()));
+                    break;
+                case TAG_DATA:
+                    int len = dis.readInt();
+                    if (len < 0 || len > contents.length)
+                        throw new IOException("Invalid data length.");
+                    byte[] data = new byte[len];
+                    dis.readFully(data);
+                    items.add(new Data(data));
+                    break;
+                case TAG_INSTRUCTION:
+                    int opcode = dis.readUnsignedByte();
+                    byte[] operands = new byte[dis.readUnsignedByte()];
+                    dis.readFully(operands);
+                    items.add(new Instruction(opcode, operands));
+                    break;
+                case TAG_SYMBOLIC:
+                    opcode = dis.readUnsignedByte();
+                    items.add(new Instruction(opcode, dis.readUTF()));
+                    break;
+                case TAG_SYMBOLIC_PREFIXED:
+                    opcode = dis.readUnsignedByte();
+                    operands = new byte[dis.readUnsignedByte()];
+                    dis.readFully(operands);
+                    items.add(new Instruction(opcode, operands, dis
+                            .readUTF()));
+                    break;
+                default:
+                    throw new IOException("Invalid item.");
+            }
+            if (line >= 0)
+                items.get(i).setLine(firstLine + line);
+        }
+        return new Entry(base, permissions, items);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.assembly;
+
+import java.util.Arrays;
+
+/**
+ * Numbers label names in the order they are first seen, so that anything
+ * kept per label can be stored in arrays indexed by that number. This is an
+ * open-addressed hash table over plain arrays, since a general map would box
+ * every number and allocate a node for every name.
+ */
+public class SymbolTable
+{
+    private String[] names = new String[16];
+    private int[] hashes = new int[16];
+    private int[] slots = new int[32];
+    private int size;
+
+    /**
+     * @return the number of the name, which is assigned if the name is new.
+     */
+    public int intern(String name)
+    {
+        int hash = name.hashCode();
+        int slot = probe(name, hash);
+        if (slots[slot] != 0)
+            return slots[slot] - 1;
+
+        if (size == names.length)
+        {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            rehash();
+        return size - 1;
+    }
+
+    /**
+     * @return the number of the name, or -1 if it was never interned.
+     */
+    public int find(String name)
+    {
+        return slots[probe(name, name.hashCode())] - 1;
+    }
+
+    public String getName(int id)
+    {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException(id);
+        return names[id];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    /**
+     * @return the slot that holds the name, or the empty slot where it
+     *         would be placed.
+     */
+    private int probe(String name, int hash)
+    {
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (slots[slot] != 0)
+        {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && names[id].equals(name))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Scatters the hash codes of similar names (such as numbered labels),
+     * which would otherwise fill long runs of slots.
+     */
+    private static int spread(int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ hash >>> 16;
+    }
+
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++)
+        {
+            int slot = spread(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+}
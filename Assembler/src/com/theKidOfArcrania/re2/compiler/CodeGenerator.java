@@ -0,0 +1,1645 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import com.theKidOfArcrania.re2.compiler.Expr.Op;
+
+import java.util.*;
+
+/**
+ * Generates <code>RESquaredAssembler</code> source from the parsed program.
+ *
+ * Expressions are evaluated in the registers <code>%0</code> to
+ * <code>%4</code>, which calls may clobber (a function returns its value in
+ * <code>%0</code>). Locals that the {@link RegisterAllocator} picked live in
+ * <code>%5</code> to <code>%12</code>, which a function saves on entry if it
+ * uses them, and are used in place: <code>i += 2</code> is a single
+ * <code>add</code>. The operand that needs more registers is evaluated
+ * first (Sethi-Ullman order), so that most expressions never touch the
+ * value stack. Only when an operand needs more registers than are left is
+ * the value that is held pushed, and popped back afterwards.
+ *
+ * Arguments are pushed from right to left, so that the first one is at
+ * <code>4(%BP)</code> in the callee, and popped by the caller. Any registers
+ * that are still in use across a call are pushed before the arguments.
+ *
+ * Code is placed at {@link #CODE_BASE}, and globals and string literals at
+ * {@link #DATA_BASE}, so that every pointer to data compares the same way
+ * with the signed compare-and-branch instructions.
+ */
+@SuppressWarnings("MagicNumber")
+public class CodeGenerator
+{
+    public static final int CODE_BASE = 0x1000;
+    public static final int DATA_BASE = 0x8000;
+
+    private static final int TEMPS = 5;
+    private static final int SP = 13;
+    private static final int BP = 14;
+    private static final String PUTC = "L_putc";
+    private static final int DATA_PER_LINE = 16;
+
+    /**
+     * Where an lvalue, or whatever a pointer points to, lives: in a register,
+     * in memory at an offset from a register, or at the label of a global.
+     */
+    private static final class Place
+    {
+        private final int reg;
+        private final int disp;
+        private final String label;
+        private final boolean memory;
+
+        private Place(int reg, int disp, String label, boolean memory)
+        {
+            this.reg = reg;
+            this.disp = disp;
+            this.label = label;
+            this.memory = memory;
+        }
+
+        private static Place register(int reg)
+        {
+            return new Place(reg, 0, null, false);
+        }
+
+        private static Place memory(int base, int disp)
+        {
+            return new Place(base, disp, null, true);
+        }
+
+        private static Place global(String label)
+        {
+            return new Place(-1, 0, label, true);
+        }
+
+        private boolean isRegister()
+        {
+            return !memory;
+        }
+
+        private boolean isGlobal()
+        {
+            return label != null;
+        }
+
+        /**
+         * @return the operand that addresses this place.
+         */
+        private String operand()
+        {
+            return label != null ? label : disp + "(" + name(reg) + ")";
+        }
+    }
+
+    private final StringBuilder code = new StringBuilder();
+    private final LinkedHashMap<String, String> strings = new
+            LinkedHashMap<>();
+    private final boolean[] busy = new boolean[TEMPS];
+    private final ArrayDeque<String> breaks = new ArrayDeque<>();
+    private final ArrayDeque<String> continues = new ArrayDeque<>();
+    private int labels;
+    private boolean putc;
+    private String returnLabel;
+
+    /**
+     * @return the assembly source of the whole program.
+     */
+    public String generate(Collection<Variable> globals, Collection<Function>
+            functions)
+    {
+        code.append(".entry L_start\n\n");
+        code.append("#Text section\n.section\n.base 0x").append(Integer
+                .toHexString(CODE_BASE)).append("\n\nL_start:\n");
+        for (Variable v : globals)
+            initializeGlobal(v);
+        emit("call _main");
+        emit("exit $0");
+
+        for (Function f : functions)
+            if (f.getBody() != null)
+                function(f);
+
+        StringBuilder data = new StringBuilder();
+        for (Variable v : globals)
+        {
+            data.append(v.getLabel()).append(":\n");
+            byte[] bytes = new byte[v.getType().size()];
+            List<Expr> init = v.getInitializer();
+            int size = v.getType().getKind() == Type.Kind.ARRAY ? v.getType()
+                    .getBase().size() : bytes.length;
+            for (int i = 0; init != null && i < init.size(); i++)
+            {
+                if (!init.get(i).isConstant())
+                    continue;
+                int value = init.get(i).getValue();
+                bytes[i * size] = (byte)value;
+                if (size == 2)
+                    bytes[i * size + 1] = (byte)(value >> 8);
+            }
+            bytes(data, bytes);
+        }
+        for (Map.Entry<String, String> s : strings.entrySet())
+            data.append(s.getValue()).append(":\n  .str \"").append(escape(s
+                    .getKey())).append("\"\n");
+        if (putc)
+            data.append(PUTC).append(":\n  .db 00 00\n");
+
+        if (data.length() > 0)
+            code.append("\n#Data section\n.section\n.base 0x").append(Integer
+                    .toHexString(DATA_BASE)).append("\n\n").append(data);
+        return dropUnusedLabels(code.toString());
+    }
+
+    /**
+     * Drops the labels of the code that nothing branches to, such as the
+     * continue label of a loop without a <code>continue</code>.
+     */
+    private static String dropUnusedLabels(String code)
+    {
+        String[] lines = code.split("\n");
+        HashSet<String> used = new HashSet<>();
+        for (String line : lines)
+        {
+            if (!line.startsWith("  "))
+                continue;
+            for (String word : line.trim().split(" "))
+                if (word.startsWith("L_"))
+                    used.add(word);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+        {
+            if (line.startsWith("L_") && line.endsWith(":") && !used.contains
+                    (line.substring(0, line.length() - 1)) && !line.equals
+                    ("L_start:"))
+                continue;
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stores the initial values of a global that are not constants, such as
+     * pointers to string literals, before <code>main</code> runs.
+     */
+    private void initializeGlobal(Variable v)
+    {
+        List<Expr> init = v.getInitializer();
+        if (init == null)
+            return;
+        Type type = v.getType().getKind() == Type.Kind.ARRAY ? v.getType()
+                .getBase() : v.getType();
+        for (int i = 0; i < init.size(); i++)
+        {
+            if (init.get(i).isConstant())
+                continue;
+            int r = gen(init.get(i));
+            Place p = i == 0 ? Place.global(v.getLabel()) : offset(v
+                    .getLabel(), i * type.size());
+            store(p, type, r);
+            release(p);
+            free(r);
+        }
+    }
+
+    //---------------------------------------------------------------------
+    // Functions and statements
+    //---------------------------------------------------------------------
+
+    private void function(Function f)
+    {
+        RegisterAllocator alloc = new RegisterAllocator(f);
+        returnLabel = newLabel();
+
+        code.append('\n').append(f.getLabel()).append(":\n");
+        emit(alloc.getFrameSize() > 0 ? "enter $" + alloc.getFrameSize() :
+                "enter");
+        for (int reg : alloc.getSaved())
+            emit("push " + name(reg));
+        for (Variable p : f.getParams())
+            if (p.getRegister() != -1)
+                emit("loadw " + name(p.getRegister()) + " " + p.getOffset() +
+                        "(%BP)");
+
+        List<Stmt> body = f.getBody().getStmts();
+        for (int i = 0; i < body.size(); i++)
+        {
+            Stmt s = body.get(i);
+            if (i == body.size() - 1 && s.getKind() == Stmt.Kind.RETURN)
+                returnValue(s.getExpr());
+            else
+                statement(s);
+        }
+
+        label(returnLabel);
+        List<Integer> saved = alloc.getSaved();
+        for (int i = saved.size() - 1; i >= 0; i--)
+            emit("pop " + name(saved.get(i)));
+        emit("leave");
+        emit("ret");
+    }
+
+    private void statement(Stmt s)
+    {
+        switch (s.getKind())
+        {
+            case BLOCK:
+                for (Stmt child : s.getStmts())
+                    statement(child);
+                break;
+            case EXPR:
+                discard(s.getExpr());
+                break;
+            case IF:
+                ifElse(s);
+                break;
+            case WHILE:
+            case DO:
+            case FOR:
+                loop(s);
+                break;
+            case BREAK:
+                emit("jmp " + breaks.peek());
+                break;
+            case CONTINUE:
+                emit("jmp " + continues.peek());
+                break;
+            case RETURN:
+                returnValue(s.getExpr());
+                emit("jmp " + returnLabel);
+                break;
+            case DECLARE:
+                declare(s.getVar());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void returnValue(Expr value)
+    {
+        if (value == null)
+            return;
+        int r = gen(value);
+        if (r != 0)
+            emit("mov %0 " + name(r));
+        free(r);
+    }
+
+    private void ifElse(Stmt s)
+    {
+        Expr cond = s.getCond();
+        if (cond.isConstant())
+        {
+            Stmt taken = cond.getValue() != 0 ? s.getBody() : s.getOtherwise();
+            if (taken != null)
+                statement(taken);
+            return;
+        }
+
+        String otherwise = newLabel();
+        condition(cond, otherwise, false);
+        statement(s.getBody());
+        if (s.getOtherwise() == null)
+        {
+            label(otherwise);
+            return;
+        }
+        String end = newLabel();
+        emit("jmp " + end);
+        label(otherwise);
+        statement(s.getOtherwise());
+        label(end);
+    }
+
+    /**
+     * Generates any loop, with the condition at the bottom, so that each
+     * iteration only takes one branch.
+     */
+    private void loop(Stmt s)
+    {
+        Expr cond = s.getCond();
+        if (s.getKind() == Stmt.Kind.FOR && s.getInit() != null)
+            statement(s.getInit());
+        if (s.getKind() != Stmt.Kind.DO && cond != null && cond.isConstant()
+                && cond.getValue() == 0)
+            return;
+
+        String top = newLabel();
+        String next = newLabel();
+        String test = s.getKind() == Stmt.Kind.FOR && s.getExpr() != null ?
+                newLabel() : next;
+        String end = newLabel();
+        boolean forever = cond == null || cond.isConstant() && cond.getValue()
+                != 0;
+        if (s.getKind() != Stmt.Kind.DO && !forever)
+            emit("jmp " + test);
+
+        label(top);
+        breaks.push(end);
+        continues.push(forever && s.getKind() != Stmt.Kind.FOR ? top : next);
+        statement(s.getBody());
+        breaks.pop();
+        continues.pop();
+
+        label(next);
+        if (s.getKind() == Stmt.Kind.FOR && s.getExpr() != null)
+        {
+            discard(s.getExpr());
+            label(test);
+        }
+        if (forever)
+            emit("jmp " + top);
+        else if (!cond.isConstant())
+            condition(cond, top, true);
+        label(end);
+    }
+
+    /**
+     * Initializes a local, if it has an initializer.
+     */
+    private void declare(Variable v)
+    {
+        List<Expr> init = v.getInitializer();
+        if (init == null)
+            return;
+        if (v.getType().getKind() != Type.Kind.ARRAY)
+        {
+            assign(Expr.variable(v, null), init.get(0), null, false);
+            return;
+        }
+
+        Type elem = v.getType().getBase();
+        for (int i = 0; i < init.size(); i++)
+        {
+            int r = gen(narrowed(init.get(i), elem));
+            Place p = frame(v.getOffset() + i * elem.size());
+            store(p, elem, r);
+            release(p);
+            free(r);
+        }
+
+        //Whatever the initializer leaves out is zero.
+        int filled = init.size() * elem.size();
+        if (filled == v.getType().size())
+            return;
+        int zero = alloc();
+        emit("mov " + name(zero) + " $0");
+        for (int off = filled; off < v.getType().size(); off += 2)
+        {
+            Type type = v.getType().size() - off == 1 ? Type.CHAR : Type.INT;
+            Place p = frame(v.getOffset() + off);
+            store(p, type, zero);
+            release(p);
+        }
+        free(zero);
+    }
+
+    //---------------------------------------------------------------------
+    // Expressions
+    //---------------------------------------------------------------------
+
+    /**
+     * Evaluates the expression into a register. This is a temporary that the
+     * caller has to {@link #free}, or the register of a local, which must not
+     * be changed.
+     *
+     * There are always at least two temporaries free when this is called.
+     */
+    private int gen(Expr e)
+    {
+        switch (e.getOp())
+        {
+            case CONST:
+            {
+                int t = alloc();
+                emit("mov " + name(t) + " $" + e.getValue());
+                return t;
+            }
+            case STRING:
+            {
+                int t = alloc();
+                emit("mov " + name(t) + " " + string(e.getText()));
+                return t;
+            }
+            case VAR:
+            case DEREF:
+                return load(lvalue(e), e.getType());
+            case ADDR:
+                return addressOf(address(e));
+            case CAST:
+            {
+                if (e.getType().getKind() != Type.Kind.CHAR)
+                    return gen(e.getLeft());
+                int r = owned(gen(e.getLeft()));
+                narrow(r);
+                return r;
+            }
+            case NEG:
+            {
+                int r = gen(e.getLeft());
+                int t = alloc();
+                emit("mov " + name(t) + " $0");
+                emit("sub " + name(t) + " " + name(r));
+                free(r);
+                return t;
+            }
+            case COMPL:
+            {
+                int r = owned(gen(e.getLeft()));
+                int t = alloc();
+                emit("mov " + name(t) + " $-1");
+                emit("xor " + name(r) + " " + name(t));
+                free(t);
+                return r;
+            }
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case XOR:
+            case SHL:
+            case SAR:
+            case MUL:
+            case DIV:
+            case MOD:
+                return arithmetic(e);
+            case NOT:
+            case EQ:
+            case NE:
+            case LT:
+            case GT:
+            case LE:
+            case GE:
+            case LOGAND:
+            case LOGOR:
+                return booleanValue(e);
+            case COMMA:
+                discard(e.getLeft());
+                return gen(e.getRight());
+            case COND:
+            {
+                String otherwise = newLabel();
+                String end = newLabel();
+                condition(e.getLeft(), otherwise, false);
+                int r = owned(gen(e.getRight()));
+                free(r);
+                emit("jmp " + end);
+                label(otherwise);
+                int other = gen(e.getThird());
+                if (other != r)
+                    emit("mov " + name(r) + " " + name(other));
+                free(other);
+                busy[r] = true;
+                label(end);
+                return r;
+            }
+            case ASSIGN:
+                return assign(e.getLeft(), e.getRight(), e.getCompound(),
+                        true);
+            case PREINC:
+            case POSTINC:
+                return increment(e, true);
+            case CALL:
+                return call(e);
+            default:
+                throw new IllegalStateException("No value: " + e.getOp());
+        }
+    }
+
+    /**
+     * Evaluates the expression only for its effects.
+     */
+    private void discard(Expr e)
+    {
+        switch (e.getOp())
+        {
+            case ASSIGN:
+                assign(e.getLeft(), e.getRight(), e.getCompound(), false);
+                break;
+            case PREINC:
+            case POSTINC:
+                increment(e, false);
+                break;
+            case CALL:
+                free(call(e));
+                break;
+            case PRINTF:
+                printf(e);
+                break;
+            case SCANF:
+                scanf(e);
+                break;
+            case COMMA:
+                discard(e.getLeft());
+                discard(e.getRight());
+                break;
+            case CAST:
+                discard(e.getLeft());
+                break;
+            case LOGAND:
+            case LOGOR:
+            {
+                String end = newLabel();
+                condition(e.getLeft(), end, e.getOp() == Op.LOGOR);
+                discard(e.getRight());
+                label(end);
+                break;
+            }
+            case COND:
+            {
+                String otherwise = newLabel();
+                String end = newLabel();
+                condition(e.getLeft(), otherwise, false);
+                discard(e.getRight());
+                emit("jmp " + end);
+                label(otherwise);
+                discard(e.getThird());
+                label(end);
+                break;
+            }
+            default:
+                if (!e.isPure())
+                    free(gen(e));
+                break;
+        }
+    }
+
+    private int arithmetic(Expr e)
+    {
+        Op op = e.getOp();
+        Expr right = e.getRight();
+        int shift = right.isConstant() ? Integer.numberOfTrailingZeros(right
+                .getValue()) : -1;
+        if (op == Op.MUL && right.isConstant() && right.getValue() > 0 &&
+                Integer.bitCount(right.getValue()) == 1)
+        {
+            //Multiplying by a power of two is a shift.
+            int r = owned(gen(e.getLeft()));
+            shiftLeft(r, shift);
+            return r;
+        }
+        if (op == Op.SHL && right.isConstant() && right.getValue() == 1)
+        {
+            int r = owned(gen(e.getLeft()));
+            shiftLeft(r, 1);
+            return r;
+        }
+
+        int[] regs = pair(e.getLeft(), right);
+        int a = regs[0];
+        int b = regs[1];
+        if (op == Op.MUL || op == Op.DIV || op == Op.MOD)
+        {
+            emit("push " + name(a));
+            emit("push " + name(b));
+            emit(mnemonic(op));
+            free(a);
+            free(b);
+            int r = alloc();
+            emit("pop " + name(r));
+            return r;
+        }
+
+        boolean commutative = op == Op.ADD || op == Op.AND || op == Op.OR ||
+                op == Op.XOR;
+        if (!isTemp(a) && isTemp(b) && commutative)
+        {
+            emit(mnemonic(op) + " " + name(b) + " " + name(a));
+            return b;
+        }
+        a = owned(a);
+        emit(mnemonic(op) + " " + name(a) + " " + name(b));
+        free(b);
+        return a;
+    }
+
+    private void shiftLeft(int r, int count)
+    {
+        if (count == 1)
+        {
+            emit("add " + name(r) + " " + name(r));
+            return;
+        }
+        if (count == 0)
+            return;
+        int t = alloc();
+        emit("mov " + name(t) + " $" + count);
+        emit("shl " + name(r) + " " + name(t));
+        free(t);
+    }
+
+    /**
+     * Evaluates a condition to 1 or 0.
+     */
+    private int booleanValue(Expr e)
+    {
+        String end = newLabel();
+        if (freeCount() >= 3)
+        {
+            int t = alloc();
+            emit("mov " + name(t) + " $0");
+            condition(e, end, false);
+            emit("mov " + name(t) + " $1");
+            label(end);
+            return t;
+        }
+
+        String no = newLabel();
+        condition(e, no, false);
+        int t = alloc();
+        emit("mov " + name(t) + " $1");
+        emit("jmp " + end);
+        label(no);
+        emit("mov " + name(t) + " $0");
+        label(end);
+        return t;
+    }
+
+    /**
+     * Branches to the label if the condition is the given value, and falls
+     * through otherwise.
+     */
+    private void condition(Expr e, String target, boolean when)
+    {
+        Op op = e.getOp();
+        switch (op)
+        {
+            case CONST:
+                if ((e.getValue() != 0) == when)
+                    emit("jmp " + target);
+                return;
+            case NOT:
+                condition(e.getLeft(), target, !when);
+                return;
+            case LOGAND:
+            case LOGOR:
+                if ((op == Op.LOGAND) == when)
+                {
+                    String skip = newLabel();
+                    condition(e.getLeft(), skip, !when);
+                    condition(e.getRight(), target, when);
+                    label(skip);
+                }
+                else
+                {
+                    condition(e.getLeft(), target, when);
+                    condition(e.getRight(), target, when);
+                }
+                return;
+            case COMMA:
+                discard(e.getLeft());
+                condition(e.getRight(), target, when);
+                return;
+            case CAST:
+                if (e.getType().getKind() != Type.Kind.CHAR)
+                {
+                    condition(e.getLeft(), target, when);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (!op.isComparison())
+        {
+            int r = gen(e);
+            emit("push " + name(r));
+            free(r);
+            emit((when ? "jnz " : "jz ") + target);
+            return;
+        }
+
+        Expr left = e.getLeft();
+        Expr right = e.getRight();
+        if (!when)
+            op = op.negate();
+        if (left.isConstant() && !right.isConstant())
+        {
+            Expr tmp = left;
+            left = right;
+            right = tmp;
+            op = mirror(op);
+        }
+
+        if (right.isConstant() && right.getValue() == 0 && op != Op.LE && op
+                != Op.GE)
+        {
+            //Compare with zero on the value stack.
+            int r = gen(left);
+            emit("push " + name(r));
+            free(r);
+            emit(stackBranch(op) + " " + target);
+            return;
+        }
+
+        int[] regs = pair(left, right);
+        String a = name(regs[0]);
+        String b = name(regs[1]);
+        switch (op)
+        {
+            case EQ: emit("jeq " + a + " " + b + " " + target); break;
+            case NE: emit("jne " + a + " " + b + " " + target); break;
+            case LT: emit("jlt " + a + " " + b + " " + target); break;
+            case GE: emit("jge " + a + " " + b + " " + target); break;
+            case GT: emit("jlt " + b + " " + a + " " + target); break;
+            default: emit("jge " + b + " " + a + " " + target); break;
+        }
+        free(regs[0]);
+        free(regs[1]);
+    }
+
+    /**
+     * @return the comparison with the operands swapped.
+     */
+    private static Op mirror(Op op)
+    {
+        switch (op)
+        {
+            case LT: return Op.GT;
+            case GT: return Op.LT;
+            case LE: return Op.GE;
+            case GE: return Op.LE;
+            default: return op;
+        }
+    }
+
+    private static String stackBranch(Op op)
+    {
+        switch (op)
+        {
+            case EQ: return "jz";
+            case NE: return "jnz";
+            case LT: return "jn";
+            default: return "jp";
+        }
+    }
+
+    /**
+     * Assigns the value to the target, which is either a plain assignment or
+     * a compound assignment with the given operator.
+     *
+     * @param want whether the value is used.
+     * @return the register with the assigned value, or -1 if not wanted.
+     */
+    private int assign(Expr target, Expr value, Op compound, boolean want)
+    {
+        Type type = target.getType();
+        boolean isChar = type.getKind() == Type.Kind.CHAR;
+        if (target.getOp() == Op.VAR && target.getVar().getRegister() != -1)
+        {
+            int v = target.getVar().getRegister();
+            if (compound == null)
+            {
+                //Turn x = x + y into x += y, which is done in place.
+                Expr inner = isChar && value.getOp() == Op.CAST ? value
+                        .getLeft() : value;
+                if (isSelf(inner.getLeft(), v) && isInPlace(inner.getOp()))
+                    return assign(target, inner.getRight(), inner.getOp(),
+                            want);
+                if (isSelf(inner.getRight(), v) && isInPlace(inner.getOp()) &&
+                        (inner.getOp() == Op.ADD || inner.getOp() == Op.AND ||
+                        inner.getOp() == Op.OR || inner.getOp() == Op.XOR))
+                    return assign(target, inner.getLeft(), inner.getOp(),
+                            want);
+
+                into(value, target.getVar());
+                return want ? v : -1;
+            }
+
+            if ((compound == Op.MUL || compound == Op.SHL) && value
+                    .isConstant() && value.getValue() > 0 && (compound ==
+                    Op.SHL ? value.getValue() == 1 : Integer.bitCount(value
+                    .getValue()) == 1))
+            {
+                shiftLeft(v, compound == Op.SHL ? 1 : Integer
+                        .numberOfTrailingZeros(value.getValue()));
+                if (isChar)
+                    narrow(v);
+                return want ? v : -1;
+            }
+
+            int b = gen(value);
+            if (compound == Op.MUL || compound == Op.DIV || compound == Op.MOD)
+            {
+                emit("push " + name(v));
+                emit("push " + name(b));
+                emit(mnemonic(compound));
+                emit("pop " + name(v));
+            }
+            else
+                emit(mnemonic(compound) + " " + name(v) + " " + name(b));
+            free(b);
+            if (isChar)
+                narrow(v);
+            return want ? v : -1;
+        }
+
+        if (compound == null)
+        {
+            Expr stored = narrowed(value, type);
+            int r = gen(stored);
+            Place p = lvalue(target, r);
+            store(p, type, r);
+            release(p);
+            if (!want)
+            {
+                free(r);
+                return -1;
+            }
+            if (stored != value)
+            {
+                r = owned(r);
+                narrow(r);
+            }
+            return r;
+        }
+
+        //Read, modify and write on the value stack, which leaves the
+        //registers for addressing the target.
+        Place p = lvalue(target);
+        int b = keeping(value, p.reg);
+        emit((isChar ? "loadb " : "loadw ") + p.operand());
+        emit("push " + name(b));
+        emit(mnemonic(compound));
+        if (want && !isChar)
+            emit("dup");
+        emit((isChar ? "storeb " : "storew ") + p.operand());
+        free(b);
+        int r = -1;
+        if (want)
+        {
+            if (isChar)
+                emit("loadb " + p.operand());
+            r = alloc();
+            emit("pop " + name(r));
+        }
+        release(p);
+        return r;
+    }
+
+    /**
+     * Evaluates the value straight into the register of a local, where that
+     * can be done without a temporary.
+     */
+    private void into(Expr value, Variable var)
+    {
+        int v = var.getRegister();
+        switch (value.getOp())
+        {
+            case CONST:
+                emit("mov " + name(v) + " $" + value.getValue());
+                return;
+            case VAR:
+            case DEREF:
+            {
+                Place p = lvalue(value);
+                if (p.isRegister())
+                {
+                    if (p.reg != v)
+                        emit("mov " + name(v) + " " + name(p.reg));
+                    return;
+                }
+                String op = value.getType().getKind() == Type.Kind.CHAR ?
+                        "loadb " : "loadw ";
+                if (p.isGlobal())
+                {
+                    emit("mov " + name(v) + " " + p.label);
+                    emit(op + name(v) + " 0(" + name(v) + ")");
+                }
+                else
+                    emit(op + name(v) + " " + p.operand());
+                release(p);
+                return;
+            }
+            case CAST:
+                into(value.getLeft(), var);
+                if (value.getType().getKind() == Type.Kind.CHAR)
+                    narrow(v);
+                return;
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+            case XOR:
+            case SHL:
+            case SAR:
+                //The local is overwritten first, so the right side must not
+                //read it.
+                if (!uses(value.getRight(), var))
+                {
+                    into(value.getLeft(), var);
+                    int b = gen(value.getRight());
+                    emit(mnemonic(value.getOp()) + " " + name(v) + " " +
+                            name(b));
+                    free(b);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+
+        int r = gen(value);
+        if (r != v)
+            emit("mov " + name(v) + " " + name(r));
+        free(r);
+    }
+
+    /**
+     * @return true if the expression reads or writes the variable.
+     */
+    private static boolean uses(Expr e, Variable var)
+    {
+        if (e == null)
+            return false;
+        if (e.getOp() == Op.VAR && e.getVar() == var)
+            return true;
+        if (uses(e.getLeft(), var) || uses(e.getRight(), var) || uses(e
+                .getThird(), var))
+            return true;
+        if (e.getArgs() != null)
+            for (Expr arg : e.getArgs())
+                if (uses(arg, var))
+                    return true;
+        return false;
+    }
+
+    /**
+     * @return true if the expression is the register local.
+     */
+    private static boolean isSelf(Expr e, int reg)
+    {
+        return e != null && e.getOp() == Op.VAR && e.getVar().getRegister() ==
+                reg;
+    }
+
+    /**
+     * @return true for the operators that have a compound assignment.
+     */
+    private static boolean isInPlace(Op op)
+    {
+        switch (op)
+        {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case MOD:
+            case AND:
+            case OR:
+            case XOR:
+            case SHL:
+            case SAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int increment(Expr e, boolean want)
+    {
+        Expr target = e.getLeft();
+        boolean post = e.getOp() == Op.POSTINC;
+        int delta = e.getValue();
+        boolean isChar = target.getType().getKind() == Type.Kind.CHAR;
+
+        if (target.getOp() == Op.VAR && target.getVar().getRegister() != -1)
+        {
+            int v = target.getVar().getRegister();
+            int old = -1;
+            if (post && want)
+            {
+                old = alloc();
+                emit("mov " + name(old) + " " + name(v));
+            }
+            int t = alloc();
+            emit("mov " + name(t) + " $" + Math.abs(delta));
+            emit((delta > 0 ? "add " : "sub ") + name(v) + " " + name(t));
+            free(t);
+            if (isChar)
+                narrow(v);
+            return post ? old : want ? v : -1;
+        }
+
+        Place p = lvalue(target);
+        String load = (isChar ? "loadb " : "loadw ") + p.operand();
+        emit(load);
+        if (post && want)
+            emit("dup");
+        emit("push $" + Math.abs(delta));
+        emit(delta > 0 ? "add" : "sub");
+        if (!post && want && !isChar)
+            emit("dup");
+        emit((isChar ? "storeb " : "storew ") + p.operand());
+        if (!post && want && isChar)
+            emit(load);
+        release(p);
+        if (!want)
+            return -1;
+        int r = alloc();
+        emit("pop " + name(r));
+        return r;
+    }
+
+    private int call(Expr e)
+    {
+        ArrayList<Integer> saved = new ArrayList<>();
+        for (int i = 0; i < TEMPS; i++)
+        {
+            if (busy[i])
+            {
+                emit("push " + name(i));
+                busy[i] = false;
+                saved.add(i);
+            }
+        }
+
+        List<Expr> args = e.getArgs();
+        for (int i = args.size() - 1; i >= 0; i--)
+        {
+            Expr arg = args.get(i);
+            if (arg.isConstant() || arg.getOp() == Op.STRING)
+                emit("push " + (arg.isConstant() ? "$" + arg.getValue() :
+                        string(arg.getText())));
+            else
+            {
+                int r = gen(arg);
+                emit("push " + name(r));
+                free(r);
+            }
+        }
+        emit("call " + e.getFunction().getLabel());
+        if (args.size() <= 2)
+        {
+            for (int i = 0; i < args.size(); i++)
+                emit("pop");
+        }
+        else
+        {
+            emit("mov %1 $" + 2 * args.size());
+            emit("add %SP %1");
+        }
+
+        int r = -1;
+        if (e.getType().getKind() != Type.Kind.VOID)
+        {
+            for (int i = 0; i < TEMPS && r == -1; i++)
+                if (!saved.contains(i))
+                    r = i;
+            busy[r] = true;
+            if (r != 0)
+                emit("mov " + name(r) + " %0");
+        }
+        for (int i = saved.size() - 1; i >= 0; i--)
+        {
+            busy[saved.get(i)] = true;
+            emit("pop " + name(saved.get(i)));
+        }
+        return r;
+    }
+
+    private void printf(Expr e)
+    {
+        String format = e.getText();
+        Iterator<Expr> args = e.getArgs().iterator();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < format.length(); i++)
+        {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 >= format.length())
+            {
+                text.append(c);
+                continue;
+            }
+            c = format.charAt(++i);
+            if (c == '%')
+            {
+                text.append(c);
+                continue;
+            }
+
+            if (text.length() > 0)
+                emit("outputstr " + string(text.toString()));
+            text.setLength(0);
+            Expr arg = args.next();
+            if (c == 's')
+            {
+                Place p = address(arg);
+                emit("outputstr " + p.operand());
+                release(p);
+                continue;
+            }
+
+            int r = gen(arg);
+            emit("push " + name(r));
+            free(r);
+            if (c == 'c')
+            {
+                putc = true;
+                emit("storeb " + PUTC);
+                emit("outputstr " + PUTC);
+            }
+            else
+                emit("outputnum");
+        }
+        if (text.length() > 0)
+            emit("outputstr " + string(text.toString()));
+    }
+
+    private void scanf(Expr e)
+    {
+        for (Expr target : e.getArgs())
+        {
+            boolean isChar = target.getType().getKind() == Type.Kind.CHAR;
+            Place p = lvalue(target);
+            emit("input");
+            if (p.isRegister())
+            {
+                emit("pop " + name(p.reg));
+                if (isChar)
+                    narrow(p.reg);
+            }
+            else
+                emit((isChar ? "storeb " : "storew ") + p.operand());
+            release(p);
+        }
+    }
+
+    //---------------------------------------------------------------------
+    // Places
+    //---------------------------------------------------------------------
+
+    /**
+     * @param held registers to keep, if the address needs any registers.
+     * @return the place of a variable, or of what a pointer points to.
+     */
+    private Place lvalue(Expr e, int... held)
+    {
+        if (e.getOp() == Op.DEREF)
+            return address(e.getLeft(), held);
+        Variable v = e.getVar();
+        if (v.getRegister() != -1)
+            return Place.register(v.getRegister());
+        if (v.isGlobal())
+            return Place.global(v.getLabel());
+        return frame(v.getOffset());
+    }
+
+    /**
+     * @return the place that the pointer points to.
+     */
+    private Place address(Expr pointer, int... held)
+    {
+        switch (pointer.getOp())
+        {
+            case ADDR:
+                return lvalue(pointer.getLeft(), held);
+            case STRING:
+                return Place.global(string(pointer.getText()));
+            case ADD:
+            case SUB:
+            {
+                Expr right = pointer.getRight();
+                if (!right.isConstant())
+                    break;
+                int disp = pointer.getOp() == Op.ADD ? right.getValue() : -right
+                        .getValue();
+                Place p = address(pointer.getLeft(), held);
+                if (p.isGlobal())
+                    return offset(p.label, disp);
+                if (fits(p.disp + disp))
+                    return Place.memory(p.reg, p.disp + disp);
+
+                int r = addressOf(p);
+                int t = alloc();
+                emit("mov " + name(t) + " $" + disp);
+                emit("add " + name(r) + " " + name(t));
+                free(t);
+                return Place.memory(r, 0);
+            }
+            case CAST:
+                return address(pointer.getLeft(), held);
+            case PREINC:
+            case POSTINC:
+            {
+                //Step a pointer in a register first, and then reach back.
+                Expr target = pointer.getLeft();
+                int delta = pointer.getValue();
+                if (target.getOp() != Op.VAR || target.getVar().getRegister()
+                        == -1 || !fits(delta))
+                    break;
+                increment(pointer, false);
+                return Place.memory(target.getVar().getRegister(), pointer
+                        .getOp() == Op.POSTINC ? -delta : 0);
+            }
+            default:
+                break;
+        }
+        return Place.memory(keeping(pointer, held), 0);
+    }
+
+    /**
+     * @return the place at the offset from a label.
+     */
+    private Place offset(String label, int disp)
+    {
+        if (disp == 0)
+            return Place.global(label);
+        int t = alloc();
+        emit("mov " + name(t) + " " + label);
+        if (fits(disp))
+            return Place.memory(t, disp);
+        emit("push " + name(t));
+        emit("push $" + disp);
+        emit("add");
+        emit("pop " + name(t));
+        return Place.memory(t, 0);
+    }
+
+    /**
+     * @return the place at the offset from <code>%BP</code>.
+     */
+    private Place frame(int disp)
+    {
+        if (fits(disp))
+            return Place.memory(BP, disp);
+        int t = alloc();
+        emit("mov " + name(t) + " $" + disp);
+        emit("add " + name(t) + " %BP");
+        return Place.memory(t, 0);
+    }
+
+    /**
+     * @return a register with the address of the place, which takes over
+     *         the register of the place if it is a temporary.
+     */
+    private int addressOf(Place p)
+    {
+        if (p.isGlobal())
+        {
+            int t = alloc();
+            emit("mov " + name(t) + " " + p.label);
+            return t;
+        }
+        if (p.disp == 0)
+            return p.reg;
+
+        if (!isTemp(p.reg))
+        {
+            int r = alloc();
+            emit("mov " + name(r) + " $" + p.disp);
+            emit("add " + name(r) + " " + name(p.reg));
+            return r;
+        }
+        int t = alloc();
+        emit("mov " + name(t) + " $" + p.disp);
+        emit("add " + name(p.reg) + " " + name(t));
+        free(t);
+        return p.reg;
+    }
+
+    /**
+     * Loads the value at the place into a register, and releases the place.
+     */
+    private int load(Place p, Type type)
+    {
+        if (p.isRegister())
+            return p.reg;
+        String op = type.getKind() == Type.Kind.CHAR ? "loadb " : "loadw ";
+        int r;
+        if (p.isGlobal())
+        {
+            r = alloc();
+            emit("mov " + name(r) + " " + p.label);
+            emit(op + name(r) + " 0(" + name(r) + ")");
+            return r;
+        }
+        r = isTemp(p.reg) ? p.reg : alloc();
+        emit(op + name(r) + " " + p.operand());
+        return r;
+    }
+
+    private void store(Place p, Type type, int r)
+    {
+        boolean isChar = type.getKind() == Type.Kind.CHAR;
+        if (p.isRegister())
+        {
+            if (p.reg != r)
+                emit("mov " + name(p.reg) + " " + name(r));
+            return;
+        }
+        if (p.isGlobal())
+        {
+            emit("push " + name(r));
+            emit((isChar ? "storeb " : "storew ") + p.label);
+            return;
+        }
+        emit((isChar ? "storeb " : "storew ") + name(r) + " " + p.operand());
+    }
+
+    private void release(Place p)
+    {
+        if (p.memory && !p.isGlobal())
+            free(p.reg);
+    }
+
+    /**
+     * @return the value to store into a place of the type. Stores into a
+     *         byte of memory are narrowed by the store itself.
+     */
+    private static Expr narrowed(Expr value, Type type)
+    {
+        if (type.getKind() == Type.Kind.CHAR && value.getOp() == Op.CAST &&
+                value.getType().getKind() == Type.Kind.CHAR)
+            return value.getLeft();
+        return value;
+    }
+
+    //---------------------------------------------------------------------
+    // Registers
+    //---------------------------------------------------------------------
+
+    /**
+     * Evaluates the operands of a binary operator, the one that needs more
+     * registers first.
+     *
+     * @return the registers of the left and right operand.
+     */
+    private int[] pair(Expr left, Expr right)
+    {
+        if (need(right) > need(left))
+        {
+            int b = gen(right);
+            return new int[] {keeping(left, b), b};
+        }
+        int a = gen(left);
+        return new int[] {a, keeping(right, a)};
+    }
+
+    /**
+     * Evaluates the expression while the held registers are in use. If there
+     * are not enough registers left over, the held ones are pushed, and
+     * popped back afterwards.
+     */
+    private int keeping(Expr e, int... held)
+    {
+        if (freeCount() >= Math.max(2, need(e)))
+            return gen(e);
+
+        ArrayList<Integer> spilled = new ArrayList<>();
+        for (int h : held)
+        {
+            if (isTemp(h) && busy[h])
+            {
+                emit("push " + name(h));
+                busy[h] = false;
+                spilled.add(h);
+            }
+        }
+        int r = gen(e);
+        if (spilled.contains(r))
+        {
+            int t = -1;
+            for (int i = 0; i < TEMPS && t == -1; i++)
+                if (!busy[i] && !spilled.contains(i))
+                    t = i;
+            if (t == -1)
+                throw new IllegalStateException("Out of registers.");
+            busy[t] = true;
+            emit("mov " + name(t) + " " + name(r));
+            r = t;
+        }
+        for (int i = spilled.size() - 1; i >= 0; i--)
+        {
+            busy[spilled.get(i)] = true;
+            emit("pop " + name(spilled.get(i)));
+        }
+        return r;
+    }
+
+    /**
+     * @return about how many temporaries it takes to evaluate the
+     *         expression, for ordering operands.
+     */
+    private static int need(Expr e)
+    {
+        int n;
+        switch (e.getOp())
+        {
+            case VAR:
+                n = e.getVar().getRegister() != -1 ? 0 : 1;
+                break;
+            case CONST:
+            case STRING:
+                n = 1;
+                break;
+            case CALL:
+            case PRINTF:
+            case SCANF:
+                n = TEMPS;
+                break;
+            case ADDR:
+            case DEREF:
+            case CAST:
+                n = Math.max(1, need(e.getLeft()));
+                break;
+            case NEG:
+            case COMPL:
+            case NOT:
+            case PREINC:
+            case POSTINC:
+                n = Math.max(1, need(e.getLeft())) + 1;
+                break;
+            case COND:
+                n = Math.max(need(e.getLeft()), Math.max(need(e.getRight()),
+                        need(e.getThird()))) + 1;
+                break;
+            case COMMA:
+                n = Math.max(need(e.getLeft()), need(e.getRight()));
+                break;
+            case ASSIGN:
+                n = Math.max(need(e.getLeft()), need(e.getRight())) + 1;
+                break;
+            default:
+            {
+                int l = need(e.getLeft());
+                int r = need(e.getRight());
+                n = Math.max(1, l == r ? l + 1 : Math.max(l, r));
+                break;
+            }
+        }
+        return Math.min(n, TEMPS);
+    }
+
+    /**
+     * @return the register, or a temporary with a copy of it if it is the
+     *         register of a local.
+     */
+    private int owned(int r)
+    {
+        if (isTemp(r))
+            return r;
+        int t = alloc();
+        emit("mov " + name(t) + " " + name(r));
+        return t;
+    }
+
+    /**
+     * Sign-extends the low byte of the register.
+     */
+    private void narrow(int r)
+    {
+        int t = alloc();
+        emit("mov " + name(t) + " $8");
+        emit("shl " + name(r) + " " + name(t));
+        emit("sar " + name(r) + " " + name(t));
+        free(t);
+    }
+
+    private int alloc()
+    {
+        for (int i = 0; i < TEMPS; i++)
+        {
+            if (!busy[i])
+            {
+                busy[i] = true;
+                return i;
+            }
+        }
+        throw new IllegalStateException("Out of registers.");
+    }
+
+    private void free(int r)
+    {
+        if (isTemp(r))
+            busy[r] = false;
+    }
+
+    private int freeCount()
+    {
+        int count = 0;
+        for (boolean b : busy)
+            if (!b)
+                count++;
+        return count;
+    }
+
+    private static boolean isTemp(int r)
+    {
+        return r >= 0 && r < TEMPS;
+    }
+
+    private static boolean fits(int disp)
+    {
+        return disp >= Byte.MIN_VALUE && disp <= Byte.MAX_VALUE;
+    }
+
+    private static String name(int r)
+    {
+        switch (r)
+        {
+            case SP: return "%SP";
+            case BP: return "%BP";
+            default: return "%" + r;
+        }
+    }
+
+    private static String mnemonic(Op op)
+    {
+        switch (op)
+        {
+            case MUL: return "mult";
+            case SAR: return "sar";
+            default: return op.name().toLowerCase();
+        }
+    }
+
+    //---------------------------------------------------------------------
+    // Output
+    //---------------------------------------------------------------------
+
+    private String newLabel()
+    {
+        return "L_" + labels++;
+    }
+
+    private void label(String name)
+    {
+        code.append(name).append(":\n");
+    }
+
+    private void emit(String instruction)
+    {
+        code.append("  ").append(instruction).append('\n');
+    }
+
+    /**
+     * @return the label of the string literal, which is only stored once.
+     */
+    private String string(String text)
+    {
+        return strings.computeIfAbsent(text, t -> "L_s" + strings.size());
+    }
+
+    private static void bytes(StringBuilder sb, byte[] bytes)
+    {
+        for (int i = 0; i < bytes.length; i += DATA_PER_LINE)
+        {
+            sb.append("  .db");
+            for (int j = i; j < Math.min(bytes.length, i + DATA_PER_LINE); j++)
+                sb.append(String.format(" %02x", bytes[j] & 0xFF));
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * @return the text, escaped for a <code>.str</code> directive (which
+     *         ends at a <code>#</code> comment).
+     */
+    private static String escape(String s)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                default:
+                    if (c < ' ' || c > '~' || c == '#')
+                        sb.append(String.format("\\x%02x", (int)c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
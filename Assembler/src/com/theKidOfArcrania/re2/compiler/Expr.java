@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import java.util.List;
+
+/**
+ * A typed expression. Each kind of expression only uses some of the fields:
+ *
+ * <ul>
+ *     <li>constants have a value, and string literals the text;</li>
+ *     <li>variables have the variable;</li>
+ *     <li>unary operators and casts have the left operand, binary operators
+ *     both, and the conditional operator all three;</li>
+ *     <li>an assignment has the target on the left, and for a compound
+ *     assignment, the compound operator;</li>
+ *     <li>an increment or decrement has the target on the left, and the
+ *     value (already scaled for pointers) to add;</li>
+ *     <li>a call has the function and arguments, and <code>printf</code> and
+ *     <code>scanf</code> the format as the text. The arguments of
+ *     <code>scanf</code> are the targets to read into.</li>
+ * </ul>
+ *
+ * Arrays are turned into pointers by taking their address, and indexing
+ * into pointer arithmetic and dereferencing, so the code generator never
+ * sees either.
+ */
+public class Expr
+{
+    public enum Op
+    {
+        CONST, STRING, VAR, NEG, NOT, COMPL, DEREF, ADDR, CAST, ADD, SUB, MUL,
+        DIV, MOD, SHL, SAR, AND, OR, XOR, EQ, NE, LT, LE, GT, GE, LOGAND,
+        LOGOR, COMMA, ASSIGN, PREINC, POSTINC, COND, CALL, PRINTF, SCANF;
+
+        /**
+         * @return true for the comparison operators.
+         */
+        public boolean isComparison()
+        {
+            return ordinal() >= EQ.ordinal() && ordinal() <= GE.ordinal();
+        }
+
+        /**
+         * @return the comparison that is true exactly when this one is false.
+         */
+        public Op negate()
+        {
+            switch (this)
+            {
+                case EQ: return NE;
+                case NE: return EQ;
+                case LT: return GE;
+                case GE: return LT;
+                case GT: return LE;
+                case LE: return GT;
+                default: throw new IllegalStateException("Not a comparison.");
+            }
+        }
+    }
+
+    private final Op op;
+    private final Type type;
+    private final Token token;
+
+    private Expr left;
+    private Expr right;
+    private Expr third;
+    private Op compound;
+    private int value;
+    private String text;
+    private Variable var;
+    private Function function;
+    private List<Expr> args;
+
+    /**
+     * @param token the token to report diagnostics at.
+     */
+    public Expr(Op op, Type type, Token token)
+    {
+        this.op = op;
+        this.type = type;
+        this.token = token;
+    }
+
+    public static Expr constant(int value, Type type, Token token)
+    {
+        Expr e = new Expr(Op.CONST, type, token);
+        e.value = (short)value;
+        return e;
+    }
+
+    public static Expr string(String text, Token token)
+    {
+        Expr e = new Expr(Op.STRING, Type.pointer(Type.CHAR), token);
+        e.text = text;
+        return e;
+    }
+
+    public static Expr variable(Variable var, Token token)
+    {
+        Expr e = new Expr(Op.VAR, var.getType(), token);
+        e.var = var;
+        return e;
+    }
+
+    public static Expr unary(Op op, Type type, Expr operand, Token token)
+    {
+        Expr e = new Expr(op, type, token);
+        e.left = operand;
+        return e;
+    }
+
+    public static Expr binary(Op op, Type type, Expr left, Expr right, Token
+            token)
+    {
+        Expr e = new Expr(op, type, token);
+        e.left = left;
+        e.right = right;
+        return e;
+    }
+
+    public static Expr conditional(Type type, Expr cond, Expr then, Expr
+            otherwise, Token token)
+    {
+        Expr e = binary(Op.COND, type, cond, then, token);
+        e.third = otherwise;
+        return e;
+    }
+
+    /**
+     * @param compound the operator of a compound assignment, or null.
+     */
+    public static Expr assign(Expr target, Expr value, Op compound, Token
+            token)
+    {
+        Expr e = binary(Op.ASSIGN, target.type, target, value, token);
+        e.compound = compound;
+        return e;
+    }
+
+    /**
+     * @param op {@link Op#PREINC} or {@link Op#POSTINC}.
+     * @param delta the value to add, which is negative to decrement.
+     */
+    public static Expr increment(Op op, Expr target, int delta, Token token)
+    {
+        Expr e = unary(op, target.type, target, token);
+        e.value = delta;
+        return e;
+    }
+
+    public static Expr call(Function function, List<Expr> args, Token token)
+    {
+        Expr e = new Expr(Op.CALL, function.getReturnType(), token);
+        e.function = function;
+        e.args = args;
+        return e;
+    }
+
+    /**
+     * @param op {@link Op#PRINTF} or {@link Op#SCANF}.
+     */
+    public static Expr builtin(Op op, String format, List<Expr> args, Token
+            token)
+    {
+        Expr e = new Expr(op, Type.VOID, token);
+        e.text = format;
+        e.args = args;
+        return e;
+    }
+
+    public Op getOp()
+    {
+        return op;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public Token getToken()
+    {
+        return token;
+    }
+
+    public Expr getLeft()
+    {
+        return left;
+    }
+
+    public Expr getRight()
+    {
+        return right;
+    }
+
+    public Expr getThird()
+    {
+        return third;
+    }
+
+    public Op getCompound()
+    {
+        return compound;
+    }
+
+    public int getValue()
+    {
+        return value;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    public Variable getVar()
+    {
+        return var;
+    }
+
+    public Function getFunction()
+    {
+        return function;
+    }
+
+    public List<Expr> getArgs()
+    {
+        return args;
+    }
+
+    public boolean isConstant()
+    {
+        return op == Op.CONST;
+    }
+
+    /**
+     * @return true if evaluating this has no effect other than its value,
+     *         and cannot fault.
+     */
+    public boolean isPure()
+    {
+        switch (op)
+        {
+            case CONST:
+            case STRING:
+            case VAR:
+                return true;
+            case ADDR:
+                return left.op == Op.VAR;
+            case NEG:
+            case NOT:
+            case COMPL:
+            case CAST:
+                return left.isPure();
+            case ADD:
+            case SUB:
+            case MUL:
+            case SHL:
+            case SAR:
+            case AND:
+            case OR:
+            case XOR:
+            case EQ:
+            case NE:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+                return left.isPure() && right.isPure();
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A function, declared by a prototype or defined with a body.
+ */
+public class Function
+{
+    private final String name;
+    private final Type returnType;
+    private final List<Variable> params;
+    private final Token declaration;
+    private final ArrayList<Variable> locals = new ArrayList<>();
+
+    private Stmt body;
+
+    public Function(String name, Type returnType, List<Variable> params, Token
+            declaration)
+    {
+        this.name = name;
+        this.returnType = returnType;
+        this.params = params;
+        this.declaration = declaration;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getLabel()
+    {
+        return "_" + name;
+    }
+
+    public Type getReturnType()
+    {
+        return returnType;
+    }
+
+    public List<Variable> getParams()
+    {
+        return params;
+    }
+
+    public Token getDeclaration()
+    {
+        return declaration;
+    }
+
+    /**
+     * @return every local declared in the body, in every block, but not the
+     *         parameters.
+     */
+    public List<Variable> getLocals()
+    {
+        return locals;
+    }
+
+    /**
+     * @return the body, or null if the function is only declared.
+     */
+    public Stmt getBody()
+    {
+        return body;
+    }
+
+    public void setBody(Stmt body)
+    {
+        this.body = body;
+    }
+
+    /**
+     * @return true if the other declaration has the same signature.
+     */
+    public boolean matches(Function other)
+    {
+        if (!returnType.equals(other.returnType) || params.size() != other
+                .params.size())
+            return false;
+        for (int i = 0; i < params.size(); i++)
+            if (!params.get(i).getType().equals(other.params.get(i).getType()))
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import com.theKidOfArcrania.re2.parsing.Diagnostics;
+import com.theKidOfArcrania.re2.parsing.ErrorLevel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits C source into {@link Token}s. Preprocessor lines (such as
+ * <code>#include &lt;stdio.h&gt;</code>) are skipped, since the only library
+ * functions, <code>printf</code> and <code>scanf</code>, are built in.
+ *
+ * The lexer also reports the diagnostics of the whole compilation, since it
+ * holds the source lines they point at.
+ */
+@SuppressWarnings("MagicNumber")
+public class Lexer
+{
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "int", "char", "void", "if", "else", "while", "do", "for",
+            "return", "break", "continue", "sizeof"));
+
+    //Longest first, so that the longest match wins.
+    private static final String[] PUNCTUATORS = {"<<=", ">>=", "++", "--",
+            "&&", "||", "==", "!=", "<=", ">=", "<<", ">>", "+=", "-=", "*=",
+            "/=", "%=", "&=", "|=", "^=", "+", "-", "*", "/", "%", "&", "|",
+            "^", "~", "!", "<", ">", "=", "?", ":", ";", ",", "(", ")", "[",
+            "]", "{", "}"};
+
+    private final String file;
+    private final String source;
+    private final String[] lines;
+    private final Diagnostics diagnostics;
+
+    private int pos;
+    private int line;
+    private int lineStart;
+
+    public Lexer(String file, String source, Diagnostics diagnostics)
+    {
+        this.file = file;
+        this.source = source;
+        this.lines = source.split("\r\n|\r|\n", -1);
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Reports a diagnostic at the given position.
+     *
+     * @param line the zero-based line.
+     * @param column the zero-based column.
+     */
+    public void report(ErrorLevel level, int line, int column, String message)
+    {
+        diagnostics.add(level, null, message);
+        diagnostics.locate(file, line + 1, column, line < lines.length ?
+                lines[line] : "");
+    }
+
+    /**
+     * Reports a diagnostic at the token.
+     */
+    public void report(ErrorLevel level, Token at, String message)
+    {
+        report(level, at.getLine(), at.getColumn(), message);
+    }
+
+    /**
+     * @return every token of the source, ending with a {@link Token.Kind#END}
+     *         token.
+     */
+    public List<Token> tokenize()
+    {
+        ArrayList<Token> tokens = new ArrayList<>();
+        pos = 0;
+        line = 0;
+        lineStart = 0;
+        while (true)
+        {
+            skipBlanks();
+            if (pos >= source.length())
+                break;
+
+            int start = pos;
+            int column = pos - lineStart;
+            char c = source.charAt(pos);
+            if (Character.isLetter(c) || c == '_')
+            {
+                while (pos < source.length() && (Character.isLetterOrDigit(
+                        source.charAt(pos)) || source.charAt(pos) == '_'))
+                    pos++;
+                String word = source.substring(start, pos);
+                tokens.add(new Token(KEYWORDS.contains(word) ? Token.Kind
+                        .KEYWORD : Token.Kind.IDENTIFIER, word, 0, line,
+                        column));
+            }
+            else if (c >= '0' && c <= '9')
+                tokens.add(new Token(Token.Kind.NUMBER, null, number(), line,
+                        column));
+            else if (c == '\'')
+                tokens.add(new Token(Token.Kind.NUMBER, null, character(),
+                        line, column));
+            else if (c == '"')
+                tokens.add(new Token(Token.Kind.STRING, string(), 0, line,
+                        column));
+            else
+            {
+                String punctuator = null;
+                for (String p : PUNCTUATORS)
+                {
+                    if (source.startsWith(p, pos))
+                    {
+                        punctuator = p;
+                        break;
+                    }
+                }
+                if (punctuator == null)
+                {
+                    report(ErrorLevel.ERROR, line, column, "unexpected " +
+                            "character '" + c + "'.");
+                    pos++;
+                    continue;
+                }
+                pos += punctuator.length();
+                tokens.add(new Token(Token.Kind.PUNCTUATOR, punctuator, 0,
+                        line, column));
+            }
+        }
+        tokens.add(new Token(Token.Kind.END, null, 0, line, pos - lineStart));
+        return tokens;
+    }
+
+    /**
+     * Skips whitespace, comments and preprocessor lines.
+     */
+    private void skipBlanks()
+    {
+        while (pos < source.length())
+        {
+            char c = source.charAt(pos);
+            if (c == '\n')
+            {
+                pos++;
+                line++;
+                lineStart = pos;
+            }
+            else if (Character.isWhitespace(c))
+                pos++;
+            else if (c == '#' && source.substring(lineStart, pos).trim()
+                    .isEmpty())
+            {
+                while (pos < source.length() && source.charAt(pos) != '\n')
+                    pos++;
+            }
+            else if (source.startsWith("//", pos))
+            {
+                while (pos < source.length() && source.charAt(pos) != '\n')
+                    pos++;
+            }
+            else if (source.startsWith("/*", pos))
+            {
+                int startLine = line;
+                int startColumn = pos - lineStart;
+                pos += 2;
+                while (pos < source.length() && !source.startsWith("*/", pos))
+                {
+                    if (source.charAt(pos++) == '\n')
+                    {
+                        line++;
+                        lineStart = pos;
+                    }
+                }
+                if (pos >= source.length())
+                    report(ErrorLevel.ERROR, startLine, startColumn,
+                            "unterminated comment.");
+                pos += 2;
+            }
+            else
+                break;
+        }
+    }
+
+    private int number()
+    {
+        int start = pos;
+        int radix = 10;
+        if (source.startsWith("0x", pos) || source.startsWith("0X", pos))
+        {
+            radix = 16;
+            pos += 2;
+        }
+        else if (source.charAt(pos) == '0')
+            radix = 8;
+
+        int digits = pos;
+        while (pos < source.length() && Character.isLetterOrDigit(source
+                .charAt(pos)))
+            pos++;
+        try
+        {
+            long value = Long.parseLong(source.substring(digits, pos), radix);
+            if (value > 0xFFFF)
+            {
+                report(ErrorLevel.ERROR, line, start - lineStart, "integer " +
+                        "constant does not fit in 16 bits.");
+                return 0;
+            }
+            return (short)value;
+        }
+        catch (NumberFormatException e)
+        {
+            report(ErrorLevel.ERROR, line, start - lineStart, "invalid " +
+                    "integer constant.");
+            return 0;
+        }
+    }
+
+    private int character()
+    {
+        int start = pos++;
+        int value = 0;
+        if (pos < source.length() && source.charAt(pos) != '\'')
+            value = nextChar();
+        else
+            report(ErrorLevel.ERROR, line, start - lineStart, "empty " +
+                    "character constant.");
+        if (pos >= source.length() || source.charAt(pos) != '\'')
+        {
+            report(ErrorLevel.ERROR, line, start - lineStart, "unterminated " +
+                    "character constant.");
+            while (pos < source.length() && source.charAt(pos) != '\'' &&
+                    source.charAt(pos) != '\n')
+                pos++;
+        }
+        if (pos < source.length() && source.charAt(pos) == '\'')
+            pos++;
+        return (byte)value;
+    }
+
+    private String string()
+    {
+        int start = pos++;
+        StringBuilder sb = new StringBuilder();
+        while (pos < source.length() && source.charAt(pos) != '"' && source
+                .charAt(pos) != '\n')
+            sb.append((char)nextChar());
+        if (pos >= source.length() || source.charAt(pos) != '"')
+            report(ErrorLevel.ERROR, line, start - lineStart, "unterminated " +
+                    "string literal.");
+        else
+            pos++;
+        return sb.toString();
+    }
+
+    /**
+     * Reads one (possibly escaped) character of a literal.
+     *
+     * @return its byte value, from 0 to 255.
+     */
+    private int nextChar()
+    {
+        int column = pos - lineStart;
+        char c = source.charAt(pos++);
+        if (c != '\\')
+        {
+            if (c > 0xFF)
+                report(ErrorLevel.ERROR, line, column, "character does not " +
+                        "fit in a byte.");
+            return c & 0xFF;
+        }
+        if (pos >= source.length())
+            return '\\';
+
+        c = source.charAt(pos++);
+        switch (c)
+        {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'a': return 7;
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'v': return 11;
+            case '\\':
+            case '\'':
+            case '"':
+            case '?':
+                return c;
+            case 'x':
+            {
+                int value = 0;
+                int digits = 0;
+                while (pos < source.length() && Character.digit(source.charAt
+                        (pos), 16) != -1)
+                {
+                    value = value * 16 + Character.digit(source.charAt(pos++),
+                            16);
+                    digits++;
+                }
+                if (digits == 0)
+                    report(ErrorLevel.ERROR, line, column, "invalid " +
+                            "hexadecimal escape.");
+                return value & 0xFF;
+            }
+            default:
+                if (c >= '0' && c <= '7')
+                {
+                    int value = c - '0';
+                    for (int i = 0; i < 2 && pos < source.length() && source
+                            .charAt(pos) >= '0' && source.charAt(pos) <= '7';
+                         i++)
+                        value = value * 8 + source.charAt(pos++) - '0';
+                    return value & 0xFF;
+                }
+                report(ErrorLevel.WARNING, line, column, "unknown escape " +
+                        "sequence '\\" + c + "'.");
+                return c & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,1223 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import com.theKidOfArcrania.re2.compiler.Expr.Op;
+import com.theKidOfArcrania.re2.parsing.ErrorLevel;
+
+import java.util.*;
+
+/**
+ * Parses C source into typed {@link Function}s and global
+ * {@link Variable}s, reporting errors through the {@link Lexer}.
+ *
+ * Types are checked and converted while parsing: arrays become pointers to
+ * their first element, indexing becomes pointer arithmetic, pointer
+ * arithmetic is scaled by the size of the element, values are narrowed to
+ * <code>char</code> by an explicit {@link Op#CAST}, and constant
+ * expressions are folded. After a syntax error, the parser skips to the end
+ * of the statement (or declaration) and carries on.
+ */
+public class Parser
+{
+    /** Unwinds to the statement or declaration that is being parsed. */
+    private static class SyntaxError extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private SyntaxError()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Lexer lexer;
+    private final LinkedHashMap<String, Variable> globals = new
+            LinkedHashMap<>();
+    private final LinkedHashMap<String, Function> functions = new
+            LinkedHashMap<>();
+    private final HashMap<String, Token> calls = new HashMap<>();
+    private final ArrayDeque<HashMap<String, Variable>> scopes = new
+            ArrayDeque<>();
+
+    private List<Token> tokens;
+    private int pos;
+    private Function current;
+    private int loops;
+
+    public Parser(Lexer lexer)
+    {
+        this.lexer = lexer;
+    }
+
+    /**
+     * @return the globals, in the order they were declared.
+     */
+    public Collection<Variable> getGlobals()
+    {
+        return globals.values();
+    }
+
+    /**
+     * @return every function, in the order it was first declared.
+     */
+    public Collection<Function> getFunctions()
+    {
+        return functions.values();
+    }
+
+    /**
+     * Parses the whole source.
+     */
+    public void parse()
+    {
+        tokens = lexer.tokenize();
+        pos = 0;
+        while (peek().getKind() != Token.Kind.END)
+        {
+            try
+            {
+                declaration();
+            }
+            catch (SyntaxError e)
+            {
+                recover(false);
+            }
+        }
+
+        for (Map.Entry<String, Token> call : calls.entrySet())
+        {
+            if (functions.get(call.getKey()).getBody() == null)
+                error(call.getValue(), "function '" + call.getKey() + "' " +
+                        "is never defined.");
+        }
+        Function main = functions.get("main");
+        if (main == null || main.getBody() == null)
+            error(peek(), "no main function.");
+        else if (!main.getParams().isEmpty())
+            error(main.getDeclaration(), "main cannot take any parameters.");
+    }
+
+    //---------------------------------------------------------------------
+    // Declarations
+    //---------------------------------------------------------------------
+
+    /**
+     * Parses a global declaration or a function.
+     */
+    private void declaration()
+    {
+        Type base = typeSpecifier();
+        do
+        {
+            Type type = pointers(base);
+            Token name = expectIdentifier();
+            if (peek().is("("))
+            {
+                function(type, name);
+                return;
+            }
+
+            type = arraySuffix(type);
+            List<Expr> init = null;
+            if (accept("="))
+                init = initializer(type, true);
+            Variable v = new Variable(name.getText(), complete(type, init,
+                    name), true, name);
+            v.setLabel("_" + name.getText());
+            v.setInitializer(init);
+            if (globals.containsKey(name.getText()) || functions.containsKey
+                    (name.getText()))
+                error(name, "'" + name.getText() + "' is already defined.");
+            else
+                globals.put(name.getText(), v);
+        }
+        while (accept(","));
+        expect(";");
+    }
+
+    private void function(Type returnType, Token name)
+    {
+        if (returnType.getKind() == Type.Kind.ARRAY)
+            error(name, "functions cannot return arrays.");
+
+        expect("(");
+        ArrayList<Variable> params = new ArrayList<>();
+        if (peek().is("void") && peekAt(1).is(")"))
+            pos++;
+        else if (!peek().is(")"))
+        {
+            do
+            {
+                Type type = pointers(typeSpecifier());
+                Token pname = peek().getKind() == Token.Kind.IDENTIFIER ?
+                        next() : peek();
+                type = arraySuffix(type).decay();
+                if (type.getKind() == Type.Kind.VOID)
+                    fail(pname, "parameters cannot be void.");
+                params.add(new Variable(pname.getKind() == Token.Kind
+                        .IDENTIFIER ? pname.getText() : null, type, false,
+                        pname));
+            }
+            while (accept(","));
+        }
+        expect(")");
+
+        Function f = new Function(name.getText(), returnType, params, name);
+        Function previous = functions.get(name.getText());
+        if (globals.containsKey(name.getText()))
+            error(name, "'" + name.getText() + "' is already defined.");
+        else if (previous != null && !previous.matches(f))
+            error(name, "conflicting types for '" + name.getText() + "'.");
+        else if (previous == null)
+            functions.put(name.getText(), f);
+
+        if (accept(";"))
+            return;
+
+        if (previous != null && previous.getBody() != null)
+            error(name, "function '" + name.getText() + "' is already " +
+                    "defined.");
+        HashMap<String, Variable> scope = new HashMap<>();
+        for (Variable p : params)
+        {
+            if (p.getName() == null)
+                error(p.getDeclaration(), "parameter name omitted.");
+            else if (scope.put(p.getName(), p) != null)
+                error(p.getDeclaration(), "duplicate parameter '" + p
+                        .getName() + "'.");
+        }
+
+        //Calls that were parsed already refer to the prototype, which has
+        //the same signature.
+        functions.put(name.getText(), f);
+        current = f;
+        scopes.push(scope);
+        try
+        {
+            f.setBody(block());
+        }
+        finally
+        {
+            scopes.pop();
+            current = null;
+        }
+    }
+
+    /**
+     * Parses the declaration of one or more locals.
+     *
+     * @return a statement that declares each of them.
+     */
+    private List<Stmt> localDeclaration()
+    {
+        ArrayList<Stmt> decls = new ArrayList<>();
+        Type base = typeSpecifier();
+        do
+        {
+            Type type = pointers(base);
+            Token name = expectIdentifier();
+            type = arraySuffix(type);
+            List<Expr> init = null;
+            if (accept("="))
+                init = initializer(type, false);
+            Variable v = new Variable(name.getText(), complete(type, init,
+                    name), false, name);
+            v.setInitializer(init);
+            if (scopes.peek().put(name.getText(), v) != null)
+                error(name, "'" + name.getText() + "' is already defined.");
+            current.getLocals().add(v);
+            decls.add(Stmt.declare(v, name));
+        }
+        while (accept(","));
+        expect(";");
+        return decls;
+    }
+
+    /**
+     * Fills in the length of an array declared with <code>[]</code>, and
+     * checks that the type can be stored.
+     */
+    private Type complete(Type type, List<Expr> init, Token name)
+    {
+        if (type.getKind() == Type.Kind.VOID)
+            fail(name, "variables cannot be void.");
+        if (type.getKind() != Type.Kind.ARRAY || type.getLength() >= 0)
+            return type;
+        if (init == null)
+            fail(name, "array size missing in '" + name.getText() + "'.");
+        return Type.array(type.getBase(), init.size());
+    }
+
+    private Type typeSpecifier()
+    {
+        Token t = next();
+        if (t.is("int"))
+            return Type.INT;
+        if (t.is("char"))
+            return Type.CHAR;
+        if (t.is("void"))
+            return Type.VOID;
+        return fail(t, "expected a type, but found " + t + ".");
+    }
+
+    private boolean isTypeStart()
+    {
+        return peek().is("int") || peek().is("char") || peek().is("void");
+    }
+
+    private Type pointers(Type base)
+    {
+        while (accept("*"))
+            base = Type.pointer(base);
+        return base;
+    }
+
+    /**
+     * @return the type, or an array of it if there is a <code>[n]</code>.
+     *         The length is -1 for <code>[]</code>.
+     */
+    private Type arraySuffix(Type type)
+    {
+        if (!peek().is("["))
+            return type;
+        Token t = next();
+        int length = -1;
+        if (!peek().is("]"))
+        {
+            Expr e = conditional();
+            if (!e.isConstant() || e.getValue() <= 0)
+                fail(t, "array size must be a positive constant.");
+            length = e.getValue();
+        }
+        expect("]");
+        if (peek().is("["))
+            fail(peek(), "arrays of arrays are not supported.");
+        if (type.getKind() == Type.Kind.VOID)
+            fail(t, "arrays of void are not allowed.");
+        if (length > 0 && (long)type.size() * length > Short.MAX_VALUE)
+            fail(t, "array is too large.");
+        return Type.array(type, length);
+    }
+
+    /**
+     * @param constant whether the values have to be known at compile time
+     *                 (constants, string literals or addresses of globals).
+     * @return the value of every element, converted to its type.
+     */
+    private List<Expr> initializer(Type type, boolean constant)
+    {
+        Token t = peek();
+        ArrayList<Expr> values = new ArrayList<>();
+        if (type.getKind() != Type.Kind.ARRAY)
+        {
+            values.add(initialValue(type, constant));
+            return values;
+        }
+
+        Type elem = type.getBase();
+        if (t.getKind() == Token.Kind.STRING && elem.getKind() == Type.Kind
+                .CHAR)
+        {
+            String s = stringLiteral();
+            for (int i = 0; i < s.length(); i++)
+                values.add(Expr.constant((byte)s.charAt(i), Type.CHAR, t));
+            if (type.getLength() == -1 || s.length() < type.getLength())
+                values.add(Expr.constant(0, Type.CHAR, t));
+        }
+        else
+        {
+            expect("{");
+            while (!peek().is("}"))
+            {
+                values.add(initialValue(elem, constant));
+                if (!accept(","))
+                    break;
+            }
+            expect("}");
+        }
+
+        if (type.getLength() >= 0 && values.size() > type.getLength())
+            error(t, "too many initializers for " + type + ".");
+        return values;
+    }
+
+    private Expr initialValue(Type type, boolean constant)
+    {
+        Token t = peek();
+        Expr e = convert(assignment(), type, t);
+        if (constant && !isStatic(e))
+            error(t, "initializer is not a constant.");
+        return e;
+    }
+
+    /**
+     * @return true if the value is known before the program runs.
+     */
+    private static boolean isStatic(Expr e)
+    {
+        switch (e.getOp())
+        {
+            case CONST:
+            case STRING:
+                return true;
+            case ADDR:
+                return e.getLeft().getOp() == Op.VAR && e.getLeft().getVar()
+                        .isGlobal();
+            case CAST:
+                return isStatic(e.getLeft());
+            case ADD:
+            case SUB:
+                return isStatic(e.getLeft()) && e.getRight().isConstant();
+            default:
+                return false;
+        }
+    }
+
+    //---------------------------------------------------------------------
+    // Statements
+    //---------------------------------------------------------------------
+
+    private Stmt block()
+    {
+        Token start = expect("{");
+        ArrayList<Stmt> stmts = new ArrayList<>();
+        scopes.push(new HashMap<>());
+        try
+        {
+            while (!peek().is("}") && peek().getKind() != Token.Kind.END)
+            {
+                try
+                {
+                    if (isTypeStart())
+                        stmts.addAll(localDeclaration());
+                    else
+                        stmts.add(statement());
+                }
+                catch (SyntaxError e)
+                {
+                    recover(true);
+                }
+            }
+            expect("}");
+        }
+        finally
+        {
+            scopes.pop();
+        }
+        return Stmt.block(stmts, start);
+    }
+
+    private Stmt statement()
+    {
+        Token t = peek();
+        if (t.is("{"))
+            return block();
+        if (isTypeStart())
+            fail(t, "a declaration is not a statement.");
+
+        if (accept("if"))
+        {
+            Expr cond = parenCondition();
+            Stmt body = statement();
+            Stmt otherwise = accept("else") ? statement() : null;
+            return Stmt.ifElse(cond, body, otherwise, t);
+        }
+        if (accept("while"))
+        {
+            Expr cond = parenCondition();
+            return Stmt.loop(Stmt.Kind.WHILE, cond, loopBody(), t);
+        }
+        if (accept("do"))
+        {
+            Stmt body = loopBody();
+            expect("while");
+            Expr cond = parenCondition();
+            expect(";");
+            return Stmt.loop(Stmt.Kind.DO, cond, body, t);
+        }
+        if (accept("for"))
+            return forLoop(t);
+        if (accept("return"))
+        {
+            Type type = current.getReturnType();
+            Expr value = null;
+            if (!peek().is(";"))
+            {
+                Token at = peek();
+                value = expression();
+                if (type.getKind() == Type.Kind.VOID)
+                    error(at, "void function '" + current.getName() + "' " +
+                            "cannot return a value.");
+                else
+                    value = convert(value, type, at);
+            }
+            else if (type.getKind() != Type.Kind.VOID)
+                warning(t, "return without a value in function '" + current
+                        .getName() + "'.");
+            expect(";");
+            return Stmt.expr(Stmt.Kind.RETURN, value, t);
+        }
+        if (accept("break") || accept("continue"))
+        {
+            if (loops == 0)
+                error(t, t + " is not within a loop.");
+            expect(";");
+            return new Stmt(t.is("break") ? Stmt.Kind.BREAK : Stmt.Kind
+                    .CONTINUE, t);
+        }
+        if (accept(";"))
+            return new Stmt(Stmt.Kind.EMPTY, t);
+
+        Expr e = expression();
+        expect(";");
+        return Stmt.expr(Stmt.Kind.EXPR, e, t);
+    }
+
+    private Stmt forLoop(Token t)
+    {
+        expect("(");
+        scopes.push(new HashMap<>());
+        try
+        {
+            Stmt init = null;
+            if (isTypeStart())
+                init = Stmt.block(localDeclaration(), t);
+            else if (!accept(";"))
+            {
+                init = Stmt.expr(Stmt.Kind.EXPR, expression(), t);
+                expect(";");
+            }
+
+            Expr cond = null;
+            if (!peek().is(";"))
+                cond = condition(expression(), t);
+            expect(";");
+            Expr step = peek().is(")") ? null : expression();
+            expect(")");
+            return Stmt.forLoop(init, cond, step, loopBody(), t);
+        }
+        finally
+        {
+            scopes.pop();
+        }
+    }
+
+    private Stmt loopBody()
+    {
+        loops++;
+        try
+        {
+            return statement();
+        }
+        finally
+        {
+            loops--;
+        }
+    }
+
+    private Expr parenCondition()
+    {
+        Token t = expect("(");
+        Expr cond = condition(expression(), t);
+        expect(")");
+        return cond;
+    }
+
+    private Expr condition(Expr e, Token at)
+    {
+        e = value(e);
+        if (!e.getType().isScalar())
+            fail(at, "condition must be a number or pointer.");
+        return e;
+    }
+
+    //---------------------------------------------------------------------
+    // Expressions
+    //---------------------------------------------------------------------
+
+    private Expr expression()
+    {
+        Expr e = assignment();
+        while (peek().is(","))
+        {
+            Token t = next();
+            Expr right = value(assignment());
+            e = Expr.binary(Op.COMMA, right.getType(), e, right, t);
+        }
+        return e;
+    }
+
+    private Expr assignment()
+    {
+        Expr target = conditional();
+        Token t = peek();
+        Op compound;
+        switch (t.getKind() == Token.Kind.PUNCTUATOR ? t.getText() : "")
+        {
+            case "=": compound = null; break;
+            case "+=": compound = Op.ADD; break;
+            case "-=": compound = Op.SUB; break;
+            case "*=": compound = Op.MUL; break;
+            case "/=": compound = Op.DIV; break;
+            case "%=": compound = Op.MOD; break;
+            case "<<=": compound = Op.SHL; break;
+            case ">>=": compound = Op.SAR; break;
+            case "&=": compound = Op.AND; break;
+            case "|=": compound = Op.OR; break;
+            case "^=": compound = Op.XOR; break;
+            default:
+                return target;
+        }
+        next();
+        lvalue(target, t);
+        Expr value = assignment();
+        if (compound == null)
+            return Expr.assign(target, convert(value, target.getType(), t),
+                    null, t);
+
+        value = value(value);
+        if (target.getType().isPointer() && (compound == Op.ADD || compound
+                == Op.SUB) && value.getType().isInteger())
+            value = scale(value, target.getType(), t);
+        else if (!target.getType().isInteger() || !value.getType()
+                .isInteger())
+            fail(t, "invalid operands to " + t + ".");
+        return Expr.assign(target, value, compound, t);
+    }
+
+    private Expr conditional()
+    {
+        Expr cond = logical(0);
+        if (!peek().is("?"))
+            return cond;
+        Token t = next();
+        cond = condition(cond, t);
+        Expr then = value(expression());
+        expect(":");
+        Expr otherwise = value(conditional());
+
+        Type a = then.getType();
+        Type b = otherwise.getType();
+        Type type;
+        if (a.isInteger() && b.isInteger())
+            type = Type.INT;
+        else if (a.isPointer() && (b.isPointer() || isNull(otherwise)))
+            type = a;
+        else if (b.isPointer() && isNull(then))
+            type = b;
+        else if (a.getKind() == Type.Kind.VOID && b.getKind() == Type.Kind
+                .VOID)
+            type = Type.VOID;
+        else
+            return fail(t, "mismatched types " + a + " and " + b + ".");
+
+        if (cond.isConstant())
+            return cond.getValue() != 0 ? then : otherwise;
+        return Expr.conditional(type, cond, then, otherwise, t);
+    }
+
+    //Binary operators by precedence, loosest first.
+    private static final String[][] LEVELS = {{"||"}, {"&&"}, {"|"}, {"^"},
+            {"&"}, {"==", "!="}, {"<", ">", "<=", ">="}, {"<<", ">>"}, {"+",
+            "-"}, {"*", "/", "%"}};
+    private static final Op[][] OPS = {{Op.LOGOR}, {Op.LOGAND}, {Op.OR},
+            {Op.XOR}, {Op.AND}, {Op.EQ, Op.NE}, {Op.LT, Op.GT, Op.LE, Op.GE},
+            {Op.SHL, Op.SAR}, {Op.ADD, Op.SUB}, {Op.MUL, Op.DIV, Op.MOD}};
+
+    private Expr logical(int level)
+    {
+        if (level == LEVELS.length)
+            return unary();
+        Expr e = logical(level + 1);
+        while (true)
+        {
+            Token t = peek();
+            Op op = null;
+            for (int i = 0; i < LEVELS[level].length; i++)
+                if (t.is(LEVELS[level][i]))
+                    op = OPS[level][i];
+            if (op == null)
+                return e;
+            next();
+            e = binary(op, e, logical(level + 1), t);
+        }
+    }
+
+    /**
+     * Checks the operands of a binary operator, and builds it.
+     */
+    private Expr binary(Op op, Expr left, Expr right, Token t)
+    {
+        left = value(left);
+        right = value(right);
+        Type a = left.getType();
+        Type b = right.getType();
+        if (!a.isScalar() || !b.isScalar())
+            fail(t, "invalid operands to " + t + ".");
+
+        switch (op)
+        {
+            case ADD:
+                if (a.isInteger() && b.isPointer())
+                    return binary(op, right, left, t);
+                if (a.isPointer() && b.isInteger())
+                    return fold(Expr.binary(Op.ADD, a, left, scale(right, a,
+                            t), t));
+                break;
+            case SUB:
+                if (a.isPointer() && b.isInteger())
+                    return fold(Expr.binary(Op.SUB, a, left, scale(right, a,
+                            t), t));
+                if (a.isPointer() && b.isPointer())
+                {
+                    //The difference is always a whole number of elements.
+                    Expr diff = Expr.binary(Op.SUB, Type.INT, left, right, t);
+                    int size = elementSize(a);
+                    return size == 1 ? diff : fold(Expr.binary(Op.SAR, Type
+                            .INT, diff, Expr.constant(1, Type.INT, t), t));
+                }
+                break;
+            case EQ:
+            case NE:
+            case LT:
+            case GT:
+            case LE:
+            case GE:
+                if (a.isPointer() != b.isPointer() && !isNull(left) &&
+                        !isNull(right))
+                    warning(t, "comparison between pointer and integer.");
+                return fold(Expr.binary(op, Type.INT, left, right, t));
+            case LOGAND:
+            case LOGOR:
+                return fold(Expr.binary(op, Type.INT, left, right, t));
+            default:
+                break;
+        }
+        if (!a.isInteger() || !b.isInteger())
+            fail(t, "invalid operands to " + t + ".");
+        return fold(Expr.binary(op, Type.INT, left, right, t));
+    }
+
+    private Expr unary()
+    {
+        Token t = peek();
+        if (accept("++") || accept("--"))
+        {
+            Expr target = unary();
+            lvalue(target, t);
+            return Expr.increment(Op.PREINC, target, delta(target, t), t);
+        }
+        if (accept("-") || accept("+") || accept("~"))
+        {
+            Expr e = value(unary());
+            if (!e.getType().isInteger())
+                fail(t, "invalid operand to " + t + ".");
+            if (t.is("+"))
+                return e.getType().getKind() == Type.Kind.CHAR ? Expr.unary
+                        (Op.CAST, Type.INT, e, t) : e;
+            return fold(Expr.unary(t.is("-") ? Op.NEG : Op.COMPL, Type.INT, e,
+                    t));
+        }
+        if (accept("!"))
+        {
+            Expr e = value(unary());
+            if (!e.getType().isScalar())
+                fail(t, "invalid operand to " + t + ".");
+            return fold(Expr.unary(Op.NOT, Type.INT, e, t));
+        }
+        if (accept("*"))
+            return dereference(value(unary()), t);
+        if (accept("&"))
+        {
+            Expr e = unary();
+            if (e.getOp() == Op.DEREF)
+                return e.getLeft();
+            if (e.getOp() != Op.VAR)
+                fail(t, "cannot take the address of this.");
+            return Expr.unary(Op.ADDR, Type.pointer(e.getType()), e, t);
+        }
+        if (accept("sizeof"))
+        {
+            Type type;
+            if (peek().is("(") && isTypeAt(1))
+            {
+                next();
+                type = arraySuffix(pointers(typeSpecifier()));
+                expect(")");
+            }
+            else
+                type = unary().getType();
+            if (type.size() <= 0)
+                fail(t, "invalid operand to sizeof.");
+            return Expr.constant(type.size(), Type.INT, t);
+        }
+        if (peek().is("(") && isTypeAt(1))
+        {
+            next();
+            Type type = pointers(typeSpecifier());
+            expect(")");
+            return cast(unary(), type, t);
+        }
+        return postfix();
+    }
+
+    private Expr postfix()
+    {
+        Expr e = primary();
+        while (true)
+        {
+            Token t = peek();
+            if (accept("["))
+            {
+                Expr index = expression();
+                expect("]");
+                e = dereference(binary(Op.ADD, e, index, t), t);
+            }
+            else if (accept("++") || accept("--"))
+            {
+                lvalue(e, t);
+                e = Expr.increment(Op.POSTINC, e, delta(e, t), t);
+            }
+            else
+                return e;
+        }
+    }
+
+    private Expr primary()
+    {
+        Token t = next();
+        switch (t.getKind())
+        {
+            case NUMBER:
+                return Expr.constant(t.getValue(), Type.INT, t);
+            case STRING:
+                pos--;
+                return Expr.string(stringLiteral(), t);
+            case IDENTIFIER:
+                if (peek().is("("))
+                    return call(t);
+                Variable v = lookup(t.getText());
+                if (v == null)
+                    fail(t, "'" + t.getText() + "' is not defined.");
+                return Expr.variable(v, t);
+            default:
+                if (t.is("("))
+                {
+                    Expr e = expression();
+                    expect(")");
+                    return e;
+                }
+                return fail(t, "expected an expression, but found " + t +
+                        ".");
+        }
+    }
+
+    private Expr call(Token name)
+    {
+        expect("(");
+        ArrayList<Expr> args = new ArrayList<>();
+        if (!peek().is(")"))
+        {
+            do
+                args.add(assignment());
+            while (accept(","));
+        }
+        expect(")");
+
+        Function f = functions.get(name.getText());
+        if (f == null && (name.getText().equals("printf") || name.getText()
+                .equals("scanf")))
+            return builtin(name, args);
+        if (f == null)
+            fail(name, "function '" + name.getText() + "' is not declared.");
+        if (args.size() != f.getParams().size())
+            fail(name, "function '" + name.getText() + "' takes " + f
+                    .getParams().size() + " argument(s), but " + args.size() +
+                    " were given.");
+
+        for (int i = 0; i < args.size(); i++)
+            args.set(i, convert(args.get(i), f.getParams().get(i).getType(),
+                    args.get(i).getToken()));
+        calls.putIfAbsent(name.getText(), name);
+        return Expr.call(f, args, name);
+    }
+
+    /**
+     * Checks a call to <code>printf</code> or <code>scanf</code>. Only the
+     * conversions that map onto a single instruction are supported:
+     * <code>%d</code>, <code>%i</code>, <code>%c</code>, <code>%s</code>
+     * and <code>%%</code> for <code>printf</code>, and <code>%d</code> and
+     * <code>%i</code> for <code>scanf</code>.
+     */
+    private Expr builtin(Token name, List<Expr> args)
+    {
+        boolean scan = name.getText().equals("scanf");
+        if (args.isEmpty() || args.get(0).getOp() != Op.STRING)
+            fail(name, "the format of " + name.getText() + " must be a " +
+                    "string literal.");
+        String format = args.get(0).getText();
+
+        ArrayList<Expr> operands = new ArrayList<>();
+        int arg = 1;
+        for (int i = 0; i < format.length(); i++)
+        {
+            if (format.charAt(i) != '%')
+                continue;
+            char c = i + 1 < format.length() ? format.charAt(++i) : 0;
+            if (c == '%' && !scan)
+                continue;
+            if (scan ? c != 'd' && c != 'i' : c != 'd' && c != 'i' && c !=
+                    'c' && c != 's')
+                fail(name, "unsupported conversion '%" + (c == 0 ? "" : c) +
+                        "' in the format of " + name.getText() + ".");
+            if (arg >= args.size())
+                fail(name, "too few arguments for the format of " + name
+                        .getText() + ".");
+
+            Expr e = value(args.get(arg++));
+            Type type = e.getType();
+            if (scan)
+            {
+                if (!type.isPointer() || !type.getBase().isInteger())
+                    fail(e.getToken(), "expected a pointer to int or char.");
+                e = e.getOp() == Op.ADDR && e.getLeft().getType().isScalar() ?
+                        e.getLeft() : dereference(e, e.getToken());
+            }
+            else if (c == 's' && (!type.isPointer() || type.getBase().getKind()
+                    != Type.Kind.CHAR))
+                fail(e.getToken(), "expected a string for %s.");
+            else if (c != 's' && !type.isInteger())
+                fail(e.getToken(), "expected an integer for %" + c + ".");
+            operands.add(e);
+        }
+        if (arg < args.size())
+            warning(name, "too many arguments for the format of " + name
+                    .getText() + ".");
+        return Expr.builtin(scan ? Op.SCANF : Op.PRINTF, format, operands,
+                name);
+    }
+
+    //---------------------------------------------------------------------
+    // Types and conversions
+    //---------------------------------------------------------------------
+
+    /**
+     * @return the value of the expression, which is the address of the
+     *         first element for an array.
+     */
+    private static Expr value(Expr e)
+    {
+        if (e.getType().getKind() != Type.Kind.ARRAY)
+            return e;
+        return Expr.unary(Op.ADDR, e.getType().decay(), e, e.getToken());
+    }
+
+    /**
+     * Converts the value for an assignment (or argument, or return) to the
+     * type.
+     */
+    private Expr convert(Expr e, Type type, Token at)
+    {
+        e = value(e);
+        Type from = e.getType();
+        if (from.getKind() == Type.Kind.VOID)
+            fail(at, "void value not ignored as it ought to be.");
+        if (type.getKind() == Type.Kind.ARRAY)
+            fail(at, "cannot assign to an array.");
+
+        if (type.isInteger())
+        {
+            if (from.isPointer())
+                warning(at, "makes integer from pointer without a cast.");
+        }
+        else if (from.isInteger() && !isNull(e))
+            warning(at, "makes pointer from integer without a cast.");
+        else if (from.isPointer() && !from.equals(type) && from.getBase()
+                .getKind() != Type.Kind.VOID && type.getBase().getKind() !=
+                Type.Kind.VOID)
+            warning(at, "incompatible pointer types, " + from + " and " +
+                    type + ".");
+        return cast(e, type, at);
+    }
+
+    private Expr cast(Expr e, Type type, Token at)
+    {
+        e = value(e);
+        if (type.getKind() == Type.Kind.VOID)
+            return Expr.unary(Op.CAST, Type.VOID, e, at);
+        if (!e.getType().isScalar())
+            fail(at, "cannot cast " + e.getType() + " to " + type + ".");
+        if (e.isConstant())
+            return Expr.constant(type.getKind() == Type.Kind.CHAR ? (byte)e
+                    .getValue() : e.getValue(), type, at);
+        if (e.getType().equals(type) || type.getKind() == Type.Kind.CHAR && e
+                .getOp() == Op.CAST && e.getType().getKind() == Type.Kind.CHAR)
+            return e;
+        return Expr.unary(Op.CAST, type, e, at);
+    }
+
+    private Expr dereference(Expr pointer, Token t)
+    {
+        Type type = pointer.getType();
+        if (!type.isPointer())
+            fail(t, "cannot dereference " + type + ".");
+        if (type.getBase().getKind() == Type.Kind.VOID)
+            fail(t, "cannot dereference a void pointer.");
+        return Expr.unary(Op.DEREF, type.getBase(), pointer, t);
+    }
+
+    /**
+     * Multiplies an index by the size of the elements of the pointer.
+     */
+    private static Expr scale(Expr index, Type pointer, Token t)
+    {
+        int size = elementSize(pointer);
+        if (size == 1)
+            return index;
+        return fold(Expr.binary(Op.MUL, Type.INT, index, Expr.constant(size,
+                Type.INT, t), t));
+    }
+
+    /**
+     * @return the size of what the pointer points to, where a void pointer
+     *         counts bytes.
+     */
+    private static int elementSize(Type pointer)
+    {
+        return Math.max(1, pointer.getBase().size());
+    }
+
+    private int delta(Expr target, Token t)
+    {
+        Type type = target.getType();
+        if (!type.isScalar())
+            fail(t, "invalid operand to " + t + ".");
+        int size = type.isPointer() ? elementSize(type) : 1;
+        return t.getText().equals("++") ? size : -size;
+    }
+
+    private void lvalue(Expr e, Token t)
+    {
+        if (e.getOp() != Op.VAR && e.getOp() != Op.DEREF || e.getType()
+                .getKind() == Type.Kind.ARRAY)
+            fail(t, "the left side of " + t + " cannot be assigned.");
+    }
+
+    private static boolean isNull(Expr e)
+    {
+        return e.isConstant() && e.getValue() == 0;
+    }
+
+    /**
+     * Folds operators on constants, and drops adding or subtracting zero and
+     * multiplying by one.
+     */
+    private static Expr fold(Expr e)
+    {
+        Expr l = e.getLeft();
+        Expr r = e.getRight();
+        if (r == null)
+        {
+            if (!l.isConstant())
+                return e;
+            int a = l.getValue();
+            switch (e.getOp())
+            {
+                case NEG: return Expr.constant(-a, e.getType(), e.getToken());
+                case COMPL: return Expr.constant(~a, e.getType(), e.getToken());
+                case NOT: return Expr.constant(a == 0 ? 1 : 0, e.getType(), e
+                        .getToken());
+                default: return e;
+            }
+        }
+
+        if (r.isConstant() && !l.isConstant())
+        {
+            int b = r.getValue();
+            if (b == 0 && (e.getOp() == Op.ADD || e.getOp() == Op.SUB) || b ==
+                    1 && e.getOp() == Op.MUL)
+                return l.getType().equals(e.getType()) ? l : Expr.unary(Op
+                        .CAST, e.getType(), l, e.getToken());
+        }
+        if (!l.isConstant() || !r.isConstant())
+            return e;
+
+        int a = l.getValue();
+        int b = r.getValue();
+        int v;
+        switch (e.getOp())
+        {
+            case ADD: v = a + b; break;
+            case SUB: v = a - b; break;
+            case MUL: v = a * b; break;
+            case DIV:
+            case MOD:
+                if (b == 0)
+                    return e;
+                v = e.getOp() == Op.DIV ? a / b : a % b;
+                break;
+            case SHL: v = a << b; break;
+            case SAR: v = a >> b; break;
+            case AND: v = a & b; break;
+            case OR: v = a | b; break;
+            case XOR: v = a ^ b; break;
+            case EQ: v = a == b ? 1 : 0; break;
+            case NE: v = a != b ? 1 : 0; break;
+            case LT: v = a < b ? 1 : 0; break;
+            case GT: v = a > b ? 1 : 0; break;
+            case LE: v = a <= b ? 1 : 0; break;
+            case GE: v = a >= b ? 1 : 0; break;
+            case LOGAND: v = a != 0 && b != 0 ? 1 : 0; break;
+            case LOGOR: v = a != 0 || b != 0 ? 1 : 0; break;
+            default: return e;
+        }
+        return Expr.constant(v, e.getType(), e.getToken());
+    }
+
+    //---------------------------------------------------------------------
+    // Tokens
+    //---------------------------------------------------------------------
+
+    private Variable lookup(String name)
+    {
+        for (HashMap<String, Variable> scope : scopes)
+        {
+            Variable v = scope.get(name);
+            if (v != null)
+                return v;
+        }
+        return globals.get(name);
+    }
+
+    /**
+     * Reads a string literal, and any that directly follow it.
+     */
+    private String stringLiteral()
+    {
+        StringBuilder sb = new StringBuilder();
+        while (peek().getKind() == Token.Kind.STRING)
+            sb.append(next().getText());
+        return sb.toString();
+    }
+
+    private boolean isTypeAt(int ahead)
+    {
+        Token t = peekAt(ahead);
+        return t.is("int") || t.is("char") || t.is("void");
+    }
+
+    private Token peek()
+    {
+        return peekAt(0);
+    }
+
+    private Token peekAt(int ahead)
+    {
+        return tokens.get(Math.min(pos + ahead, tokens.size() - 1));
+    }
+
+    private Token next()
+    {
+        Token t = peek();
+        if (pos < tokens.size() - 1)
+            pos++;
+        return t;
+    }
+
+    private boolean accept(String s)
+    {
+        if (!peek().is(s))
+            return false;
+        pos++;
+        return true;
+    }
+
+    private Token expect(String s)
+    {
+        if (!peek().is(s))
+            fail(peek(), "expected '" + s + "', but found " + peek() + ".");
+        return next();
+    }
+
+    private Token expectIdentifier()
+    {
+        if (peek().getKind() != Token.Kind.IDENTIFIER)
+            fail(peek(), "expected a name, but found " + peek() + ".");
+        return next();
+    }
+
+    /**
+     * Skips past the end of the statement (or declaration) that had an
+     * error, or up to a declaration on a later line, which most likely means
+     * that a semicolon is missing.
+     *
+     * @param inBlock whether a closing brace of the enclosing block should be
+     *                left for the block to read.
+     */
+    private void recover(boolean inBlock)
+    {
+        int depth = 0;
+        int line = peek().getLine();
+        while (peek().getKind() != Token.Kind.END)
+        {
+            Token t = peek();
+            if (depth == 0 && t.getLine() > line && isTypeStart())
+                return;
+            if (t.is("{"))
+                depth++;
+            else if (t.is("}"))
+            {
+                if (depth == 0 && inBlock)
+                    return;
+                if (--depth <= 0)
+                {
+                    next();
+                    return;
+                }
+            }
+            else if (t.is(";") && depth == 0)
+            {
+                next();
+                return;
+            }
+            next();
+        }
+    }
+
+    private void error(Token at, String message)
+    {
+        lexer.report(ErrorLevel.ERROR, at, message);
+    }
+
+    private void warning(Token at, String message)
+    {
+        lexer.report(ErrorLevel.WARNING, at, message);
+    }
+
+    private <T> T fail(Token at, String message)
+    {
+        error(at, message);
+        throw new SyntaxError();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import java.util.*;
+
+/**
+ * Decides where the parameters and locals of a function live. Scalars whose
+ * address is never taken are ranked by how often they are used, where a use
+ * in a loop counts four times as much as one outside it (and so on for
+ * nested loops), and the busiest ones get the callee-saved registers
+ * <code>%5</code> to <code>%12</code>. Every other local gets a slot in the
+ * stack frame, with scalars closest to <code>%BP</code> so that they can be
+ * reached with an 8-bit offset.
+ *
+ * A variable that is used only once is left in memory, since saving and
+ * restoring its register would cost more than it saves.
+ */
+public class RegisterAllocator
+{
+    public static final int FIRST_REGISTER = 5;
+    public static final int LAST_REGISTER = 12;
+
+    //Saved %BP and the return address.
+    private static final int PARAMS_OFFSET = 4;
+    private static final int MAX_LOOP_WEIGHT = 8;
+
+    private final HashMap<Variable, Integer> weights = new HashMap<>();
+    private final HashSet<Variable> addressTaken = new HashSet<>();
+    private final ArrayList<Integer> saved = new ArrayList<>();
+    private int frameSize;
+
+    /**
+     * Allocates the variables of the function.
+     */
+    public RegisterAllocator(Function f)
+    {
+        for (Variable p : f.getParams())
+            weights.put(p, 0);
+        for (Variable v : f.getLocals())
+            weights.put(v, 0);
+        scan(f.getBody(), 0);
+
+        ArrayList<Variable> candidates = new ArrayList<>();
+        for (Map.Entry<Variable, Integer> e : weights.entrySet())
+        {
+            Variable v = e.getKey();
+            if (v.getType().isScalar() && !addressTaken.contains(v) && e
+                    .getValue() > 1)
+                candidates.add(v);
+        }
+        candidates.sort(Comparator.comparingInt((Variable v) -> -weights.get
+                (v)).thenComparing(v -> v.getDeclaration().getLine()));
+
+        int reg = FIRST_REGISTER;
+        for (Variable v : candidates)
+        {
+            if (reg > LAST_REGISTER)
+                break;
+            v.setRegister(reg);
+            saved.add(reg++);
+        }
+
+        List<Variable> params = f.getParams();
+        for (int i = 0; i < params.size(); i++)
+            params.get(i).setOffset(PARAMS_OFFSET + 2 * i);
+
+        int offset = 0;
+        for (Variable v : f.getLocals())
+            if (v.getRegister() == -1 && v.getType().isScalar())
+                v.setOffset(offset -= v.getType().size());
+        for (Variable v : f.getLocals())
+            if (v.getRegister() == -1 && !v.getType().isScalar())
+                v.setOffset(offset -= v.getType().size());
+        frameSize = -offset;
+    }
+
+    /**
+     * @return the registers to save on entry, in ascending order.
+     */
+    public List<Integer> getSaved()
+    {
+        return saved;
+    }
+
+    /**
+     * @return the number of bytes of locals in the stack frame.
+     */
+    public int getFrameSize()
+    {
+        return frameSize;
+    }
+
+    private void scan(Stmt s, int depth)
+    {
+        if (s == null)
+            return;
+        switch (s.getKind())
+        {
+            case BLOCK:
+                for (Stmt child : s.getStmts())
+                    scan(child, depth);
+                break;
+            case EXPR:
+            case RETURN:
+                scan(s.getExpr(), depth);
+                break;
+            case IF:
+                scan(s.getCond(), depth);
+                scan(s.getBody(), depth);
+                scan(s.getOtherwise(), depth);
+                break;
+            case WHILE:
+            case DO:
+                scan(s.getCond(), depth + 1);
+                scan(s.getBody(), depth + 1);
+                break;
+            case FOR:
+                scan(s.getInit(), depth);
+                scan(s.getCond(), depth + 1);
+                scan(s.getExpr(), depth + 1);
+                scan(s.getBody(), depth + 1);
+                break;
+            case DECLARE:
+                if (s.getVar().getInitializer() != null)
+                {
+                    use(s.getVar(), depth);
+                    for (Expr e : s.getVar().getInitializer())
+                        scan(e, depth);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void scan(Expr e, int depth)
+    {
+        if (e == null)
+            return;
+        if (e.getOp() == Expr.Op.VAR)
+            use(e.getVar(), depth);
+        else if (e.getOp() == Expr.Op.ADDR && e.getLeft().getOp() == Expr.Op
+                .VAR)
+            addressTaken.add(e.getLeft().getVar());
+        scan(e.getLeft(), depth);
+        scan(e.getRight(), depth);
+        scan(e.getThird(), depth);
+        if (e.getArgs() != null)
+            for (Expr arg : e.getArgs())
+                scan(arg, depth);
+    }
+
+    private void use(Variable v, int depth)
+    {
+        if (weights.containsKey(v))
+            weights.merge(v, 1 << 2 * Math.min(depth, MAX_LOOP_WEIGHT), Integer
+                    ::sum);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import java.util.List;
+
+/**
+ * A statement. As with {@link Expr}, each kind only uses some of the fields:
+ * the condition, the expression (of an expression statement, a return or the
+ * step of a <code>for</code>), the body and else branch, the initializer of
+ * a <code>for</code>, the statements of a block, or the declared local.
+ */
+public class Stmt
+{
+    public enum Kind
+    {
+        BLOCK, EXPR, IF, WHILE, DO, FOR, BREAK, CONTINUE, RETURN, DECLARE, EMPTY
+    }
+
+    private final Kind kind;
+    private final Token token;
+
+    private Expr cond;
+    private Expr expr;
+    private Stmt body;
+    private Stmt otherwise;
+    private Stmt init;
+    private List<Stmt> stmts;
+    private Variable var;
+
+    /**
+     * @param token the token to report diagnostics at.
+     */
+    public Stmt(Kind kind, Token token)
+    {
+        this.kind = kind;
+        this.token = token;
+    }
+
+    public static Stmt block(List<Stmt> stmts, Token token)
+    {
+        Stmt s = new Stmt(Kind.BLOCK, token);
+        s.stmts = stmts;
+        return s;
+    }
+
+    /**
+     * @param kind {@link Kind#EXPR} or {@link Kind#RETURN}.
+     * @param expr the expression, or null for a return without a value.
+     */
+    public static Stmt expr(Kind kind, Expr expr, Token token)
+    {
+        Stmt s = new Stmt(kind, token);
+        s.expr = expr;
+        return s;
+    }
+
+    /**
+     * @param otherwise the else branch, or null.
+     */
+    public static Stmt ifElse(Expr cond, Stmt body, Stmt otherwise, Token
+            token)
+    {
+        Stmt s = new Stmt(Kind.IF, token);
+        s.cond = cond;
+        s.body = body;
+        s.otherwise = otherwise;
+        return s;
+    }
+
+    /**
+     * @param kind {@link Kind#WHILE} or {@link Kind#DO}.
+     */
+    public static Stmt loop(Kind kind, Expr cond, Stmt body, Token token)
+    {
+        Stmt s = new Stmt(kind, token);
+        s.cond = cond;
+        s.body = body;
+        return s;
+    }
+
+    /**
+     * @param init the initializer, or null.
+     * @param cond the condition, or null to loop forever.
+     * @param step the step, or null.
+     */
+    public static Stmt forLoop(Stmt init, Expr cond, Expr step, Stmt body,
+                               Token token)
+    {
+        Stmt s = new Stmt(Kind.FOR, token);
+        s.init = init;
+        s.cond = cond;
+        s.expr = step;
+        s.body = body;
+        return s;
+    }
+
+    /**
+     * Declares a local, which is initialized from its initializer (if any)
+     * every time the declaration is reached.
+     */
+    public static Stmt declare(Variable var, Token token)
+    {
+        Stmt s = new Stmt(Kind.DECLARE, token);
+        s.var = var;
+        return s;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    public Token getToken()
+    {
+        return token;
+    }
+
+    public Expr getCond()
+    {
+        return cond;
+    }
+
+    public Expr getExpr()
+    {
+        return expr;
+    }
+
+    public Stmt getBody()
+    {
+        return body;
+    }
+
+    public Stmt getOtherwise()
+    {
+        return otherwise;
+    }
+
+    public Stmt getInit()
+    {
+        return init;
+    }
+
+    public List<Stmt> getStmts()
+    {
+        return stmts;
+    }
+
+    public Variable getVar()
+    {
+        return var;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+/**
+ * A token of C source, as read by the {@link Lexer}.
+ */
+public class Token
+{
+    public enum Kind
+    {
+        IDENTIFIER, KEYWORD, NUMBER, STRING, PUNCTUATOR, END
+    }
+
+    private final Kind kind;
+    private final String text;
+    private final int value;
+    private final int line;
+    private final int column;
+
+    /**
+     * @param text the name of an identifier or keyword, the punctuator
+     *             itself, or the contents of a string literal (one byte per
+     *             character).
+     * @param value the value of a number or character constant.
+     * @param line the zero-based line.
+     * @param column the zero-based column.
+     */
+    public Token(Kind kind, String text, int value, int line, int column)
+    {
+        this.kind = kind;
+        this.text = text;
+        this.value = value;
+        this.line = line;
+        this.column = column;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    public int getValue()
+    {
+        return value;
+    }
+
+    public int getLine()
+    {
+        return line;
+    }
+
+    public int getColumn()
+    {
+        return column;
+    }
+
+    /**
+     * @return true if this is the given keyword or punctuator.
+     */
+    public boolean is(String s)
+    {
+        return (kind == Kind.KEYWORD || kind == Kind.PUNCTUATOR) && text
+                .equals(s);
+    }
+
+    @Override
+    public String toString()
+    {
+        switch (kind)
+        {
+            case NUMBER:
+                return String.valueOf(value);
+            case STRING:
+                return "string literal";
+            case END:
+                return "end of file";
+            default:
+                return "'" + text + "'";
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+/**
+ * The type of a C value. Integers are 16 bits, like the registers, and
+ * characters are signed bytes. Arrays only have one dimension, and there are
+ * no function pointers.
+ */
+public final class Type
+{
+    public enum Kind
+    {
+        VOID, CHAR, INT, POINTER, ARRAY
+    }
+
+    public static final Type VOID = new Type(Kind.VOID, null, 0);
+    public static final Type CHAR = new Type(Kind.CHAR, null, 0);
+    public static final Type INT = new Type(Kind.INT, null, 0);
+
+    private final Kind kind;
+    private final Type base;
+    private final int length;
+
+    private Type(Kind kind, Type base, int length)
+    {
+        this.kind = kind;
+        this.base = base;
+        this.length = length;
+    }
+
+    public static Type pointer(Type base)
+    {
+        return new Type(Kind.POINTER, base, 0);
+    }
+
+    public static Type array(Type base, int length)
+    {
+        return new Type(Kind.ARRAY, base, length);
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return the type pointed to, or of the elements.
+     */
+    public Type getBase()
+    {
+        return base;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the size in bytes.
+     */
+    public int size()
+    {
+        switch (kind)
+        {
+            case VOID:
+                return 0;
+            case CHAR:
+                return 1;
+            case ARRAY:
+                return base.size() * length;
+            default:
+                return 2;
+        }
+    }
+
+    public boolean isInteger()
+    {
+        return kind == Kind.CHAR || kind == Kind.INT;
+    }
+
+    /**
+     * @return true for pointers, and arrays (which stand for a pointer to
+     *         their first element).
+     */
+    public boolean isPointer()
+    {
+        return kind == Kind.POINTER || kind == Kind.ARRAY;
+    }
+
+    public boolean isScalar()
+    {
+        return isInteger() || isPointer();
+    }
+
+    /**
+     * @return the pointer type that an array stands for, or this type.
+     */
+    public Type decay()
+    {
+        return kind == Kind.ARRAY ? pointer(base) : this;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+        if (!(o instanceof Type))
+            return false;
+        Type other = (Type)o;
+        return kind == other.kind && length == other.length && (base == null ?
+                other.base == null : base.equals(other.base));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (kind.hashCode() * 31 + length) * 31 + (base == null ? 0 : base
+                .hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+        switch (kind)
+        {
+            case POINTER:
+                return base + " *";
+            case ARRAY:
+                return base + "[" + length + "]";
+            default:
+                return kind.name().toLowerCase();
+        }
+    }
+}
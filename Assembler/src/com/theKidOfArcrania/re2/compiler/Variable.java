@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.compiler;
+
+import java.util.List;
+
+/**
+ * A global variable, local variable or parameter.
+ *
+ * A local lives either in a register (see {@link RegisterAllocator}) or in
+ * the stack frame, at an offset from <code>%BP</code>. A global lives at its
+ * label in the data section.
+ */
+public class Variable
+{
+    private final String name;
+    private final Type type;
+    private final boolean global;
+    private final Token declaration;
+
+    private List<Expr> initializer;
+    private String label;
+    private int register = -1;
+    private int offset;
+
+    public Variable(String name, Type type, boolean global, Token declaration)
+    {
+        this.name = name;
+        this.type = type;
+        this.global = global;
+        this.declaration = declaration;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public boolean isGlobal()
+    {
+        return global;
+    }
+
+    public Token getDeclaration()
+    {
+        return declaration;
+    }
+
+    /**
+     * @return the initial value of every element (one for a scalar), or null
+     *         if there is none.
+     */
+    public List<Expr> getInitializer()
+    {
+        return initializer;
+    }
+
+    public void setInitializer(List<Expr> initializer)
+    {
+        this.initializer = initializer;
+    }
+
+    /**
+     * @return the label of a global.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public void setLabel(String label)
+    {
+        this.label = label;
+    }
+
+    /**
+     * @return the register that holds this local, or -1 if it lives in the
+     *         stack frame.
+     */
+    public int getRegister()
+    {
+        return register;
+    }
+
+    public void setRegister(int register)
+    {
+        this.register = register;
+    }
+
+    /**
+     * @return the offset of this local from <code>%BP</code>.
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public void setOffset(int offset)
+    {
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.daemon;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The framing used between the daemon and its clients. Every message is a
+ * one-byte frame type, a four-byte payload length and then the payload.
+ *
+ * A session starts with a single {@link #REQUEST} frame from the client,
+ * followed by any number of {@link #STDIN} frames and a final
+ * {@link #STDIN_EOF}. The daemon answers with {@link #STDOUT} and
+ * {@link #STDERR} frames and ends the session with one {@link #EXIT} frame.
+ */
+public final class Protocol
+{
+    public static final String SOCKET_ENV = "RE2_SOCKET";
+
+    public static final byte REQUEST = 0x01;
+    public static final byte STDIN = 0x02;
+    public static final byte STDIN_EOF = 0x03;
+
+    public static final byte STDOUT = 0x11;
+    public static final byte STDERR = 0x12;
+    public static final byte EXIT = 0x13;
+
+    public static final String CMD_RUN = "run";
+    public static final String CMD_ASSEMBLE = "assemble";
+
+    public static final int MAX_FRAME = 0x10000;
+
+    /**
+     * An output stream that buffers its data and sends it as frames of a
+     * single type whenever it is flushed.
+     */
+    public static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream dos;
+        private final byte type;
+        private final byte[] buff = new byte[8192];
+        private int count;
+
+        public FrameOutputStream(DataOutputStream dos, byte type)
+        {
+            this.dos = dos;
+            this.type = type;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException
+        {
+            if (count == buff.length)
+                flush();
+            buff[count++] = (byte)b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws
+                IOException
+        {
+            if (len > buff.length - count)
+            {
+                flush();
+                while (len > buff.length)
+                {
+                    int chunk = Math.min(len, MAX_FRAME);
+                    writeFrame(dos, type, b, off, chunk);
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+            System.arraycopy(b, off, buff, count, len);
+            count += len;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException
+        {
+            if (count > 0)
+                writeFrame(dos, type, buff, 0, count);
+            count = 0;
+            dos.flush();
+        }
+    }
+
+    /**
+     * An input stream over the {@link #STDIN} frames sent by a client. Any
+     * pending output is flushed before this blocks for more input, so that
+     * prompts reach the client first.
+     */
+    public static class FrameInputStream extends InputStream
+    {
+        private final DataInputStream dis;
+        private final Flushable[] pending;
+        private byte[] buff = new byte[0];
+        private int pos;
+        private boolean eof;
+
+        public FrameInputStream(DataInputStream dis, Flushable... pending)
+        {
+            this.dis = dis;
+            this.pending = pending;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!fill())
+                return -1;
+            return buff[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            len = Math.min(len, buff.length - pos);
+            System.arraycopy(buff, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        @Override
+        public int available()
+        {
+            return buff.length - pos;
+        }
+
+        private boolean fill() throws IOException
+        {
+            while (pos == buff.length)
+            {
+                if (eof)
+                    return false;
+                for (Flushable f : pending)
+                    f.flush();
+
+                byte type = dis.readByte();
+                buff = readPayload(dis);
+                pos = 0;
+                if (type == STDIN_EOF)
+                    eof = true;
+                else if (type != STDIN)
+                    throw new IOException("Unexpected frame: " + type);
+            }
+            return true;
+        }
+    }
+
+    private Protocol()
+    {
+    }
+
+    public static Path defaultSocket()
+    {
+        String path = System.getenv(SOCKET_ENV);
+        if (path != null && !path.isEmpty())
+            return Paths.get(path);
+        return Paths.get("/tmp", "re2-" + System.getProperty("user.name") +
+                ".sock");
+    }
+
+    /**
+     * Opens an input stream over the channel. Unlike the streams from
+     * {@link java.nio.channels.Channels}, reading does not lock out a
+     * concurrent writer on the same channel.
+     */
+    public static InputStream openInputStream(SocketChannel ch)
+    {
+        return new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0)
+                    return 0;
+                return ch.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * Opens an output stream over the channel that can be used concurrently
+     * with a stream from {@link #openInputStream(SocketChannel)}.
+     */
+    public static OutputStream openOutputStream(SocketChannel ch)
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                ByteBuffer buff = ByteBuffer.wrap(b, off, len);
+                while (buff.hasRemaining())
+                    ch.write(buff);
+            }
+        };
+    }
+
+    public static void writeFrame(DataOutputStream dos, byte type, byte[] b,
+                                  int off, int len) throws IOException
+    {
+        synchronized (dos)
+        {
+            dos.writeByte(type);
+            dos.writeInt(len);
+            dos.write(b, off, len);
+        }
+    }
+
+    public static void writeFrame(DataOutputStream dos, byte type, byte[] b)
+            throws IOException
+    {
+        writeFrame(dos, type, b, 0, b.length);
+    }
+
+    public static byte[] readPayload(DataInputStream dis) throws IOException
+    {
+        int len = dis.readInt();
+        if (len < 0 || len > MAX_FRAME)
+            throw new IOException("Invalid frame length: " + len);
+        byte[] payload = new byte[len];
+        dis.readFully(payload);
+        return payload;
+    }
+
+    public static byte[] encodeRequest(String command, String... args)
+            throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(command);
+        dos.writeInt(args.length);
+        for (String arg : args)
+            dos.writeUTF(arg);
+        return baos.toByteArray();
+    }
+
+    public static String[] decodeRequest(byte[] payload) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream
+                (payload));
+        String command = dis.readUTF();
+        int count = dis.readInt();
+        if (count < 0 || count > MAX_FRAME)
+            throw new IOException("Invalid argument count: " + count);
+
+        String[] request = new String[count + 1];
+        request[0] = command;
+        for (int i = 1; i <= count; i++)
+            request[i] = dis.readUTF();
+        return request;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.daemon;
+
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+
+import static com.theKidOfArcrania.re2.daemon.Protocol.*;
+
+/**
+ * Thin client for {@link RESquaredDaemon}. It forwards its standard input to
+ * the daemon, copies the guest's output back, and exits with the guest's exit
+ * status. This class deliberately depends on nothing but {@link Protocol} so
+ * that it starts as quickly as possible.
+ */
+public class RESquaredClient
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: java com.theKidOfArcrania.re2.daemon" +
+                    ".RESquaredClient <run|assemble> <file>");
+            System.exit(2);
+        }
+
+        String file = Paths.get(args[1]).toAbsolutePath().toString();
+        try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of
+                (defaultSocket())))
+        {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream
+                    (openInputStream(ch)));
+            DataOutputStream dos = new DataOutputStream(new
+                    BufferedOutputStream(openOutputStream(ch)));
+
+            writeFrame(dos, REQUEST, encodeRequest(args[0], file));
+            dos.flush();
+
+            Thread stdin = new Thread(() -> forwardInput(dos), "re2-stdin");
+            stdin.setDaemon(true);
+            stdin.start();
+
+            while (true)
+            {
+                byte type = dis.readByte();
+                byte[] payload = readPayload(dis);
+                switch (type)
+                {
+                    case STDOUT:
+                        System.out.write(payload);
+                        System.out.flush();
+                        break;
+                    case STDERR:
+                        System.err.write(payload);
+                        System.err.flush();
+                        break;
+                    case EXIT:
+                        System.exit(new DataInputStream(new
+                                ByteArrayInputStream(payload)).readInt());
+                        break;
+                    default:
+                        throw new IOException("Unexpected frame: " + type);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: Lost connection to daemon: " +
+                    e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void forwardInput(DataOutputStream dos)
+    {
+        byte[] buff = new byte[8192];
+        try
+        {
+            int read;
+            while ((read = System.in.read(buff)) != -1)
+            {
+                writeFrame(dos, STDIN, buff, 0, read);
+                dos.flush();
+            }
+            writeFrame(dos, STDIN_EOF, new byte[0]);
+            dos.flush();
+        }
+        catch (IOException e)
+        {
+            //The session is already over.
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.daemon;
+
+import com.theKidOfArcrania.re2.Assembler;
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.RESquared;
+import com.theKidOfArcrania.re2.RESquaredAssembler;
+import com.theKidOfArcrania.re2.monitor.VMMonitor;
+import com.theKidOfArcrania.re2.parsing.Diagnostics;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.theKidOfArcrania.re2.daemon.Protocol.*;
+
+/**
+ * A long-running server that assembles and runs RE^2 programs on behalf of
+ * {@link RESquaredClient}, so that the interpreter and assembler stay loaded
+ * (and JIT-compiled) across invocations.
+ *
+ * Every program that runs has a {@link VMMonitor} registered over JMX for as
+ * long as it runs, so that its counters can be watched from outside.
+ */
+@SuppressWarnings("JavaDoc")
+public class RESquaredDaemon
+{
+    public static final int IMAGE_CACHE_SIZE = 64;
+
+    private static final Map<String, Image> images = new LinkedHashMap<String,
+            Image>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest)
+        {
+            return size() > IMAGE_CACHE_SIZE;
+        }
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        System.out.println("RE^2 Daemon v1.1");
+        System.out.println("Copyright (c) 2017 theKidOfArcrania\n");
+
+        Path socket = args.length > 0 ? Paths.get(args[0]) : defaultSocket();
+        Files.deleteIfExists(socket);
+
+        ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "re2-session");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try (ServerSocketChannel server = ServerSocketChannel.open
+                (StandardProtocolFamily.UNIX))
+        {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            socket.toFile().deleteOnExit();
+            System.out.println("Listening on " + socket);
+
+            while (true)
+            {
+                SocketChannel client = server.accept();
+                sessions.execute(() -> serve(client));
+            }
+        }
+    }
+
+    private static void serve(SocketChannel client)
+    {
+        try (SocketChannel ch = client)
+        {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream
+                    (openInputStream(ch)));
+            DataOutputStream dos = new DataOutputStream(new
+                    BufferedOutputStream(openOutputStream(ch)));
+
+            if (dis.readByte() != REQUEST)
+                return;
+            String[] request = decodeRequest(readPayload(dis));
+
+            FrameOutputStream stdout = new FrameOutputStream(dos, STDOUT);
+            FrameOutputStream stderr = new FrameOutputStream(dos, STDERR);
+            PrintStream out = new PrintStream(stdout, false);
+            PrintStream err = new PrintStream(stderr, false);
+            InputStream in = new FrameInputStream(dis, out, err);
+
+            int status;
+            if (request.length != 2)
+            {
+                err.println("Usage: <run|assemble> <file>");
+                status = 2;
+            }
+            else if (request[0].equals(CMD_RUN))
+                status = run(request[1], in, out);
+            else if (request[0].equals(CMD_ASSEMBLE))
+            {
+                RESquaredAssembler.printBanner(out);
+                status = RESquaredAssembler.assemble(new File(request[1]),
+                        new Assembler(), Diagnostics.Format.TEXT, out, err);
+            }
+            else
+            {
+                err.println("Unknown command: " + request[0]);
+                status = 2;
+            }
+
+            out.flush();
+            err.flush();
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+            new DataOutputStream(code).writeInt(status);
+            writeFrame(dos, EXIT, code.toByteArray());
+            dos.flush();
+        }
+        catch (IOException e)
+        {
+            //Client went away, nothing left to report to.
+        }
+    }
+
+    private static int run(String file, InputStream in, PrintStream out)
+    {
+        RESquared.printBanner(out);
+        out.println();
+
+        RESquared vm = new RESquared(in, out);
+        try
+        {
+            vm.load(loadImage(Paths.get(file)));
+        }
+        catch (EOFException | Image.FormatException e)
+        {
+            out.println("ERROR: Binary format error.");
+            return 1;
+        }
+        catch (IOException e)
+        {
+            out.println("ERROR: File not found: " + file);
+            return 1;
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            out.println("ERROR: Segmentation Fault.");
+            return 3;
+        }
+
+        VMMonitor monitor = new VMMonitor(vm).register();
+        try
+        {
+            return vm.run();
+        }
+        finally
+        {
+            monitor.unregister();
+        }
+    }
+
+    private static Image loadImage(Path file) throws IOException
+    {
+        byte[] contents = Files.readAllBytes(file);
+        String hash = hash(contents);
+        synchronized (images)
+        {
+            Image image = images.get(hash);
+            if (image != null)
+                return image;
+        }
+
+        Image image = Image.read(new ByteArrayInputStream(contents));
+        synchronized (images)
+        {
+            images.put(hash, image);
+        }
+        return image;
+    }
+
+    private static String hash(byte[] contents)
+    {
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest
+                    (contents))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new InternalError(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.parsing;
+
+/**
+ * One diagnostic, as recorded by {@link Diagnostics}. The message is kept as
+ * its description and expansions, and the location as a reference to the
+ * source line, so that nothing is formatted until it is rendered.
+ */
+public class Diagnostic
+{
+    private final ErrorLevel level;
+    private final ErrorSituation situation;
+    private final String description;
+    private final String[] expansions;
+
+    private String file;
+    private int line;
+    private int column = -1;
+    private String source;
+
+    Diagnostic(ErrorLevel level, ErrorSituation situation, String
+            description, String[] expansions)
+    {
+        this.level = level;
+        this.situation = situation;
+        this.description = description;
+        this.expansions = expansions;
+    }
+
+    void locate(String file, int line, int column, String source)
+    {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.source = source;
+    }
+
+    public ErrorLevel getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @return the situation that was reported, or null if this was reported
+     *         directly with a description.
+     */
+    public ErrorSituation getSituation()
+    {
+        return situation;
+    }
+
+    /**
+     * @return the description, with every variable expanded.
+     */
+    public String getMessage()
+    {
+        String message = description;
+        for (int i = 0; i < expansions.length; i += 2)
+            message = message.replace(expansions[i], expansions[i + 1]);
+        return message;
+    }
+
+    public boolean hasLocation()
+    {
+        return column != -1;
+    }
+
+    public String getFile()
+    {
+        return file;
+    }
+
+    public int getLine()
+    {
+        return line;
+    }
+
+    /**
+     * @return the zero-based column, or -1 if this has no location.
+     */
+    public int getColumn()
+    {
+        return column;
+    }
+
+    public String getSource()
+    {
+        return source;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.parsing;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the diagnostics of a {@link TokenReader}. Diagnostics are only
+ * recorded here, and written out all at once by {@link #render}, so that the
+ * diagnostics of sections parsed in parallel can be merged in source order
+ * and nothing is formatted unless it is shown.
+ *
+ * Errors and warnings are always counted. Past the maximum number of errors
+ * (if any), no more diagnostics are recorded, and a collector that does not
+ * record at all only counts them.
+ */
+public class Diagnostics
+{
+    /**
+     * How {@link #render} writes diagnostics out.
+     */
+    public enum Format
+    {
+        /** Messages followed by the source line and a caret. */
+        TEXT,
+        /** One JSON object per line. */
+        JSON,
+        /** Nothing at all, for when only the counts are needed. */
+        NONE
+    }
+
+    private static final int RENDER_CHUNK = 8192;
+
+    private final int maxErrors;
+    private final boolean recording;
+    private final ArrayList<Diagnostic> records = new ArrayList<>();
+
+    private int errors;
+    private int warnings;
+    private int recordedErrors;
+    private boolean truncated;
+    private Diagnostic last;
+
+    /**
+     * @param maxErrors the number of errors after which nothing else is
+     *                  recorded, or 0 for no limit.
+     * @param recording whether to record diagnostics at all, as opposed to
+     *                  only counting them.
+     */
+    public Diagnostics(int maxErrors, boolean recording)
+    {
+        this.maxErrors = maxErrors;
+        this.recording = recording;
+    }
+
+    /**
+     * @return an empty collector with the same settings as this one.
+     */
+    public Diagnostics child()
+    {
+        return new Diagnostics(maxErrors, recording);
+    }
+
+    public int getErrors()
+    {
+        return errors;
+    }
+
+    public int getWarnings()
+    {
+        return warnings;
+    }
+
+    public List<Diagnostic> getRecords()
+    {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Records a diagnostic without a location. It gets the location of the
+     * next call to {@link #locate}, if there is one.
+     *
+     * @param expansions pairs of variable names and their values.
+     */
+    public void add(ErrorLevel level, ErrorSituation situation, String
+            description, String... expansions)
+    {
+        if (level == ErrorLevel.ERROR)
+            errors++;
+        else if (level == ErrorLevel.WARNING)
+            warnings++;
+
+        last = null;
+        if (!recording || !record(new Diagnostic(level, situation,
+                description, expansions)))
+            return;
+        last = records.get(records.size() - 1);
+    }
+
+    /**
+     * Marks that a diagnostic was dropped, so that its location is dropped
+     * as well.
+     */
+    public void skip()
+    {
+        last = null;
+    }
+
+    /**
+     * Sets the location of the last diagnostic. If it already has one, the
+     * location is recorded on its own.
+     *
+     * @param column the zero-based column.
+     */
+    public void locate(String file, int line, int column, String source)
+    {
+        if (last == null)
+            return;
+        if (last.hasLocation())
+        {
+            Diagnostic extra = new Diagnostic(ErrorLevel.NONE, null, "", new
+                    String[0]);
+            if (!record(extra))
+                return;
+            last = extra;
+        }
+        last.locate(file, line, column, source);
+    }
+
+    /**
+     * Adds the counts and diagnostics of another collector, such as one made
+     * by {@link #child()}, after the ones of this collector.
+     */
+    public void include(Diagnostics other)
+    {
+        errors += other.errors;
+        warnings += other.warnings;
+        truncated |= other.truncated;
+        for (Diagnostic d : other.records)
+            if (!record(d))
+                break;
+        last = null;
+    }
+
+    private boolean record(Diagnostic d)
+    {
+        if (maxErrors > 0 && recordedErrors >= maxErrors)
+        {
+            truncated = true;
+            return false;
+        }
+        records.add(d);
+        if (d.getLevel() == ErrorLevel.ERROR)
+            recordedErrors++;
+        return true;
+    }
+
+    /**
+     * Writes out every recorded diagnostic, and then forgets them. The counts
+     * are kept.
+     */
+    public void render(PrintStream out, Format format)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Diagnostic d : records)
+        {
+            if (format == Format.TEXT)
+                renderText(sb, d);
+            else if (format == Format.JSON)
+                renderJson(sb, d);
+            if (sb.length() >= RENDER_CHUNK)
+            {
+                out.append(sb);
+                sb.setLength(0);
+            }
+        }
+        if (truncated && format == Format.TEXT)
+            sb.append("Stopped after ").append(maxErrors).append(" error(s)" +
+                    ".\n");
+        out.append(sb);
+        out.flush();
+        records.clear();
+        last = null;
+    }
+
+    private static void renderText(StringBuilder sb, Diagnostic d)
+    {
+        if (d.getLevel() != ErrorLevel.NONE)
+            sb.append(d.getLevel()).append(d.getMessage()).append('\n');
+        if (!d.hasLocation())
+            return;
+
+        sb.append(d.getFile()).append(':').append(d.getLine()).append(':')
+                .append(d.getColumn() + 1).append('\n');
+        sb.append(d.getSource()).append('\n');
+        for (int i = 0; i < d.getColumn(); i++)
+            sb.append(' ');
+        sb.append("^\n\n");
+    }
+
+    private static void renderJson(StringBuilder sb, Diagnostic d)
+    {
+        sb.append("{\"level\":");
+        if (d.getLevel() == ErrorLevel.NONE)
+            quote(sb, "note");
+        else
+            quote(sb, d.getLevel().name().toLowerCase());
+        sb.append(",\"situation\":");
+        if (d.getSituation() == null)
+            sb.append("null");
+        else
+            quote(sb, d.getSituation().name());
+        sb.append(",\"message\":");
+        quote(sb, d.getMessage());
+        if (d.hasLocation())
+        {
+            sb.append(",\"file\":");
+            quote(sb, d.getFile());
+            sb.append(",\"line\":").append(d.getLine());
+            sb.append(",\"column\":").append(d.getColumn() + 1);
+        }
+        sb.append("}\n");
+    }
+
+    private static void quote(StringBuilder sb, String s)
+    {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < ' ')
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.parsing;
+
+/**
+ * A case-insensitive table of ASCII keywords, such as mnemonics or directive
+ * names. Lookups walk a trie over a slice of the source text, so they do not
+ * need to create (or upper-case) a string for the token.
+ *
+ * @param <V> the type of value stored for each keyword.
+ */
+public class KeywordTable<V>
+{
+    private static final int CHARS = 0x80;
+
+    private static class Node
+    {
+        private final Node[] next = new Node[CHARS];
+        private Object value;
+    }
+
+    private final Node root = new Node();
+
+    public void put(String keyword, V value)
+    {
+        Node node = root;
+        for (int i = 0; i < keyword.length(); i++)
+        {
+            char c = Character.toUpperCase(keyword.charAt(i));
+            if (c >= CHARS)
+                throw new IllegalArgumentException("Keywords must be ASCII.");
+            if (node.next[c] == null)
+                node.next[c] = new Node();
+            node = node.next[c];
+        }
+        node.value = value;
+    }
+
+    public V get(CharSequence keyword)
+    {
+        return get(keyword, 0, keyword.length());
+    }
+
+    /**
+     * @return the value of the keyword found between <code>start</code> and
+     *         <code>end</code> of the text, or null if it is not a keyword.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(CharSequence text, int start, int end)
+    {
+        Node node = root;
+        for (int i = start; i < end && node != null; i++)
+        {
+            char c = text.charAt(i);
+            if (c >= 'a' && c <= 'z')
+                c -= 'a' - 'A';
+            else if (c >= CHARS)
+                return null;
+            node = node.next[c];
+        }
+        return node == null ? null : (V)node.value;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.parsing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The text of a UTF-8 source file. The file is memory-mapped (or, for text
+ * that is already in memory, encoded once), and only an index of where each
+ * line starts is kept; the text of a line is decoded
+ * every time it is asked for. Lines end at the same terminators as with
+ * {@link java.util.Scanner#nextLine()}: CR LF, LF, CR, U+0085, U+2028 and
+ * U+2029.
+ *
+ * Lines may be read from several threads at once.
+ */
+public class SourceText
+{
+    private static final int INITIAL_LINES = 1024;
+
+    private final ByteBuffer bytes;
+    private int[] starts = new int[INITIAL_LINES];
+    private int count;
+
+    public SourceText(File file) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(file.toPath()))
+        {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + file);
+            bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        index();
+    }
+
+    /**
+     * @param text the source text, such as assembly that was generated in
+     *             memory.
+     */
+    public SourceText(CharSequence text)
+    {
+        bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets
+                .UTF_8));
+        index();
+    }
+
+    /**
+     * @return the number of lines.
+     */
+    public int getLineCount()
+    {
+        return count;
+    }
+
+    /**
+     * @param lineNum the one-based line number.
+     * @return the text of the line, without its terminator.
+     */
+    public String line(int lineNum)
+    {
+        if (lineNum < 1 || lineNum > count)
+            throw new IndexOutOfBoundsException("No such line: " + lineNum);
+        int start = starts[lineNum - 1];
+        int end = starts[lineNum];
+        end -= terminatorLength(start, end);
+
+        byte[] text = new byte[end - start];
+        bytes.get(start, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private void index()
+    {
+        int size = bytes.limit();
+        int pos = 0;
+        while (pos < size)
+        {
+            add(pos);
+            pos = nextLine(pos, size);
+        }
+        add(size);
+        count--;
+    }
+
+    private void add(int start)
+    {
+        if (count == starts.length)
+            starts = Arrays.copyOf(starts, count * 2);
+        starts[count++] = start;
+    }
+
+    /**
+     * @return the start of the line after the one at <code>pos</code>.
+     */
+    private int nextLine(int pos, int size)
+    {
+        while (pos < size)
+        {
+            int b = bytes.get(pos++) & 0xFF;
+            if (b == '\n')
+                return pos;
+            if (b == '\r')
+                return pos < size && bytes.get(pos) == '\n' ? pos + 1 : pos;
+            if (b == 0xC2 && pos < size && (bytes.get(pos) & 0xFF) == 0x85)
+                return pos + 1;
+            if (b == 0xE2 && pos + 1 < size && (bytes.get(pos) & 0xFF) ==
+                    0x80 && ((bytes.get(pos + 1) & 0xFF) | 1) == 0xA9)
+                return pos + 2;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of terminator bytes at the end of the line that
+     *         spans from <code>start</code> to <code>end</code>.
+     */
+    private int terminatorLength(int start, int end)
+    {
+        int len = end - start;
+        int last = len > 0 ? bytes.get(end - 1) & 0xFF : -1;
+        if (last == '\n')
+            return len > 1 && bytes.get(end - 2) == '\r' ? 2 : 1;
+        if (last == '\r')
+            return 1;
+        if (last == 0x85 && len > 1 && (bytes.get(end - 2) & 0xFF) == 0xC2)
+            return 2;
+        if ((last | 1) == 0xA9 && len > 2 && (bytes.get(end - 2) & 0xFF) ==
+                0x80 && (bytes.get(end - 3) & 0xFF) == 0xE2)
+            return 3;
+        return 0;
+    }
+}
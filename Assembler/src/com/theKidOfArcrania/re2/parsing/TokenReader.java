@@ -26,9 +26,8 @@ import com.theKidOfArcrania.re2.RESquared;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
 
 import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
 
@@ -37,43 +36,105 @@ import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
 public class TokenReader implements Closeable
 {
     private final String fileName;
-    private final Scanner in;
+    private final SourceText source;
+    private final Diagnostics diagnostics;
 
     private boolean debugMode;
 
-    private int errors;
-    private int warnings;
-
-    private boolean emptyLine;
     private int lineNum;
-    private int codeOffset;
-    private Scanner lineReader;
-    private ArrayList<String> lines;
+    private int lastLine;
+
+    private String text;
+    private String line;
+    private int pos;
+    private int codeEnd;
+    private int matchStart;
+    private int matchEnd;
 
     private TokenType tokenType;
-    private Matcher tokenMatch;
+    private int group1Start;
+    private int group1End;
+    private int group2Start;
+    private int group2End;
 
     private EnumMap<ErrorSituation, ErrorReporting> defaultReporting = new EnumMap<>(ErrorSituation.class);
     private Deque<EnumMap<ErrorSituation, ErrorReporting>> reportingStates = new LinkedList<>();
 
-    public TokenReader(File file) throws FileNotFoundException
+    public TokenReader(File file) throws IOException
+    {
+        this(file, new Diagnostics(0, true));
+    }
+
+    /**
+     * @param diagnostics where to record the diagnostics of this reader.
+     */
+    public TokenReader(File file, Diagnostics diagnostics) throws IOException
+    {
+        this(file.getName(), new SourceText(file), diagnostics);
+    }
+
+    /**
+     * Creates a reader over source text that is already in memory.
+     *
+     * @param name the name to report diagnostics under.
+     * @param text the source text.
+     * @param diagnostics where to record the diagnostics of this reader.
+     */
+    public TokenReader(String name, CharSequence text, Diagnostics
+            diagnostics)
+    {
+        this(name, new SourceText(text), diagnostics);
+    }
+
+    private TokenReader(String name, SourceText source, Diagnostics
+            diagnostics)
     {
-        fileName = file.getName();
-        in = new Scanner(file);
-        errors = 0;
-        warnings = 0;
+        fileName = name;
+        this.source = source;
+        this.diagnostics = diagnostics;
 
-        lineReader = null;
+        line = null;
         lineNum = 0;
-        lines = new ArrayList<>();
+        lastLine = Integer.MAX_VALUE;
 
         initErrorSituations();
     }
 
+    private TokenReader(TokenReader parent, int firstLine, int lastLine)
+    {
+        fileName = parent.fileName;
+        source = parent.source;
+        diagnostics = parent.diagnostics.child();
+        debugMode = parent.debugMode;
+
+        line = null;
+        lineNum = firstLine - 1;
+        this.lastLine = lastLine;
+
+        initErrorSituations();
+    }
+
+    /**
+     * Creates a reader over a range of lines of this file, for example to
+     * parse one section on its own. It records its own diagnostics until
+     * they are included with {@link #includeDiagnostics(TokenReader)}, so it
+     * can be used on another thread as long as this reader is not read any
+     * further.
+     *
+     * @param firstLine the first line to read.
+     * @param lastLine the last line to read.
+     */
+    public TokenReader subReader(int firstLine, int lastLine)
+    {
+        if (lastLine >= firstLine && peekLine(lastLine) == null)
+            throw new IllegalArgumentException("No such line: " + lastLine);
+        return new TokenReader(this, firstLine, lastLine);
+    }
+
     @Override
     public void close()
     {
-        lineReader.close();
+        //The source is only mapped, and is unmapped once it is unreachable.
     }
 
     /* ***********************
@@ -83,11 +144,12 @@ public class TokenReader implements Closeable
     public boolean checkEndLine()
     {
         tokenType = null;
-        tokenMatch = null;
+        if (line == null)
+            return true;
 
-        if (lineReader.hasNext())
+        if (skipDelimiters() < codeEnd)
         {
-            lineReader.next();
+            scanToken();
             reportSituation(ErrorSituation.ERROR_EXTRA_TOKEN);
             traceCodeToken(0);
             return false;
@@ -97,9 +159,11 @@ public class TokenReader implements Closeable
 
     public String currentLine()
     {
-        if (lineReader == null)
+        if (line == null)
             return null;
-        return lines.get(lineNum - 1);
+        if (text == null)
+            text = source.line(lineNum);
+        return text;
     }
 
     public int getLineNum()
@@ -107,46 +171,136 @@ public class TokenReader implements Closeable
         return lineNum;
     }
 
+    /**
+     * @return the name that diagnostics of this reader are reported under.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
     public boolean hasNextLine()
     {
-        return in.hasNextLine();
+        return peekLine(lineNum + 1) != null;
+    }
+
+    /**
+     * @return the number of lines in the file (or up to the last line of
+     *         this reader).
+     */
+    public int getLineCount()
+    {
+        return Math.min(source.getLineCount(), lastLine);
     }
 
     public void nextLine()
     {
-        String line = in.nextLine();
-        lines.add(line);
+        String line = peekLine(lineNum + 1);
+        if (line == null)
+            throw new NoSuchElementException("No line found");
         processLine(line);
-        lineNum = lines.size();
+        text = line;
+        lineNum++;
+    }
+
+    /**
+     * Reads ahead to the given line without moving to it. The text is decoded
+     * again on every call, so callers should not keep more lines than they
+     * need.
+     *
+     * @return the text of the line, or null if the file has fewer lines.
+     */
+    public String peekLine(int lineNum)
+    {
+        if (lineNum < 1 || lineNum > getLineCount())
+            return null;
+        return source.line(lineNum);
+    }
+
+    /**
+     * Moves to the given line without reading any of the lines in between.
+     * The tokens of that line are skipped as well.
+     */
+    public void skipTo(int lineNum)
+    {
+        if (peekLine(lineNum) == null)
+            throw new NoSuchElementException("No line found");
+        processLine("");
+        text = null;
+        this.lineNum = lineNum;
     }
 
     public void visitLine(int lineNum)
     {
-        processLine(lines.get(lineNum - 1));
+        text = source.line(lineNum);
+        processLine(text);
         this.lineNum = lineNum;
     }
 
     public String remaining()
     {
-        if (lineReader == null)
+        if (line == null)
             throw new IllegalStateException("Not reading a line.");
-        if (lineReader.hasNextLine())
-            return lineReader.nextLine();
-        return "";
+        if (pos == codeEnd)
+            return "";
+
+        matchStart = pos;
+        matchEnd = codeEnd;
+        pos = codeEnd;
+        return line.substring(matchStart, matchEnd);
     }
 
+    /**
+     * Finds the code portion of the line: everything before the first
+     * comment character, without any surrounding blanks.
+     */
     private void processLine(String line)
     {
-        String code = line.split("#")[0].trim();
-        codeOffset = line.indexOf(code);
+        int end = codeEnd(line);
+        int start = 0;
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
 
-        if (code.isEmpty())
-            emptyLine = true;
+        this.line = line;
+        pos = start;
+        codeEnd = end;
+        matchStart = -1;
+        tokenType = null;
+    }
 
-        lineReader = new Scanner(code);
+    private static int codeEnd(String line)
+    {
+        int end = line.indexOf('#');
+        if (end == -1)
+            end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ')
+            end--;
+        return end;
+    }
+
+    /**
+     * Finds the first token of a line, exactly as reading that line would,
+     * without having to move to it.
+     *
+     * @return the start and end index of the token, or null if the line has
+     *         no tokens.
+     */
+    public static int[] firstToken(String line)
+    {
+        int end = codeEnd(line);
+        int start = 0;
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
+        while (start < end && Character.isWhitespace(line.charAt(start)))
+            start++;
+        if (start == end)
+            return null;
 
-        tokenType = null;
-        tokenMatch = null;
+        int tokenEnd = start;
+        while (tokenEnd < end && !Character.isWhitespace(line.charAt
+                (tokenEnd)))
+            tokenEnd++;
+        return new int[] {start, tokenEnd};
     }
 
     /* ***********************
@@ -155,53 +309,76 @@ public class TokenReader implements Closeable
 
     public String currentToken()
     {
-        if (lineReader == null)
-            throw new IllegalStateException("Not reading a line.");
-        return lineReader.match().group();
+        checkMatch();
+        return line.substring(matchStart, matchEnd);
+    }
+
+    /**
+     * @return the character at the index of the current token.
+     */
+    public char tokenCharAt(int index)
+    {
+        checkMatch();
+        return line.charAt(matchStart + index);
+    }
+
+    public int tokenLength()
+    {
+        checkMatch();
+        return matchEnd - matchStart;
+    }
+
+    /**
+     * Looks up the current token, ignoring its first <code>skip</code>
+     * characters, in a keyword table.
+     *
+     * @return the value of the keyword or null if it is not a keyword.
+     */
+    public <V> V lookupToken(KeywordTable<V> table, int skip)
+    {
+        checkMatch();
+        return table.get(line, matchStart + skip, matchEnd);
     }
 
     public boolean hasNextToken()
     {
-        if (lineReader == null)
+        if (line == null)
             throw new IllegalStateException("Not reading a line.");
-        return lineReader.hasNext();
+        return skipDelimiters() < codeEnd;
     }
 
     public String nextToken()
     {
-        if (lineReader == null)
+        return readToken() ? currentToken() : null;
+    }
+
+    /**
+     * Reads and classifies the next token, without creating a string for it.
+     *
+     * @return true if there was a token, false (with an error reported) if
+     *         there are no tokens left on this line.
+     */
+    public boolean readToken()
+    {
+        if (line == null)
             throw new IllegalStateException("Not reading a line.");
 
         tokenType = null;
-        tokenMatch = null;
-
-        if (!lineReader.hasNext())
+        if (skipDelimiters() == codeEnd)
         {
             reportSituation(ErrorSituation.ERROR_MISSING_TOKEN);
-            traceCode(lines.get(lineNum - 1).length());
-            return null;
-        }
-
-        String token = lineReader.next();
-        for (TokenType type : TokenType.values())
-        {
-            Matcher match = type.match(token);
-            if (match.matches())
-            {
-                tokenType = type;
-                tokenMatch = match;
-                break;
-            }
+            traceCode(currentLine().length());
+            return false;
         }
 
-        if (tokenType == null)
+        scanToken();
+        tokenType = classify();
+        if (tokenType == TokenType.INVALID)
         {
-            tokenType = TokenType.INVALID;
             reportSituation(ErrorSituation.ERROR_INVALID_TOKEN);
             traceCodeToken(0);
         }
-
-        return token;
+        return true;
     }
 
     public byte[] tokenBinary()
@@ -211,7 +388,7 @@ public class TokenReader implements Closeable
         switch (tokenType)
         {
             case REGISTER:
-                int reg = parseRegister(tokenMatch.group());
+                int reg = parseRegister(matchStart, matchEnd);
                 if (reg == -1)
                 {
                     reportSituation(ErrorSituation.ERROR_INVALID_REGISTER);
@@ -220,27 +397,25 @@ public class TokenReader implements Closeable
                 }
                 return new byte[] {(byte)reg};
             case INDIRECT:
-                reg = parseRegister(tokenMatch.group(2));
+                reg = parseRegister(group2Start, group2End);
                 if (reg == -1)
                 {
                     reportSituation(ErrorSituation.ERROR_INVALID_REGISTER);
-                    traceCodeToken(tokenMatch.start(2));
+                    traceCodeToken(group2Start - matchStart);
                     return null;
                 }
 
-                if (tokenMatch.group(1) == null)
+                if (group1Start == -1)
                     return new byte[] {(byte) reg};
 
-                try
-                {
-                    return new byte[] {(byte) reg, Byte.decode(tokenMatch.group(1))};
-                }
-                catch (NumberFormatException e)
+                long offset = parseNumber(group1Start, group1End);
+                if (offset < Byte.MIN_VALUE || offset > Byte.MAX_VALUE)
                 {
                     reportSituation(ErrorSituation.ERROR_INVALID_OFFSET);
-                    traceCodeToken(tokenMatch.start(1));
+                    traceCodeToken(group1Start - matchStart);
                     return null;
                 }
+                return new byte[] {(byte) reg, (byte) offset};
             case NUMBER:
                 Integer num = tokenNumber();
                 if (num == null)
@@ -285,61 +460,293 @@ public class TokenReader implements Closeable
         if (tokenType == null)
             throw new IllegalStateException("No current token.");
 
-        if (tokenType != TokenType.NUMBER && tokenType != TokenType.ADDRESS && tokenType != TokenType.INVALID)
+        if (tokenType != TokenType.NUMBER && tokenType != TokenType.ADDRESS)
         {
             reportSituation(ErrorSituation.ERROR_NUMBER_PARSE);
             traceCodeToken(0);
             return null;
         }
 
-        try
+        long value = parseNumber(group1Start, group1End);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
         {
-            int value = Integer.decode(tokenMatch.group(1));
-            if (value < min || value > max)
-            {
-                reportSituation(ErrorSituation.ERROR_NUMBER_RANGE, "\\$MIN", "" + min, "\\$MAX", "" + max);
-                traceCodeToken(0);
-                return null;
-            }
-            return value;
+            reportSituation(ErrorSituation.ERROR_NUMBER_PARSE);
+            traceCodeToken(0);
+            return null;
         }
-        catch (NumberFormatException e)
+        if (value < min || value > max)
         {
-            reportSituation(ErrorSituation.ERROR_NUMBER_PARSE);
+            reportSituation(ErrorSituation.ERROR_NUMBER_RANGE, "$MIN", "" + min, "$MAX", "" + max);
             traceCodeToken(0);
             return null;
         }
+        return (int)value;
     }
+
     public int tokenPosition()
     {
-        return lineReader.match().start() + codeOffset;
+        checkMatch();
+        return matchStart;
+    }
+
+    private void checkMatch()
+    {
+        if (line == null)
+            throw new IllegalStateException("Not reading a line.");
+        if (matchStart == -1)
+            throw new IllegalStateException("No match result available");
     }
 
+    /**
+     * @return the start of the next token, or <code>codeEnd</code> if there
+     *         is none. This does not move past the delimiters.
+     */
+    private int skipDelimiters()
+    {
+        int i = pos;
+        while (i < codeEnd && Character.isWhitespace(line.charAt(i)))
+            i++;
+        return i;
+    }
 
+    private void scanToken()
+    {
+        int i = skipDelimiters();
+        matchStart = i;
+        while (i < codeEnd && !Character.isWhitespace(line.charAt(i)))
+            i++;
+        matchEnd = pos = i;
+    }
 
-    private int parseRegister(String reg)
+    /**
+     * Classifies the current token in a single pass, following the grammar
+     * given in {@link TokenType}. This also records where the number and
+     * register parts of the token are.
+     */
+    private TokenType classify()
     {
-        switch (reg.toUpperCase())
+        group1Start = group1End = group2Start = group2End = -1;
+
+        int i = matchStart;
+        int end = matchEnd;
+        char c = line.charAt(i);
+        switch (c)
         {
-            case "%IP":
-                return RESquared.IP;
-            case "%BP":
-                return RESquared.BP;
-            case "%SP":
-                return RESquared.SP;
+            case '%':
+                return scanRegister(i, end) == end ? TokenType.REGISTER :
+                        TokenType.INVALID;
+            case '$':
+                int num = scanSignedNumber(i + 1, end);
+                if (num != end)
+                    return TokenType.INVALID;
+                group1Start = i + 1;
+                group1End = end;
+                return TokenType.NUMBER;
+            case '.':
+                return i + 1 < end && isIdentStart(line.charAt(i + 1)) &&
+                        scanIdent(i + 2, end) == end ? TokenType.DIRECTIVE :
+                        TokenType.INVALID;
+            case '(':
+            case '+':
+            case '-':
+                break;
+            default:
+                if (isIdentStart(c))
+                {
+                    int ident = scanIdent(i + 1, end);
+                    if (ident == end)
+                        return TokenType.SYMBOL;
+                    if (ident == end - 1 && line.charAt(ident) == ':')
+                        return TokenType.LABEL;
+                    return TokenType.INVALID;
+                }
+                if (c < '0' || c > '9')
+                    return TokenType.INVALID;
+                if (scanNumber(i, end) == end)
+                {
+                    group1Start = i;
+                    group1End = end;
+                    return TokenType.ADDRESS;
+                }
+                break;
         }
 
-        try
+        //INDIRECT: optional signed offset, then a parenthesized register
+        if (c != '(')
         {
-            byte num = Byte.parseByte(reg.substring(1));
-            if (num < 0 || num >= RESquared.REGISTER_COUNT)
-                return -1;
-            return num;
+            int num = scanSignedNumber(i, end);
+            if (num == -1)
+                return TokenType.INVALID;
+            group1Start = i;
+            group1End = i = num;
         }
-        catch (RuntimeException e)
+
+        if (i >= end || line.charAt(i) != '(' || line.charAt(end - 1) != ')')
+            return TokenType.INVALID;
+        if (scanRegister(i + 1, end - 1) != end - 1)
+            return TokenType.INVALID;
+        group2Start = i + 1;
+        group2End = end - 1;
+        return TokenType.INDIRECT;
+    }
+
+    private static boolean isIdentStart(char c)
+    {
+        return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+    }
+
+    private static boolean isHexDigit(char c)
+    {
+        return c >= '0' && c <= '9' || c >= 'A' && c <= 'F' || c >= 'a' &&
+                c <= 'f';
+    }
+
+    /**
+     * @return the end of the identifier characters starting at i.
+     */
+    private int scanIdent(int i, int end)
+    {
+        while (i < end)
         {
+            char c = line.charAt(i);
+            if (!isIdentStart(c) && (c < '0' || c > '9'))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the end of the register name starting at i, or -1 if there is
+     *         no register name there.
+     */
+    private int scanRegister(int i, int end)
+    {
+        if (i + 1 >= end || line.charAt(i) != '%')
+            return -1;
+
+        char c = line.charAt(++i);
+        if ("ISBisb".indexOf(c) != -1)
+            return i + 1 < end && line.charAt(i + 1) == 'P' ? i + 2 : -1;
+
+        int start = i;
+        while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9')
+            i++;
+        return i == start ? -1 : i;
+    }
+
+    private int scanSignedNumber(int i, int end)
+    {
+        if (i < end && (line.charAt(i) == '+' || line.charAt(i) == '-'))
+            i++;
+        return scanNumber(i, end);
+    }
+
+    /**
+     * @return the end of the unsigned (hex, octal or decimal) number starting
+     *         at i, or -1 if there is no number there.
+     */
+    private int scanNumber(int i, int end)
+    {
+        if (i >= end)
+            return -1;
+
+        char c = line.charAt(i);
+        if (c < '0' || c > '9')
             return -1;
+        if (c != '0')
+        {
+            i++;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9')
+                i++;
+            return i;
+        }
+
+        if (i + 2 < end && line.charAt(i + 1) == 'x' && isHexDigit(line
+                .charAt(i + 2)))
+        {
+            i += 2;
+            while (i < end && isHexDigit(line.charAt(i)))
+                i++;
+            return i;
         }
+
+        i++;
+        while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '7')
+            i++;
+        return i;
+    }
+
+    /**
+     * Parses a number matched by {@link #scanSignedNumber(int, int)}, the same
+     * way as {@link Integer#decode(String)}.
+     *
+     * @return the value, or a value outside of the <code>int</code> range if
+     *         it does not fit in an <code>int</code>.
+     */
+    private long parseNumber(int start, int end)
+    {
+        boolean negative = false;
+        char c = line.charAt(start);
+        if (c == '+' || c == '-')
+        {
+            negative = c == '-';
+            start++;
+        }
+
+        int radix = 10;
+        if (end - start > 1 && line.charAt(start) == '0')
+        {
+            if (line.charAt(start + 1) == 'x')
+            {
+                radix = 16;
+                start += 2;
+            }
+            else
+            {
+                radix = 8;
+                start++;
+            }
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++)
+        {
+            value = value * radix + Character.digit(line.charAt(i), radix);
+            if (value > -(long)Integer.MIN_VALUE)
+                return Long.MAX_VALUE;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the register number of the register name between start and
+     *         end, or -1 if it is not a valid register.
+     */
+    private int parseRegister(int start, int end)
+    {
+        char c = Character.toUpperCase(line.charAt(start + 1));
+        if (end - start == 3 && line.charAt(start + 2) == 'P')
+        {
+            switch (c)
+            {
+                case 'I':
+                    return RESquared.IP;
+                case 'B':
+                    return RESquared.BP;
+                case 'S':
+                    return RESquared.SP;
+            }
+        }
+
+        int num = 0;
+        for (int i = start + 1; i < end; i++)
+        {
+            num = num * 10 + line.charAt(i) - '0';
+            if (num >= RESquared.REGISTER_COUNT)
+                return -1;
+        }
+        return num;
     }
 
     /* ***********************
@@ -380,64 +787,71 @@ public class TokenReader implements Closeable
 
     public int getErrors()
     {
-        return errors;
+        return diagnostics.getErrors();
     }
 
     public int getWarnings()
     {
-        return warnings;
+        return diagnostics.getWarnings();
+    }
+
+    public Diagnostics getDiagnostics()
+    {
+        return diagnostics;
+    }
+
+    /**
+     * Adds the diagnostics of another reader, such as one made by
+     * {@link #subReader(int, int)}, after the ones of this reader.
+     */
+    public void includeDiagnostics(TokenReader other)
+    {
+        diagnostics.include(other.diagnostics);
     }
 
     public void reportSituation(ErrorSituation situation, String... expansions)
     {
-        log(defaultReporting.get(situation), expansions);
+        log(defaultReporting.get(situation), situation, expansions);
     }
 
     public void traceCodeToken(int offset)
     {
-        traceCode(codeOffset + lineReader.match().start() + offset);
+        checkMatch();
+        traceCode(matchStart + offset);
     }
 
     public void traceCode(int charInd)
     {
-        if (lineReader == null)
+        if (line == null)
             throw new IllegalStateException("Not reading a line.");
-
-        System.err.println(fileName + ":" + lineNum + ":" + (charInd + 1));
-        System.err.println(currentLine());
-        for (int i = 0; i < charInd; i++)
-            System.err.print(" ");
-        System.err.println("^\n");
+        diagnostics.locate(fileName, lineNum, charInd, currentLine());
     }
 
     public void error(String description, String... expansions)
     {
-        log(new ErrorReporting(ErrorLevel.ERROR, description));
+        log(new ErrorReporting(ErrorLevel.ERROR, description), expansions);
     }
 
+    /**
+     * Records a diagnostic. The expansions are pairs of a variable name (such
+     * as <code>$MIN</code>) and the text to replace it with.
+     */
     public void log(ErrorReporting err, String... expansions)
+    {
+        log(err, null, expansions);
+    }
+
+    private void log(ErrorReporting err, ErrorSituation situation, String...
+            expansions)
     {
         if (expansions.length % 2 == 1)
             throw new IllegalArgumentException("Expansion arguments must be even");
-        switch (err.getLevel())
-        {
-            case ERROR:
-                errors++;
-                break;
-            case WARNING:
-                warnings++;
-                break;
-            case DEBUG:
-                if (!debugMode)
-                    return;
-            case NONE:
-                return;
-        }
-        String descript = err.getDescription();
-        for (int i = 0; i < expansions.length; i+=2)
-            descript = descript.replaceAll(expansions[i], expansions[i+1]);
-
-        System.err.println(err.getLevel() + descript);
+        if (err.getLevel() == ErrorLevel.NONE || err.getLevel() == ErrorLevel
+                .DEBUG && !debugMode)
+            diagnostics.skip();
+        else
+            diagnostics.add(err.getLevel(), situation, err.getDescription(),
+                    expansions);
     }
 
     private void initErrorSituations()
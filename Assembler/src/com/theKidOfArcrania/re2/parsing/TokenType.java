@@ -22,26 +22,34 @@
 
 package com.theKidOfArcrania.re2.parsing;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * The kinds of tokens in RE^2 assembly. {@link TokenReader} classifies each
+ * token by hand, following the grammar below, where <i>number</i> is
+ * <code>0x</code> and hex digits, <code>0</code> and octal digits, a decimal
+ * number without leading zeros, or <code>0</code>; <i>ident</i> is a letter
+ * or underscore followed by letters, digits and underscores; and
+ * <i>register</i> is <code>%</code> followed by a decimal index or by
+ * <code>IP</code>, <code>SP</code> or <code>BP</code> (in either case).
+ */
 public enum TokenType
 {
-    REGISTER("%(?:\\d+|[ISBisb]P)"), SYMBOL("[A-Za-z_][A-Za-z0-9_]*"),
-    NUMBER("\\$([+-]?(?:0x[A-Fa-f0-9]+|0[0-7]+|[1-9][0-9]*|0))"),
-    LABEL("[A-Za-z_][A-Za-z0-9_]*:"), ADDRESS("(0x[A-Fa-f0-9]+|0[0-7]+|[1-9][0-9]*|0)"),
-    INDIRECT("([+-]?(?:0x[A-Fa-f0-9]+|0[0-7]+|[1-9][0-9]*|0))?\\((%(?:\\d+|[ISBisb]P))\\)"),
-    DIRECTIVE("\\.[A-Za-z_][A-Za-z0-9_]*"), INVALID("$.+^");
-
-    private final Pattern pattern;
-
-    TokenType(String pattern)
-    {
-        this.pattern = Pattern.compile(pattern);
-    }
-
-    public Matcher match(String token)
-    {
-        return pattern.matcher(token);
-    }
+    /** <i>register</i>, such as <code>%3</code> or <code>%sp</code>. */
+    REGISTER,
+    /** <i>ident</i>, such as an opcode or a label reference. */
+    SYMBOL,
+    /** <code>$</code>, an optional sign, then <i>number</i>. */
+    NUMBER,
+    /** <i>ident</i> followed by <code>:</code>. */
+    LABEL,
+    /** An unsigned <i>number</i>. */
+    ADDRESS,
+    /**
+     * An optional signed <i>number</i>, then <i>register</i> in parentheses,
+     * such as <code>-4(%bp)</code>.
+     */
+    INDIRECT,
+    /** <code>.</code> followed by <i>ident</i>. */
+    DIRECTIVE,
+    /** Anything that matches none of the above. */
+    INVALID
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps guest addresses back to the assembly source: a line table and a
+ * symbol table, written into v2 images by <code>RESquaredAssembler -g</code>.
+ * An image keeps both tables encoded, and only decodes them once a fault
+ * handler, profiler or tracer asks for them.
+ *
+ * Both tables are sorted by address and delta-encoded with variable-length
+ * integers. The line table holds the source file names, and then one row for
+ * every address where the line changes: the address delta (shifted left by
+ * one, with the lowest bit set if the file changes too), the new file index
+ * if so, and the zigzag-encoded line delta. Line 0 marks addresses that have
+ * no line, such as the end of a section. The symbol table holds the address
+ * delta and the name of every label.
+ */
+public class DebugInfo
+{
+    private final String[] files;
+    private final int[] addresses;
+    private final int[] fileIndices;
+    private final int[] lines;
+
+    private final int[] symbolAddresses;
+    private final String[] symbolNames;
+
+    /**
+     * @param files the source file names.
+     * @param addresses the address of every line row, in ascending order.
+     * @param fileIndices the index into <code>files</code> of every row.
+     * @param lines the one-based line of every row, or 0 if the addresses
+     *              from there on have no line.
+     * @param symbolAddresses the address of every symbol, in ascending order.
+     * @param symbolNames the name of every symbol.
+     */
+    public DebugInfo(String[] files, int[] addresses, int[] fileIndices, int[]
+            lines, int[] symbolAddresses, String[] symbolNames)
+    {
+        if (addresses.length != fileIndices.length || addresses.length !=
+                lines.length || symbolAddresses.length != symbolNames.length)
+            throw new IllegalArgumentException("Mismatched table lengths.");
+
+        this.files = files.clone();
+        this.addresses = addresses.clone();
+        this.fileIndices = fileIndices.clone();
+        this.lines = lines.clone();
+        this.symbolAddresses = symbolAddresses.clone();
+        this.symbolNames = symbolNames.clone();
+    }
+
+    /**
+     * Decodes the tables written by {@link #encodeLines()} and
+     * {@link #encodeSymbols()}. Either may be null if it is missing.
+     */
+    public static DebugInfo decode(byte[] lineTable, byte[] symbolTable)
+            throws IOException
+    {
+        String[] files = new String[0];
+        int[] addresses = new int[0];
+        int[] fileIndices = new int[0];
+        int[] lines = new int[0];
+        if (lineTable != null)
+        {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream
+                    (lineTable));
+            files = new String[readCount(dis, lineTable.length)];
+            for (int i = 0; i < files.length; i++)
+                files[i] = dis.readUTF();
+
+            int count = readCount(dis, lineTable.length);
+            addresses = new int[count];
+            fileIndices = new int[count];
+            lines = new int[count];
+            int addr = 0;
+            int file = 0;
+            int line = 0;
+            for (int i = 0; i < count; i++)
+            {
+                int delta = readVarint(dis);
+                addr += delta >>> 1;
+                if ((delta & 1) != 0)
+                    file = readVarint(dis);
+                if (file >= files.length)
+                    throw new Image.FormatException("Invalid file index.");
+                int zigzag = readVarint(dis);
+                line += zigzag >>> 1 ^ -(zigzag & 1);
+                addresses[i] = addr;
+                fileIndices[i] = file;
+                lines[i] = line;
+            }
+        }
+
+        int[] symbolAddresses = new int[0];
+        String[] symbolNames = new String[0];
+        if (symbolTable != null)
+        {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream
+                    (symbolTable));
+            int count = readCount(dis, symbolTable.length);
+            symbolAddresses = new int[count];
+            symbolNames = new String[count];
+            int addr = 0;
+            for (int i = 0; i < count; i++)
+            {
+                addr += readVarint(dis);
+                symbolAddresses[i] = addr;
+                symbolNames[i] = dis.readUTF();
+            }
+        }
+        return new DebugInfo(files, addresses, fileIndices, lines,
+                symbolAddresses, symbolNames);
+    }
+
+    public byte[] encodeLines()
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try
+        {
+            writeVarint(dos, files.length);
+            for (String file : files)
+                dos.writeUTF(file);
+
+            writeVarint(dos, addresses.length);
+            int addr = 0;
+            int file = 0;
+            int line = 0;
+            for (int i = 0; i < addresses.length; i++)
+            {
+                boolean newFile = fileIndices[i] != file;
+                writeVarint(dos, (addresses[i] - addr) << 1 | (newFile ? 1 :
+                        0));
+                if (newFile)
+                    writeVarint(dos, fileIndices[i]);
+                int delta = lines[i] - line;
+                writeVarint(dos, delta << 1 ^ delta >> 31);
+                addr = addresses[i];
+                file = fileIndices[i];
+                line = lines[i];
+            }
+        }
+        catch (IOException e)
+        {
+            throw new InternalError(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public byte[] encodeSymbols()
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try
+        {
+            writeVarint(dos, symbolAddresses.length);
+            int addr = 0;
+            for (int i = 0; i < symbolAddresses.length; i++)
+            {
+                writeVarint(dos, symbolAddresses[i] - addr);
+                dos.writeUTF(symbolNames[i]);
+                addr = symbolAddresses[i];
+            }
+        }
+        catch (IOException e)
+        {
+            throw new InternalError(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the source file of the address, or null if it has no line.
+     */
+    public String getFile(int addr)
+    {
+        int row = floor(addresses, addr);
+        return row == -1 || lines[row] == 0 ? null : files[fileIndices[row]];
+    }
+
+    /**
+     * @return the source line of the address, or 0 if it has no line.
+     */
+    public int getLine(int addr)
+    {
+        int row = floor(addresses, addr);
+        return row == -1 ? 0 : lines[row];
+    }
+
+    /**
+     * @return the last label at or before the address, or null if there is
+     *         none.
+     */
+    public String getSymbol(int addr)
+    {
+        int row = floor(symbolAddresses, addr);
+        return row == -1 ? null : symbolNames[row];
+    }
+
+    /**
+     * @return the source location of the address, such as
+     *         <code>loop.s:12 in fact</code>, or null if nothing is known
+     *         about it.
+     */
+    public String describe(int addr)
+    {
+        String file = getFile(addr);
+        String symbol = getSymbol(addr);
+        if (file == null)
+            return symbol == null ? null : "in " + symbol;
+        String line = file + ":" + getLine(addr);
+        return symbol == null ? line : line + " in " + symbol;
+    }
+
+    /**
+     * @return the index of the last entry that is at most the address, or -1
+     *         if there is none.
+     */
+    private static int floor(int[] sorted, int addr)
+    {
+        int index = Arrays.binarySearch(sorted, addr);
+        if (index < 0)
+            return -index - 2;
+        while (index + 1 < sorted.length && sorted[index + 1] == addr)
+            index++;
+        return index;
+    }
+
+    private static int readCount(DataInputStream dis, int limit) throws
+            IOException
+    {
+        int count = readVarint(dis);
+        if (count < 0 || count > limit)
+            throw new Image.FormatException("Invalid table size.");
+        return count;
+    }
+
+    private static int readVarint(DataInputStream dis) throws IOException
+    {
+        int val = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            int b = dis.readUnsignedByte();
+            val |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return val;
+        }
+        throw new Image.FormatException("Invalid variable-length integer.");
+    }
+
+    private static void writeVarint(DataOutputStream dos, int val) throws
+            IOException
+    {
+        while ((val & ~0x7F) != 0)
+        {
+            dos.writeByte(val & 0x7F | 0x80);
+            val >>>= 7;
+        }
+        dos.writeByte(val);
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+import com.theKidOfArcrania.re2.memory.GuestMemory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.theKidOfArcrania.re2.RESquared.*;
+
+/**
+ * A parsed (but not yet loaded) RE^2 binary image. Images are immutable, so a
+ * single image can be loaded into any number of virtual machines.
+ *
+ * Both container formats start with {@link RESquared#MAGIC} and a 32-bit
+ * word that holds the ISA revision in its lower half. A v1 image leaves the
+ * upper half 0, and is followed by the entry point, a one-byte section count
+ * and the raw sections (base, size and bytes).
+ *
+ * A v2 image has {@link #FORMAT_V2} in the upper half, and is followed by the
+ * entry point, a 16-bit section count and typed sections, each a type byte
+ * and a 32-bit length before its contents. Code and data sections start with
+ * their base; the others hold what the assembler already knows about the
+ * code, so that tools need not rediscover it. Sections of an unknown type are
+ * skipped.
+ *
+ * The optional line and symbol sections are kept encoded, since running a
+ * program never needs them; see {@link #getDebugInfo()}.
+ *
+ * A v2 image may also be protected, in which case its permissions section
+ * holds the protection level and the permissions of every code and data
+ * section, in order. The loader then enforces them per page of
+ * {@link #PAGE_SIZE} bytes (see {@link #getPagePermissions()}). Reads are
+ * always allowed, so a section is read-only, writable, executable, or both.
+ */
+public class Image
+{
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_V2 = 2;
+
+    public static final int SECTION_CODE = 1;
+    public static final int SECTION_DATA = 2;
+    public static final int SECTION_BLOCKS = 3;
+    public static final int SECTION_HOT = 4;
+    public static final int SECTION_LINES = 5;
+    public static final int SECTION_SYMBOLS = 6;
+    public static final int SECTION_PERMISSIONS = 7;
+
+    public static final int PERM_WRITE = 1;
+    public static final int PERM_EXECUTE = 2;
+    public static final int PERM_ALL = PERM_WRITE | PERM_EXECUTE;
+
+    /**
+     * Sections may be written to and executed from anywhere.
+     */
+    public static final int PROTECTION_NONE = 0;
+
+    /**
+     * The permissions of every section are enforced.
+     */
+    public static final int PROTECTION_SECTIONS = 1;
+
+    /**
+     * The permissions are enforced, and no page is both writable and
+     * executable, so that the code can never change once it is loaded.
+     */
+    public static final int PROTECTION_W_XOR_X = 2;
+
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    public static final int MAX_V1_SECTIONS = Byte.MAX_VALUE;
+    public static final int MAX_V2_SECTIONS = 0xFFFF;
+
+    /**
+     * Thrown when the binary does not follow the RE^2 image format.
+     */
+    public static class FormatException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message)
+        {
+            super(message);
+        }
+    }
+
+    public static class Section
+    {
+        private final int base;
+        private final byte[] data;
+        private final boolean code;
+        private final int permissions;
+
+        public Section(int base, byte[] data)
+        {
+            this(base, data, true);
+        }
+
+        /**
+         * @param code false if the section is known to only hold data. All
+         *             the sections of a v1 image may hold code.
+         */
+        public Section(int base, byte[] data, boolean code)
+        {
+            this(base, data, code, code ? PERM_ALL : PERM_WRITE);
+        }
+
+        /**
+         * @param permissions the {@link #PERM_WRITE} and
+         *                    {@link #PERM_EXECUTE} flags of the section,
+         *                    which are only enforced for protected images.
+         */
+        public Section(int base, byte[] data, boolean code, int permissions)
+        {
+            if ((permissions & ~PERM_ALL) != 0)
+                throw new IllegalArgumentException("Invalid permissions: " +
+                        permissions);
+            this.base = base;
+            this.data = data;
+            this.code = code;
+            this.permissions = permissions;
+        }
+
+        public int getBase()
+        {
+            return base;
+        }
+
+        public int getSize()
+        {
+            return data.length;
+        }
+
+        public byte[] getData()
+        {
+            return data.clone();
+        }
+
+        public boolean isCode()
+        {
+            return code;
+        }
+
+        public int getPermissions()
+        {
+            return permissions;
+        }
+
+        private void loadInto(GuestMemory memory)
+        {
+            GuestMemory.checkRange(base, data.length);
+            memory.write(base, data, 0, data.length);
+        }
+    }
+
+    /**
+     * A basic block: straight-line code from its start up to (but not
+     * including) its end, that is only entered at its start.
+     */
+    public static class Block
+    {
+        private final int start;
+        private final int end;
+        private final int[] targets;
+
+        /**
+         * @param targets the fixed targets of the branch that ends the block,
+         *                if any. Falling through to the next block is not
+         *                included.
+         */
+        public Block(int start, int end, int... targets)
+        {
+            this.start = start;
+            this.end = end;
+            this.targets = targets.clone();
+        }
+
+        public int getStart()
+        {
+            return start;
+        }
+
+        public int getEnd()
+        {
+            return end;
+        }
+
+        public int[] getTargets()
+        {
+            return targets.clone();
+        }
+    }
+
+    private static final int[] NO_ENTRIES = new int[0];
+    private static final int MAX_SECTION_LENGTH = 0x1000000;
+
+    private final int format;
+    private final int revision;
+    private final short entryPoint;
+    private final List<Section> sections;
+    private final List<Block> blocks;
+    private final int[] hotEntries;
+    private final byte[] lineTable;
+    private final byte[] symbolTable;
+    private final int protection;
+    private final byte[] pages;
+    private volatile DebugInfo debugInfo;
+
+    public Image(short entryPoint, List<Section> sections)
+    {
+        this(ISA_REVISION, entryPoint, sections);
+    }
+
+    /**
+     * Creates a v1 image, which has no metadata.
+     *
+     * @param revision the instruction set revision the image is built for.
+     */
+    public Image(int revision, short entryPoint, List<Section> sections)
+    {
+        this(FORMAT_V1, revision, entryPoint, sections, Collections
+                .emptyList(), NO_ENTRIES, null, null, PROTECTION_NONE);
+    }
+
+    /**
+     * Creates a v2 image.
+     *
+     * @param revision the instruction set revision the image is built for.
+     * @param blocks the basic blocks of the code, in address order.
+     * @param hotEntries the addresses that are recommended to be compiled
+     *                   first, such as loop heads and called functions.
+     */
+    public Image(int revision, short entryPoint, List<Section> sections,
+                 List<Block> blocks, int[] hotEntries)
+    {
+        this(revision, entryPoint, sections, blocks, hotEntries, null);
+    }
+
+    /**
+     * Creates a v2 image with debug information.
+     *
+     * @param debugInfo the line and symbol tables of the image, or null.
+     */
+    public Image(int revision, short entryPoint, List<Section> sections,
+                 List<Block> blocks, int[] hotEntries, DebugInfo debugInfo)
+    {
+        this(revision, entryPoint, sections, blocks, hotEntries, debugInfo,
+                PROTECTION_NONE);
+    }
+
+    /**
+     * Creates a v2 image with debug information and section permissions.
+     *
+     * @param protection {@link #PROTECTION_NONE},
+     *                   {@link #PROTECTION_SECTIONS} or
+     *                   {@link #PROTECTION_W_XOR_X}.
+     * @throws IllegalArgumentException if the image is W^X, but a page is
+     *                                  both writable and executable.
+     */
+    public Image(int revision, short entryPoint, List<Section> sections,
+                 List<Block> blocks, int[] hotEntries, DebugInfo debugInfo,
+                 int protection)
+    {
+        this(FORMAT_V2, revision, entryPoint, sections, blocks, hotEntries,
+                debugInfo == null ? null : debugInfo.encodeLines(),
+                debugInfo == null ? null : debugInfo.encodeSymbols(),
+                protection);
+        this.debugInfo = debugInfo;
+    }
+
+    private Image(int format, int revision, short entryPoint, List<Section>
+            sections, List<Block> blocks, int[] hotEntries, byte[] lineTable,
+            byte[] symbolTable, int protection)
+    {
+        if (protection < PROTECTION_NONE || protection > PROTECTION_W_XOR_X)
+            throw new IllegalArgumentException("Invalid protection: " +
+                    protection);
+
+        this.format = format;
+        this.revision = revision;
+        this.entryPoint = entryPoint;
+        this.sections = Collections.unmodifiableList(new ArrayList<>(sections));
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(blocks));
+        this.hotEntries = hotEntries.clone();
+        this.lineTable = lineTable;
+        this.symbolTable = symbolTable;
+        this.protection = protection;
+        this.pages = protection == PROTECTION_NONE ? null : pages(sections);
+
+        if (protection == PROTECTION_W_XOR_X)
+        {
+            for (int page = 0; page < pages.length; page++)
+                if (pages[page] == PERM_ALL)
+                    throw new IllegalArgumentException(String.format("Page " +
+                            "0x%04x is both writable and executable.", page
+                            << PAGE_SHIFT));
+        }
+    }
+
+    /**
+     * Works out the permissions of every page: those of all the sections on
+     * it, or only writable if there are none, which covers the stack.
+     */
+    private static byte[] pages(List<Section> sections)
+    {
+        byte[] pages = new byte[(MAX_ADDR + 1) >> PAGE_SHIFT];
+        boolean[] covered = new boolean[pages.length];
+        for (Section s : sections)
+        {
+            if (s.data.length == 0)
+                continue;
+            int last = Math.min(s.base + s.data.length - 1, MAX_ADDR);
+            for (int page = s.base >> PAGE_SHIFT; page <= last >>
+                    PAGE_SHIFT; page++)
+            {
+                pages[page] |= s.permissions;
+                covered[page] = true;
+            }
+        }
+        for (int page = 0; page < pages.length; page++)
+            if (!covered[page])
+                pages[page] = PERM_WRITE;
+        return pages;
+    }
+
+    public static Image read(InputStream is) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(is);
+        byte[] sig = new byte[MAGIC.length];
+        dis.readFully(sig);
+        if (!Arrays.equals(MAGIC, sig))
+            throw new FormatException("Invalid signature.");
+        int word = dis.readInt();
+        int format = word >>> 16 == 0 ? FORMAT_V1 : word >>> 16;
+        int revision = word & 0xFFFF;
+        if (format > FORMAT_V2)
+            throw new FormatException("Unsupported image format: " + format);
+        if (revision < 1 || revision > ISA_REVISION)
+            throw new FormatException("Unsupported ISA revision: " +
+                    revision);
+
+        short entryPoint = readShort(dis);
+        if (format == FORMAT_V2)
+            return readV2(dis, revision, entryPoint);
+
+        byte count = dis.readByte();
+        if (count < 0)
+            throw new FormatException("Invalid section count.");
+
+        ArrayList<Section> sections = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int base = readShort(dis) & MAX_ADDR;
+            short size = readShort(dis);
+            if (size < 0)
+                throw new FormatException("Invalid section size.");
+
+            byte[] data = new byte[size];
+            dis.readFully(data);
+            sections.add(new Section(base, data));
+        }
+        return new Image(revision, entryPoint, sections);
+    }
+
+    private static Image readV2(DataInputStream dis, int revision, short
+            entryPoint) throws IOException
+    {
+        int count = readShort(dis) & MAX_V2_SECTIONS;
+        ArrayList<Section> sections = new ArrayList<>();
+        ArrayList<Block> blocks = new ArrayList<>();
+        int[] hotEntries = NO_ENTRIES;
+        byte[] lineTable = null;
+        byte[] symbolTable = null;
+        byte[] permissions = null;
+        for (int i = 0; i < count; i++)
+        {
+            int type = dis.readUnsignedByte();
+            int length = dis.readInt();
+            if (length < 0 || length > MAX_SECTION_LENGTH)
+                throw new FormatException("Invalid section length.");
+
+            byte[] contents = new byte[length];
+            dis.readFully(contents);
+            DataInputStream section = new DataInputStream(new
+                    ByteArrayInputStream(contents));
+            switch (type)
+            {
+                case SECTION_CODE:
+                case SECTION_DATA:
+                    if (length < 2 || length - 2 > MAX_ADDR + 1)
+                        throw new FormatException("Invalid section size.");
+                    int base = readShort(section) & MAX_ADDR;
+                    sections.add(new Section(base, Arrays.copyOfRange
+                            (contents, 2, length), type == SECTION_CODE));
+                    break;
+                case SECTION_BLOCKS:
+                    while (section.available() > 0)
+                    {
+                        int start = readShort(section) & MAX_ADDR;
+                        int end = start + (readShort(section) & MAX_ADDR);
+                        int[] targets = new int[section.readUnsignedByte()];
+                        for (int t = 0; t < targets.length; t++)
+                            targets[t] = readShort(section) & MAX_ADDR;
+                        blocks.add(new Block(start, end, targets));
+                    }
+                    break;
+                case SECTION_HOT:
+                    hotEntries = new int[length / 2];
+                    for (int e = 0; e < hotEntries.length; e++)
+                        hotEntries[e] = readShort(section) & MAX_ADDR;
+                    break;
+                case SECTION_LINES:
+                    lineTable = contents;
+                    break;
+                case SECTION_SYMBOLS:
+                    symbolTable = contents;
+                    break;
+                case SECTION_PERMISSIONS:
+                    if (length == 0)
+                        throw new FormatException("Invalid permissions.");
+                    permissions = contents;
+                    break;
+                default:
+                    //Written by a newer assembler; nothing needs it here.
+                    break;
+            }
+        }
+        int protection = PROTECTION_NONE;
+        if (permissions != null)
+        {
+            //It may come before or after the sections it describes.
+            protection = permissions[0];
+            if (permissions.length != sections.size() + 1)
+                throw new FormatException("Invalid permissions.");
+            for (int i = 0; i < sections.size(); i++)
+            {
+                Section s = sections.get(i);
+                if ((permissions[i + 1] & ~PERM_ALL) != 0)
+                    throw new FormatException("Invalid permissions.");
+                sections.set(i, new Section(s.base, s.data, s.code,
+                        permissions[i + 1]));
+            }
+        }
+
+        try
+        {
+            return new Image(FORMAT_V2, revision, entryPoint, sections,
+                    blocks, hotEntries, lineTable, symbolTable, protection);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new FormatException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes this image in the format read by {@link #read(InputStream)},
+     * in the container format that it was created with.
+     */
+    public void write(OutputStream os) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(MAGIC);
+        if (format == FORMAT_V2)
+        {
+            writeV2(dos);
+            return;
+        }
+
+        if (sections.size() > MAX_V1_SECTIONS)
+            throw new FormatException("Too many sections.");
+        dos.writeInt(revision);
+        writeShort(dos, entryPoint);
+        dos.writeByte(sections.size());
+        for (Section s : sections)
+        {
+            writeShort(dos, (short)s.base);
+            writeShort(dos, (short)s.data.length);
+            dos.write(s.data);
+        }
+        dos.flush();
+    }
+
+    private void writeV2(DataOutputStream dos) throws IOException
+    {
+        int count = sections.size() + (blocks.isEmpty() ? 0 : 1) +
+                (hotEntries.length == 0 ? 0 : 1) + (lineTable == null ? 0 : 1)
+                + (symbolTable == null ? 0 : 1) + (protection ==
+                PROTECTION_NONE ? 0 : 1);
+        if (count > MAX_V2_SECTIONS)
+            throw new FormatException("Too many sections.");
+        dos.writeInt(FORMAT_V2 << 16 | revision);
+        writeShort(dos, entryPoint);
+        writeShort(dos, (short)count);
+        for (Section s : sections)
+        {
+            dos.writeByte(s.code ? SECTION_CODE : SECTION_DATA);
+            dos.writeInt(2 + s.data.length);
+            writeShort(dos, (short)s.base);
+            dos.write(s.data);
+        }
+
+        if (!blocks.isEmpty())
+        {
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tos = new DataOutputStream(table);
+            for (Block b : blocks)
+            {
+                if (b.targets.length > 0xFF)
+                    throw new FormatException("Too many block targets.");
+                writeShort(tos, (short)b.start);
+                writeShort(tos, (short)(b.end - b.start));
+                tos.writeByte(b.targets.length);
+                for (int target : b.targets)
+                    writeShort(tos, (short)target);
+            }
+            dos.writeByte(SECTION_BLOCKS);
+            dos.writeInt(table.size());
+            table.writeTo(dos);
+        }
+
+        if (hotEntries.length > 0)
+        {
+            dos.writeByte(SECTION_HOT);
+            dos.writeInt(hotEntries.length * 2);
+            for (int entry : hotEntries)
+                writeShort(dos, (short)entry);
+        }
+
+        if (lineTable != null)
+        {
+            dos.writeByte(SECTION_LINES);
+            dos.writeInt(lineTable.length);
+            dos.write(lineTable);
+        }
+        if (symbolTable != null)
+        {
+            dos.writeByte(SECTION_SYMBOLS);
+            dos.writeInt(symbolTable.length);
+            dos.write(symbolTable);
+        }
+        if (protection != PROTECTION_NONE)
+        {
+            dos.writeByte(SECTION_PERMISSIONS);
+            dos.writeInt(1 + sections.size());
+            dos.writeByte(protection);
+            for (Section s : sections)
+                dos.writeByte(s.permissions);
+        }
+        dos.flush();
+    }
+
+    private static void writeShort(DataOutputStream dos, short s) throws
+            IOException
+    {
+        dos.writeByte((byte)s);
+        dos.writeByte((byte)(s >> 8));
+    }
+
+    /**
+     * @return the container format, {@link #FORMAT_V1} or
+     *         {@link #FORMAT_V2}.
+     */
+    public int getFormat()
+    {
+        return format;
+    }
+
+    public int getRevision()
+    {
+        return revision;
+    }
+
+    public short getEntryPoint()
+    {
+        return entryPoint;
+    }
+
+    public List<Section> getSections()
+    {
+        return sections;
+    }
+
+    /**
+     * @return the basic blocks of the code, in address order. This is empty
+     *         if they are not known, such as for v1 images.
+     */
+    public List<Block> getBlocks()
+    {
+        return blocks;
+    }
+
+    /**
+     * @return the addresses that are worth compiling first, or an empty
+     *         array if there are none.
+     */
+    public int[] getHotEntries()
+    {
+        return hotEntries.clone();
+    }
+
+    /**
+     * @return {@link #PROTECTION_NONE}, {@link #PROTECTION_SECTIONS} or
+     *         {@link #PROTECTION_W_XOR_X}.
+     */
+    public int getProtection()
+    {
+        return protection;
+    }
+
+    /**
+     * @return the {@link #PERM_WRITE} and {@link #PERM_EXECUTE} flags of
+     *         every page, indexed by page number, or null if the image is
+     *         not protected.
+     */
+    public byte[] getPagePermissions()
+    {
+        return pages == null ? null : pages.clone();
+    }
+
+    /**
+     * Decodes the line and symbol tables the first time they are asked for.
+     *
+     * @return the debug information of the image, or null if it has none
+     *         (or it is malformed).
+     */
+    public DebugInfo getDebugInfo()
+    {
+        if (debugInfo == null && (lineTable != null || symbolTable != null))
+        {
+            try
+            {
+                debugInfo = DebugInfo.decode(lineTable, symbolTable);
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+        return debugInfo;
+    }
+
+    /**
+     * Copies every section into the given guest memory.
+     *
+     * @throws IndexOutOfBoundsException if a section does not fit in memory.
+     */
+    public void loadInto(GuestMemory memory)
+    {
+        for (Section s : sections)
+            s.loadInto(memory);
+    }
+}
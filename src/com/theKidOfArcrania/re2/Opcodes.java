@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+import static com.theKidOfArcrania.re2.RESquared.IP;
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+import static com.theKidOfArcrania.re2.RESquared.REGISTER_MASK;
+
+/**
+ * Static information about the instruction set, for tools that need to decode
+ * RE^2 code without executing it. This must be kept in sync with
+ * {@link RESquared#step()}.
+ */
+@SuppressWarnings("MagicNumber")
+public final class Opcodes
+{
+    private static final int[] LENGTHS = new int[0x100];
+    private static final String[] NAMES = new String[0x100];
+    private static final int[] REVISIONS = new int[0x100];
+
+    static
+    {
+        define(0x21, 1, "AND");
+        define(0x22, 1, "DUP");
+        define(0x25, 1, "MULT");
+        define(0x26, 1, "NOT");
+        define(0x2a, 1, "OR");
+        define(0x2b, 1, "SUB");
+        define(0x2d, 1, "MOD");
+        define(0x2f, 1, "DIV");
+        define(0x3c, 1, "SAR");
+        define(0x3d, 2, "PUSH");
+        define(0x3e, 1, "SHL");
+        define(0x3f, 1, "SHR");
+        define(0x44, 3, "LOADW");
+        define(0x4b, 2, "PUSH");
+        define(0x4f, 2, "POP");
+        define(0x50, 3, "LOADW");
+        define(0x51, 2, "LOADB");
+        define(0x56, 3, "STOREB");
+        define(0x57, 3, "STOREW");
+        define(0x58, 3, "JMP");
+        define(0x5a, 3, "CALL");
+        define(0x5e, 1, "ADD");
+        define(0x5f, 2, "JMP");
+        define(0x63, 3, "STOREW");
+        define(0x64, 3, "STOREB");
+        define(0x65, 3, "OUTPUTSTR");
+        define(0x67, 2, "STOREB");
+        define(0x69, 2, "STOREW");
+        define(0x6a, 2, "LOADW");
+        define(0x6b, 2, "OUTPUTSTR");
+        define(0x6c, 3, "LOADB");
+        define(0x6d, 3, "EXIT");
+        define(0x6f, 3, "PUSH");
+        define(0x7c, 1, "XOR");
+        define(0x7d, 2, "CALL");
+        define(0x7e, 1, "RET");
+        define(0x80, 2, "MOV", 2);
+        define(0x81, 4, "MOV", 2);
+        define(0x82, 2, "ADD", 2);
+        define(0x83, 2, "SUB", 2);
+        define(0x84, 2, "AND", 2);
+        define(0x85, 2, "OR", 2);
+        define(0x86, 2, "XOR", 2);
+        define(0x87, 2, "SHL", 2);
+        define(0x88, 2, "SHR", 2);
+        define(0x89, 2, "SAR", 2);
+        define(0x8a, 4, "JEQ", 2);
+        define(0x8b, 4, "JNE", 2);
+        define(0x8c, 4, "JLT", 2);
+        define(0x8d, 4, "JGE", 2);
+        define(0x8e, 3, "LOADB");
+        define(0x90, 3, "LOADW", 2);
+        define(0x91, 3, "LOADB", 2);
+        define(0x92, 3, "STOREW", 2);
+        define(0x93, 3, "STOREB", 2);
+        define(0xda, 3, "OUTPUTSTR");
+        define(0xdb, 1, "OUTPUTNUM");
+        define(0xdc, 1, "POP");
+        define(0xde, 3, "JNZ");
+        define(0xdf, 1, "INPUT");
+        define(0xe0, 2, "JMP", 2);
+        define(0xe1, 2, "CALL", 2);
+        define(0xe2, 2, "JZ", 2);
+        define(0xe3, 2, "JNZ", 2);
+        define(0xe4, 2, "JN", 2);
+        define(0xe5, 2, "JP", 2);
+        define(0xe6, 1, "MEMCPY", 2);
+        define(0xe7, 1, "MEMSET", 2);
+        define(0xe8, 1, "STRLEN", 2);
+        define(0xe9, 1, "ENTER", 2);
+        define(0xea, 3, "ENTER", 2);
+        define(0xeb, 1, "LEAVE", 2);
+        define(0xec, 1, "IN", 2);
+        define(0xed, 1, "OUT", 2);
+        define(0xee, 1, "READ", 2);
+        define(0xef, 1, "WRITE", 2);
+        define(0xfc, 3, "JZ");
+        define(0xfe, 3, "JN");
+        define(0xff, 3, "JP");
+    }
+
+    private Opcodes()
+    {
+    }
+
+    private static void define(int opcode, int length, String name)
+    {
+        define(opcode, length, name, 1);
+    }
+
+    private static void define(int opcode, int length, String name, int
+            revision)
+    {
+        LENGTHS[opcode] = length;
+        NAMES[opcode] = name;
+        REVISIONS[opcode] = revision;
+    }
+
+    /**
+     * @return the length in bytes of the instruction (including the opcode)
+     *         or 0 if this is not a valid opcode.
+     */
+    public static int length(int opcode)
+    {
+        return LENGTHS[opcode & 0xFF];
+    }
+
+    /**
+     * @return the mnemonic of the instruction or null if this is not a valid
+     *         opcode.
+     */
+    public static String name(int opcode)
+    {
+        return NAMES[opcode & 0xFF];
+    }
+
+    /**
+     * @return the first instruction set revision that has the instruction,
+     *         or 0 if this is not a valid opcode.
+     */
+    public static int revision(int opcode)
+    {
+        return REVISIONS[opcode & 0xFF];
+    }
+
+    public static boolean isValid(int opcode)
+    {
+        return LENGTHS[opcode & 0xFF] != 0;
+    }
+
+    /**
+     * @param mem the whole guest memory.
+     * @param addr the address of the instruction.
+     * @return true if the instruction may continue anywhere but at the next
+     *         instruction: jumps, calls, returns, exits and any instruction
+     *         that writes to <code>%IP</code>.
+     */
+    public static boolean isBranch(byte[] mem, int addr)
+    {
+        switch (mem[addr] & 0xFF)
+        {
+            case 0x4f: //POP [REG]
+            case 0x81: //MOV [REG], [16-bit VALUE]
+                return (mem[addr + 1] & REGISTER_MASK) == IP;
+            case 0x80: //MOV [REG], [REG]
+            case 0x82: //ADD [REG], [REG]
+            case 0x83: //SUB [REG], [REG]
+            case 0x84: //AND [REG], [REG]
+            case 0x85: //OR [REG], [REG]
+            case 0x86: //XOR [REG], [REG]
+            case 0x87: //SHL [REG], [REG]
+            case 0x88: //SHR [REG], [REG]
+            case 0x89: //SAR [REG], [REG]
+            case 0x90: //LOADW [REG], [8-bit OFFSET]([REG])
+            case 0x91: //LOADB [REG], [8-bit OFFSET]([REG])
+                return (mem[addr + 1] >> 4 & REGISTER_MASK) == IP;
+            case 0x8a: //JEQ [REG], [REG], [ADDR]
+            case 0x8b: //JNE [REG], [REG], [ADDR]
+            case 0x8c: //JLT [REG], [REG], [ADDR]
+            case 0x8d: //JGE [REG], [REG], [ADDR]
+            case 0x58: //JMP [ADDR]
+            case 0x5a: //CALL [ADDR]
+            case 0x5f: //JMP ([REG])
+            case 0x6d: //EXIT [16-bit STATUSCODE]
+            case 0x7d: //CALL ([REG])
+            case 0x7e: //RET
+            case 0xde: //JNZ [ADDR]
+            case 0xe0: //JMP [8-bit REL]
+            case 0xe1: //CALL [8-bit REL]
+            case 0xe2: //JZ [8-bit REL]
+            case 0xe3: //JNZ [8-bit REL]
+            case 0xe4: //JN [8-bit REL]
+            case 0xe5: //JP [8-bit REL]
+            case 0xfc: //JZ [ADDR]
+            case 0xfe: //JN [ADDR]
+            case 0xff: //JP [ADDR]
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if a branch with this opcode may also continue at the
+     *         next instruction (such as a conditional jump, or a call once it
+     *         returns).
+     */
+    public static boolean fallsThrough(int opcode)
+    {
+        switch (opcode & 0xFF)
+        {
+            case 0x4f: //POP %IP
+            case 0x58: //JMP [ADDR]
+            case 0x5f: //JMP ([REG])
+            case 0x6d: //EXIT [16-bit STATUSCODE]
+            case 0x7e: //RET
+            case 0x80: //MOV %IP, [REG]
+            case 0x81: //MOV %IP, [16-bit VALUE]
+            case 0x82: //ADD %IP, [REG]
+            case 0x83: //SUB %IP, [REG]
+            case 0x84: //AND %IP, [REG]
+            case 0x85: //OR %IP, [REG]
+            case 0x86: //XOR %IP, [REG]
+            case 0x87: //SHL %IP, [REG]
+            case 0x88: //SHR %IP, [REG]
+            case 0x89: //SAR %IP, [REG]
+            case 0x90: //LOADW %IP, [8-bit OFFSET]([REG])
+            case 0x91: //LOADB %IP, [8-bit OFFSET]([REG])
+            case 0xe0: //JMP [8-bit REL]
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param mem the whole guest memory.
+     * @param addr the address of the instruction.
+     * @return the address that the branch goes to, or -1 if it is not a
+     *         branch with a fixed target.
+     */
+    public static int branchTarget(byte[] mem, int addr)
+    {
+        switch (mem[addr] & 0xFF)
+        {
+            case 0x58: //JMP [ADDR]
+            case 0x5a: //CALL [ADDR]
+            case 0xde: //JNZ [ADDR]
+            case 0xfc: //JZ [ADDR]
+            case 0xfe: //JN [ADDR]
+            case 0xff: //JP [ADDR]
+                return RESquared.getShort(mem[addr + 1], mem[addr + 2]) &
+                        MAX_ADDR;
+            case 0x8a: //JEQ [REG], [REG], [ADDR]
+            case 0x8b: //JNE [REG], [REG], [ADDR]
+            case 0x8c: //JLT [REG], [REG], [ADDR]
+            case 0x8d: //JGE [REG], [REG], [ADDR]
+                return RESquared.getShort(mem[addr + 2], mem[addr + 3]) &
+                        MAX_ADDR;
+            case 0xe0: //JMP [8-bit REL]
+            case 0xe1: //CALL [8-bit REL]
+            case 0xe2: //JZ [8-bit REL]
+            case 0xe3: //JNZ [8-bit REL]
+            case 0xe4: //JN [8-bit REL]
+            case 0xe5: //JP [8-bit REL]
+                return (addr + 2 + mem[addr + 1]) & MAX_ADDR;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return true if the instruction is a call, which returns to the next
+     *         instruction.
+     */
+    public static boolean isCall(int opcode)
+    {
+        return "CALL".equals(name(opcode));
+    }
+}
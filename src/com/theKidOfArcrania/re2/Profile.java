@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.theKidOfArcrania.re2.RESquared.MAGIC;
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * How often every instruction of a program ran, and how often every branch
+ * was taken, as written by <code>RESquared --profile</code>. The assembler
+ * reads it back with <code>-p</code> to lay out hot code so that it falls
+ * through.
+ *
+ * Counts are kept by address, so a profile only applies to the exact image
+ * it was recorded from. It holds a checksum of that image's sections to
+ * tell.
+ */
+public class Profile
+{
+    private static final int VERSION = 1;
+
+    private final long checksum;
+    private final long[] counts = new long[MAX_ADDR + 1];
+    private final long[] taken = new long[MAX_ADDR + 1];
+
+    /**
+     * Creates an empty profile of the image.
+     */
+    public Profile(Image image)
+    {
+        this(checksum(image));
+    }
+
+    private Profile(long checksum)
+    {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the checksum of the base and contents of every section.
+     */
+    public static long checksum(Image image)
+    {
+        return checksum(image.getSections());
+    }
+
+    /**
+     * @return the checksum of the base and contents of every section.
+     */
+    public static long checksum(List<Image.Section> sections)
+    {
+        CRC32 crc = new CRC32();
+        for (Image.Section s : sections)
+        {
+            crc.update(s.getBase());
+            crc.update(s.getBase() >> 8);
+            crc.update(s.getData());
+        }
+        return crc.getValue();
+    }
+
+    public static Profile read(InputStream is) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(is);
+        byte[] sig = new byte[MAGIC.length];
+        dis.readFully(sig);
+        if (!Arrays.equals(MAGIC, sig) || dis.readInt() != VERSION)
+            throw new Image.FormatException("Not a profile.");
+
+        Profile profile = new Profile(dis.readLong());
+        int count = dis.readInt();
+        if (count < 0 || count > MAX_ADDR + 1)
+            throw new Image.FormatException("Invalid profile size.");
+        for (int i = 0; i < count; i++)
+        {
+            int addr = dis.readUnsignedShort();
+            profile.counts[addr] = dis.readLong();
+            profile.taken[addr] = dis.readLong();
+        }
+        return profile;
+    }
+
+    /**
+     * Writes the counts of every instruction that ran at least once.
+     */
+    public void write(OutputStream os) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.write(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(checksum);
+
+        int count = 0;
+        for (long c : counts)
+            if (c != 0)
+                count++;
+        dos.writeInt(count);
+        for (int addr = 0; addr <= MAX_ADDR; addr++)
+        {
+            if (counts[addr] == 0)
+                continue;
+            dos.writeShort(addr);
+            dos.writeLong(counts[addr]);
+            dos.writeLong(taken[addr]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * @return the checksum of the image this profile was recorded from.
+     */
+    public long getChecksum()
+    {
+        return checksum;
+    }
+
+    /**
+     * @return true if this profile was recorded from the image.
+     */
+    public boolean matches(Image image)
+    {
+        return checksum == checksum(image);
+    }
+
+    /**
+     * Adds the counts of another profile of the same image, such as one of
+     * an earlier run with other input.
+     */
+    public void add(Profile other)
+    {
+        if (other.checksum != checksum)
+            throw new IllegalArgumentException("Profiles of different " +
+                    "images.");
+        for (int addr = 0; addr <= MAX_ADDR; addr++)
+        {
+            counts[addr] += other.counts[addr];
+            taken[addr] += other.taken[addr];
+        }
+    }
+
+    /**
+     * Counts one run of the instruction at the address.
+     *
+     * @param taken true if it did not continue at the next instruction.
+     */
+    public void record(int addr, boolean taken)
+    {
+        counts[addr]++;
+        if (taken)
+            this.taken[addr]++;
+    }
+
+    /**
+     * @return the number of times the instruction at the address ran.
+     */
+    public long getCount(int addr)
+    {
+        return counts[addr & MAX_ADDR];
+    }
+
+    /**
+     * @return the number of times the instruction at the address continued
+     *         anywhere but at the next instruction.
+     */
+    public long getTaken(int addr)
+    {
+        return taken[addr & MAX_ADDR];
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2;
+
+/**
+ * Thrown when a program breaks the page permissions of a protected
+ * {@link Image}: by storing to a page that is not writable, or by running
+ * code from a page that is not executable. The store (or the instruction)
+ * never happens.
+ */
+public class ProtectionFault extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int address;
+    private final boolean execute;
+
+    /**
+     * @param address the address that was stored to, or jumped to.
+     * @param execute true if the page is not executable, false if it is not
+     *                writable.
+     */
+    public ProtectionFault(int address, boolean execute)
+    {
+        super(String.format(execute ? "execute at 0x%04x." : "write to " +
+                "0x%04x.", address));
+        this.address = address;
+        this.execute = execute;
+    }
+
+    public int getAddress()
+    {
+        return address;
+    }
+
+    public boolean isExecute()
+    {
+        return execute;
+    }
+}
@@ -22,9 +22,20 @@
 
 package com.theKidOfArcrania.re2;
 
+import com.theKidOfArcrania.re2.io.*;
+import com.theKidOfArcrania.re2.memory.GuestMemory;
+import com.theKidOfArcrania.re2.memory.HeapMemory;
+import com.theKidOfArcrania.re2.memory.MappedMemory;
+import com.theKidOfArcrania.re2.monitor.GuestExitEvent;
+import com.theKidOfArcrania.re2.monitor.GuestFaultEvent;
+import com.theKidOfArcrania.re2.monitor.VMMonitor;
+
 import java.io.*;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.util.ArrayList;
+
+import static com.theKidOfArcrania.re2.Image.PAGE_SHIFT;
+import static com.theKidOfArcrania.re2.Image.PERM_EXECUTE;
+import static com.theKidOfArcrania.re2.Image.PERM_WRITE;
 
 @SuppressWarnings("JavaDoc")
 public class RESquared {
@@ -35,63 +46,178 @@ public class RESquared {
     public static final int BP = REGISTER_COUNT - 2;
     public static final int IP = REGISTER_COUNT - 1;
 
-    public static final byte[] SIGNATURE = {0x52, 0x45, 0x5e, 0x32, 0x00, 0x00, 0x00, 0x01}; //RE^2
+    public static final byte[] MAGIC = {0x52, 0x45, 0x5e, 0x32}; //RE^2
+
+    /**
+     * The latest revision of the instruction set. Images record the revision
+     * they were built for after {@link #MAGIC}, and revision 1 images still
+     * load.
+     */
+    public static final int ISA_REVISION = 2;
 
     public static final int MAX_ADDR = 0xFFFF;
     public static final int STACK_ADDR = 0xFFF0;
 
-    public static short[] REGISTERS = new short[REGISTER_COUNT];
-    public static byte[] MEMORY = new byte[MAX_ADDR + 1];
+    public final short[] registers = new short[REGISTER_COUNT];
+    public final GuestMemory memory;
+
+    private final PrintStream out;
+    private final ConsoleOutput console;
+    private final ConsoleInput stdin;
+    private final DeviceBus devices = new DeviceBus();
+    private final byte[] ioBuffer = new byte[MAX_ADDR + 1];
+
+    private Image image;
+    private Profile profile;
+    private short ipCache;
+    private boolean running;
+    private int status;
+
+    private boolean[] watched;
+    private boolean watchHit;
 
-    public static Scanner in = new Scanner(System.in);
-    public static short ipCache;
+    //The permissions of every page, or null if the image is not protected,
+    //and the page that the last instruction was fetched from.
+    private byte[] pages;
+    private int fetchPage;
+
+    //Only written by the thread running this machine, and read on demand
+    //by the VMMonitor.
+    private long retired;
+    private int callDepth;
+    private long dispatchHits;
+    private long dispatchMisses;
+
+    public RESquared()
+    {
+        this(System.in, System.out);
+    }
+
+    public RESquared(InputStream in, PrintStream out)
+    {
+        this(new HeapMemory(), in, out);
+    }
+
+    public RESquared(GuestMemory memory, InputStream in, PrintStream out)
+    {
+        this.memory = memory;
+        this.out = out;
+        this.console = new ConsoleOutput(out);
+        this.stdin = new ConsoleInput(in, console);
+        devices.attach(DeviceBus.STDOUT, console);
+        devices.attach(DeviceBus.STDIN, stdin);
+        devices.attach(DeviceBus.CLOCK, new ClockDevice());
+    }
 
     public static void main(String[] args) throws Exception
     {
-        System.out.println("RE^2 Interpreter v1.1");
-        System.out.println("Copyright (c) 2017 theKidOfArcrania\n");
+        printBanner(System.out);
+
+        String file = null;
+        String profileFile = null;
+        boolean jmx = false;
+        GuestMemory memory = new HeapMemory();
+        ArrayList<MappedMemory.Region> regions = new ArrayList<>();
+        ArrayList<FileDevice.Attachment> files = new ArrayList<>();
+        for (String arg : args)
+        {
+            if (arg.startsWith("--memory="))
+                memory = GuestMemory.create(arg.substring(9));
+            else if (arg.startsWith("--map="))
+            {
+                try
+                {
+                    regions.add(MappedMemory.Region.parse(arg.substring(6)));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("ERROR: Invalid mapping " + arg
+                            .substring(6) + ": " + e.getMessage());
+                    System.exit(2);
+                }
+            }
+            else if (arg.equals("--jmx"))
+                jmx = true;
+            else if (arg.startsWith("--profile="))
+                profileFile = arg.substring(10);
+            else if (arg.startsWith("--port="))
+            {
+                try
+                {
+                    files.add(FileDevice.Attachment.parse(arg.substring(7)));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("ERROR: Invalid port " + arg
+                            .substring(7) + ": " + e.getMessage());
+                    System.exit(2);
+                }
+            }
+            else if (file == null)
+                file = arg;
+            else
+                file = "";
+        }
 
-        if (args.length == 0)
+        if (file == null || file.isEmpty() || memory == null)
         {
             File path = new File(RESquared.class.getProtectionDomain()
                     .getCodeSource().getLocation().toURI().getPath());
+            String options = " [--memory=heap|direct|paged] " +
+                    "[--map=<base>:<size>:<file>]... " +
+                    "[--port=<port>:<file>]... [--profile=<file>] [--jmx] " +
+                    "<file>";
             if (path.isDirectory())
-                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquared <File>");
+                System.out.println("Usage: java com.theKidOfArcrania.re2.RESquared" + options);
             else
                 System.out.println("Usage: java -jar " + path.getName() +
-                        " <file>");
+                        options);
 
             System.exit(2);
         }
 
-        String file = args[0];
-        System.out.println();
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(file)))
+        if (!regions.isEmpty())
         {
-            byte[] sig = new byte[SIGNATURE.length];
-            dis.readFully(sig);
-            if (!Arrays.equals(SIGNATURE, sig))
-                throw new Exception();
+            MappedMemory mapped = new MappedMemory(memory);
+            for (MappedMemory.Region region : regions)
+            {
+                try
+                {
+                    mapped.map(region);
+                }
+                catch (IllegalArgumentException | IOException e)
+                {
+                    System.out.println("ERROR: Cannot map " + region.getFile() +
+                            ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            memory = mapped;
+        }
 
-            REGISTERS[IP] = readShort(dis); //entry point
-            byte sections = dis.readByte();
-            if (sections < 0)
-                throw new Exception();
+        System.out.println();
 
-            for (int i = 0; i < sections; i++)
+        RESquared vm = new RESquared(memory, System.in, System.out);
+        for (FileDevice.Attachment attachment : files)
+        {
+            try
             {
-                int offset = readShort(dis) & MAX_ADDR;
-                short size = readShort(dis);
-                if (size < 0)
-                    throw new Exception();
-                dis.readFully(MEMORY, offset, size);
+                vm.getDevices().attach(attachment.getPort(), FileDevice.open
+                        (attachment.getFile()));
+            }
+            catch (IOException e)
+            {
+                System.out.println("ERROR: Cannot open " + attachment
+                        .getFile() + ": " + e.getMessage());
+                System.exit(1);
             }
+        }
 
-            REGISTERS[BP] = REGISTERS[SP] = (short)STACK_ADDR;
-            while (true)
-                step();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file)))
+        {
+            vm.load(Image.read(is));
         }
-        catch (EOFException e)
+        catch (EOFException | Image.FormatException e)
         {
             System.out.println("ERROR: Binary format error.");
             System.exit(1);
@@ -104,34 +230,67 @@ public class RESquared {
         catch (IndexOutOfBoundsException e)
         {
             System.out.println("ERROR: Segmentation Fault.");
-            //e.printStackTrace();
             System.exit(3);
         }
-        catch (Exception e)
+
+        Profile profile = profileFile == null ? null : vm.startProfiling();
+        if (jmx)
+            new VMMonitor(vm).register();
+        int status = vm.run();
+        try
         {
-            System.out.println("ERROR: Binary format error.");
-            System.exit(1);
+            vm.getDevices().close();
         }
-
+        catch (IOException e)
+        {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+        if (profile != null)
+            writeProfile(profile, new File(profileFile));
+        System.exit(status);
     }
 
-    public static short readShort(DataInputStream dis) throws IOException
+    /**
+     * Writes the profile to the file, adding the counts already in it if it
+     * is a profile of the same image.
+     */
+    private static void writeProfile(Profile profile, File file)
     {
-        return getShort(dis.readByte(), dis.readByte());
+        if (file.isFile())
+        {
+            try (InputStream is = new BufferedInputStream(new FileInputStream
+                    (file)))
+            {
+                Profile earlier = Profile.read(is);
+                if (earlier.getChecksum() == profile.getChecksum())
+                    profile.add(earlier);
+            }
+            catch (IOException e)
+            {
+                //Overwrite it.
+            }
+        }
+
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream
+                (file)))
+        {
+            profile.write(os);
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR: Unable to write profile: " + file);
+        }
     }
 
-    public static byte indirectIncr(int variable)
+    public static void printBanner(PrintStream out)
     {
-        byte val = MEMORY[REGISTERS[variable] & MAX_ADDR];
-        REGISTERS[variable]++;
-        return val;
+        out.println("RE^2 Interpreter v1.1");
+        out.println("Copyright (c) 2017 theKidOfArcrania\n");
     }
 
-    public static byte indirect(int variable, int offset)
+    public static short readShort(DataInputStream dis) throws IOException
     {
-        byte val = MEMORY[((variable == IP ? ipCache : REGISTERS[variable]) &
-                MAX_ADDR) + offset];
-        return val;
+        return getShort(dis.readByte(), dis.readByte());
     }
 
     public static short getShort(byte leastSig, byte mostSig)
@@ -141,41 +300,419 @@ public class RESquared {
         return (short)val;
     }
 
-    public static void putIndirect(byte val, int variable, int offset)
+    /**
+     * Loads the image into this machine's memory and resets the registers to
+     * the image's entry point. If the image is protected, its page
+     * permissions are enforced from now on.
+     *
+     * @throws IndexOutOfBoundsException if a section does not fit in memory.
+     */
+    public void load(Image image)
+    {
+        image.loadInto(memory);
+        this.image = image;
+        pages = image.getPagePermissions();
+        fetchPage = -1;
+        registers[IP] = image.getEntryPoint();
+        registers[BP] = registers[SP] = (short)STACK_ADDR;
+    }
+
+    /**
+     * Runs the loaded program until it exits or faults.
+     *
+     * @return the exit status of the program.
+     */
+    public int run()
     {
-        MEMORY[((variable == IP ? ipCache : REGISTERS[variable]) & MAX_ADDR) +
-                offset] = val;
+        return run(() -> {
+            if (profile == null)
+            {
+                while (running)
+                    step();
+            }
+            else
+            {
+                while (running)
+                    profiledStep();
+            }
+        }, true);
     }
 
-    public static void putShort(short val, int addr)
+    /**
+     * Counts every instruction that {@link #run()} interprets from now on,
+     * and every branch it takes, in a new profile of the loaded image.
+     *
+     * @return the profile, which fills up as the program runs.
+     */
+    public Profile startProfiling()
     {
-        MEMORY[addr] = (byte)val;
-        MEMORY[addr + 1] = (byte)(val >> 8);
+        if (image == null)
+            throw new IllegalStateException("No image loaded.");
+        profile = new Profile(image);
+        return profile;
     }
 
-    public static void putShortIndirect(short val, int variable, int offset)
+    private void profiledStep()
     {
-        putShort(val, ((variable == IP ? ipCache : REGISTERS[variable]) &
+        int addr = registers[IP] & MAX_ADDR;
+        int next = (addr + Opcodes.length(memory.getByte(addr))) & MAX_ADDR;
+        step();
+        profile.record(addr, (registers[IP] & MAX_ADDR) != next);
+    }
+
+    /**
+     * Runs the loaded program with the given execution engine. The engine
+     * should execute until {@link #isRunning()} returns false. Segmentation
+     * faults raised by the engine are reported the same way as for the
+     * interpreter.
+     *
+     * @return the exit status of the program.
+     */
+    public int run(Runnable engine)
+    {
+        return run(engine, false);
+    }
+
+    /**
+     * Marks the loaded program as running without running it, for tools
+     * that call {@link #step()} themselves, such as the differential tester.
+     * Faults are then thrown out of {@link #step()} as they are, and devices
+     * are not flushed until {@link DeviceBus#flush()} is called.
+     */
+    public void start()
+    {
+        running = true;
+    }
+
+    /**
+     * @param interpreted true if the engine only runs {@link #step()}, so
+     *                    that the faulting instruction is known.
+     */
+    private int run(Runnable engine, boolean interpreted)
+    {
+        GuestExitEvent exit = new GuestExitEvent();
+        exit.begin();
+        running = true;
+        try
+        {
+            engine.run();
+        }
+        catch (ProtectionFault e)
+        {
+            //Translated code does not track the instruction, but the target
+            //of a jump is always known.
+            console.flush();
+            int addr = e.isExecute() ? e.getAddress() : interpreted ?
+                    ipCache & MAX_ADDR : -1;
+            out.println("ERROR: Protection Fault: " + e.getMessage());
+            if (addr != -1)
+            {
+                registers[IP] = (short)addr;
+                String location = describe((short)addr);
+                out.printf("@0x%04x%s\n", addr, location == null ? "" : " (" +
+                        location + ")");
+            }
+            halt(6);
+            recordFault("Protection Fault", addr);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            console.flush();
+            String location = interpreted ? describe(ipCache) : null;
+            if (location == null)
+                out.println("ERROR: Segmentation Fault.");
+            else
+                out.printf("ERROR: Segmentation Fault.\n@0x%04x (%s)\n",
+                        Short.toUnsignedInt(ipCache), location);
+            halt(3);
+            recordFault("Segmentation Fault", interpreted ? ipCache &
+                    MAX_ADDR : -1);
+        }
+
+        exit.end();
+        if (exit.shouldCommit())
+        {
+            exit.status = status;
+            exit.instructions = retired;
+            exit.commit();
+        }
+
+        try
+        {
+            devices.flush();
+        }
+        catch (IOException e)
+        {
+            out.println("ERROR: " + e.getMessage());
+        }
+        out.flush();
+        return status;
+    }
+
+    /**
+     * @return the devices of this machine, so that more can be attached
+     *         before it runs.
+     */
+    public DeviceBus getDevices()
+    {
+        return devices;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Watches stores to the given addresses. This is used by execution
+     * engines that keep a decoded copy of guest code, so that they can notice
+     * when the guest modifies it.
+     *
+     * @param addresses the addresses to watch, indexed by address, or null to
+     *                  stop watching.
+     */
+    public void watch(boolean[] addresses)
+    {
+        watched = addresses;
+        watchHit = false;
+    }
+
+    /**
+     * @return true if a watched address has been stored to since
+     *         {@link #watch(boolean[])} was called.
+     */
+    public boolean isWatchHit()
+    {
+        return watchHit;
+    }
+
+    /**
+     * @return true if the loaded image is W^X, so that its code never
+     *         changes. Execution engines may then keep decoded or translated
+     *         code for good, without watching stores to it.
+     */
+    public boolean hasImmutableCode()
+    {
+        return image != null && image.getProtection() == Image
+                .PROTECTION_W_XOR_X;
+    }
+
+    /**
+     * @return true if code at the address may run.
+     */
+    public boolean isExecutable(int addr)
+    {
+        return pages == null || (pages[addr >> PAGE_SHIFT] & PERM_EXECUTE) !=
+                0;
+    }
+
+    /**
+     * Checks that code may run from the address, unless the last check was
+     * for the same page. The interpreter does this before every instruction,
+     * so only jumps (or falling through) into another page cost anything.
+     *
+     * @throws ProtectionFault if the page is not executable.
+     */
+    public void checkExecute(int addr)
+    {
+        int page = addr >> PAGE_SHIFT;
+        if (pages == null || page == fetchPage)
+            return;
+        if ((pages[page] & PERM_EXECUTE) == 0)
+            throw new ProtectionFault(addr, true);
+        fetchPage = page;
+    }
+
+    /**
+     * Checks that the range may be stored to.
+     *
+     * @throws ProtectionFault at the first address of the range that is on a
+     *                         page that is not writable.
+     */
+    private void checkWrite(int addr, int len)
+    {
+        if (pages == null || len <= 0)
+            return;
+        int last = Math.min(addr + len - 1, MAX_ADDR) >> PAGE_SHIFT;
+        for (int page = addr >> PAGE_SHIFT; page <= last; page++)
+            if ((pages[page] & PERM_WRITE) == 0)
+                throw new ProtectionFault(Math.max(addr, page << PAGE_SHIFT),
+                        false);
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return the number of instructions run, by {@link #step()} or by an
+     *         execution engine that counts them with
+     *         {@link #countRetired(int)}.
+     */
+    public long getInstructionsRetired()
+    {
+        return retired;
+    }
+
+    /**
+     * @return the number of calls that have not returned yet.
+     */
+    public int getCallDepth()
+    {
+        return callDepth;
+    }
+
+    /**
+     * Counts instructions that an execution engine ran without
+     * {@link #step()}, such as a translated block.
+     */
+    public void countRetired(int count)
+    {
+        retired += count;
+    }
+
+    /**
+     * Counts a call (1) or a return (-1) that an execution engine ran
+     * without {@link #step()}.
+     */
+    public void countCall(int depth)
+    {
+        callDepth += depth;
+    }
+
+    public long getOutputBytes()
+    {
+        return console.getBytesWritten();
+    }
+
+    /**
+     * @return the number of values read by <code>INPUT</code>.
+     */
+    public long getInputValues()
+    {
+        return stdin.getValuesRead();
+    }
+
+    /**
+     * Counts one dispatch of an execution engine that keeps translated code:
+     * into that code if it has some for the address, or else into the
+     * interpreter.
+     */
+    public void countDispatch(boolean hit)
+    {
+        if (hit)
+            dispatchHits++;
+        else
+            dispatchMisses++;
+    }
+
+    public long getDispatchHits()
+    {
+        return dispatchHits;
+    }
+
+    public long getDispatchMisses()
+    {
+        return dispatchMisses;
+    }
+
+    public byte indirectIncr(int variable)
+    {
+        byte val = memory.getByte(registers[variable] & MAX_ADDR);
+        registers[variable]++;
+        return val;
+    }
+
+    /**
+     * Reads a 16-bit immediate operand and advances the instruction pointer
+     * past it.
+     */
+    public short fetchShort()
+    {
+        int addr = registers[IP] & MAX_ADDR;
+        registers[IP] += 2;
+        if (addr == MAX_ADDR) //Operand wraps around the address space
+            return getShort(memory.getByte(addr), memory.getByte(0));
+        return memory.getShort(addr);
+    }
+
+    public byte indirect(int variable, int offset)
+    {
+        return memory.getByte(((variable == IP ? ipCache : registers
+                [variable]) & MAX_ADDR) + offset);
+    }
+
+    public short indirectShort(int variable, int offset)
+    {
+        return memory.getShort(((variable == IP ? ipCache : registers
+                [variable]) & MAX_ADDR) + offset);
+    }
+
+    public void putIndirect(byte val, int variable, int offset)
+    {
+        putByte(val, ((variable == IP ? ipCache : registers[variable]) &
+                MAX_ADDR) + offset);
+    }
+
+    public void putByte(byte val, int addr)
+    {
+        checkWrite(addr, 1);
+        memory.putByte(addr, val);
+        if (watched != null && watched[addr])
+            watchHit = true;
+    }
+
+    public void putShort(short val, int addr)
+    {
+        checkWrite(addr, 2);
+        memory.putShort(addr, val);
+        if (watched != null && (watched[addr] || watched[addr + 1]))
+            watchHit = true;
+    }
+
+    public void putShortIndirect(short val, int variable, int offset)
+    {
+        putShort(val, ((variable == IP ? ipCache : registers[variable]) &
                 MAX_ADDR) + offset);
     }
 
-    public static void push(int val)
+    /**
+     * Checks a range that was written in bulk against the watched addresses.
+     */
+    private void touched(int addr, int len)
+    {
+        if (watched == null)
+            return;
+        for (int i = addr; i < addr + len; i++)
+        {
+            if (watched[i])
+            {
+                watchHit = true;
+                return;
+            }
+        }
+    }
+
+    public void push(int val)
     {
-        REGISTERS[SP] -= 2;
+        registers[SP] -= 2;
         putShortIndirect((short)val, SP, 0);
     }
 
-    public static short pop()
+    public short pop()
     {
-        REGISTERS[SP] += 2;
-        return getShort(indirect(SP, -2), indirect(SP, -1));
+        registers[SP] += 2;
+        return indirectShort(SP, -2);
     }
 
     @SuppressWarnings("MagicNumber")
-    public static void step()
+    public void step()
     {
-        ipCache = REGISTERS[IP];
+        ipCache = registers[IP];
+        checkExecute(ipCache & MAX_ADDR);
         int opcode = indirectIncr(IP) & 0xff;
+        retired++;
 
         switch (opcode)
         {
@@ -183,7 +720,7 @@ public class RESquared {
                 push(pop() & pop());
                 break;
             case 0x22: //DUP
-                push(getShort(indirect(SP, 0), indirect(SP, 1)));
+                push(indirectShort(SP, 0));
                 break;
             case 0x25: //MULT
                 push(pop() * pop());
@@ -222,49 +759,49 @@ public class RESquared {
                 push((pop() & 0xFFFF) >>> tmp);
                 break;
             case 0x44: //PUSH [ADDR]
-                int addr = getShort(indirectIncr(IP), indirectIncr(IP))
-                        & MAX_ADDR;
-                push(getShort(MEMORY[addr], MEMORY[addr + 1]));
+                int addr = fetchShort() & MAX_ADDR;
+                push(memory.getShort(addr));
                 break;
             case 0x4b: //PUSH [REG]
-                push(REGISTERS[indirectIncr(IP) & REGISTER_MASK]);
+                push(registers[indirectIncr(IP) & REGISTER_MASK]);
                 break;
             case 0x4f: //POP [REG]
-                REGISTERS[indirectIncr(IP) & REGISTER_MASK] = pop();
+                registers[indirectIncr(IP) & REGISTER_MASK] = pop();
                 break;
             case 0x50: //PUSH [8-bit OFFSET]([REG])
                 int var = indirectIncr(IP) & REGISTER_MASK;
                 int off = indirectIncr(IP);
-                push(getShort(indirect(var, off), indirect(var, off + 1)));
+                push(indirectShort(var, off));
                 break;
             case 0x51: //PUSH ([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
                 push(indirect(var, 0));
                 break;
             case 0x56: //STOREB [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 byte val = (byte)pop();
-                MEMORY[addr] = val;
+                putByte(val, addr);
                 break;
             case 0x57: //STOREW [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 putShort(pop(), addr);
                 break;
             case 0x58: //JMP [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
-                REGISTERS[IP] = (short)addr;
+                addr = fetchShort() & MAX_ADDR;
+                registers[IP] = (short)addr;
                 break;
             case 0x5a: //CALL [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
-                push(REGISTERS[IP]);
-                REGISTERS[IP] = (short)addr;
+                addr = fetchShort() & MAX_ADDR;
+                push(registers[IP]);
+                registers[IP] = (short)addr;
+                callDepth++;
                 break;
             case 0x5e: //ADD
                 push(pop() + pop());
                 break;
             case 0x5f: //JMP ([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
-                REGISTERS[IP] = getShort(indirect(var, 0), indirect(var, 1));
+                registers[IP] = indirectShort(var, 0);
                 break;
             case 0x63: //STOREW [8-bit OFFSET]([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
@@ -279,7 +816,7 @@ public class RESquared {
             case 0x65: //OUTPUTSTR [8-bit OFFSET]([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
                 off = indirectIncr(IP);
-                outputString(((var == IP ? ipCache : REGISTERS[var]) + off)
+                outputString(((var == IP ? ipCache : registers[var]) + off)
                         & MAX_ADDR);
                 break;
             case 0x67: //STOREB ([REG])
@@ -292,11 +829,11 @@ public class RESquared {
                 break;
             case 0x6a: //LOADW ([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
-                push(getShort(indirect(var, 0), indirect(var, 1)));
+                push(indirectShort(var, 0));
                 break;
             case 0x6b: //OUTPUTSTR ([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
-                outputString((var == IP ? ipCache : REGISTERS[var]) & MAX_ADDR);
+                outputString((var == IP ? ipCache : registers[var]) & MAX_ADDR);
                 break;
             case 0x6c: //LOADB [8-bit OFFSET]([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
@@ -304,83 +841,474 @@ public class RESquared {
                 push(indirect(var, off));
                 break;
             case 0x6d: //EXIT [16-bit STATUSCODE]
-                System.exit(getShort(indirectIncr(IP), indirectIncr(IP)));
+                halt(fetchShort());
                 break;
             case 0x6f: //PUSH [16-bit VALUE]
-                push(getShort(indirectIncr(IP), indirectIncr(IP)));
+                push(fetchShort());
                 break;
             case 0x7c: //XOR
                 push(pop() ^ pop());
                 break;
             case 0x7d: //CALL ([REG])
                 var = indirectIncr(IP) & REGISTER_MASK;
-                push(REGISTERS[IP]);
-                REGISTERS[IP] = getShort(indirect(var, 0), indirect(var, 1));
+                push(registers[IP]);
+                registers[IP] = indirectShort(var, 0);
+                callDepth++;
                 break;
             case 0x7e: //RET
-                REGISTERS[IP] = pop();
+                registers[IP] = pop();
+                callDepth--;
+                break;
+            case 0x80: //MOV [REG], [REG]
+                var = indirectIncr(IP);
+                registers[var >> 4 & REGISTER_MASK] = registers[var &
+                        REGISTER_MASK];
+                break;
+            case 0x81: //MOV [REG], [16-bit VALUE]
+                var = indirectIncr(IP) & REGISTER_MASK;
+                registers[var] = fetchShort();
+                break;
+            case 0x82: //ADD [REG], [REG]
+            case 0x83: //SUB [REG], [REG]
+            case 0x84: //AND [REG], [REG]
+            case 0x85: //OR [REG], [REG]
+            case 0x86: //XOR [REG], [REG]
+            case 0x87: //SHL [REG], [REG]
+            case 0x88: //SHR [REG], [REG]
+            case 0x89: //SAR [REG], [REG]
+                var = indirectIncr(IP);
+                registers[var >> 4 & REGISTER_MASK] = (short)alu(opcode,
+                        registers[var >> 4 & REGISTER_MASK], registers[var &
+                                REGISTER_MASK]);
+                break;
+            case 0x8a: //JEQ [REG], [REG], [ADDR]
+            case 0x8b: //JNE [REG], [REG], [ADDR]
+            case 0x8c: //JLT [REG], [REG], [ADDR]
+            case 0x8d: //JGE [REG], [REG], [ADDR]
+                var = indirectIncr(IP);
+                addr = fetchShort() & MAX_ADDR;
+                if (compare(opcode, registers[var >> 4 & REGISTER_MASK],
+                        registers[var & REGISTER_MASK]))
+                    registers[IP] = (short)addr;
                 break;
             case 0x8e: //LOADB [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
-                push(MEMORY[addr]);
+                addr = fetchShort() & MAX_ADDR;
+                push(memory.getByte(addr));
+                break;
+            case 0x90: //LOADW [REG], [8-bit OFFSET]([REG])
+                var = indirectIncr(IP);
+                off = indirectIncr(IP);
+                registers[var >> 4 & REGISTER_MASK] = indirectShort(var &
+                        REGISTER_MASK, off);
+                break;
+            case 0x91: //LOADB [REG], [8-bit OFFSET]([REG])
+                var = indirectIncr(IP);
+                off = indirectIncr(IP);
+                registers[var >> 4 & REGISTER_MASK] = indirect(var &
+                        REGISTER_MASK, off);
+                break;
+            case 0x92: //STOREW [REG], [8-bit OFFSET]([REG])
+                var = indirectIncr(IP);
+                off = indirectIncr(IP);
+                putShortIndirect(registers[var >> 4 & REGISTER_MASK], var &
+                        REGISTER_MASK, off);
+                break;
+            case 0x93: //STOREB [REG], [8-bit OFFSET]([REG])
+                var = indirectIncr(IP);
+                off = indirectIncr(IP);
+                putIndirect((byte)registers[var >> 4 & REGISTER_MASK], var &
+                        REGISTER_MASK, off);
                 break;
             case 0xda: //OUTPUTSTR [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 outputString(addr);
                 break;
             case 0xdb: //OUTPUTNUM
-                System.out.print(pop());
+                outputNumber(pop());
                 break;
             case 0xdc: //POP
                 pop();
                 break;
             case 0xde: //JNZ [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 if (pop() != 0)
-                    REGISTERS[IP] = (short)addr;
+                    registers[IP] = (short)addr;
                 break;
             case 0xdf: //INPUT
-                try
-                {
-                    push(in.nextShort());
-                }
-                catch (Exception e)
-                {
-                    System.out.println("ERROR: Invalid number entered.");
-                    System.exit(4);
-                }
+                input();
+                break;
+            case 0xe0: //JMP [8-bit REL]
+                off = indirectIncr(IP);
+                registers[IP] += off;
+                break;
+            case 0xe1: //CALL [8-bit REL]
+                off = indirectIncr(IP);
+                push(registers[IP]);
+                registers[IP] += off;
+                callDepth++;
+                break;
+            case 0xe2: //JZ [8-bit REL]
+                off = indirectIncr(IP);
+                if (pop() == 0)
+                    registers[IP] += off;
+                break;
+            case 0xe3: //JNZ [8-bit REL]
+                off = indirectIncr(IP);
+                if (pop() != 0)
+                    registers[IP] += off;
+                break;
+            case 0xe4: //JN [8-bit REL]
+                off = indirectIncr(IP);
+                if (pop() < 0)
+                    registers[IP] += off;
+                break;
+            case 0xe5: //JP [8-bit REL]
+                off = indirectIncr(IP);
+                if (pop() > 0)
+                    registers[IP] += off;
+                break;
+            case 0xe6: //MEMCPY
+                memcpy();
+                break;
+            case 0xe7: //MEMSET
+                memset();
+                break;
+            case 0xe8: //STRLEN
+                push(strlen(pop() & MAX_ADDR));
+                break;
+            case 0xe9: //ENTER
+                enter(0);
+                break;
+            case 0xea: //ENTER [16-bit SIZE]
+                enter(fetchShort());
+                break;
+            case 0xeb: //LEAVE
+                leave();
+                break;
+            case 0xec: //IN
+                portIn();
+                break;
+            case 0xed: //OUT
+                portOut();
+                break;
+            case 0xee: //READ
+                portRead();
+                break;
+            case 0xef: //WRITE
+                portWrite();
                 break;
             case 0xfc: //JZ [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 if (pop() == 0)
-                    REGISTERS[IP] = (short)addr;
+                    registers[IP] = (short)addr;
                 break;
             case 0xfe: //JN [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 if (pop() < 0)
-                    REGISTERS[IP] = (short)addr;
+                    registers[IP] = (short)addr;
                 break;
             case 0xff: //JP [ADDR]
-                addr = getShort(indirectIncr(IP), indirectIncr(IP)) & MAX_ADDR;
+                addr = fetchShort() & MAX_ADDR;
                 if (pop() > 0)
-                    REGISTERS[IP] = (short)addr;
+                    registers[IP] = (short)addr;
                 break;
             default:
-                System.out.printf("ERROR: Invalid opcode: 0x%02x\n@0x%04x",
+                console.flush();
+                out.printf("ERROR: Invalid opcode: 0x%02x\n@0x%04x",
                         opcode, Short.toUnsignedInt(ipCache));
-                System.exit(1);
+                String location = describe(ipCache);
+                if (location != null)
+                    out.print(" (" + location + ")");
+                halt(1);
+                recordFault("Invalid Opcode", ipCache & MAX_ADDR);
                 break;
         }
     }
 
-    private static void outputString(int addr)
+    /**
+     * Records the fault that halted the machine as a JFR event.
+     *
+     * @param addr the address of the faulting instruction, or -1 if it is
+     *             not known.
+     */
+    private void recordFault(String fault, int addr)
+    {
+        GuestFaultEvent event = new GuestFaultEvent();
+        if (!event.shouldCommit())
+            return;
+        event.fault = fault;
+        event.address = addr;
+        event.location = addr == -1 ? null : describe((short)addr);
+        event.status = status;
+        event.commit();
+    }
+
+    /**
+     * @return the source location of the address, or null if the loaded
+     *         image has no debug information.
+     */
+    private String describe(short addr)
+    {
+        DebugInfo debug = image == null ? null : image.getDebugInfo();
+        return debug == null ? null : debug.describe(addr & MAX_ADDR);
+    }
+
+    /**
+     * Sets up a stack frame: saves the base pointer, points it at the top of
+     * the stack, and then reserves the given number of bytes for locals.
+     */
+    public void enter(int size)
+    {
+        push(registers[BP]);
+        registers[BP] = registers[SP];
+        registers[SP] -= size;
+    }
+
+    /**
+     * Tears down the stack frame set up by {@link #enter(int)}.
+     */
+    public void leave()
+    {
+        registers[SP] = registers[BP];
+        registers[BP] = pop();
+    }
+
+    /**
+     * Computes a register-form ALU operation the same way as the stack form.
+     */
+    public static int alu(int opcode, short a, short b)
+    {
+        switch (opcode)
+        {
+            case 0x82: //ADD
+                return a + b;
+            case 0x83: //SUB
+                return a - b;
+            case 0x84: //AND
+                return a & b;
+            case 0x85: //OR
+                return a | b;
+            case 0x86: //XOR
+                return a ^ b;
+            case 0x87: //SHL
+                return a << b;
+            case 0x88: //SHR
+                return (a & 0xFFFF) >>> b;
+            case 0x89: //SAR
+                return a >> b;
+            default:
+                throw new IllegalArgumentException("Not an ALU opcode: " +
+                        opcode);
+        }
+    }
+
+    /**
+     * Evaluates the condition of a compare-and-branch. Values are compared
+     * as signed numbers.
+     */
+    public static boolean compare(int opcode, short a, short b)
+    {
+        switch (opcode)
+        {
+            case 0x8a: //JEQ
+                return a == b;
+            case 0x8b: //JNE
+                return a != b;
+            case 0x8c: //JLT
+                return a < b;
+            case 0x8d: //JGE
+                return a >= b;
+            default:
+                throw new IllegalArgumentException("Not a compare opcode: " +
+                        opcode);
+        }
+    }
+
+    public void halt(int status)
+    {
+        this.status = status;
+        running = false;
+    }
+
+    public void input()
+    {
+        try
+        {
+            push(stdin.nextShort());
+        }
+        catch (Exception e)
+        {
+            console.flush();
+            out.println("ERROR: Invalid number entered.");
+            halt(4);
+            recordFault("Invalid Number", -1);
+        }
+    }
+
+    public void outputNumber(short num)
     {
+        console.print(Short.toString(num));
+    }
 
+    /**
+     * Pops a port, and pushes the next value of the device on it (or -1 if
+     * the device fails).
+     */
+    public void portIn()
+    {
+        Device device = device(pop());
+        if (device == null)
+            return;
+        try
+        {
+            push(device.in());
+        }
+        catch (IOException e)
+        {
+            push(-1);
+        }
+    }
+
+    /**
+     * Pops a value and a port, and sends the value to the device on that
+     * port. Failures are ignored, since there is no result to report them.
+     */
+    public void portOut()
+    {
+        short value = pop();
+        Device device = device(pop());
+        if (device == null)
+            return;
+        try
+        {
+            device.out(value);
+        }
+        catch (IOException e)
+        {
+            //Nothing to report it to.
+        }
+    }
+
+    /**
+     * Pops a length, an address and a port, and reads up to that many bytes
+     * from the device on that port into memory. Pushes the number of bytes
+     * read, or -1 at the end of input or if the device fails.
+     */
+    public void portRead()
+    {
+        int len = pop() & MAX_ADDR;
+        int addr = pop() & MAX_ADDR;
+        Device device = device(pop());
+        if (device == null)
+            return;
+        if (len > GuestMemory.SIZE - addr)
+            throw new IndexOutOfBoundsException("Address out of range.");
+        checkWrite(addr, len);
+
+        int count;
+        try
+        {
+            count = device.read(ioBuffer, 0, len);
+        }
+        catch (IOException e)
+        {
+            count = -1;
+        }
+        if (count > 0)
+        {
+            memory.write(addr, ioBuffer, 0, count);
+            touched(addr, count);
+        }
+        push(count);
+    }
+
+    /**
+     * Pops a length, an address and a port, and writes that many bytes of
+     * memory to the device on that port. Pushes the number of bytes written,
+     * or -1 if the device fails.
+     */
+    public void portWrite()
+    {
+        int len = pop() & MAX_ADDR;
+        int addr = pop() & MAX_ADDR;
+        Device device = device(pop());
+        if (device == null)
+            return;
+        memory.read(addr, ioBuffer, 0, len);
+
+        int count;
+        try
+        {
+            count = device.write(ioBuffer, 0, len);
+        }
+        catch (IOException e)
+        {
+            count = -1;
+        }
+        push(count);
+    }
+
+    /**
+     * @return the device on the port, or null if there is none (which halts
+     *         the machine).
+     */
+    private Device device(int port)
+    {
+        Device device = devices.get(port & MAX_ADDR);
+        if (device == null)
+        {
+            console.flush();
+            out.println("ERROR: No device on port " + (port & MAX_ADDR) +
+                    ".");
+            halt(5);
+            recordFault("No Device", -1);
+        }
+        return device;
+    }
+
+    /**
+     * Pops a length, a source and a destination address, and copies that
+     * many bytes from the source to the destination. The ranges may overlap.
+     */
+    public void memcpy()
+    {
+        int len = pop() & MAX_ADDR;
+        int src = pop() & MAX_ADDR;
+        int dst = pop() & MAX_ADDR;
+        checkWrite(dst, len);
+        memory.copy(dst, src, len);
+        touched(dst, len);
+    }
+
+    /**
+     * Pops a length, a byte value and a destination address, and sets that
+     * many bytes at the destination to the value.
+     */
+    public void memset()
+    {
+        int len = pop() & MAX_ADDR;
+        byte val = (byte)pop();
+        int dst = pop() & MAX_ADDR;
+        checkWrite(dst, len);
+        memory.fill(dst, len, val);
+        touched(dst, len);
+    }
+
+    /**
+     * @return the length of the NUL-terminated string at the address.
+     */
+    public int strlen(int addr)
+    {
         int count = 0;
-        while (MEMORY[addr + count] != 0)
+        while (memory.getByte(addr + count) != 0)
             count++;
-        byte[] output = new byte[count];
-        System.arraycopy(MEMORY, addr, output, 0, count);
-        System.out.print(new String(output));
+        return count;
+    }
+
+    public void outputString(int addr)
+    {
+        int count = strlen(addr);
+        memory.read(addr, ioBuffer, 0, count);
+        console.write(ioBuffer, 0, count);
     }
 }
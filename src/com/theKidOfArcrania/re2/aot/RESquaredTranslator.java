@@ -0,0 +1,1005 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.aot;
+
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.Opcodes;
+import com.theKidOfArcrania.re2.RESquared;
+import com.theKidOfArcrania.re2.memory.HeapMemory;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static com.theKidOfArcrania.re2.RESquared.*;
+
+/**
+ * Ahead-of-time translator from RE^2 binaries to Java. Every basic block that
+ * is statically reachable from the entry point becomes a Java method, and the
+ * result is compiled into a runnable jar together with the original image and
+ * the {@link TranslatedProgram} runtime. For v2 images, the blocks that the
+ * assembler found are also translated, which covers code that is only
+ * reached through computed jumps. The code of a W^X image can never be
+ * modified, so blocks of such an image do not check for that after stores.
+ *
+ * For a protected image, code on pages that are not executable is never
+ * translated, and blocks end at page boundaries, so that translated code
+ * only ever runs on executable pages. Jumps anywhere else go back to the
+ * interpreter, which raises the protection fault.
+ */
+@SuppressWarnings({"JavaDoc", "MagicNumber"})
+public class RESquaredTranslator
+{
+    public static final int BLOCKS_PER_PART = 256;
+
+    private static class Block
+    {
+        private final int start;
+        private int end;
+
+        public Block(int start)
+        {
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    private final byte[] mem = new byte[MAX_ADDR + 1];
+    private final int entryPoint;
+    private final List<Image.Block> knownBlocks;
+    private final String className;
+    private final boolean immutableCode;
+    private final byte[] pages;
+
+    private final TreeSet<Integer> leaders = new TreeSet<>();
+    private final ArrayList<Block> blocks = new ArrayList<>();
+
+    public RESquaredTranslator(Image image, String className)
+    {
+        image.loadInto(new HeapMemory(mem));
+        this.entryPoint = image.getEntryPoint() & MAX_ADDR;
+        this.knownBlocks = image.getBlocks();
+        this.className = className;
+        this.immutableCode = image.getProtection() == Image
+                .PROTECTION_W_XOR_X;
+        this.pages = image.getPagePermissions();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        System.out.println("RE^2 Translator v1.1");
+        System.out.println("Copyright (c) 2017 theKidOfArcrania\n");
+
+        Path srcDir = null;
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-s") && i + 1 < args.length)
+                srcDir = Paths.get(args[++i]);
+            else
+                files.add(args[i]);
+        }
+
+        if (files.isEmpty() || files.size() > 2)
+        {
+            System.out.println("Usage: java com.theKidOfArcrania.re2.aot" +
+                    ".RESquaredTranslator [-s <source dir>] <file> [<jar>]");
+            System.exit(2);
+        }
+
+        Path input = Paths.get(files.get(0));
+        String name = input.getFileName().toString();
+        if (name.lastIndexOf('.') > 0)
+            name = name.substring(0, name.lastIndexOf('.'));
+        Path output = files.size() > 1 ? Paths.get(files.get(1)) :
+                input.resolveSibling(name + ".jar");
+
+        byte[] contents;
+        Image image;
+        try
+        {
+            contents = Files.readAllBytes(input);
+            image = Image.read(new ByteArrayInputStream(contents));
+        }
+        catch (EOFException | Image.FormatException e)
+        {
+            System.out.println("ERROR: Binary format error.");
+            System.exit(1);
+            return;
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR: File not found: " + input);
+            System.exit(1);
+            return;
+        }
+
+        RESquaredTranslator translator;
+        try
+        {
+            translator = new RESquaredTranslator(image, toClassName(name));
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            System.out.println("ERROR: Segmentation Fault.");
+            System.exit(3);
+            return;
+        }
+
+        translator.analyze();
+        String source = translator.generate();
+        System.out.println("Translated " + translator.blocks.size() + " " +
+                "block(s).");
+
+        Path tmp = Files.createTempDirectory("re2aot");
+        try
+        {
+            Path srcFile = tmp.resolve(translator.className + ".java");
+            Files.write(srcFile, source.getBytes());
+            if (srcDir != null)
+            {
+                Files.createDirectories(srcDir);
+                Files.copy(srcFile, srcDir.resolve(srcFile.getFileName()),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (!compile(Collections.singletonList(srcFile), tmp))
+            {
+                System.out.println("ERROR: Unable to compile translation.");
+                System.exit(1);
+            }
+            Files.delete(srcFile);
+            Files.write(tmp.resolve(translator.className + ".re"), contents);
+            writeJar(output, tmp, translator.className);
+        }
+        finally
+        {
+            deleteTree(tmp);
+        }
+        System.out.println("Wrote " + output);
+    }
+
+    private static String toClassName(String name)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (char c : name.toCharArray())
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0)))
+            sb.insert(0, '_');
+        sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        return sb.toString();
+    }
+
+    private static Path runtimeLocation() throws URISyntaxException
+    {
+        return Paths.get(TranslatedProgram.class.getProtectionDomain()
+                .getCodeSource().getLocation().toURI());
+    }
+
+    /**
+     * Compiles generated sources against the runtime, all in one run of the
+     * compiler.
+     *
+     * @return true if they compiled.
+     */
+    public static boolean compile(List<Path> srcFiles, Path outDir) throws
+            URISyntaxException
+    {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+        {
+            System.out.println("ERROR: A JDK is required to translate.");
+            return false;
+        }
+
+        ArrayList<String> args = new ArrayList<>(Arrays.asList("-nowarn",
+                "-classpath", runtimeLocation().toString(), "-d", outDir
+                        .toString()));
+        for (Path srcFile : srcFiles)
+            args.add(srcFile.toString());
+        return javac.run(null, null, null, args.toArray(new String[0])) == 0;
+    }
+
+    private static void writeJar(Path output, Path classes, String mainClass)
+            throws IOException, URISyntaxException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION,
+                "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS,
+                mainClass);
+
+        try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream
+                (output), manifest))
+        {
+            HashSet<String> written = new HashSet<>();
+            copyTree(jos, classes, written);
+
+            //Bundle the runtime, so that the jar runs on its own.
+            Path runtime = runtimeLocation();
+            if (Files.isDirectory(runtime))
+                copyTree(jos, runtime, written);
+            else
+            {
+                try (JarFile jar = new JarFile(runtime.toFile()))
+                {
+                    for (JarEntry entry : Collections.list(jar.entries()))
+                    {
+                        String name = entry.getName();
+                        if (!name.endsWith(".class") || !written.add(name))
+                            continue;
+                        jos.putNextEntry(new JarEntry(name));
+                        try (InputStream is = jar.getInputStream(entry))
+                        {
+                            is.transferTo(jos);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copyTree(JarOutputStream jos, Path root,
+                                 Set<String> written) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes
+                    attrs) throws IOException
+            {
+                String name = root.relativize(file).toString().replace
+                        (File.separatorChar, '/');
+                if (name.startsWith("META-INF/") || !written.add(name))
+                    return FileVisitResult.CONTINUE;
+                jos.putNextEntry(new JarEntry(name));
+                Files.copy(file, jos);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void deleteTree(Path root) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes
+                    attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /* ***********************
+     * Control-flow analysis.
+     * ***********************/
+
+    /**
+     * Finds every basic block that is statically reachable from the entry
+     * point or from a block listed in the image. Targets of computed jumps
+     * are not followed; those are left to the interpreter at run time.
+     */
+    public void analyze()
+    {
+        boolean[] visited = new boolean[MAX_ADDR + 1];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        addLeader(work, entryPoint);
+        for (Image.Block b : knownBlocks)
+            addLeader(work, b.getStart());
+
+        while (!work.isEmpty())
+        {
+            int addr = work.pop();
+            while (!visited[addr] && isExecutable(addr))
+            {
+                visited[addr] = true;
+                int op = mem[addr] & 0xFF;
+                int len = Opcodes.length(op);
+                if (len == 0 || addr + len > MAX_ADDR + 1)
+                    break;
+
+                int next = addr + len;
+                if (isTerminator(op, addr))
+                {
+                    int target = Opcodes.branchTarget(mem, addr);
+                    if (target != -1)
+                        addLeader(work, target);
+                    if (Opcodes.fallsThrough(op) && next <= MAX_ADDR)
+                        addLeader(work, next);
+                    break;
+                }
+
+                if (next > MAX_ADDR)
+                    break;
+                if (visited[next] || crossesPage(addr, next))
+                {
+                    addLeader(work, next);
+                    break;
+                }
+                addr = next;
+            }
+        }
+
+        for (int leader : leaders)
+        {
+            if (!visited[leader])
+                continue;
+            int addr = leader;
+            Block block = new Block(leader);
+            while (true)
+            {
+                int op = mem[addr] & 0xFF;
+                int len = Opcodes.length(op);
+                if (len == 0 || addr + len > MAX_ADDR + 1)
+                    break;
+
+                addr += len;
+                block.end = addr;
+                if (isTerminator(op, addr - len) || addr > MAX_ADDR ||
+                        leaders.contains(addr) || crossesPage(leader, addr))
+                    break;
+            }
+
+            if (block.end > block.start)
+                blocks.add(block);
+        }
+    }
+
+    /**
+     * @return the end of the translated block that starts at the address, or
+     *         -1 if there is none. This is only known after {@link
+     *         #analyze()}.
+     */
+    public int getBlockEnd(int start)
+    {
+        for (Block b : blocks)
+            if (b.start == start)
+                return b.end;
+        return -1;
+    }
+
+    private boolean isExecutable(int addr)
+    {
+        return pages == null || (pages[addr >> Image.PAGE_SHIFT] & Image
+                .PERM_EXECUTE) != 0;
+    }
+
+    /**
+     * @return true if the image is protected, and the two addresses are on
+     *         different pages.
+     */
+    private boolean crossesPage(int from, int to)
+    {
+        return pages != null && from >> Image.PAGE_SHIFT != to >> Image
+                .PAGE_SHIFT;
+    }
+
+    private void addLeader(ArrayDeque<Integer> work, int addr)
+    {
+        if (leaders.add(addr))
+            work.push(addr);
+    }
+
+    /**
+     * Besides branches, input and port instructions also end a block, so
+     * that they are always run by the interpreter.
+     */
+    private boolean isTerminator(int op, int addr)
+    {
+        switch (op)
+        {
+            case 0xdf: //INPUT
+            case 0xec: //IN
+            case 0xed: //OUT
+            case 0xee: //READ
+            case 0xef: //WRITE
+                return true;
+            default:
+                return Opcodes.isBranch(mem, addr);
+        }
+    }
+
+    private short imm16(int addr)
+    {
+        return RESquared.getShort(mem[addr + 1], mem[addr + 2]);
+    }
+
+    /**
+     * @return the target of an 8-bit relative branch.
+     */
+    private int rel8(int addr)
+    {
+        return (addr + 2 + mem[addr + 1]) & MAX_ADDR;
+    }
+
+    /* ***********************
+     * Code generation.
+     * ***********************/
+
+    public String generate()
+    {
+        StringBuilder sb = new StringBuilder();
+        int parts = (blocks.size() + BLOCKS_PER_PART - 1) / BLOCKS_PER_PART;
+
+        sb.append("// Generated by RESquaredTranslator. Do not edit.\n\n");
+        sb.append("import com.theKidOfArcrania.re2.RESquared;\n");
+        sb.append("import com.theKidOfArcrania.re2.aot.TranslatedProgram;\n");
+        sb.append("import com.theKidOfArcrania.re2.memory.GuestMemory;\n\n");
+        sb.append("public final class ").append(className)
+                .append(" extends TranslatedProgram\n{\n");
+
+        sb.append("    private static final int[][] BLOCKS = {");
+        for (int i = 0; i < parts; i++)
+            sb.append(i == 0 ? "" : ", ").append("Part").append(i)
+                    .append(".BLOCKS");
+        sb.append("};\n");
+
+        sb.append("    private static final int[] CODE = {");
+        int[] ranges = codeRanges();
+        for (int i = 0; i < ranges.length; i++)
+            sb.append(i == 0 ? "" : ", ").append(hex(ranges[i]));
+        sb.append("};\n\n");
+
+        sb.append("    public ").append(className)
+                .append("(RESquared vm)\n    {\n")
+                .append("        super(vm, BLOCKS, CODE);\n    }\n\n");
+        sb.append("    public static void main(String[] args)\n    {\n")
+                .append("        launch(").append(className).append(".class, ")
+                .append(className).append("::new, args);\n    }\n\n");
+
+        sb.append("    @Override\n")
+                .append("    protected int execute(int part, int pc)\n")
+                .append("    {\n        switch (part)\n        {\n");
+        for (int i = 0; i < parts; i++)
+            sb.append("            case ").append(i).append(": return Part")
+                    .append(i).append(".execute(this, pc);\n");
+        sb.append("            default: throw new InternalError();\n")
+                .append("        }\n    }\n");
+
+        for (int i = 0; i < parts; i++)
+        {
+            List<Block> part = blocks.subList(i * BLOCKS_PER_PART,
+                    Math.min(blocks.size(), (i + 1) * BLOCKS_PER_PART));
+            generatePart(sb, i, part);
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private int[] codeRanges()
+    {
+        ArrayList<Integer> ranges = new ArrayList<>();
+        int start = -1;
+        int end = -1;
+        TreeMap<Integer, Integer> sorted = new TreeMap<>();
+        for (Block b : blocks)
+            sorted.merge(b.start, b.end, Math::max);
+        for (Map.Entry<Integer, Integer> range : sorted.entrySet())
+        {
+            if (range.getKey() > end)
+            {
+                if (start != -1)
+                {
+                    ranges.add(start);
+                    ranges.add(end);
+                }
+                start = range.getKey();
+            }
+            end = Math.max(end, range.getValue());
+        }
+        if (start != -1)
+        {
+            ranges.add(start);
+            ranges.add(end);
+        }
+
+        int[] ret = new int[ranges.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = ranges.get(i);
+        return ret;
+    }
+
+    private void generatePart(StringBuilder sb, int index, List<Block> part)
+    {
+        sb.append("\n    private static final class Part").append(index)
+                .append("\n    {\n");
+        sb.append("        static final int[] BLOCKS = {");
+        for (int i = 0; i < part.size(); i++)
+            sb.append(i == 0 ? "" : ", ").append(hex(part.get(i).start));
+        sb.append("};\n\n");
+
+        sb.append("        static int execute(").append(className)
+                .append(" p, int pc)\n        {\n")
+                .append("            while (p.isActive())\n            {\n")
+                .append("                switch (pc)\n                {\n");
+        for (Block b : part)
+            sb.append("                    case ").append(hex(b.start))
+                    .append(": pc = b").append(hex4(b.start))
+                    .append("(p); break;\n");
+        sb.append("                    default: return pc;\n")
+                .append("                }\n            }\n")
+                .append("            return pc;\n        }\n");
+
+        for (Block b : part)
+            generateBlock(sb, b);
+        sb.append("    }\n");
+    }
+
+    private void generateBlock(StringBuilder sb, Block b)
+    {
+        sb.append("\n        private static int b").append(hex4(b.start))
+                .append("(").append(className).append(" p)\n        {\n")
+                .append("            RESquared vm = p.vm;\n")
+                .append("            short[] r = p.r;\n")
+                .append("            GuestMemory m = p.m;\n");
+
+        int count = 0;
+        for (int addr = b.start; addr < b.end; addr += Opcodes.length(mem
+                [addr]))
+            count++;
+
+        //Retired instructions are counted once, before the last one, unless
+        //the block stops early because it modified code.
+        int addr = b.start;
+        int index = 0;
+        boolean returned = false;
+        while (addr < b.end)
+        {
+            int len = Opcodes.length(mem[addr]);
+            boolean last = addr + len == b.end;
+            if (last)
+                line(sb, "vm.countRetired(" + count + ");");
+            returned = translate(sb, addr, last, ++index);
+            addr += len;
+        }
+        if (!returned)
+            line(sb, "return " + hex(b.end) + ";");
+        sb.append("        }\n");
+    }
+
+    /**
+     * Emits the Java code for a single instruction. This mirrors
+     * {@link RESquared#step()}, except that operands and the instruction
+     * pointer are known statically.
+     *
+     * @param index the number of the instruction within its block, counting
+     *              from 1.
+     * @return true if the emitted code always returns from the block.
+     */
+    private boolean translate(StringBuilder sb, int addr, boolean last, int
+            index)
+    {
+        int op = mem[addr] & 0xFF;
+        int next = addr + Opcodes.length(op);
+        int var = addr + 1 <= MAX_ADDR ? mem[addr + 1] & REGISTER_MASK : 0;
+        int dst = addr + 1 <= MAX_ADDR ? mem[addr + 1] >> 4 & REGISTER_MASK :
+                0;
+        int off = addr + 2 <= MAX_ADDR ? mem[addr + 2] : 0;
+        String n = hex(next);
+        String target = null;
+        boolean stores = false;
+
+        sb.append("            // ").append(hex4(addr)).append(": ")
+                .append(Opcodes.name(op)).append('\n');
+        switch (op)
+        {
+            case 0x21: //AND
+                line(sb, "vm.push(vm.pop() & vm.pop());");
+                stores = true;
+                break;
+            case 0x22: //DUP
+                line(sb, "vm.push(vm.indirectShort(" + SP + ", 0));");
+                stores = true;
+                break;
+            case 0x25: //MULT
+                line(sb, "vm.push(vm.pop() * vm.pop());");
+                stores = true;
+                break;
+            case 0x26: //NOT
+                line(sb, "vm.push(~vm.pop());");
+                stores = true;
+                break;
+            case 0x2a: //OR
+                line(sb, "vm.push(vm.pop() | vm.pop());");
+                stores = true;
+                break;
+            case 0x2b: //SUB
+                binary(sb, "vm.pop() - t");
+                stores = true;
+                break;
+            case 0x2d: //MOD
+                binary(sb, "vm.pop() % t");
+                stores = true;
+                break;
+            case 0x2f: //DIV
+                binary(sb, "vm.pop() / t");
+                stores = true;
+                break;
+            case 0x3c: //SAR
+                binary(sb, "vm.pop() >> t");
+                stores = true;
+                break;
+            case 0x3d: //PUSH [8-bit VALUE]
+                line(sb, "vm.push(" + mem[addr + 1] + ");");
+                stores = true;
+                break;
+            case 0x3e: //SHL
+                binary(sb, "vm.pop() << t");
+                stores = true;
+                break;
+            case 0x3f: //SHR
+                binary(sb, "(vm.pop() & 0xFFFF) >>> t");
+                stores = true;
+                break;
+            case 0x44: //PUSH [ADDR]
+                line(sb, "vm.push(m.getShort(" + hex(imm16(addr) & MAX_ADDR) +
+                        "));");
+                stores = true;
+                break;
+            case 0x4b: //PUSH [REG]
+                line(sb, "vm.push(" + (var == IP ? "(short)" + n : "r[" + var +
+                        "]") + ");");
+                stores = true;
+                break;
+            case 0x4f: //POP [REG]
+                line(sb, "r[" + var + "] = vm.pop();");
+                if (var == IP)
+                    target = "r[" + IP + "] & 0xFFFF";
+                break;
+            case 0x50: //PUSH [8-bit OFFSET]([REG])
+                line(sb, "vm.push(" + loadShort(addr, var, off) + ");");
+                stores = true;
+                break;
+            case 0x51: //PUSH ([REG])
+                line(sb, "vm.push(" + load(addr, var, 0) + ");");
+                stores = true;
+                break;
+            case 0x56: //STOREB [ADDR]
+                line(sb, "vm.putByte((byte)vm.pop(), " + hex(imm16(addr) &
+                        MAX_ADDR) + ");");
+                stores = true;
+                break;
+            case 0x57: //STOREW [ADDR]
+                line(sb, "vm.putShort(vm.pop(), " + hex(imm16(addr) &
+                        MAX_ADDR) + ");");
+                stores = true;
+                break;
+            case 0x58: //JMP [ADDR]
+                target = hex(imm16(addr) & MAX_ADDR);
+                break;
+            case 0x5a: //CALL [ADDR]
+                line(sb, "vm.push((short)" + n + ");");
+                line(sb, "vm.countCall(1);");
+                target = hex(imm16(addr) & MAX_ADDR);
+                break;
+            case 0x5e: //ADD
+                line(sb, "vm.push(vm.pop() + vm.pop());");
+                stores = true;
+                break;
+            case 0x5f: //JMP ([REG])
+                target = loadShort(addr, var, 0) + " & 0xFFFF";
+                break;
+            case 0x63: //STOREW [8-bit OFFSET]([REG])
+            case 0x69: //STOREW ([REG])
+                line(sb, "short v" + hex4(addr) + " = vm.pop();");
+                line(sb, "vm.putShort(v" + hex4(addr) + ", " + address(addr, var,
+                        op == 0x69 ? 0 : off) + ");");
+                stores = true;
+                break;
+            case 0x64: //STOREB [8-bit OFFSET]([REG])
+            case 0x67: //STOREB ([REG])
+                line(sb, "byte v" + hex4(addr) + " = (byte)vm.pop();");
+                line(sb, "vm.putByte(v" + hex4(addr) + ", " + address(addr, var,
+                        op == 0x67 ? 0 : off) + ");");
+                stores = true;
+                break;
+            case 0x65: //OUTPUTSTR [8-bit OFFSET]([REG])
+                line(sb, "vm.outputString((" + (var == IP ? "(short)" +
+                        hex(addr) : "r[" + var + "]") + " + " + off +
+                        ") & 0xFFFF);");
+                break;
+            case 0x6a: //LOADW ([REG])
+                line(sb, "vm.push(" + loadShort(addr, var, 0) + ");");
+                stores = true;
+                break;
+            case 0x6b: //OUTPUTSTR ([REG])
+                line(sb, "vm.outputString(" + (var == IP ? hex(addr) : "r[" +
+                        var + "] & 0xFFFF") + ");");
+                break;
+            case 0x6c: //LOADB [8-bit OFFSET]([REG])
+                line(sb, "vm.push(" + load(addr, var, off) + ");");
+                stores = true;
+                break;
+            case 0x6d: //EXIT [16-bit STATUSCODE]
+                line(sb, "vm.halt(" + imm16(addr) + ");");
+                target = n;
+                break;
+            case 0x6f: //PUSH [16-bit VALUE]
+                line(sb, "vm.push(" + imm16(addr) + ");");
+                stores = true;
+                break;
+            case 0x7c: //XOR
+                line(sb, "vm.push(vm.pop() ^ vm.pop());");
+                stores = true;
+                break;
+            case 0x7d: //CALL ([REG])
+                line(sb, "vm.push((short)" + n + ");");
+                line(sb, "vm.countCall(1);");
+                target = loadShort(addr, var, 0) + " & 0xFFFF";
+                break;
+            case 0x7e: //RET
+                line(sb, "short v" + hex4(addr) + " = vm.pop();");
+                line(sb, "vm.countCall(-1);");
+                target = "v" + hex4(addr) + " & 0xFFFF";
+                break;
+            case 0x80: //MOV [REG], [REG]
+                target = assign(sb, dst, register(var, n));
+                break;
+            case 0x81: //MOV [REG], [16-bit VALUE]
+                target = assign(sb, var, "" + imm16(addr + 1));
+                break;
+            case 0x82: //ADD [REG], [REG]
+            case 0x83: //SUB [REG], [REG]
+            case 0x84: //AND [REG], [REG]
+            case 0x85: //OR [REG], [REG]
+            case 0x86: //XOR [REG], [REG]
+            case 0x87: //SHL [REG], [REG]
+            case 0x88: //SHR [REG], [REG]
+            case 0x89: //SAR [REG], [REG]
+                target = assign(sb, dst, "RESquared.alu(" + op + ", " +
+                        register(dst, n) + ", " + register(var, n) + ")");
+                break;
+            case 0x8a: //JEQ [REG], [REG], [ADDR]
+            case 0x8b: //JNE [REG], [REG], [ADDR]
+            case 0x8c: //JLT [REG], [REG], [ADDR]
+            case 0x8d: //JGE [REG], [REG], [ADDR]
+                line(sb, "if (RESquared.compare(" + op + ", " + register(dst,
+                        n) + ", " + register(var, n) + "))\n                " +
+                        "return " + hex(Opcodes.branchTarget(mem, addr)) +
+                        ";");
+                target = n;
+                break;
+            case 0x90: //LOADW [REG], [8-bit OFFSET]([REG])
+                target = assign(sb, dst, loadShort(addr, var, off));
+                break;
+            case 0x91: //LOADB [REG], [8-bit OFFSET]([REG])
+                target = assign(sb, dst, load(addr, var, off));
+                break;
+            case 0x92: //STOREW [REG], [8-bit OFFSET]([REG])
+                line(sb, "vm.putShort(" + register(dst, n) + ", " +
+                        address(addr, var, off) + ");");
+                stores = true;
+                break;
+            case 0x93: //STOREB [REG], [8-bit OFFSET]([REG])
+                line(sb, "vm.putByte((byte)" + register(dst, n) + ", " +
+                        address(addr, var, off) + ");");
+                stores = true;
+                break;
+            case 0x8e: //LOADB [ADDR]
+                line(sb, "vm.push(m.getByte(" + hex(imm16(addr) & MAX_ADDR) +
+                        "));");
+                stores = true;
+                break;
+            case 0xda: //OUTPUTSTR [ADDR]
+                line(sb, "vm.outputString(" + hex(imm16(addr) & MAX_ADDR) +
+                        ");");
+                break;
+            case 0xdb: //OUTPUTNUM
+                line(sb, "vm.outputNumber(vm.pop());");
+                break;
+            case 0xdc: //POP
+                line(sb, "vm.pop();");
+                break;
+            case 0xde: //JNZ [ADDR]
+                branch(sb, "!= 0", imm16(addr) & MAX_ADDR);
+                target = n;
+                break;
+            case 0xdf: //INPUT
+                line(sb, "vm.input();");
+                target = n;
+                break;
+            case 0xe0: //JMP [8-bit REL]
+                target = hex(rel8(addr));
+                break;
+            case 0xe1: //CALL [8-bit REL]
+                line(sb, "vm.push((short)" + n + ");");
+                line(sb, "vm.countCall(1);");
+                target = hex(rel8(addr));
+                break;
+            case 0xe2: //JZ [8-bit REL]
+                branch(sb, "== 0", rel8(addr));
+                target = n;
+                break;
+            case 0xe3: //JNZ [8-bit REL]
+                branch(sb, "!= 0", rel8(addr));
+                target = n;
+                break;
+            case 0xe4: //JN [8-bit REL]
+                branch(sb, "< 0", rel8(addr));
+                target = n;
+                break;
+            case 0xe5: //JP [8-bit REL]
+                branch(sb, "> 0", rel8(addr));
+                target = n;
+                break;
+            case 0xe6: //MEMCPY
+                line(sb, "vm.memcpy();");
+                stores = true;
+                break;
+            case 0xe7: //MEMSET
+                line(sb, "vm.memset();");
+                stores = true;
+                break;
+            case 0xe8: //STRLEN
+                line(sb, "vm.push(vm.strlen(vm.pop() & 0xFFFF));");
+                stores = true;
+                break;
+            case 0xe9: //ENTER
+                line(sb, "vm.enter(0);");
+                stores = true;
+                break;
+            case 0xea: //ENTER [16-bit SIZE]
+                line(sb, "vm.enter(" + imm16(addr) + ");");
+                stores = true;
+                break;
+            case 0xeb: //LEAVE
+                line(sb, "vm.leave();");
+                break;
+            case 0xec: //IN
+                line(sb, "vm.portIn();");
+                target = n;
+                break;
+            case 0xed: //OUT
+                line(sb, "vm.portOut();");
+                target = n;
+                break;
+            case 0xee: //READ
+                line(sb, "vm.portRead();");
+                target = n;
+                break;
+            case 0xef: //WRITE
+                line(sb, "vm.portWrite();");
+                target = n;
+                break;
+            case 0xfc: //JZ [ADDR]
+                branch(sb, "== 0", imm16(addr) & MAX_ADDR);
+                target = n;
+                break;
+            case 0xfe: //JN [ADDR]
+                branch(sb, "< 0", imm16(addr) & MAX_ADDR);
+                target = n;
+                break;
+            case 0xff: //JP [ADDR]
+                branch(sb, "> 0", imm16(addr) & MAX_ADDR);
+                target = n;
+                break;
+            default:
+                throw new InternalError("Not an instruction: " + hex(op));
+        }
+
+        if (target != null)
+        {
+            line(sb, "return " + target + ";");
+            return true;
+        }
+        if (stores && !last && !immutableCode)
+            line(sb, "if (vm.isWatchHit())\n            {\n                " +
+                    "vm.countRetired(" + index + ");\n                return " +
+                    n + ";\n            }");
+        return false;
+    }
+
+    private void binary(StringBuilder sb, String expr)
+    {
+        line(sb, "{\n                int t = vm.pop();\n                " +
+                "vm.push(" + expr + ");\n            }");
+    }
+
+    private void branch(StringBuilder sb, String cond, int target)
+    {
+        line(sb, "if (vm.pop() " + cond + ")\n                return " +
+                hex(target) + ";");
+    }
+
+    /**
+     * @return the expression for the value of a register. The instruction
+     *         pointer reads as the address of the next instruction.
+     */
+    private String register(int var, String next)
+    {
+        return var == IP ? "(short)" + next : "r[" + var + "]";
+    }
+
+    /**
+     * Emits an assignment to a register. Assigning to the instruction
+     * pointer is a jump.
+     *
+     * @return the jump target, or null if this is not a jump.
+     */
+    private String assign(StringBuilder sb, int var, String expr)
+    {
+        line(sb, "r[" + var + "] = (short)(" + expr + ");");
+        return var == IP ? "r[" + IP + "] & 0xFFFF" : null;
+    }
+
+    /**
+     * @return the expression for an indirect memory address. The instruction
+     *         pointer reads as the address of the current instruction.
+     */
+    private String address(int addr, int var, int off)
+    {
+        if (var == IP)
+            return hex(addr + off);
+        return "(r[" + var + "] & 0xFFFF) + " + off;
+    }
+
+    private String load(int addr, int var, int off)
+    {
+        if (var == IP)
+            return "m.getByte(" + hex(addr + off) + ")";
+        return "vm.indirect(" + var + ", " + off + ")";
+    }
+
+    private String loadShort(int addr, int var, int off)
+    {
+        if (var == IP)
+            return "m.getShort(" + hex(addr + off) + ")";
+        return "vm.indirectShort(" + var + ", " + off + ")";
+    }
+
+    private static void line(StringBuilder sb, String code)
+    {
+        sb.append("            ").append(code).append('\n');
+    }
+
+    private static String hex(int val)
+    {
+        return val < 0 ? Integer.toString(val) : String.format("0x%x", val);
+    }
+
+    private static String hex4(int val)
+    {
+        return String.format("%04x", val);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.aot;
+
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.RESquared;
+import com.theKidOfArcrania.re2.memory.GuestMemory;
+import com.theKidOfArcrania.re2.monitor.CodeInvalidationEvent;
+import com.theKidOfArcrania.re2.monitor.VMMonitor;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static com.theKidOfArcrania.re2.RESquared.*;
+
+/**
+ * Runtime support for the classes generated by {@link RESquaredTranslator}.
+ *
+ * The translated code is split into parts, each holding a number of basic
+ * blocks. Control enters a part through {@link #execute(int, int)} and stays
+ * there for as long as it jumps between blocks of that part. Any address that
+ * has no translated block (such as a computed jump into code that was not
+ * statically reachable) is run by the embedded interpreter instead, until it
+ * reaches a translated block again.
+ *
+ * Stores are watched over the translated code bytes. Once a program modifies
+ * its own code, the translation is abandoned and the rest of the program is
+ * interpreted, which is recorded as a {@link CodeInvalidationEvent}. The code
+ * of a W^X image cannot be modified, so it is not watched at all.
+ *
+ * Blocks on pages that the image does not allow to run are left to the
+ * interpreter, which raises the protection fault.
+ */
+@SuppressWarnings("JavaDoc")
+public abstract class TranslatedProgram
+{
+    protected final RESquared vm;
+    protected final short[] r;
+    protected final GuestMemory m;
+
+    private final byte[] parts = new byte[MAX_ADDR + 1];
+    private boolean invalidated;
+
+    //The number of blocks that may still run before execute() returns, or
+    //negative for no limit.
+    private long budget = -1;
+
+    /**
+     * @param vm the machine to run on. The image must already be loaded.
+     * @param blocks the block addresses of every part, in part order.
+     * @param codeRanges pairs of (start, end) addresses covered by the
+     *                   translated code.
+     */
+    protected TranslatedProgram(RESquared vm, int[][] blocks, int[] codeRanges)
+    {
+        if (blocks.length > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Too many parts.");
+
+        this.vm = vm;
+        this.r = vm.registers;
+        this.m = vm.memory;
+
+        Arrays.fill(parts, (byte)-1);
+        for (int part = 0; part < blocks.length; part++)
+            for (int addr : blocks[part])
+                if (vm.isExecutable(addr))
+                    parts[addr] = (byte)part;
+
+        if (vm.hasImmutableCode())
+            return;
+        boolean[] code = new boolean[MAX_ADDR + 1];
+        for (int i = 0; i < codeRanges.length; i += 2)
+            Arrays.fill(code, codeRanges[i], codeRanges[i + 1], true);
+        vm.watch(code);
+    }
+
+    /**
+     * Loads the image resource next to the translated class, and runs it.
+     * This is used as the body of the generated <code>main</code> methods.
+     *
+     * @param cls the translated class.
+     * @param factory creates the translated program for a machine.
+     * @param args the command line arguments. <code>--jmx</code> registers
+     *             a {@link VMMonitor}, as for the interpreter.
+     */
+    protected static void launch(Class<?> cls, Function<RESquared,
+            TranslatedProgram> factory, String[] args)
+    {
+        RESquared vm = new RESquared();
+        try (InputStream is = cls.getResourceAsStream(cls.getSimpleName() +
+                ".re"))
+        {
+            if (is == null)
+                throw new FileNotFoundException();
+            vm.load(Image.read(new BufferedInputStream(is)));
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR: Binary format error.");
+            System.exit(1);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            System.out.println("ERROR: Segmentation Fault.");
+            System.exit(3);
+        }
+
+        TranslatedProgram program = factory.apply(vm);
+        if (Arrays.asList(args).contains("--jmx"))
+            new VMMonitor(vm).register();
+        System.exit(program.run());
+    }
+
+    /**
+     * Runs the program until it exits or faults.
+     *
+     * @return the exit status of the program.
+     */
+    public int run()
+    {
+        return vm.run(() -> {
+            while (vm.isRunning())
+                dispatch();
+        });
+    }
+
+    /**
+     * Runs only the translated block at the current address, or a single
+     * instruction with the interpreter if there is none. This lets tools
+     * compare the translated code with the interpreter block by block. The
+     * machine must have been started with {@link RESquared#start()}.
+     *
+     * @return true if a translated block ran.
+     */
+    public boolean step()
+    {
+        budget = 1;
+        try
+        {
+            return dispatch();
+        }
+        finally
+        {
+            budget = -1;
+        }
+    }
+
+    /**
+     * @return true if a translated block ran.
+     */
+    private boolean dispatch()
+    {
+        int pc = r[IP] & MAX_ADDR;
+        if (!invalidated && vm.isWatchHit())
+        {
+            invalidated = true;
+            recordInvalidation(pc);
+        }
+
+        int part = invalidated ? -1 : parts[pc];
+        vm.countDispatch(part != -1);
+        if (part == -1)
+        {
+            vm.step();
+            return false;
+        }
+        r[IP] = (short)execute(part, pc);
+        return true;
+    }
+
+    private void recordInvalidation(int pc)
+    {
+        CodeInvalidationEvent event = new CodeInvalidationEvent();
+        if (!event.shouldCommit())
+            return;
+        event.engine = getClass().getName();
+        event.address = pc;
+        event.commit();
+    }
+
+    /**
+     * Executes translated blocks of one part, starting at the given address.
+     *
+     * @return the address to continue from.
+     */
+    protected abstract int execute(int part, int pc);
+
+    /**
+     * @return true if translated code can continue to run.
+     */
+    protected boolean isActive()
+    {
+        return budget-- != 0 && !vm.isWatchHit() && vm.isRunning();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.fuzz;
+
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.Opcodes;
+import com.theKidOfArcrania.re2.RESquared;
+import com.theKidOfArcrania.re2.aot.RESquaredTranslator;
+import com.theKidOfArcrania.re2.aot.TranslatedProgram;
+import com.theKidOfArcrania.re2.memory.GuestMemory;
+import com.theKidOfArcrania.re2.memory.HeapMemory;
+
+import javax.tools.ToolProvider;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static com.theKidOfArcrania.re2.RESquared.*;
+
+/**
+ * Runs random programs from the {@link ProgramGenerator} on every execution
+ * engine in lockstep, and reports the first instruction after which one of
+ * them no longer agrees with the interpreter (running {@link
+ * RESquared#step()} on heap memory): in its registers, its memory, whether
+ * it is still running, its exit status, or how it faulted. The output of the
+ * program is compared once it ends.
+ *
+ * The other engines are the interpreter on the <code>direct</code> and
+ * <code>paged</code> memory backends, which are compared after every
+ * instruction, and the translated code of {@link RESquaredTranslator} (if a
+ * JDK is available), which is compared after every block. All programs are
+ * translated and compiled up front, in one run of the compiler.
+ *
+ * Programs that diverge are written out, so that they can be run again.
+ */
+@SuppressWarnings("MagicNumber")
+public class DifferentialTester
+{
+    private static final String[] BACKENDS = {"direct", "paged"};
+    private static final int MAX_DIFFS = 8;
+
+    private static class Engine
+    {
+        private final String name;
+        private final RESquared vm;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final byte[] snapshot = new byte[GuestMemory.SIZE];
+
+        private TranslatedProgram program;
+        private RESquaredTranslator translator;
+        private String fault;
+
+        //The block that the translated code ran ahead, or -1 if it has to
+        //be compared after the next instruction.
+        private int blockStart = -1;
+        private int blockEnd = -1;
+
+        private Engine(String name, GuestMemory memory, Image image)
+        {
+            this.name = name;
+            vm = new RESquared(memory, new ByteArrayInputStream(new byte[0]),
+                    new PrintStream(out));
+            vm.load(image);
+        }
+
+        private int ip()
+        {
+            return vm.registers[IP] & MAX_ADDR;
+        }
+
+        private void step()
+        {
+            if (!vm.isRunning())
+                return;
+
+            if (program != null)
+            {
+                //Also when the block faults part of the way through.
+                blockEnd = translator.getBlockEnd(ip());
+                blockStart = blockEnd == -1 ? -1 : ip();
+                blockEnd &= MAX_ADDR;
+            }
+
+            boolean watchHit = vm.isWatchHit();
+            try
+            {
+                if (program == null)
+                    vm.step();
+                else if (!program.step())
+                    blockStart = -1;
+                else if (!watchHit && vm.isWatchHit())
+                {
+                    //The block stopped right after it stored to code.
+                    blockEnd = ip();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                //Backends throw different subclasses for the same fault.
+                boolean segfault = e instanceof IndexOutOfBoundsException;
+                fault = segfault ? "Segmentation Fault" : e.getClass()
+                        .getSimpleName();
+                vm.halt(segfault ? 3 : vm.getStatus());
+            }
+        }
+
+        private byte[] snapshot()
+        {
+            vm.memory.read(0, snapshot, 0, snapshot.length);
+            return snapshot;
+        }
+    }
+
+    private final long maxSteps;
+
+    private long steps;
+
+    /**
+     * @param maxSteps the number of instructions after which a program that
+     *                 is still running is stopped.
+     */
+    public DifferentialTester(long maxSteps)
+    {
+        this.maxSteps = maxSteps;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        System.out.println("RE^2 Differential Tester v1.1");
+        System.out.println("Copyright (c) 2017 theKidOfArcrania\n");
+
+        int count = 100;
+        long seed = System.nanoTime();
+        int instructions = 64;
+        long maxSteps = 10000;
+        Path outDir = Paths.get(".");
+        boolean usage = false;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (i + 1 == args.length)
+                    usage = true;
+                else if (arg.equals("-n"))
+                    count = Integer.parseInt(args[++i]);
+                else if (arg.equals("-s"))
+                    seed = Long.decode(args[++i]);
+                else if (arg.equals("-i"))
+                    instructions = Integer.parseInt(args[++i]);
+                else if (arg.equals("-m"))
+                    maxSteps = Long.parseLong(args[++i]);
+                else if (arg.equals("-o"))
+                    outDir = Paths.get(args[++i]);
+                else
+                    usage = true;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            usage = true;
+        }
+
+        if (usage || count < 1 || instructions < 1 || maxSteps < 1)
+        {
+            System.out.println("Usage: java com.theKidOfArcrania.re2.fuzz" +
+                    ".DifferentialTester [-n <programs>] [-s <seed>] " +
+                    "[-i <instructions>] [-m <max steps>] [-o <dir>]");
+            System.exit(2);
+        }
+
+        System.out.println("Seed: " + seed);
+        Image[] images = new Image[count];
+        for (int i = 0; i < count; i++)
+            images[i] = new ProgramGenerator(seed + i).generate(instructions);
+
+        DifferentialTester tester = new DifferentialTester(maxSteps);
+        RESquaredTranslator[] translators = new RESquaredTranslator[count];
+        Constructor<?>[] translated = tester.translate(images, translators);
+        if (translated == null)
+            System.out.println("No JDK found, so translated code is not " +
+                    "tested.");
+
+        int diverged = 0;
+        for (int i = 0; i < count; i++)
+        {
+            String report = tester.test(images[i], translated == null ? null
+                    : translated[i], translators[i]);
+            if (report == null)
+                continue;
+
+            diverged++;
+            Files.createDirectories(outDir);
+            Path file = outDir.resolve("diverged-" + (seed + i) + ".re");
+            try (OutputStream os = new BufferedOutputStream(Files
+                    .newOutputStream(file)))
+            {
+                images[i].write(os);
+            }
+            System.out.println("Program " + i + " (seed " + (seed + i) +
+                    "): " + report + "  Wrote " + file);
+        }
+
+        System.out.println("Ran " + count + " program(s) for " + tester.steps +
+                " instruction(s): " + diverged + " diverged.");
+        System.exit(diverged == 0 ? 0 : 1);
+    }
+
+    /**
+     * Translates every image, and compiles them all at once.
+     *
+     * @param translators receives the translator of every image.
+     * @return the constructor of every translated program, or null if there
+     *         is no compiler.
+     */
+    private Constructor<?>[] translate(Image[] images, RESquaredTranslator[]
+            translators) throws Exception
+    {
+        if (ToolProvider.getSystemJavaCompiler() == null)
+            return null;
+
+        Path tmp = Files.createTempDirectory("re2fuzz");
+        ArrayList<Path> srcFiles = new ArrayList<>();
+        for (int i = 0; i < images.length; i++)
+        {
+            translators[i] = new RESquaredTranslator(images[i], "Fuzz" + i);
+            translators[i].analyze();
+            Path srcFile = tmp.resolve("Fuzz" + i + ".java");
+            Files.write(srcFile, translators[i].generate().getBytes());
+            srcFiles.add(srcFile);
+        }
+
+        if (!RESquaredTranslator.compile(srcFiles, tmp))
+        {
+            System.out.println("ERROR: Unable to compile translation.");
+            System.exit(1);
+        }
+
+        //The classes are all loaded before the directory is deleted.
+        Constructor<?>[] ret = new Constructor<?>[images.length];
+        ClassLoader loader = new URLClassLoader(new URL[] {tmp.toUri()
+                .toURL()}, getClass().getClassLoader());
+        for (int i = 0; i < images.length; i++)
+        {
+            Class<?> cls = Class.forName("Fuzz" + i, true, loader);
+            for (Class<?> inner : cls.getDeclaredClasses())
+                Class.forName(inner.getName(), true, loader);
+            ret[i] = cls.getConstructor(RESquared.class);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(tmp);
+        return ret;
+    }
+
+    /**
+     * Runs the image on every engine.
+     *
+     * @param translated the constructor of the translated program, or null.
+     * @param translator the translator of the image, or null.
+     * @return a description of the first difference, or null if the engines
+     *         agree.
+     */
+    public String test(Image image, Constructor<?> translated,
+                       RESquaredTranslator translator) throws
+            IOException, ReflectiveOperationException
+    {
+        Engine ref = new Engine("interpreter", new HeapMemory(), image);
+        ArrayList<Engine> engines = new ArrayList<>();
+        for (String kind : BACKENDS)
+            engines.add(new Engine(kind, GuestMemory.create(kind), image));
+        if (translated != null)
+        {
+            Engine e = new Engine("translated", new HeapMemory(), image);
+            e.program = (TranslatedProgram)translated.newInstance(e.vm);
+            e.translator = translator;
+            engines.add(e);
+        }
+
+        ref.vm.start();
+        for (Engine e : engines)
+            e.vm.start();
+
+        for (long step = 1; ref.vm.isRunning() && step <= maxSteps; step++)
+        {
+            int addr = ref.ip();
+            int op = ref.vm.memory.getByte(addr) & 0xFF;
+            int next = (addr + Opcodes.length(op)) & MAX_ADDR;
+
+            for (Engine e : engines)
+                if (e.blockStart == -1)
+                    e.step();
+            ref.step();
+            steps++;
+
+            //The interpreter has caught up with a translated block once it
+            //leaves the straight line of the block, or reaches its end.
+            int ip = ref.ip();
+            boolean ended = !ref.vm.isRunning() || ip != next;
+            byte[] expected = null;
+            for (Engine e : engines)
+            {
+                if (e.blockStart != -1 && !ended && ip != e.blockEnd)
+                    continue;
+
+                if (expected == null)
+                    expected = ref.snapshot();
+                List<String> diffs = compare(ref, expected, e);
+                if (!diffs.isEmpty())
+                {
+                    String where = String.format("after 0x%04x %s " +
+                            "(instruction %d)", addr, Opcodes.name(op), step);
+                    if (e.blockStart != -1)
+                        where += String.format(", in the block 0x%04x-0x%04x",
+                                e.blockStart, e.blockEnd);
+                    return report(e, where, diffs);
+                }
+                e.blockStart = -1;
+            }
+        }
+
+        //Translated code may have run ahead of a program that was stopped.
+        if (ref.vm.isRunning())
+            return null;
+
+        ref.vm.getDevices().flush();
+        byte[] output = ref.out.toByteArray();
+        for (Engine e : engines)
+        {
+            e.vm.getDevices().flush();
+            byte[] actual = e.out.toByteArray();
+            int pos = Arrays.mismatch(output, actual);
+            if (pos != -1)
+                return report(e, "at the end", Arrays.asList(String.format(
+                        "output: %d byte(s), expected %d, first differing " +
+                                "at byte %d", actual.length, output.length,
+                        pos)));
+        }
+        return null;
+    }
+
+    private static List<String> compare(Engine ref, byte[] expected, Engine e)
+    {
+        ArrayList<String> diffs = new ArrayList<>();
+        if (!Objects.equals(ref.fault, e.fault))
+            diffs.add("fault: " + e.fault + ", expected " + ref.fault);
+        if (ref.vm.isRunning() != e.vm.isRunning())
+            diffs.add("running: " + e.vm.isRunning() + ", expected " + ref.vm
+                    .isRunning());
+        else if (!ref.vm.isRunning() && ref.vm.getStatus() != e.vm.getStatus())
+            diffs.add("status: " + e.vm.getStatus() + ", expected " + ref.vm
+                    .getStatus());
+
+        //Translated code does not keep %IP up to date within a block.
+        boolean faulted = ref.fault != null || e.fault != null;
+        for (int reg = 0; reg < REGISTER_COUNT; reg++)
+        {
+            short val = e.vm.registers[reg];
+            if (val != ref.vm.registers[reg] && !(faulted && reg == IP))
+                diffs.add(String.format("%s: 0x%04x, expected 0x%04x",
+                        registerName(reg), val & 0xFFFF, ref.vm.registers[reg]
+                                & 0xFFFF));
+        }
+
+        byte[] actual = e.snapshot();
+        int addr = Arrays.mismatch(expected, actual);
+        if (addr != -1)
+        {
+            int count = 0;
+            for (int i = addr; i < actual.length; i++)
+                if (actual[i] != expected[i])
+                    count++;
+            diffs.add(String.format("[0x%04x]: 0x%02x, expected 0x%02x (%d " +
+                    "byte(s) differ)", addr, actual[addr] & 0xFF,
+                    expected[addr] & 0xFF, count));
+        }
+        return diffs;
+    }
+
+    private static String report(Engine e, String where, List<String> diffs)
+    {
+        StringBuilder sb = new StringBuilder(e.name);
+        sb.append(" differs from the interpreter ").append(where).append(
+                ":\n");
+        for (String diff : diffs.subList(0, Math.min(diffs.size(),
+                MAX_DIFFS)))
+            sb.append("    ").append(diff).append('\n');
+        return sb.toString();
+    }
+
+    private static String registerName(int reg)
+    {
+        switch (reg)
+        {
+            case SP:
+                return "%SP";
+            case BP:
+                return "%BP";
+            case IP:
+                return "%IP";
+            default:
+                return "%" + reg;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.fuzz;
+
+import com.theKidOfArcrania.re2.Image;
+import com.theKidOfArcrania.re2.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.theKidOfArcrania.re2.RESquared.*;
+
+/**
+ * Generates random RE^2 programs for the {@link DifferentialTester}. Every
+ * instruction is valid, but its operands are not: immediates lean towards
+ * the edges of 8-bit and 16-bit arithmetic, most branches go to another
+ * instruction of the program, and most addresses point into a small data
+ * section, while the rest may go anywhere (including into the code itself,
+ * or off the end of memory).
+ *
+ * A program starts by loading every general purpose register, and ends with
+ * <code>EXIT 0</code>. Input and port instructions are left out, since they
+ * depend on the outside world.
+ */
+@SuppressWarnings("MagicNumber")
+public class ProgramGenerator
+{
+    public static final int CODE_BASE = 0x1000;
+    public static final int DATA_BASE = 0x4000;
+    public static final int DATA_SIZE = 0x100;
+
+    private static final int MOV_IMM = 0x81; //MOV [REG], [16-bit VALUE]
+    private static final int EXIT = 0x6d; //EXIT [16-bit STATUSCODE]
+
+    //Values around the edges of 8-bit and 16-bit arithmetic.
+    private static final int[] EDGES = {0, 1, 2, 7, 8, 15, 16, 17, 0x7f, 0x80,
+            0xff, 0x100, 0x7fff, 0x8000, 0x8001, 0xfff0, 0xfffe, 0xffff};
+
+    private static final int[] OPCODES;
+
+    static
+    {
+        ArrayList<Integer> opcodes = new ArrayList<>();
+        for (int op = 0; op < 0x100; op++)
+        {
+            switch (op)
+            {
+                case 0xdf: //INPUT
+                case 0xec: //IN
+                case 0xed: //OUT
+                case 0xee: //READ
+                case 0xef: //WRITE
+                case EXIT:
+                    continue;
+                default:
+                    if (Opcodes.isValid(op) && Opcodes.revision(op) <=
+                            ISA_REVISION)
+                        opcodes.add(op);
+            }
+        }
+
+        OPCODES = new int[opcodes.size()];
+        for (int i = 0; i < OPCODES.length; i++)
+            OPCODES[i] = opcodes.get(i);
+    }
+
+    private final Random rnd;
+    private int[] starts;
+
+    public ProgramGenerator(long seed)
+    {
+        rnd = new Random(seed);
+    }
+
+    /**
+     * @param length the number of random instructions.
+     * @return a new program, with its code at {@link #CODE_BASE} and its
+     *         data at {@link #DATA_BASE}.
+     */
+    public Image generate(int length)
+    {
+        int[] ops = new int[SP + length + 1];
+        Arrays.fill(ops, 0, SP, MOV_IMM);
+        for (int i = SP; i < SP + length; i++)
+            ops[i] = pick();
+        ops[ops.length - 1] = EXIT;
+
+        starts = new int[ops.length];
+        int size = 0;
+        for (int i = 0; i < ops.length; i++)
+        {
+            starts[i] = CODE_BASE + size;
+            size += Opcodes.length(ops[i]);
+        }
+
+        byte[] code = new byte[size];
+        for (int i = 0; i < ops.length; i++)
+        {
+            int off = starts[i] - CODE_BASE;
+            code[off] = (byte)ops[i];
+            if (i < SP)
+            {
+                code[off + 1] = (byte)i;
+                putShort(code, off + 2, rnd.nextBoolean() ? pointer() :
+                        imm16());
+            }
+            else if (ops[i] == EXIT)
+                putShort(code, off + 1, 0);
+            else
+                operands(code, off, ops[i]);
+        }
+
+        byte[] data = new byte[DATA_SIZE];
+        for (int i = 0; i < data.length; i++)
+            data[i] = rnd.nextInt(4) == 0 ? 0 : (byte)rnd.nextInt();
+
+        return new Image((short)CODE_BASE, Arrays.asList(new Image.Section
+                (CODE_BASE, code), new Image.Section(DATA_BASE, data)));
+    }
+
+    /**
+     * Picks a random opcode. Computed jumps, calls and returns are picked
+     * less often, since they mostly leave the program.
+     */
+    private int pick()
+    {
+        int op = OPCODES[rnd.nextInt(OPCODES.length)];
+        switch (op)
+        {
+            case 0x5f: //JMP ([REG])
+            case 0x7d: //CALL ([REG])
+            case 0x7e: //RET
+                if (rnd.nextInt(4) != 0)
+                    return OPCODES[rnd.nextInt(OPCODES.length)];
+                return op;
+            default:
+                return op;
+        }
+    }
+
+    private void operands(byte[] code, int off, int op)
+    {
+        int addr = CODE_BASE + off;
+        switch (op)
+        {
+            case 0x3d: //PUSH [8-bit VALUE]
+                code[off + 1] = imm8();
+                break;
+            case 0x44: //PUSH [ADDR]
+            case 0x56: //STOREB [ADDR]
+            case 0x57: //STOREW [ADDR]
+            case 0x8e: //LOADB [ADDR]
+            case 0xda: //OUTPUTSTR [ADDR]
+                putShort(code, off + 1, rnd.nextInt(4) == 0 ? imm16() :
+                        pointer());
+                break;
+            case 0x4b: //PUSH [REG]
+            case 0x4f: //POP [REG]
+            case 0x51: //PUSH ([REG])
+            case 0x5f: //JMP ([REG])
+            case 0x67: //STOREB ([REG])
+            case 0x69: //STOREW ([REG])
+            case 0x6a: //LOADW ([REG])
+            case 0x6b: //OUTPUTSTR ([REG])
+            case 0x7d: //CALL ([REG])
+                code[off + 1] = (byte)register();
+                break;
+            case 0x50: //PUSH [8-bit OFFSET]([REG])
+            case 0x63: //STOREW [8-bit OFFSET]([REG])
+            case 0x64: //STOREB [8-bit OFFSET]([REG])
+            case 0x65: //OUTPUTSTR [8-bit OFFSET]([REG])
+            case 0x6c: //LOADB [8-bit OFFSET]([REG])
+                code[off + 1] = (byte)register();
+                code[off + 2] = imm8();
+                break;
+            case 0x58: //JMP [ADDR]
+            case 0x5a: //CALL [ADDR]
+            case 0xde: //JNZ [ADDR]
+            case 0xfc: //JZ [ADDR]
+            case 0xfe: //JN [ADDR]
+            case 0xff: //JP [ADDR]
+                putShort(code, off + 1, target());
+                break;
+            case 0x6f: //PUSH [16-bit VALUE]
+                putShort(code, off + 1, imm16());
+                break;
+            case 0x80: //MOV [REG], [REG]
+            case 0x82: //ADD [REG], [REG]
+            case 0x83: //SUB [REG], [REG]
+            case 0x84: //AND [REG], [REG]
+            case 0x85: //OR [REG], [REG]
+            case 0x86: //XOR [REG], [REG]
+            case 0x87: //SHL [REG], [REG]
+            case 0x88: //SHR [REG], [REG]
+            case 0x89: //SAR [REG], [REG]
+                code[off + 1] = registers();
+                break;
+            case MOV_IMM:
+                code[off + 1] = (byte)register();
+                putShort(code, off + 2, imm16());
+                break;
+            case 0x8a: //JEQ [REG], [REG], [ADDR]
+            case 0x8b: //JNE [REG], [REG], [ADDR]
+            case 0x8c: //JLT [REG], [REG], [ADDR]
+            case 0x8d: //JGE [REG], [REG], [ADDR]
+                code[off + 1] = registers();
+                putShort(code, off + 2, target());
+                break;
+            case 0x90: //LOADW [REG], [8-bit OFFSET]([REG])
+            case 0x91: //LOADB [REG], [8-bit OFFSET]([REG])
+            case 0x92: //STOREW [REG], [8-bit OFFSET]([REG])
+            case 0x93: //STOREB [REG], [8-bit OFFSET]([REG])
+                code[off + 1] = registers();
+                code[off + 2] = imm8();
+                break;
+            case 0xe0: //JMP [8-bit REL]
+            case 0xe1: //CALL [8-bit REL]
+            case 0xe2: //JZ [8-bit REL]
+            case 0xe3: //JNZ [8-bit REL]
+            case 0xe4: //JN [8-bit REL]
+            case 0xe5: //JP [8-bit REL]
+                code[off + 1] = relative(addr + 2);
+                break;
+            case 0xea: //ENTER [16-bit SIZE]
+                putShort(code, off + 1, rnd.nextInt(4) == 0 ? imm16() : rnd
+                        .nextInt(64));
+                break;
+            default:
+                if (Opcodes.length(op) != 1)
+                    throw new InternalError("No operands for " + Opcodes
+                            .name(op));
+                break;
+        }
+    }
+
+    /**
+     * @return a general purpose register, or now and then a special one.
+     */
+    private int register()
+    {
+        return rnd.nextInt(16) == 0 ? SP + rnd.nextInt(3) : rnd.nextInt(SP);
+    }
+
+    /**
+     * @return a pair of registers, encoded as for the register forms.
+     */
+    private byte registers()
+    {
+        return (byte)(register() << 4 | register());
+    }
+
+    private byte imm8()
+    {
+        return (byte)(rnd.nextBoolean() ? EDGES[rnd.nextInt(EDGES.length)] :
+                rnd.nextInt());
+    }
+
+    private int imm16()
+    {
+        switch (rnd.nextInt(4))
+        {
+            case 0:
+            case 1:
+                return EDGES[rnd.nextInt(EDGES.length)];
+            case 2:
+                return pointer();
+            default:
+                return rnd.nextInt(0x10000);
+        }
+    }
+
+    /**
+     * @return an address within the data section.
+     */
+    private int pointer()
+    {
+        return DATA_BASE + rnd.nextInt(DATA_SIZE);
+    }
+
+    /**
+     * @return the address of an instruction of the program, or now and then
+     *         any value.
+     */
+    private int target()
+    {
+        if (rnd.nextInt(8) == 0)
+            return imm16();
+        return starts[rnd.nextInt(starts.length)];
+    }
+
+    /**
+     * @param next the address of the next instruction.
+     * @return the offset of an instruction within reach of a relative branch,
+     *         or now and then any offset.
+     */
+    private byte relative(int next)
+    {
+        int from = Arrays.binarySearch(starts, next + Byte.MIN_VALUE);
+        int to = Arrays.binarySearch(starts, next + Byte.MAX_VALUE);
+        from = from < 0 ? -from - 1 : from;
+        to = to < 0 ? -to - 2 : to;
+        if (from > to || rnd.nextInt(8) == 0)
+            return (byte)rnd.nextInt();
+        return (byte)(starts[from + rnd.nextInt(to - from + 1)] - next);
+    }
+
+    private static void putShort(byte[] code, int off, int val)
+    {
+        code[off] = (byte)val;
+        code[off + 1] = (byte)(val >> 8);
+    }
+}
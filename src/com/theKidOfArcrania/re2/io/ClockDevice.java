@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+/**
+ * A monotonic clock, counting from when the device was created.
+ * <code>IN</code> gives the lower 16 bits of the elapsed milliseconds, and
+ * <code>READ</code> gives the elapsed nanoseconds as a little-endian 64-bit
+ * number (truncated to the length read).
+ */
+public class ClockDevice implements Device
+{
+    private static final int NANOS_PER_MILLI = 1000000;
+
+    private final long start = System.nanoTime();
+
+    @Override
+    public int in()
+    {
+        return (int)((System.nanoTime() - start) / NANOS_PER_MILLI) & 0xFFFF;
+    }
+
+    @Override
+    public int read(byte[] buff, int off, int len)
+    {
+        long nanos = System.nanoTime() - start;
+        len = Math.min(len, Long.BYTES);
+        for (int i = 0; i < len; i++)
+            buff[off + i] = (byte)(nanos >>> i * Byte.SIZE);
+        return len;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+import com.theKidOfArcrania.re2.monitor.InputWaitEvent;
+
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Console input. <code>IN</code> reads a single byte and <code>READ</code>
+ * reads whatever input is available, blocking only if there is none. Any
+ * pending output is flushed before this blocks, so that prompts are shown
+ * first.
+ *
+ * This also parses the numbers read by <code>INPUT</code>, so that they come
+ * from the same buffer as the bytes read through the port.
+ */
+public class ConsoleInput implements Device
+{
+    private final InputStream in;
+    private final Flushable pending;
+    private final byte[] buff = new byte[8192];
+    private int pos;
+    private int count;
+    private long values;
+
+    public ConsoleInput(InputStream in, Flushable pending)
+    {
+        this.in = in;
+        this.pending = pending;
+    }
+
+    @Override
+    public int in() throws IOException
+    {
+        if (!fill())
+            return -1;
+        return buff[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        len = Math.min(len, count - pos);
+        System.arraycopy(buff, pos, b, off, len);
+        pos += len;
+        return len;
+    }
+
+    /**
+     * Reads the next whitespace-separated number.
+     *
+     * @throws NumberFormatException if the next word is not a 16-bit number.
+     * @throws EOFException if there is no next word.
+     */
+    public short nextShort() throws IOException
+    {
+        StringBuilder word = new StringBuilder();
+        while (fill())
+        {
+            char c = (char)(buff[pos] & 0xFF);
+            if (Character.isWhitespace(c))
+            {
+                if (word.length() > 0)
+                    break;
+            }
+            else
+                word.append(c);
+            pos++;
+        }
+        if (word.length() == 0)
+            throw new EOFException();
+        short value = Short.parseShort(word.toString());
+        values++;
+        return value;
+    }
+
+    /**
+     * @return the number of values read by {@link #nextShort()}.
+     */
+    public long getValuesRead()
+    {
+        return values;
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (pos < count)
+            return true;
+        pending.flush();
+        InputWaitEvent event = new InputWaitEvent();
+        event.begin();
+        int read = in.read(buff);
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.bytes = Math.max(read, 0);
+            event.commit();
+        }
+        pos = 0;
+        count = Math.max(read, 0);
+        return read > 0;
+    }
+
+    @Override
+    public void close()
+    {
+        //The console stays open for whoever owns it.
+    }
+}
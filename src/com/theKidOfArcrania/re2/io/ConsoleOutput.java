@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+import java.io.PrintStream;
+
+/**
+ * Buffered console output. <code>OUT</code> writes the low byte of a value.
+ * The buffer is written out when it is full, when the program reads from the
+ * console, and when the program ends.
+ */
+public class ConsoleOutput implements Device
+{
+    private final PrintStream out;
+    private final byte[] buff = new byte[8192];
+    private int count;
+    private long written;
+
+    public ConsoleOutput(PrintStream out)
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void out(short value)
+    {
+        if (count == buff.length)
+            flush();
+        buff[count++] = (byte)value;
+        written++;
+    }
+
+    @Override
+    public int write(byte[] b, int off, int len)
+    {
+        written += len;
+        if (len > buff.length - count)
+        {
+            flush();
+            if (len > buff.length)
+            {
+                out.write(b, off, len);
+                return len;
+            }
+        }
+        System.arraycopy(b, off, buff, count, len);
+        count += len;
+        return len;
+    }
+
+    public void print(String s)
+    {
+        byte[] b = s.getBytes();
+        write(b, 0, b.length);
+    }
+
+    /**
+     * @return the number of bytes the program has written so far, including
+     *         any that are still buffered.
+     */
+    public long getBytesWritten()
+    {
+        return written;
+    }
+
+    @Override
+    public void flush()
+    {
+        if (count > 0)
+            out.write(buff, 0, count);
+        count = 0;
+        out.flush();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A device attached to a port of a {@link DeviceBus}. The guest talks to it
+ * with <code>IN</code> and <code>OUT</code>, which move a single 16-bit value,
+ * and with <code>READ</code> and <code>WRITE</code>, which move a whole buffer
+ * of guest memory at once.
+ *
+ * Every operation is optional. By default a device has no values to give,
+ * ignores values written to it, and fails bulk transfers.
+ */
+public interface Device extends Closeable, Flushable
+{
+    /**
+     * @return the next value of the device, or -1 if it has none.
+     */
+    default int in() throws IOException
+    {
+        return -1;
+    }
+
+    default void out(short value) throws IOException
+    {
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes from the device.
+     *
+     * @return the number of bytes read, or -1 at the end of input.
+     */
+    default int read(byte[] buff, int off, int len) throws IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Writes up to <code>len</code> bytes to the device.
+     *
+     * @return the number of bytes written, or -1 if the device does not take
+     *         any output.
+     */
+    default int write(byte[] buff, int off, int len) throws IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Writes out anything that the device still buffers.
+     */
+    @Override
+    default void flush() throws IOException
+    {
+    }
+
+    @Override
+    default void close() throws IOException
+    {
+        flush();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+import java.io.IOException;
+
+/**
+ * The ports of a virtual machine. Ports 0 to 2 hold the console output, the
+ * console input and the clock; the rest are free for other devices, such as
+ * a {@link FileDevice}.
+ */
+public class DeviceBus
+{
+    public static final int PORTS = 0x100;
+
+    public static final int STDOUT = 0;
+    public static final int STDIN = 1;
+    public static final int CLOCK = 2;
+
+    private final Device[] ports = new Device[PORTS];
+
+    /**
+     * Attaches a device to a port, replacing whatever was there before.
+     *
+     * @throws IllegalArgumentException if there is no such port.
+     */
+    public void attach(int port, Device device)
+    {
+        if (port < 0 || port >= PORTS)
+            throw new IllegalArgumentException("No such port: " + port);
+        ports[port] = device;
+    }
+
+    /**
+     * @return the device on the port, or null if there is none.
+     */
+    public Device get(int port)
+    {
+        return port >= 0 && port < PORTS ? ports[port] : null;
+    }
+
+    /**
+     * Flushes every device. The first failure is thrown once all of them
+     * have been flushed.
+     */
+    public void flush() throws IOException
+    {
+        IOException failure = null;
+        for (Device device : ports)
+        {
+            try
+            {
+                if (device != null)
+                    device.flush();
+            }
+            catch (IOException e)
+            {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Closes every device, and detaches them. The first failure is thrown
+     * once all of them have been closed.
+     */
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        for (int i = 0; i < PORTS; i++)
+        {
+            try
+            {
+                if (ports[i] != null)
+                    ports[i].close();
+            }
+            catch (IOException e)
+            {
+                if (failure == null)
+                    failure = e;
+            }
+            ports[i] = null;
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
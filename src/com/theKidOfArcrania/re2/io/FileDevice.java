@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.theKidOfArcrania.re2.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A binary file. <code>READ</code> and <code>WRITE</code> move bytes at the
+ * current position and advance it. <code>OUT</code> seeks to an (unsigned)
+ * position, and <code>IN</code> gives the lower 16 bits of the position.
+ */
+public class FileDevice implements Device
+{
+    /**
+     * A file to attach to a port, as given on the command line.
+     */
+    public static class Attachment
+    {
+        private final int port;
+        private final Path file;
+
+        public Attachment(int port, Path file)
+        {
+            if (port < 0 || port >= DeviceBus.PORTS)
+                throw new IllegalArgumentException("No such port.");
+            this.port = port;
+            this.file = file;
+        }
+
+        /**
+         * Parses a <code>port:file</code> specification.
+         *
+         * @throws IllegalArgumentException if the specification is invalid.
+         */
+        public static Attachment parse(String spec)
+        {
+            String[] parts = spec.split(":", 2);
+            if (parts.length != 2 || parts[1].isEmpty())
+                throw new IllegalArgumentException("Expected port:file.");
+            try
+            {
+                return new Attachment(Integer.decode(parts[0]), Paths.get
+                        (parts[1]));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid number: " +
+                        e.getMessage());
+            }
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        public Path getFile()
+        {
+            return file;
+        }
+    }
+
+    private final FileChannel channel;
+
+    public FileDevice(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file for reading and writing, creating it if needed.
+     */
+    public static FileDevice open(Path file) throws IOException
+    {
+        return new FileDevice(FileChannel.open(file, READ, WRITE, CREATE));
+    }
+
+    @Override
+    public int in() throws IOException
+    {
+        return (int)channel.position() & 0xFFFF;
+    }
+
+    @Override
+    public void out(short value) throws IOException
+    {
+        channel.position(value & 0xFFFF);
+    }
+
+    @Override
+    public int read(byte[] buff, int off, int len) throws IOException
+    {
+        return channel.read(ByteBuffer.wrap(buff, off, len));
+    }
+
+    @Override
+    public int write(byte[] buff, int off, int len) throws IOException
+    {
+        return channel.write(ByteBuffer.wrap(buff, off, len));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Guest memory kept off the Java heap, in a direct byte buffer.
+ */
+public class DirectMemory implements GuestMemory
+{
+    private final ByteBuffer data;
+
+    public DirectMemory()
+    {
+        data = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public byte getByte(int addr)
+    {
+        return data.get(addr);
+    }
+
+    @Override
+    public void putByte(int addr, byte val)
+    {
+        data.put(addr, val);
+    }
+
+    @Override
+    public short getShort(int addr)
+    {
+        return data.getShort(addr);
+    }
+
+    @Override
+    public void putShort(int addr, short val)
+    {
+        data.putShort(addr, val);
+    }
+
+    @Override
+    public void read(int addr, byte[] buff, int off, int len)
+    {
+        data.get(addr, buff, off, len);
+    }
+
+    @Override
+    public void write(int addr, byte[] buff, int off, int len)
+    {
+        data.put(addr, buff, off, len);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.memory;
+
+import java.util.Arrays;
+
+import static com.theKidOfArcrania.re2.RESquared.MAX_ADDR;
+
+/**
+ * The guest address space of a virtual machine. Words are 16-bit and little
+ * endian, and need not be aligned.
+ *
+ * Every access is bounds checked against the 64K address space, and throws an
+ * {@link IndexOutOfBoundsException} if it falls outside of it. Addresses do
+ * not wrap around, so a word access at {@link
+ * com.theKidOfArcrania.re2.RESquared#MAX_ADDR} also faults.
+ */
+public interface GuestMemory
+{
+    int SIZE = MAX_ADDR + 1;
+
+    /**
+     * Creates a memory backend by name.
+     *
+     * @param kind one of <code>heap</code>, <code>direct</code> or
+     *             <code>paged</code>.
+     * @return the new memory, or null if the kind is unknown.
+     */
+    static GuestMemory create(String kind)
+    {
+        switch (kind)
+        {
+            case "heap":
+                return new HeapMemory();
+            case "direct":
+                return new DirectMemory();
+            case "paged":
+                return new PagedMemory();
+            default:
+                return null;
+        }
+    }
+
+    byte getByte(int addr);
+
+    void putByte(int addr, byte val);
+
+    short getShort(int addr);
+
+    void putShort(int addr, short val);
+
+    /**
+     * Copies guest memory starting at <code>addr</code> into the buffer.
+     */
+    void read(int addr, byte[] buff, int off, int len);
+
+    /**
+     * Copies the buffer into guest memory starting at <code>addr</code>.
+     */
+    void write(int addr, byte[] buff, int off, int len);
+
+    /**
+     * Copies <code>len</code> bytes of guest memory from <code>src</code> to
+     * <code>dst</code>. The ranges may overlap. Nothing is copied if either
+     * range is out of bounds.
+     */
+    default void copy(int dst, int src, int len)
+    {
+        checkRange(src, len);
+        checkRange(dst, len);
+        byte[] buff = new byte[len];
+        read(src, buff, 0, len);
+        write(dst, buff, 0, len);
+    }
+
+    /**
+     * Sets <code>len</code> bytes of guest memory starting at
+     * <code>addr</code> to the value.
+     */
+    default void fill(int addr, int len, byte val)
+    {
+        checkRange(addr, len);
+        byte[] buff = new byte[len];
+        Arrays.fill(buff, val);
+        write(addr, buff, 0, len);
+    }
+
+    static void checkRange(int addr, int len)
+    {
+        if (addr < 0 || len < 0 || addr > SIZE - len)
+            throw new IndexOutOfBoundsException("Address out of range: " +
+                    addr + " (" + len + " bytes)");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Guest memory kept in a plain byte array on the Java heap. Words are read and
+ * written with a single little-endian view access rather than two byte
+ * accesses.
+ */
+public class HeapMemory implements GuestMemory
+{
+    private static final VarHandle SHORTS = MethodHandles
+            .byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] data;
+
+    public HeapMemory()
+    {
+        this(new byte[SIZE]);
+    }
+
+    /**
+     * Wraps an existing array, which must be exactly {@link #SIZE} bytes.
+     */
+    public HeapMemory(byte[] data)
+    {
+        if (data.length != SIZE)
+            throw new IllegalArgumentException("Memory must be " + SIZE +
+                    " bytes.");
+        this.data = data;
+    }
+
+    @Override
+    public byte getByte(int addr)
+    {
+        return data[addr];
+    }
+
+    @Override
+    public void putByte(int addr, byte val)
+    {
+        data[addr] = val;
+    }
+
+    @Override
+    public short getShort(int addr)
+    {
+        return (short)SHORTS.get(data, addr);
+    }
+
+    @Override
+    public void putShort(int addr, short val)
+    {
+        SHORTS.set(data, addr, val);
+    }
+
+    @Override
+    public void read(int addr, byte[] buff, int off, int len)
+    {
+        System.arraycopy(data, addr, buff, off, len);
+    }
+
+    @Override
+    public void write(int addr, byte[] buff, int off, int len)
+    {
+        System.arraycopy(buff, off, data, addr, len);
+    }
+
+    @Override
+    public void copy(int dst, int src, int len)
+    {
+        GuestMemory.checkRange(src, len);
+        GuestMemory.checkRange(dst, len);
+        System.arraycopy(data, src, data, dst, len);
+    }
+
+    @Override
+    public void fill(int addr, int len, byte val)
+    {
+        GuestMemory.checkRange(addr, len);
+        Arrays.fill(data, addr, addr + len, val);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Guest memory where some page-aligned ranges of the address space are backed
+ * by memory-mapped files, and everything else by another memory.
+ *
+ * Any number of machines, in this process or in others, that map the same
+ * file share the bytes of that region directly. No synchronization is done
+ * between them; guest programs have to agree on their own protocol (such as a
+ * flag word written last) for handing data over.
+ */
+public class MappedMemory implements GuestMemory
+{
+    public static final int PAGE_BITS = PagedMemory.PAGE_BITS;
+    public static final int PAGE_SIZE = PagedMemory.PAGE_SIZE;
+    public static final int PAGE_MASK = PagedMemory.PAGE_MASK;
+
+    /**
+     * A range of guest address space to map onto a file.
+     */
+    public static class Region
+    {
+        private final int base;
+        private final int size;
+        private final Path file;
+
+        public Region(int base, int size, Path file)
+        {
+            if (((base | size) & PAGE_MASK) != 0 || size == 0)
+                throw new IllegalArgumentException("Region must be a " +
+                        "non-empty multiple of " + PAGE_SIZE + " bytes.");
+            GuestMemory.checkRange(base, size);
+            this.base = base;
+            this.size = size;
+            this.file = file;
+        }
+
+        /**
+         * Parses a region from a <code>base:size:file</code> specification.
+         * The base and size may be given in decimal or in hex, with a
+         * <code>0x</code> prefix.
+         *
+         * @throws IllegalArgumentException if the specification is invalid.
+         */
+        public static Region parse(String spec)
+        {
+            String[] parts = spec.split(":", 3);
+            if (parts.length != 3 || parts[2].isEmpty())
+                throw new IllegalArgumentException("Expected base:size:file.");
+            try
+            {
+                return new Region(Integer.decode(parts[0]), Integer.decode
+                        (parts[1]), Paths.get(parts[2]));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid number: " +
+                        e.getMessage());
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+                throw new IllegalArgumentException("Region is out of range.");
+            }
+        }
+
+        public int getBase()
+        {
+            return base;
+        }
+
+        public int getSize()
+        {
+            return size;
+        }
+
+        public Path getFile()
+        {
+            return file;
+        }
+    }
+
+    private final GuestMemory backing;
+    private final ByteBuffer[] mapped = new ByteBuffer[SIZE >> PAGE_BITS];
+
+    public MappedMemory(GuestMemory backing)
+    {
+        this.backing = backing;
+    }
+
+    /**
+     * Maps the region onto its file, creating or growing the file to the
+     * size of the region if needed. The file stays mapped as long as this
+     * memory is reachable.
+     *
+     * @throws IllegalArgumentException if the region overlaps one that is
+     *                                  already mapped.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public void map(Region region) throws IOException
+    {
+        int first = region.base >> PAGE_BITS;
+        int count = region.size >> PAGE_BITS;
+        for (int i = 0; i < count; i++)
+            if (mapped[first + i] != null)
+                throw new IllegalArgumentException("Region overlaps an " +
+                        "existing mapping.");
+
+        MappedByteBuffer buff;
+        try (FileChannel ch = FileChannel.open(region.file, CREATE, READ,
+                WRITE))
+        {
+            buff = ch.map(FileChannel.MapMode.READ_WRITE, 0, region.size);
+        }
+
+        for (int i = 0; i < count; i++)
+            mapped[first + i] = buff.slice(i << PAGE_BITS, PAGE_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public byte getByte(int addr)
+    {
+        ByteBuffer page = mapped[addr >> PAGE_BITS];
+        if (page == null)
+            return backing.getByte(addr);
+        return page.get(addr & PAGE_MASK);
+    }
+
+    @Override
+    public void putByte(int addr, byte val)
+    {
+        ByteBuffer page = mapped[addr >> PAGE_BITS];
+        if (page == null)
+            backing.putByte(addr, val);
+        else
+            page.put(addr & PAGE_MASK, val);
+    }
+
+    @Override
+    public short getShort(int addr)
+    {
+        GuestMemory.checkRange(addr, 2);
+        ByteBuffer page = mapped[addr >> PAGE_BITS];
+        if ((addr & PAGE_MASK) == PAGE_MASK) //Word crosses a page boundary
+        {
+            int val = getByte(addr) & 0xFF;
+            val |= getByte(addr + 1) << 8;
+            return (short)val;
+        }
+        if (page == null)
+            return backing.getShort(addr);
+        return page.getShort(addr & PAGE_MASK);
+    }
+
+    @Override
+    public void putShort(int addr, short val)
+    {
+        GuestMemory.checkRange(addr, 2);
+        ByteBuffer page = mapped[addr >> PAGE_BITS];
+        if ((addr & PAGE_MASK) == PAGE_MASK) //Word crosses a page boundary
+        {
+            putByte(addr, (byte)val);
+            putByte(addr + 1, (byte)(val >> 8));
+        }
+        else if (page == null)
+            backing.putShort(addr, val);
+        else
+            page.putShort(addr & PAGE_MASK, val);
+    }
+
+    @Override
+    public void read(int addr, byte[] buff, int off, int len)
+    {
+        GuestMemory.checkRange(addr, len);
+        while (len > 0)
+        {
+            int chunk = Math.min(len, PAGE_SIZE - (addr & PAGE_MASK));
+            ByteBuffer page = mapped[addr >> PAGE_BITS];
+            if (page == null)
+                backing.read(addr, buff, off, chunk);
+            else
+                page.get(addr & PAGE_MASK, buff, off, chunk);
+            addr += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void write(int addr, byte[] buff, int off, int len)
+    {
+        GuestMemory.checkRange(addr, len);
+        while (len > 0)
+        {
+            int chunk = Math.min(len, PAGE_SIZE - (addr & PAGE_MASK));
+            ByteBuffer page = mapped[addr >> PAGE_BITS];
+            if (page == null)
+                backing.write(addr, buff, off, chunk);
+            else
+                page.put(addr & PAGE_MASK, buff, off, chunk);
+            addr += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.memory;
+
+/**
+ * Guest memory split into 256-byte pages that are only allocated once they
+ * are written to. Untouched pages read as zero.
+ */
+public class PagedMemory implements GuestMemory
+{
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final byte[][] pages = new byte[SIZE >> PAGE_BITS][];
+
+    @Override
+    public byte getByte(int addr)
+    {
+        byte[] page = pages[addr >> PAGE_BITS];
+        return page == null ? 0 : page[addr & PAGE_MASK];
+    }
+
+    @Override
+    public void putByte(int addr, byte val)
+    {
+        page(addr >> PAGE_BITS)[addr & PAGE_MASK] = val;
+    }
+
+    @Override
+    public short getShort(int addr)
+    {
+        GuestMemory.checkRange(addr, 2);
+        int val = getByte(addr) & 0xFF;
+        val |= getByte(addr + 1) << 8;
+        return (short)val;
+    }
+
+    @Override
+    public void putShort(int addr, short val)
+    {
+        GuestMemory.checkRange(addr, 2);
+        putByte(addr, (byte)val);
+        putByte(addr + 1, (byte)(val >> 8));
+    }
+
+    @Override
+    public void read(int addr, byte[] buff, int off, int len)
+    {
+        GuestMemory.checkRange(addr, len);
+        while (len > 0)
+        {
+            int chunk = Math.min(len, PAGE_SIZE - (addr & PAGE_MASK));
+            byte[] page = pages[addr >> PAGE_BITS];
+            System.arraycopy(page == null ? ZERO_PAGE : page, addr &
+                    PAGE_MASK, buff, off, chunk);
+            addr += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void write(int addr, byte[] buff, int off, int len)
+    {
+        GuestMemory.checkRange(addr, len);
+        while (len > 0)
+        {
+            int chunk = Math.min(len, PAGE_SIZE - (addr & PAGE_MASK));
+            System.arraycopy(buff, off, page(addr >> PAGE_BITS), addr &
+                    PAGE_MASK, chunk);
+            addr += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    private byte[] page(int index)
+    {
+        byte[] page = pages[index];
+        if (page == null)
+            pages[index] = page = new byte[PAGE_SIZE];
+        return page;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.monitor;
+
+import jdk.jfr.*;
+
+/**
+ * Recorded when a guest program halts on a fault, such as a segmentation
+ * fault or an invalid opcode.
+ */
+@Name("com.theKidOfArcrania.re2.GuestFault")
+@Label("Guest Fault")
+@Category("RE^2")
+@StackTrace(false)
+public class GuestFaultEvent extends Event
+{
+    @Label("Fault")
+    public String fault;
+
+    @Label("Address")
+    @Description("The address of the faulting instruction, or -1 if it is " +
+            "not known.")
+    public int address;
+
+    @Label("Source Location")
+    @Description("Where the address is in the source, if the image has " +
+            "debug information.")
+    public String location;
+
+    @Label("Exit Status")
+    public int status;
+}
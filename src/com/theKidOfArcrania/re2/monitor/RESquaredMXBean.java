@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.monitor;
+
+/**
+ * The live counters of one machine, as registered by {@link VMMonitor}.
+ * Each value is read from the machine when it is asked for, and may lag
+ * slightly behind it while the guest is running.
+ */
+public interface RESquaredMXBean
+{
+    /**
+     * @return the number of instructions run, interpreted or translated.
+     */
+    long getInstructionsRetired();
+
+    /**
+     * @return the average rate of retired instructions since the monitor
+     *         was created. Every reader sees the same value, so clients that
+     *         want a recent rate should sample
+     *         {@link #getInstructionsRetired()} themselves.
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * @return the number of calls that have not returned yet.
+     */
+    int getCallDepth();
+
+    long getOutputBytes();
+
+    /**
+     * @return the number of values read by <code>INPUT</code>.
+     */
+    long getInputValuesConsumed();
+
+    /**
+     * @return the fraction of dispatches that went into translated code
+     *         instead of the interpreter, or NaN if the program is not
+     *         translated.
+     */
+    double getTranslatedHitRate();
+
+    boolean isRunning();
+
+    int getStatus();
+}
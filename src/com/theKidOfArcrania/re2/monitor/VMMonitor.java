@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 theKidOfArcrania
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.theKidOfArcrania.re2.monitor;
+
+import com.theKidOfArcrania.re2.RESquared;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exposes the counters of a machine over JMX, as
+ * <code>com.theKidOfArcrania.re2:type=RESquared,id=&lt;n&gt;</code>.
+ *
+ * The machine only keeps plain counters, which are updated by the thread
+ * that runs it and are never synchronized. This reads them on demand, so
+ * monitoring costs the guest nothing until someone looks.
+ */
+public class VMMonitor implements RESquaredMXBean
+{
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final RESquared vm;
+    private final ObjectName name;
+
+    private final long startNanos = System.nanoTime();
+
+    public VMMonitor(RESquared vm)
+    {
+        this.vm = vm;
+        try
+        {
+            name = new ObjectName("com.theKidOfArcrania.re2:type=RESquared," +
+                    "id=" + ids.incrementAndGet());
+        }
+        catch (MalformedObjectNameException e)
+        {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Registers this monitor with the platform MBean server.
+     *
+     * @return this monitor.
+     */
+    public VMMonitor register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    name);
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Unregisters this monitor, if it is registered.
+     */
+    public void unregister()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (InstanceNotFoundException e)
+        {
+            //Never registered.
+        }
+        catch (MBeanRegistrationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public ObjectName getName()
+    {
+        return name;
+    }
+
+    @Override
+    public long getInstructionsRetired()
+    {
+        return vm.getInstructionsRetired();
+    }
+
+    @Override
+    public double getInstructionsPerSecond()
+    {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : vm.getInstructionsRetired() * 1e9 / elapsed;
+    }
+
+    @Override
+    public int getCallDepth()
+    {
+        return vm.getCallDepth();
+    }
+
+    @Override
+    public long getOutputBytes()
+    {
+        return vm.getOutputBytes();
+    }
+
+    @Override
+    public long getInputValuesConsumed()
+    {
+        return vm.getInputValues();
+    }
+
+    @Override
+    public double getTranslatedHitRate()
+    {
+        long hits = vm.getDispatchHits();
+        long total = hits + vm.getDispatchMisses();
+        return total == 0 ? Double.NaN : (double)hits / total;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return vm.isRunning();
+    }
+
+    @Override
+    public int getStatus()
+    {
+        return vm.getStatus();
+    }
+}